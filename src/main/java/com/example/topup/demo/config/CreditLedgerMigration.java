@@ -0,0 +1,148 @@
+package com.example.topup.demo.config;
+
+import com.example.topup.demo.entity.CreditLedgerEntry;
+import com.example.topup.demo.entity.RetailerLimit.CreditTransaction;
+import com.mongodb.DBRef;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Creates the credit_ledger indexes, moves the credit transactions still embedded in
+ * retailer_limits documents into credit_ledger and converts retailer and kickback limit
+ * balances stored as strings or doubles to Decimal128.
+ * Runs while the context starts, before any request is served: saving a limit no longer
+ * writes the embedded array, so a limit saved before its history is moved would lose it,
+ * and a credit debit cannot $inc a balance that is still a string. A failure therefore stops
+ * the application from starting.
+ * Safe to run on every startup: limits already migrated are skipped.
+ */
+@Component
+public class CreditLedgerMigration {
+
+    private static final String LIMITS_COLLECTION = "retailer_limits";
+    private static final int BATCH_SIZE = 1000;
+    private static final String[] BALANCES = {"creditLimit", "availableCredit", "usedCredit", "outstandingAmount"};
+    private static final String KICKBACK_LIMITS_COLLECTION = "retailer_kickback_limits";
+    private static final String[] KICKBACK_BALANCES = {"kickbackLimit", "usedKickback", "availableKickback"};
+
+    private final MongoTemplate mongoTemplate;
+
+    public CreditLedgerMigration(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @PostConstruct
+    public void migrate() {
+        try {
+            ensureIndexes();
+            moveEmbeddedTransactions();
+            convertBalancesToDecimal();
+        } catch (RuntimeException e) {
+            System.err.println("❌ Credit ledger migration failed: " + e.getMessage());
+            throw new IllegalStateException("Credit ledger migration failed, not starting with unmigrated limits", e);
+        }
+    }
+
+    /**
+     * auto-index-creation is disabled, so the credit_ledger indexes are created here
+     */
+    private void ensureIndexes() {
+        MongoCollection<Document> ledger = mongoTemplate.getCollection(mongoTemplate.getCollectionName(CreditLedgerEntry.class));
+        ledger.createIndex(Indexes.compoundIndex(Indexes.ascending("retailerId"), Indexes.descending("transactionDate", "_id")),
+            new IndexOptions().name("retailer_date_idx"));
+        ledger.createIndex(Indexes.ascending("retailerId", "referenceOrderId"), new IndexOptions().name("retailer_order_idx"));
+        System.out.println("✅ credit_ledger indexes verified");
+    }
+
+    private void moveEmbeddedTransactions() {
+        Query legacyLimits = new Query(Criteria.where("transactions").exists(true));
+        legacyLimits.fields().include("_id");
+
+        // Load limit ids first so only one limit's history is held in memory at a time
+        List<Document> limitIds = mongoTemplate.find(legacyLimits, Document.class, LIMITS_COLLECTION);
+        if (limitIds.isEmpty()) {
+            return;
+        }
+
+        System.out.println("🔄 Moving embedded credit transactions of " + limitIds.size() + " retailer limit(s) to credit_ledger...");
+
+        for (Document idDoc : limitIds) {
+            Object rawLimitId = idDoc.get("_id");
+            Document limitDoc = mongoTemplate.findOne(new Query(Criteria.where("_id").is(rawLimitId)), Document.class, LIMITS_COLLECTION);
+            if (limitDoc == null) {
+                continue;
+            }
+
+            String limitId = rawLimitId.toString();
+            Object retailerRef = limitDoc.get("retailer");
+            String retailerId = retailerRef instanceof DBRef ? ((DBRef) retailerRef).getId().toString() : null;
+            Date created = limitDoc.getDate("createdDate");
+            LocalDateTime undated = created != null
+                ? LocalDateTime.ofInstant(created.toInstant(), ZoneId.systemDefault())
+                : LocalDateTime.of(1970, 1, 1, 0, 0);
+
+            // Left over from a run interrupted before the array was dropped: no other code writes
+            // this limit's ledger entries until the migration has finished
+            mongoTemplate.remove(new Query(Criteria.where("retailerLimitId").is(limitId)), CreditLedgerEntry.class);
+
+            List<CreditLedgerEntry> batch = new ArrayList<>();
+            int moved = 0;
+            for (Document transactionDoc : limitDoc.getList("transactions", Document.class, List.of())) {
+                CreditTransaction transaction = mongoTemplate.getConverter().read(CreditTransaction.class, transactionDoc);
+                CreditLedgerEntry entry = new CreditLedgerEntry(retailerId, limitId, transaction);
+                if (entry.getTransactionDate() == null) {
+                    entry.setTransactionDate(undated);
+                }
+                batch.add(entry);
+                if (batch.size() >= BATCH_SIZE) {
+                    mongoTemplate.insertAll(batch);
+                    moved += batch.size();
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                mongoTemplate.insertAll(batch);
+                moved += batch.size();
+            }
+
+            // Only drop the embedded array once every transaction has been written
+            mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(rawLimitId)), new Update().unset("transactions"), LIMITS_COLLECTION);
+
+            System.out.println("   ✓ Retailer limit " + limitId + ": moved " + moved + " transactions");
+        }
+
+        System.out.println("✅ Credit ledger migration complete");
+    }
+
+    private void convertBalancesToDecimal() {
+        convertToDecimal(LIMITS_COLLECTION, BALANCES, "retailer limit(s)");
+        convertToDecimal(KICKBACK_LIMITS_COLLECTION, KICKBACK_BALANCES, "kickback limit(s)");
+    }
+
+    private void convertToDecimal(String collection, String[] balances, String label) {
+        MongoCollection<Document> limits = mongoTemplate.getCollection(collection);
+        for (String balance : balances) {
+            long converted = limits.updateMany(
+                new Document(balance, new Document("$type", List.of("string", "double", "int", "long"))),
+                List.of(new Document("$set", new Document(balance, new Document("$toDecimal", "$" + balance))))
+            ).getModifiedCount();
+            if (converted > 0) {
+                System.out.println("   ✓ Converted " + balance + " of " + converted + " " + label + " to Decimal128");
+            }
+        }
+    }
+}
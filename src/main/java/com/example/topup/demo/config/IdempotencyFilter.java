@@ -0,0 +1,207 @@
+package com.example.topup.demo.config;
+
+import com.example.topup.demo.entity.IdempotencyRecord;
+import com.example.topup.demo.service.IdempotencyService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.*;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.util.ContentCachingResponseWrapper;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Makes the POS sale and retailer purchase endpoints safe to retry: a POST to one of
+ * app.idempotency.paths carrying an Idempotency-Key header runs once per caller and key,
+ * and retries get the first response back (marked with Idempotent-Replayed: true) without
+ * allocating stock or debiting credit again. Requests without the header are not affected.
+ * Runs after Spring Security, so keys are scoped to the authenticated user.
+ */
+@Component
+public class IdempotencyFilter implements Filter {
+
+    public static final String KEY_HEADER = "Idempotency-Key";
+    public static final String REPLAYED_HEADER = "Idempotent-Replayed";
+
+    private static final int MAX_KEY_LENGTH = 255;
+
+    @Autowired
+    private IdempotencyService idempotencyService;
+
+    @Value("${app.idempotency.paths:/api/admin/stock/esims/pos-sale,/api/admin/stock/pins/pos-sale,/api/retailer/direct-sale,/api/retailer/purchase,/api/retailer/purchase/cart}")
+    private List<String> paths;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Override
+    public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest request = (HttpServletRequest) req;
+        HttpServletResponse response = (HttpServletResponse) res;
+
+        String idempotencyKey = request.getHeader(KEY_HEADER);
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        if (idempotencyKey == null || !"POST".equalsIgnoreCase(request.getMethod()) || !paths.contains(path)) {
+            chain.doFilter(req, res);
+            return;
+        }
+        if (idempotencyKey.isBlank() || idempotencyKey.length() > MAX_KEY_LENGTH) {
+            writeError(response, HttpServletResponse.SC_BAD_REQUEST, KEY_HEADER + " must be 1-" + MAX_KEY_LENGTH + " characters");
+            return;
+        }
+
+        // The body is read up front: its hash has to be known before the request runs
+        byte[] body = request.getInputStream().readAllBytes();
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        String caller = authentication != null ? authentication.getName() : "anonymous";
+        String key = caller + "|" + path + "|" + idempotencyKey;
+
+        boolean[] executedHere = {false};
+        IdempotencyRecord outcome;
+        try {
+            outcome = idempotencyService.execute(key, path, sha256(body), () -> {
+                executedHere[0] = true;
+                ContentCachingResponseWrapper captured = new ContentCachingResponseWrapper(response);
+                chain.doFilter(new CachedBodyRequest(request, body), captured);
+
+                IdempotencyRecord result = new IdempotencyRecord();
+                result.setPath(path);
+                result.setResponseStatus(captured.getStatus());
+                result.setResponseContentType(captured.getContentType());
+                result.setResponseBody(new String(captured.getContentAsByteArray(), StandardCharsets.UTF_8));
+                captured.copyBodyToResponse();
+                return result;
+            });
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            if (executedHere[0]) {
+                throw e; // from the request itself
+            }
+            // Key reused for another body (422), or the first request is still running (409, retry later)
+            if (e instanceof IllegalArgumentException) {
+                writeError(response, 422, e.getMessage());
+            } else {
+                response.setHeader("Retry-After", String.valueOf(idempotencyService.getRetryAfterSeconds()));
+                writeError(response, HttpServletResponse.SC_CONFLICT, e.getMessage());
+            }
+            return;
+        } catch (IOException | ServletException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ServletException(e);
+        }
+
+        if (!executedHere[0]) {
+            System.out.println("🔁 Replayed " + path + " for Idempotency-Key " + idempotencyKey);
+            response.setStatus(outcome.getResponseStatus());
+            if (outcome.getResponseContentType() != null) {
+                response.setContentType(outcome.getResponseContentType());
+            }
+            response.setHeader(REPLAYED_HEADER, "true");
+            byte[] replay = outcome.getResponseBody() != null ? outcome.getResponseBody().getBytes(StandardCharsets.UTF_8) : new byte[0];
+            response.setContentLength(replay.length);
+            response.getOutputStream().write(replay);
+        }
+    }
+
+    private void writeError(HttpServletResponse response, int status, String message) throws IOException {
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("success", false);
+        error.put("message", message);
+        response.setStatus(status);
+        response.setContentType("application/json");
+        response.getOutputStream().write(objectMapper.writeValueAsBytes(error));
+    }
+
+    private static String sha256(byte[] body) {
+        try {
+            return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(body));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    // Hands the already read body to the controller
+    private static final class CachedBodyRequest extends HttpServletRequestWrapper {
+
+        private final byte[] body;
+
+        CachedBodyRequest(HttpServletRequest request, byte[] body) {
+            super(request);
+            this.body = body;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() {
+            ByteArrayInputStream in = new ByteArrayInputStream(body);
+            return new ServletInputStream() {
+                @Override
+                public int read() {
+                    return in.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    return in.read(b, off, len);
+                }
+
+                @Override
+                public boolean isFinished() {
+                    return in.available() == 0;
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                // The whole body is already in memory, so it is available right away
+                @Override
+                public void setReadListener(ReadListener listener) {
+                    try {
+                        if (!isFinished()) {
+                            listener.onDataAvailable();
+                        }
+                        if (isFinished()) {
+                            listener.onAllDataRead();
+                        }
+                    } catch (IOException e) {
+                        listener.onError(e);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public BufferedReader getReader() {
+            String encoding = getCharacterEncoding() != null ? getCharacterEncoding() : StandardCharsets.UTF_8.name();
+            return new BufferedReader(new InputStreamReader(getInputStream(), Charset.forName(encoding)));
+        }
+
+        @Override
+        public int getContentLength() {
+            return body.length;
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            return body.length;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.example.topup.demo.config;
+
+import com.example.topup.demo.entity.StockPool;
+import com.example.topup.demo.entity.StockPool.StockItem;
+import com.example.topup.demo.service.StockArchiveService;
+import com.example.topup.demo.service.StockDedupeService;
+import com.example.topup.demo.service.StockLookupHashService;
+import com.example.topup.demo.service.StockService;
+import com.example.topup.demo.service.StockShardService;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndReplaceOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Creates the stock_items (and archive) indexes, moves any items still embedded in
+ * stock_pools documents into the stock_items collection and backfills
+ * the itemDataHash lookup field and the maskedData display field.
+ * Inline QR images are moved to the QR image store.
+ * Runs while the context starts, before any request is served: sales and lookups only
+ * read stock_items, so a pool whose items are still embedded would look empty. A failure
+ * therefore stops the application from starting.
+ * Safe to run on every startup: pools that are already split and items
+ * that already have these fields are skipped, and a rerun after a partial split writes
+ * the same item ids again.
+ */
+@Component
+public class StockItemMigration {
+
+    private static final String POOLS_COLLECTION = "stock_pools";
+    private static final String ITEMS_COLLECTION = "stock_items";
+    private static final int BATCH_SIZE = 500;
+
+    private final MongoTemplate mongoTemplate;
+    private final StockService stockService;
+    private final StockLookupHashService stockLookupHashService;
+    private final StockDedupeService stockDedupeService;
+
+    public StockItemMigration(MongoTemplate mongoTemplate, StockService stockService, StockLookupHashService stockLookupHashService,
+                              StockDedupeService stockDedupeService) {
+        this.mongoTemplate = mongoTemplate;
+        this.stockService = stockService;
+        this.stockLookupHashService = stockLookupHashService;
+        this.stockDedupeService = stockDedupeService;
+    }
+
+    @PostConstruct
+    public void migrate() {
+        try {
+            ensureIndexes();
+            splitEmbeddedItems();
+            backfillDerivedFields();
+            moveQrImagesToStore();
+        } catch (RuntimeException e) {
+            System.err.println("❌ Stock item migration failed: " + e.getMessage());
+            throw new IllegalStateException("Stock item migration failed, not starting with unmigrated stock", e);
+        }
+    }
+
+    /**
+     * auto-index-creation is disabled, so the stock_items indexes are created here
+     */
+    private void ensureIndexes() {
+        MongoCollection<Document> items = mongoTemplate.getCollection(ITEMS_COLLECTION);
+        items.createIndex(Indexes.ascending("poolId", "status"), new IndexOptions().name("pool_status_idx"));
+        items.createIndex(Indexes.ascending("serialNumber"), new IndexOptions().name("serialNumber"));
+        items.createIndex(Indexes.ascending("assignedToOrderId"), new IndexOptions().name("assignedToOrderId"));
+        items.createIndex(Indexes.ascending("status", "leaseExpiresAt"), new IndexOptions().name("status_lease_idx"));
+        items.createIndex(Indexes.ascending("poolId", "status", "_id"), new IndexOptions().name("pool_status_item_idx"));
+        items.createIndex(Indexes.ascending("poolId", "status", "addedDate", "_id"), new IndexOptions().name("pool_status_added_idx"));
+        items.createIndex(Indexes.ascending("poolId", "status", "expiryDate", "addedDate", "_id"), new IndexOptions().name("pool_status_expiry_idx"));
+        items.createIndex(Indexes.ascending("status", "_id"), new IndexOptions().name("status_item_idx"));
+        // Bucketed claims in sharded pools (StockShardService); only items that have a bucket are indexed
+        Document bucketed = new Document("shard", new Document("$exists", true));
+        items.createIndex(Indexes.ascending("poolId", "shard", "status", "addedDate", "_id"),
+            new IndexOptions().name("pool_shard_status_added_idx").partialFilterExpression(bucketed));
+        items.createIndex(Indexes.ascending("poolId", "shard", "status", "expiryDate", "addedDate", "_id"),
+            new IndexOptions().name("pool_shard_status_expiry_idx").partialFilterExpression(bucketed));
+        // Also the itemDataHash lookup index
+        stockDedupeService.ensureUniqueIndexes();
+        System.out.println("✅ stock_items indexes verified");
+
+        // Archive lookups (serial, order, PIN hash) and the per-pool counts used by counter reconciliation
+        MongoCollection<Document> archive = mongoTemplate.getCollection(StockArchiveService.ARCHIVE_COLLECTION);
+        archive.createIndex(Indexes.ascending("poolId", "status"), new IndexOptions().name("pool_status_idx"));
+        archive.createIndex(Indexes.ascending("serialNumber"), new IndexOptions().name("serialNumber"));
+        archive.createIndex(Indexes.ascending("assignedToOrderId"), new IndexOptions().name("assignedToOrderId"));
+        archive.createIndex(Indexes.ascending("itemDataHash"), new IndexOptions().name("itemDataHash"));
+
+        mongoTemplate.getCollection(StockShardService.SHARDS_COLLECTION)
+            .createIndex(Indexes.ascending("poolId"), new IndexOptions().name("poolId"));
+    }
+
+    private void splitEmbeddedItems() {
+        Query legacyPools = new Query(Criteria.where("items.0").exists(true));
+        legacyPools.fields().include("_id");
+
+        // Load pool ids first so only one pool's embedded items is held in memory at a time
+        List<Document> poolIds = mongoTemplate.find(legacyPools, Document.class, POOLS_COLLECTION);
+        if (poolIds.isEmpty()) {
+            return;
+        }
+
+        System.out.println("🔄 Moving embedded items of " + poolIds.size() + " stock pool(s) to " + ITEMS_COLLECTION + "...");
+
+        for (Document idDoc : poolIds) {
+            Object rawPoolId = idDoc.get("_id");
+            Document poolDoc = mongoTemplate.findOne(
+                new Query(Criteria.where("_id").is(rawPoolId)), Document.class, POOLS_COLLECTION);
+            if (poolDoc == null) {
+                continue;
+            }
+
+            String poolId = rawPoolId.toString();
+            String stockType = poolDoc.getString("stockType");
+            List<Document> embedded = poolDoc.getList("items", Document.class);
+
+            List<StockItem> batch = new ArrayList<>();
+            int moved = 0;
+
+            for (int index = 0; index < embedded.size(); index++) {
+                Document itemDoc = embedded.get(index);
+                StockItem item = mongoTemplate.getConverter().read(StockItem.class, itemDoc);
+
+                // Embedded items stored their id as "itemId"; in stock_items it becomes _id.
+                // Items without one get an id derived from their place in the pool, so a rerun upserts them again
+                String itemId = itemDoc.getString("itemId");
+                item.setItemId(itemId != null ? itemId : legacyItemId(poolId, index));
+                item.setPoolId(poolId);
+                if (stockType != null) {
+                    item.setStockType(StockPool.StockType.valueOf(stockType));
+                }
+
+                batch.add(item);
+                if (batch.size() >= BATCH_SIZE) {
+                    moved += saveBatch(batch);
+                }
+            }
+            moved += saveBatch(batch);
+
+            // Only drop the embedded array once every item has been written
+            mongoTemplate.updateFirst(
+                new Query(Criteria.where("_id").is(rawPoolId)),
+                new Update().unset("items"),
+                POOLS_COLLECTION
+            );
+
+            System.out.println("   ✓ Pool " + poolId + ": moved " + moved + " items");
+        }
+
+        System.out.println("✅ Stock item migration complete");
+    }
+
+    /**
+     * Compute itemDataHash and maskedData for items stored before those fields existed.
+     * Items whose data cannot be decrypted get null values so they are not re-read on every pass.
+     */
+    private void backfillDerivedFields() {
+        int updated = 0;
+
+        while (true) {
+            Query query = new Query(new Criteria().orOperator(
+                Criteria.where("itemDataHash").exists(false),
+                Criteria.where("maskedData").exists(false)
+            )).limit(BATCH_SIZE);
+            query.fields().include("_id").include("itemData");
+
+            List<Document> page = mongoTemplate.find(query, Document.class, ITEMS_COLLECTION);
+            if (page.isEmpty()) {
+                break;
+            }
+
+            BulkOperations ops = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ITEMS_COLLECTION);
+            for (Document itemDoc : page) {
+                Object itemId = itemDoc.get("_id");
+                String hash = null;
+                String masked = null;
+                try {
+                    String plain = stockService.decryptData(itemDoc.getString("itemData"));
+                    hash = stockLookupHashService.hash(plain);
+                    masked = stockService.maskData(plain);
+                } catch (Exception e) {
+                    System.err.println("⚠️ Could not decrypt item " + itemId + ": " + e.getMessage());
+                }
+                ops.updateOne(new Query(Criteria.where("_id").is(itemId)),
+                    new Update().set("itemDataHash", hash).set("maskedData", masked));
+            }
+            ops.execute();
+            updated += page.size();
+        }
+
+        if (updated > 0) {
+            System.out.println("✅ Backfilled lookup hash and masked data for " + updated + " stock item(s)");
+        }
+    }
+
+    /**
+     * Replace inline Base64 QR images with a QR image store reference.
+     * Images that cannot be decoded stay inline with a null reference so they are not re-read.
+     */
+    private void moveQrImagesToStore() {
+        int moved = 0;
+
+        while (true) {
+            Query query = new Query(Criteria.where("qrCodeImage").exists(true)
+                .and("qrCodeRef").exists(false)).limit(BATCH_SIZE);
+            query.fields().include("_id").include("qrCodeImage");
+
+            List<Document> page = mongoTemplate.find(query, Document.class, ITEMS_COLLECTION);
+            if (page.isEmpty()) {
+                break;
+            }
+
+            BulkOperations ops = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ITEMS_COLLECTION);
+            for (Document itemDoc : page) {
+                Object itemId = itemDoc.get("_id");
+                String stored = itemDoc.getString("qrCodeImage");
+                Update update;
+                try {
+                    String base64 = stored == null || stored.startsWith("iVBORw0KGgo") ? stored : stockService.decryptData(stored);
+                    update = new Update().set("qrCodeRef", stockService.storeQrCode(base64)).unset("qrCodeImage");
+                    moved++;
+                } catch (Exception e) {
+                    System.err.println("⚠️ Could not move QR image of item " + itemId + ": " + e.getMessage());
+                    update = new Update().set("qrCodeRef", null);
+                }
+                ops.updateOne(new Query(Criteria.where("_id").is(itemId)), update);
+            }
+            ops.execute();
+        }
+
+        if (moved > 0) {
+            System.out.println("✅ Moved " + moved + " QR image(s) to the QR image store");
+        }
+    }
+
+    private static String legacyItemId(String poolId, int index) {
+        return UUID.nameUUIDFromBytes((poolId + "/" + index).getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    private int saveBatch(List<StockItem> batch) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        // Upsert by _id so a re-run after a partial failure does not duplicate items
+        BulkOperations ops = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, StockItem.class);
+        for (StockItem item : batch) {
+            ops.replaceOne(new Query(Criteria.where("_id").is(item.getItemId())), item,
+                FindAndReplaceOptions.options().upsert());
+        }
+        ops.execute();
+
+        int size = batch.size();
+        batch.clear();
+        return size;
+    }
+}
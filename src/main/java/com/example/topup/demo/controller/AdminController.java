@@ -38,9 +38,11 @@ import com.example.topup.demo.entity.StockPool;
 import com.example.topup.demo.entity.User;
 import com.example.topup.demo.repository.EsimPosSaleRepository;
 import com.example.topup.demo.repository.ProductRepository;
+import com.example.topup.demo.repository.StockItemRepository;
 import com.example.topup.demo.repository.StockPoolRepository;
 import com.example.topup.demo.repository.UserRepository;
 import com.example.topup.demo.service.AdminService;
+import com.example.topup.demo.service.MailQueueService;
 import com.example.topup.demo.service.StockService;
 
 import jakarta.validation.Valid;
@@ -64,12 +66,18 @@ public class AdminController {
     @Autowired
     private StockPoolRepository stockPoolRepository;
     
+    @Autowired
+    private StockItemRepository stockItemRepository;
+    
     @Autowired
     private ProductRepository productRepository;
     
     @Autowired
     private StockService stockService;
 
+    @Autowired
+    private MailQueueService mailQueueService;
+
     /**
      * Test endpoint to verify admin controller is working
      */
@@ -1221,16 +1229,10 @@ public class AdminController {
                     
                     StockPool pool = poolOpt.get();
                     
-                    // Find the item by ICCID (serial number) in all items
-                    StockPool.StockItem foundItem = null;
-                    if (pool.getItems() != null) {
-                        for (StockPool.StockItem item : pool.getItems()) {
-                            if (sale.getIccid().equals(item.getSerialNumber())) {
-                                foundItem = item;
-                                break;
-                            }
-                        }
-                    }
+                    // Find the item by ICCID (serial number)
+                    StockPool.StockItem foundItem = stockItemRepository
+                        .findFirstByPoolIdAndSerialNumber(pool.getId(), sale.getIccid())
+                        .orElse(null);
                     
                     if (foundItem == null) {
                         System.out.println("⚠️ Item with ICCID " + sale.getIccid() + " not found in pool");
@@ -1238,11 +1240,10 @@ public class AdminController {
                         continue;
                     }
                     
-                    // Get and decrypt QR code
-                    if (foundItem.getQrCodeImage() != null && !foundItem.getQrCodeImage().isEmpty()) {
+                    // Get QR code from the QR image store (or the legacy inline value)
+                    if (stockService.hasQrCode(foundItem)) {
                         try {
-                            String decryptedQr = stockService.decryptData(foundItem.getQrCodeImage());
-                            String qrDataUrl = "data:image/png;base64," + decryptedQr;
+                            String qrDataUrl = "data:image/png;base64," + stockService.getQrCodeBase64(foundItem);
                             
                             sale.setQrCodeUrl(qrDataUrl);
                             esimPosSaleRepository.save(sale);
@@ -1290,4 +1291,39 @@ public class AdminController {
             return ResponseEntity.status(500).body(error);
         }
     }
+
+    // Mail queue: depth per status, oldest pending age, failure rate and throttling
+    @GetMapping("/mail/metrics")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, Object>> getMailQueueMetrics() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("metrics", mailQueueService.getMetrics());
+        return ResponseEntity.ok(response);
+    }
+
+    // Dead-lettered mails (failed every attempt or could not be parsed), newest first
+    @GetMapping("/mail/dead")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, Object>> getMailDeadLetters(@RequestParam(defaultValue = "50") int limit) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("mails", mailQueueService.getDeadLetters(Math.max(1, Math.min(limit, 500))));
+        return ResponseEntity.ok(response);
+    }
+
+    // Send a dead-lettered mail again
+    @PostMapping("/mail/{id}/retry")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, Object>> retryMail(@PathVariable String id) {
+        Map<String, Object> response = new HashMap<>();
+        if (!mailQueueService.retryDeadLetter(id)) {
+            response.put("success", false);
+            response.put("message", "No dead-lettered mail with id " + id);
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(response);
+        }
+        response.put("success", true);
+        response.put("message", "Mail queued again");
+        return ResponseEntity.ok(response);
+    }
 }
@@ -2,15 +2,19 @@ package com.example.topup.demo.controller;
 
 import com.example.topup.demo.entity.EsimOrderRequest;
 import com.example.topup.demo.entity.RetailerOrder;
-import com.example.topup.demo.entity.RetailerLimit;
 import com.example.topup.demo.entity.StockPool;
 import com.example.topup.demo.entity.User;
 import com.example.topup.demo.repository.EsimOrderRequestRepository;
 import com.example.topup.demo.repository.RetailerOrderRepository;
-import com.example.topup.demo.repository.RetailerLimitRepository;
 import com.example.topup.demo.repository.StockPoolRepository;
 import com.example.topup.demo.repository.UserRepository;
+import com.example.topup.demo.service.CreditLedgerService;
 import com.example.topup.demo.service.EmailService;
+import com.example.topup.demo.service.RetailerCreditService;
+import com.example.topup.demo.service.EsimReservationService;
+import com.example.topup.demo.service.QrImageStore;
+import com.example.topup.demo.service.StockAllocationBuffer;
+import com.example.topup.demo.service.StockService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -32,6 +36,15 @@ public class EsimOrderController {
     @Autowired
     private StockPoolRepository stockPoolRepository;
 
+    @Autowired
+    private StockAllocationBuffer stockAllocationBuffer;
+
+    @Autowired
+    private StockService stockService;
+
+    @Autowired
+    private EsimReservationService esimReservationService;
+
     @Autowired
     private EmailService emailService;
 
@@ -39,7 +52,10 @@ public class EsimOrderController {
     private RetailerOrderRepository retailerOrderRepository;
 
     @Autowired
-    private RetailerLimitRepository retailerLimitRepository;
+    private CreditLedgerService creditLedgerService;
+
+    @Autowired
+    private RetailerCreditService retailerCreditService;
 
     @Autowired
     private UserRepository userRepository;
@@ -70,11 +86,15 @@ public class EsimOrderController {
             request.setPaymentMethod((String) orderData.get("paymentMethod"));
             request.setStatus("PENDING");
             
+            // Hold an eSIM for the order until it is approved, rejected or the reservation times out
+            boolean reserved = esimReservationService.reserve(request);
+            
             EsimOrderRequest savedRequest = esimOrderRequestRepository.save(request);
             
             Map<String, Object> response = new HashMap<>();
             response.put("success", true);
             response.put("orderNumber", orderNumber);
+            response.put("reserved", reserved);
             response.put("message", "eSIM order request submitted successfully");
             response.put("data", savedRequest);
             
@@ -131,22 +151,31 @@ public class EsimOrderController {
             
             EsimOrderRequest request = optionalRequest.get();
             
-            // Find available eSIM from stock pool
-            List<StockPool> esimPools = stockPoolRepository.findByStockTypeAndStatus(
-                    StockPool.StockType.ESIM, StockPool.StockStatus.ACTIVE);
-            
             StockPool.StockItem assignedEsim = null;
             StockPool selectedPool = null;
             
-            for (StockPool pool : esimPools) {
-                for (StockPool.StockItem item : pool.getItems()) {
-                    if (item.getStatus() == StockPool.StockItem.ItemStatus.AVAILABLE) {
-                        assignedEsim = item;
+            // Use the eSIM reserved when the order was placed (HELD -> ASSIGNED)
+            Optional<StockPool.StockItem> reservedItem = esimReservationService.confirm(request);
+            if (reservedItem.isPresent()) {
+                assignedEsim = reservedItem.get();
+                selectedPool = stockPoolRepository.findById(assignedEsim.getPoolId())
+                        .orElseThrow(() -> new IllegalStateException("Stock pool of the reserved eSIM no longer exists"));
+            }
+            
+            // No reservation (out of stock at order time or expired): claim the first available eSIM
+            if (assignedEsim == null) {
+                List<StockPool> esimPools = stockPoolRepository.findByStockTypeAndStatus(
+                        StockPool.StockType.ESIM, StockPool.StockStatus.ACTIVE);
+                for (StockPool pool : esimPools) {
+                    Optional<StockPool.StockItem> item = stockAllocationBuffer.claimNextItem(
+                            pool.getId(), StockPool.StockItem.ItemStatus.ASSIGNED,
+                            request.getOrderNumber(), null, request.getCustomerEmail());
+                    if (item.isPresent()) {
+                        assignedEsim = item.get();
                         selectedPool = pool;
                         break;
                     }
                 }
-                if (assignedEsim != null) break;
             }
             
             if (assignedEsim == null) {
@@ -156,23 +185,12 @@ public class EsimOrderController {
                 return ResponseEntity.badRequest().body(error);
             }
             
-            // Update eSIM status to ASSIGNED
-            assignedEsim.setStatus(StockPool.StockItem.ItemStatus.ASSIGNED);
-            assignedEsim.setAssignedDate(LocalDateTime.now());
-            assignedEsim.setAssignedToOrderId(request.getOrderNumber());
-            assignedEsim.setAssignedToUserEmail(request.getCustomerEmail());
-            
-            // Update stock pool quantities
-            selectedPool.setAvailableQuantity(selectedPool.getAvailableQuantity() - 1);
-            selectedPool.setUsedQuantity(selectedPool.getUsedQuantity() + 1);
-            stockPoolRepository.save(selectedPool);
-            
             // Update request status
             request.setStatus("APPROVED");
             request.setApprovedDate(LocalDateTime.now());
             request.setApprovedByAdmin(approvalData.get("adminEmail"));
             request.setAssignedEsimSerial(assignedEsim.getSerialNumber());
-            request.setAssignedEsimQrCode(assignedEsim.getQrCodeImage());
+            request.setAssignedEsimQrCode(assignedEsim.getQrCodeRef() != null ? assignedEsim.getQrCodeRef() : assignedEsim.getQrCodeImage());
             request.setProductId(selectedPool.getId());
             
             esimOrderRequestRepository.save(request);
@@ -223,20 +241,15 @@ public class EsimOrderController {
                     System.out.println("✅ Created RetailerOrder for analytics: " + savedRetailerOrder.getOrderNumber());
                     
                     // UPDATE RETAILER CREDIT LIMIT
-                    Optional<RetailerLimit> limitOpt = retailerLimitRepository.findByRetailer_Id(retailerId);
-                    if (limitOpt.isPresent()) {
-                        RetailerLimit limit = limitOpt.get();
-                        
-                        // Deduct the sale amount from unified credit limit (used for both eSIM and ePIN)
-                        limit.useCredit(BigDecimal.valueOf(request.getAmount()), 
-                                        savedRetailerOrder.getId(), 
-                                        "eSIM Sale: " + request.getProductName() + " to " + request.getCustomerEmail());
-                        
-                        retailerLimitRepository.save(limit);
+                    // Deduct the sale amount from unified credit limit (used for both eSIM and ePIN)
+                    RetailerCreditService.DebitResult debit = retailerCreditService.debit(retailerId,
+                        BigDecimal.valueOf(request.getAmount()), 1, savedRetailerOrder.getId(),
+                        "eSIM Sale: " + request.getProductName() + " to " + request.getCustomerEmail());
+                    if (debit.isDebited()) {
                         System.out.println("✅ Updated credit limit for retailer: " + retailerId);
-                        System.out.println("   Used: " + limit.getUsedCredit() + ", Available: " + limit.getAvailableCredit());
+                        System.out.println("   Used: " + debit.getLimit().getUsedCredit() + ", Available: " + debit.getLimit().getAvailableCredit());
                     } else {
-                        System.out.println("⚠️ No credit limit found for retailer: " + retailerId);
+                        System.out.println("⚠️ Credit not deducted for retailer " + retailerId + ": " + debit.getMessage());
                     }
                 } catch (Exception e) {
                     System.err.println("❌ Failed to create RetailerOrder/update eSIM credit: " + e.getMessage());
@@ -255,7 +268,8 @@ public class EsimOrderController {
                 System.out.println("To: " + request.getCustomerEmail());
                 System.out.println("Order: " + request.getOrderNumber());
                 System.out.println("Serial: " + assignedEsim.getSerialNumber());
-                System.out.println("QR Code length: " + (assignedEsim.getQrCodeImage() != null ? assignedEsim.getQrCodeImage().length() : 0));
+                QrImageStore.QrImage qrImage = stockService.getQrImage(assignedEsim);
+                System.out.println("QR Code size: " + (qrImage != null ? qrImage.getLength() : 0) + " bytes");
                 
                 // Extract activation code and SM-DP address
                 String activationCode = assignedEsim.getActivationCode() != null ? assignedEsim.getActivationCode() : "";
@@ -266,7 +280,7 @@ public class EsimOrderController {
                     request.getCustomerFullName(),
                     request.getOrderNumber(),
                     assignedEsim.getSerialNumber(),
-                    assignedEsim.getQrCodeImage(),
+                    qrImage,
                     activationCode,
                     smDpAddress
                 );
@@ -288,7 +302,7 @@ public class EsimOrderController {
             response.put("request", request);
             response.put("assignedEsim", Map.of(
                 "serial", assignedEsim.getSerialNumber(),
-                "qrCode", assignedEsim.getQrCodeImage(),
+                "qrCodeRef", assignedEsim.getQrCodeRef() != null ? assignedEsim.getQrCodeRef() : "",
                 "activationUrl", assignedEsim.getActivationUrl()
             ));
             
@@ -322,6 +336,9 @@ public class EsimOrderController {
             request.setRejectedDate(LocalDateTime.now());
             request.setRejectionReason(rejectionData.get("reason"));
             
+            // Return the reserved eSIM to stock
+            esimReservationService.release(request);
+            
             esimOrderRequestRepository.save(request);
             
             // Send rejection email to customer
@@ -351,6 +368,15 @@ public class EsimOrderController {
         }
     }
 
+    // Admin endpoint - eSIM order reservation metrics (active leases, expirations per minute)
+    @GetMapping("/admin/esim-requests/reservations/metrics")
+    public ResponseEntity<Map<String, Object>> getEsimReservationMetrics() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("metrics", esimReservationService.getMetrics());
+        return ResponseEntity.ok(response);
+    }
+
     // Test endpoint - Send test email to verify email configuration
     @PostMapping("/admin/test-email")
     public ResponseEntity<Map<String, Object>> sendTestEmail(@RequestBody Map<String, String> testData) {
@@ -451,16 +477,15 @@ public class EsimOrderController {
             StockPool.StockItem assignedItem = null;
             
             for (StockPool pool : availablePools) {
-                if (pool.getAvailableQuantity() > 0 && pool.getItems() != null && !pool.getItems().isEmpty()) {
-                    // Find first available item
-                    for (StockPool.StockItem item : pool.getItems()) {
-                        if (item.getStatus() == StockPool.StockItem.ItemStatus.AVAILABLE) {
-                            selectedPool = pool;
-                            assignedItem = item;
-                            break;
-                        }
+                if (pool.getAvailableQuantity() > 0) {
+                    // Atomically claim the first available item (status AVAILABLE -> USED)
+                    Optional<StockPool.StockItem> item = stockAllocationBuffer.claimNextItem(
+                            pool.getId(), StockPool.StockItem.ItemStatus.USED, orderNumber, null, email);
+                    if (item.isPresent()) {
+                        selectedPool = pool;
+                        assignedItem = item.get();
+                        break;
                     }
-                    if (assignedItem != null) break;
                 }
             }
             
@@ -474,20 +499,7 @@ public class EsimOrderController {
             // Get PIN code from item
             String pinCode = assignedItem.getItemData();
             
-            // Update item status to USED
-            assignedItem.setStatus(StockPool.StockItem.ItemStatus.USED);
-            assignedItem.setAssignedDate(LocalDateTime.now());
-            assignedItem.setUsedDate(LocalDateTime.now());
-            assignedItem.setAssignedToOrderId(orderNumber);
-            assignedItem.setAssignedToUserEmail(email);
-            
-            // Update stock pool quantities
-            selectedPool.setAvailableQuantity(selectedPool.getAvailableQuantity() - 1);
-            selectedPool.setUsedQuantity(selectedPool.getUsedQuantity() + 1);
-            stockPoolRepository.save(selectedPool);
-            
             System.out.println("✅ PIN assigned: " + pinCode);
-            System.out.println("📦 Stock updated - Available: " + selectedPool.getAvailableQuantity());
             
             // CREATE RETAILER ORDER FOR ANALYTICS IF RETAILER ID PROVIDED
             String retailerId = (String) orderData.get("retailerId");
@@ -529,19 +541,14 @@ public class EsimOrderController {
                     System.out.println("✅ Created RetailerOrder for analytics: " + savedRetailerOrder.getOrderNumber());
                     
                     // UPDATE RETAILER CREDIT LIMIT
-                    Optional<RetailerLimit> limitOpt = retailerLimitRepository.findByRetailer_Id(retailerId);
-                    if (limitOpt.isPresent()) {
-                        RetailerLimit limit = limitOpt.get();
-                        
-                        // Deduct the sale amount from general credit (ePINs use general credit, not eSIM credit)
-                        limit.useCredit(BigDecimal.valueOf(amount), 
-                                        savedRetailerOrder.getId(), 
-                                        "ePIN Sale: " + selectedPool.getName() + " to " + email);
-                        
-                        retailerLimitRepository.save(limit);
+                    // Deduct the sale amount from general credit (ePINs use general credit, not eSIM credit)
+                    RetailerCreditService.DebitResult debit = retailerCreditService.debit(retailerId,
+                        BigDecimal.valueOf(amount), 1, savedRetailerOrder.getId(),
+                        "ePIN Sale: " + selectedPool.getName() + " to " + email);
+                    if (debit.isDebited()) {
                         System.out.println("✅ Updated credit limit for retailer: " + retailerId);
                     } else {
-                        System.out.println("⚠️ No credit limit found for retailer: " + retailerId);
+                        System.out.println("⚠️ Credit not deducted for retailer " + retailerId + ": " + debit.getMessage());
                     }
                 } catch (Exception e) {
                     System.err.println("❌ Failed to create RetailerOrder/update credit: " + e.getMessage());
@@ -697,40 +704,31 @@ public class EsimOrderController {
                     order.getStatus() == RetailerOrder.OrderStatus.COMPLETED) {
                     
                     try {
-                        Optional<RetailerLimit> limitOpt = retailerLimitRepository.findByRetailer_Id(order.getRetailerId());
+                        // Check if this order is already tracked in credit transaction history
+                        boolean alreadyTracked = creditLedgerService.isOrderRecorded(order.getRetailerId(), order.getId());
                         
-                        if (limitOpt.isPresent()) {
-                            RetailerLimit limit = limitOpt.get();
+                        if (!alreadyTracked) {
+                            System.out.println("  📊 Adding credit usage for order: " + order.getOrderNumber());
                             
-                            // Check if this order is already tracked in credit transaction history
-                            boolean alreadyTracked = false;
-                            if (limit.getTransactions() != null) {
-                                alreadyTracked = limit.getTransactions().stream()
-                                    .anyMatch(transaction -> order.getId().equals(transaction.getReferenceOrderId()));
+                            // Add credit usage
+                            String description = "Historical Order: " + order.getOrderNumber();
+                            if (order.getItems() != null && !order.getItems().isEmpty()) {
+                                String productNames = order.getItems().stream()
+                                    .map(RetailerOrder.OrderItem::getProductName)
+                                    .collect(Collectors.joining(", "));
+                                description += " (" + productNames + ")";
                             }
                             
-                            if (!alreadyTracked) {
-                                System.out.println("  📊 Adding credit usage for order: " + order.getOrderNumber());
-                                
-                                // Add credit usage
-                                String description = "Historical Order: " + order.getOrderNumber();
-                                if (order.getItems() != null && !order.getItems().isEmpty()) {
-                                    String productNames = order.getItems().stream()
-                                        .map(RetailerOrder.OrderItem::getProductName)
-                                        .collect(Collectors.joining(", "));
-                                    description += " (" + productNames + ")";
-                                }
-                                
-                                limit.useCredit(order.getTotalAmount(), order.getId(), description);
-                                retailerLimitRepository.save(limit);
+                            RetailerCreditService.DebitResult debit = retailerCreditService.debit(order.getRetailerId(),
+                                order.getTotalAmount(), 0, order.getId(), description);
+                            if (debit.isDebited()) {
                                 creditLimitsUpdated++;
-                                
                                 System.out.println("    ✅ Credit updated: -" + order.getTotalAmount() + " kr");
                             } else {
-                                System.out.println("  ⏭️ Order already tracked in credit: " + order.getOrderNumber());
+                                System.out.println("  ⚠️ Credit not updated for retailer " + order.getRetailerId() + ": " + debit.getMessage());
                             }
                         } else {
-                            System.out.println("  ⚠️ No credit limit found for retailer: " + order.getRetailerId());
+                            System.out.println("  ⏭️ Order already tracked in credit: " + order.getOrderNumber());
                         }
                     } catch (Exception e) {
                         System.err.println("  ❌ Failed to update credit for order " + order.getOrderNumber() + ": " + e.getMessage());
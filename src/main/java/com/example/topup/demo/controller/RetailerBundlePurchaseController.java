@@ -1,5 +1,6 @@
 package com.example.topup.demo.controller;
 
+import com.example.topup.demo.dto.RetailerCartPurchaseRequest;
 import com.example.topup.demo.dto.RetailerCreditLevel;
 import com.example.topup.demo.dto.RetailerPurchaseRequest;
 import com.example.topup.demo.entity.Product;
@@ -107,6 +108,25 @@ public class RetailerBundlePurchaseController {
         }
     }
 
+    // Purchase several products in one request; the response has a result per cart line
+    @PostMapping("/purchase/cart")
+    public ResponseEntity<?> purchaseCart(
+            @Valid @RequestBody RetailerCartPurchaseRequest request,
+            Authentication authentication) {
+        try {
+            User retailer = getRetailerForDevelopment(authentication);
+            Map<String, Object> result = retailerPurchaseService.purchaseCart(retailer.getId(), request);
+            
+            return ResponseEntity.ok(result);
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            return ResponseEntity.badRequest()
+                .body(Map.of("success", false, "message", e.getMessage()));
+        } catch (Exception e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                .body(Map.of("success", false, "message", "Purchase failed: " + e.getMessage()));
+        }
+    }
+
     // Get retailer inventory (purchased items)
     @GetMapping("/inventory")
     public ResponseEntity<?> getInventory(Authentication authentication) {
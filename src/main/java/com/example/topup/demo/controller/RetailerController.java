@@ -9,17 +9,23 @@ import com.example.topup.demo.service.RetailerService;
 import com.example.topup.demo.service.UserService;
 import com.example.topup.demo.service.BundleService;
 import com.example.topup.demo.service.StockService;
+import com.example.topup.demo.service.StockAllocationService;
 import com.example.topup.demo.service.AdminService;
 import com.example.topup.demo.service.EmailService;
+import com.example.topup.demo.service.QrImageStore;
 import com.example.topup.demo.service.KickbackCampaignService;
 import com.example.topup.demo.service.RetailerLimitService;
+import com.example.topup.demo.service.RetailerCreditService;
+import com.example.topup.demo.service.CreditLedgerService;
 import com.example.topup.demo.entity.StockPool;
 import com.example.topup.demo.entity.RetailerLimit;
+import com.example.topup.demo.entity.CreditLedgerEntry;
 import com.example.topup.demo.entity.RetailerKickbackLimit;
 import com.example.topup.demo.repository.RetailerOrderRepository;
 import com.example.topup.demo.repository.OrderRepository;
 import com.example.topup.demo.repository.RetailerLimitRepository;
 import com.example.topup.demo.repository.RetailerKickbackLimitRepository;
+import com.example.topup.demo.repository.StockItemRepository;
 import com.example.topup.demo.repository.StockPoolRepository;
 import com.example.topup.demo.repository.UserRepository;
 
@@ -71,12 +77,21 @@ public class RetailerController {
     @Autowired
     private RetailerLimitRepository retailerLimitRepository;
 
+    @Autowired
+    private CreditLedgerService creditLedgerService;
+
     @Autowired
     private RetailerKickbackLimitRepository retailerKickbackLimitRepository;
 
     @Autowired
     private StockPoolRepository stockPoolRepository;
 
+    @Autowired
+    private StockItemRepository stockItemRepository;
+
+    @Autowired
+    private StockAllocationService stockAllocationService;
+
     @Autowired
     private UserRepository userRepository;
 
@@ -89,6 +104,9 @@ public class RetailerController {
     @Autowired
     private RetailerLimitService retailerLimitService;
 
+    @Autowired
+    private RetailerCreditService retailerCreditService;
+
     // Get all orders for the authenticated retailer
     @GetMapping("/orders")
     public ResponseEntity<?> getOrders(Authentication authentication) {
@@ -712,9 +730,10 @@ public class RetailerController {
                 response.put("status", limit.getStatus() != null ? limit.getStatus().toString() : "ACTIVE");
                 response.put("outstandingAmount", limit.getOutstandingAmount() != null ? limit.getOutstandingAmount().doubleValue() : 0.0);
                 
-                // Include transactions if available
-                if (limit.getTransactions() != null && !limit.getTransactions().isEmpty()) {
-                    response.put("transactions", limit.getTransactions());
+                // Include the latest transactions; the full history is paged from credit_ledger
+                List<CreditLedgerEntry> recentTransactions = creditLedgerService.getPage(retailer.getId(), null, 20);
+                if (!recentTransactions.isEmpty()) {
+                    response.put("transactions", recentTransactions);
                 }
                 
                 System.out.println("✅ Credit level fetched for retailer: " + retailer.getId());
@@ -1110,174 +1129,150 @@ public class RetailerController {
             String networkProvider = pool.getNetworkProvider();
             System.out.println("📡 Network provider from pool: " + networkProvider);
             
-            // Assign stock items from admin pool
-            List<Map<String, String>> assignedItems = new ArrayList<>();
             String orderId = "POS-" + System.currentTimeMillis();
             StockPool.StockType stockType = saleType.equalsIgnoreCase("ESIM") ? StockPool.StockType.ESIM : StockPool.StockType.EPIN;
             
-            for (int i = 0; i < quantity; i++) {
-                try {
-                    // Assign stock from admin pool using productId
-                    StockPool.StockItem item = stockService.assignStockToOrder(
-                        bundleId, 
-                        stockType, 
-                        orderId,
-                        retailer.getId(),
-                        retailer.getEmail()
-                    );
+            // Take the payment first, in one conditional update on the credit or kickback limit;
+            // it is put back if the stock cannot be assigned
+            BigDecimal saleAmount = BigDecimal.valueOf(totalAmount);
+            boolean kickbackPayment = "kickback".equalsIgnoreCase(paymentMode);
+            System.out.println("🔍 Payment mode: " + paymentMode + ", sale amount: " + saleAmount);
+            RetailerCreditService.DebitResult payment = kickbackPayment
+                ? retailerCreditService.debitKickback(retailer.getId(), saleAmount, orderId)
+                : retailerCreditService.debit(retailer.getId(), saleAmount, quantity, orderId,
+                    "POS Direct Sale: " + bundleName + " (x" + quantity + ")");
+            if (!payment.isDebited()) {
+                Map<String, Object> error = new HashMap<>();
+                error.put("success", false);
+                error.put("message", payment.getMessage());
+                error.put("outcome", payment.getOutcome().name());
+                HttpStatus status = payment.getOutcome() == RetailerCreditService.DebitResult.Outcome.CONFLICT
+                    ? HttpStatus.CONFLICT : HttpStatus.BAD_REQUEST;
+                return ResponseEntity.status(status).body(error);
+            }
+            
+            // Assign stock items from admin pool
+            List<Map<String, String>> assignedItems = new ArrayList<>();
+            List<StockPool.StockItem> claimedItems = new ArrayList<>();
+            try {
+                for (int i = 0; i < quantity; i++) {
+                    try {
+                        // Assign stock from admin pool using productId
+                        StockPool.StockItem item = stockService.assignStockToOrder(
+                            bundleId, 
+                            stockType, 
+                            orderId,
+                            retailer.getId(),
+                            retailer.getEmail()
+                        );
+                        claimedItems.add(item);
                     
-                    // Create item object with details
-                    Map<String, String> itemData = new HashMap<>();
+                        // Create item object with details
+                        Map<String, String> itemData = new HashMap<>();
                     
-                    if (stockType == StockPool.StockType.ESIM) {
-                        // For eSIM, don't decrypt - just store the reference
-                        itemData.put("serialNumber", item.getSerialNumber() != null ? item.getSerialNumber() : "N/A");
-                        itemData.put("iccid", item.getItemData() != null ? item.getItemData() : "N/A");
-                    } else {
-                        // For ePIN, decrypt the PIN
-                        String decryptedPin = stockService.decryptData(item.getItemData());
-                        itemData.put("pin", decryptedPin);
-                        
-                        // Generate serial number: use item's serial number, or itemId, or create from PIN
-                        String serialNumber;
-                        if (item.getSerialNumber() != null && !item.getSerialNumber().isEmpty()) {
-                            serialNumber = item.getSerialNumber();
-                        } else if (item.getItemId() != null && !item.getItemId().isEmpty()) {
-                            serialNumber = item.getItemId();
+                        if (stockType == StockPool.StockType.ESIM) {
+                            // For eSIM, don't decrypt - just store the reference
+                            itemData.put("serialNumber", item.getSerialNumber() != null ? item.getSerialNumber() : "N/A");
+                            itemData.put("iccid", item.getItemData() != null ? item.getItemData() : "N/A");
                         } else {
-                            // Create serial number from PIN (e.g., first 15 digits + last 4)
-                            serialNumber = decryptedPin.length() >= 16 
-                                ? "OFF" + decryptedPin.substring(0, Math.min(13, decryptedPin.length())) + decryptedPin.substring(Math.max(0, decryptedPin.length() - 4))
-                                : "SN-" + decryptedPin;
+                            // For ePIN, decrypt the PIN
+                            String decryptedPin = stockService.decryptData(item.getItemData());
+                            itemData.put("pin", decryptedPin);
+                        
+                            // Generate serial number: use item's serial number, or itemId, or create from PIN
+                            String serialNumber;
+                            if (item.getSerialNumber() != null && !item.getSerialNumber().isEmpty()) {
+                                serialNumber = item.getSerialNumber();
+                            } else if (item.getItemId() != null && !item.getItemId().isEmpty()) {
+                                serialNumber = item.getItemId();
+                            } else {
+                                // Create serial number from PIN (e.g., first 15 digits + last 4)
+                                serialNumber = decryptedPin.length() >= 16 
+                                    ? "OFF" + decryptedPin.substring(0, Math.min(13, decryptedPin.length())) + decryptedPin.substring(Math.max(0, decryptedPin.length() - 4))
+                                    : "SN-" + decryptedPin;
+                            }
+                            itemData.put("serialNumber", serialNumber);
                         }
-                        itemData.put("serialNumber", serialNumber);
-                    }
                     
-                    itemData.put("expiryDate", item.getExpiryDate() != null ? item.getExpiryDate().toString() : null);
-                    assignedItems.add(itemData);
+                        itemData.put("expiryDate", item.getExpiryDate() != null ? item.getExpiryDate().toString() : null);
+                        assignedItems.add(itemData);
                     
-                    System.out.println("✅ Assigned " + saleType + " " + (i + 1) + "/" + quantity);
-                } catch (Exception e) {
-                    System.err.println("❌ Failed to assign " + saleType + " " + (i + 1) + ": " + e.getMessage());
-                    throw new RuntimeException("Failed to allocate stock: " + e.getMessage());
+                        System.out.println("✅ Assigned " + saleType + " " + (i + 1) + "/" + quantity);
+                    } catch (Exception e) {
+                        System.err.println("❌ Failed to assign " + saleType + " " + (i + 1) + ": " + e.getMessage());
+                        throw new RuntimeException("Failed to allocate stock: " + e.getMessage());
+                    }
                 }
-            }
             
-            System.out.println("✅ Sale completed - " + assignedItems.size() + " items assigned");
+                System.out.println("✅ Sale completed - " + assignedItems.size() + " items assigned");
             
-            // Create RetailerOrder record for this sale
-            try {
-                RetailerOrder order = new RetailerOrder();
-                order.setRetailerId(retailer.getId());
-                order.setOrderNumber(orderId);
-                order.setTotalAmount(BigDecimal.valueOf(totalAmount));
-                order.setCurrency("NOK");
-                order.setStatus(RetailerOrder.OrderStatus.COMPLETED);
-                order.setPaymentStatus(RetailerOrder.PaymentStatus.COMPLETED);
-                order.setPaymentMethod("CREDIT");
-                order.setCreatedBy(retailer.getEmail());
-                order.setCreatedDate(LocalDateTime.now());
-                
-                // Create order item
-                RetailerOrder.OrderItem orderItem = new RetailerOrder.OrderItem();
-                orderItem.setProductId(bundleId);
-                orderItem.setProductName(bundleName);
-                orderItem.setProductType(saleType);
-                orderItem.setCategory(saleType.equalsIgnoreCase("ESIM") ? "ESIM" : "EPIN");
-                orderItem.setQuantity(quantity);
-                orderItem.setUnitPrice(BigDecimal.valueOf(unitPrice));
-                
-                // Set network provider from pool
-                if (networkProvider != null && !networkProvider.isEmpty()) {
-                    orderItem.setNetworkProvider(networkProvider);
-                    System.out.println("   📡 OrderItem Network Provider set: " + networkProvider);
-                } else {
-                    System.out.println("   ⚠️ Network Provider not available for OrderItem");
-                }
+                // Create RetailerOrder record for this sale
+                try {
+                    RetailerOrder order = new RetailerOrder();
+                    order.setRetailerId(retailer.getId());
+                    order.setOrderNumber(orderId);
+                    order.setTotalAmount(BigDecimal.valueOf(totalAmount));
+                    order.setCurrency("NOK");
+                    order.setStatus(RetailerOrder.OrderStatus.COMPLETED);
+                    order.setPaymentStatus(RetailerOrder.PaymentStatus.COMPLETED);
+                    order.setPaymentMethod("CREDIT");
+                    order.setCreatedBy(retailer.getEmail());
+                    order.setCreatedDate(LocalDateTime.now());
                 
-                // Add serial numbers to order item
-                List<String> serialNumbers = assignedItems.stream()
-                    .map(item -> item.get("serialNumber"))
-                    .collect(Collectors.toList());
-                orderItem.setSerialNumbers(serialNumbers);
+                    // Create order item
+                    RetailerOrder.OrderItem orderItem = new RetailerOrder.OrderItem();
+                    orderItem.setProductId(bundleId);
+                    orderItem.setProductName(bundleName);
+                    orderItem.setProductType(saleType);
+                    orderItem.setCategory(saleType.equalsIgnoreCase("ESIM") ? "ESIM" : "EPIN");
+                    orderItem.setQuantity(quantity);
+                    orderItem.setUnitPrice(BigDecimal.valueOf(unitPrice));
                 
-                order.setItems(Arrays.asList(orderItem));
+                    // Set network provider from pool
+                    if (networkProvider != null && !networkProvider.isEmpty()) {
+                        orderItem.setNetworkProvider(networkProvider);
+                        System.out.println("   📡 OrderItem Network Provider set: " + networkProvider);
+                    } else {
+                        System.out.println("   ⚠️ Network Provider not available for OrderItem");
+                    }
                 
-                // Save order
-                RetailerOrder savedOrder = retailerOrderRepository.save(order);
-                System.out.println("📝 Order record created: " + orderId);
-                System.out.println("📝 Order ID (MongoDB): " + savedOrder.getId());
-                System.out.println("📝 Order Type: " + saleType);
-                System.out.println("📝 Order Category: " + orderItem.getCategory());
-                System.out.println("📝 Order Items Count: " + savedOrder.getItems().size());
-                System.out.println("📝 First Item Type: " + savedOrder.getItems().get(0).getProductType());
-                System.out.println("📝 First Item Category: " + savedOrder.getItems().get(0).getCategory());
-            } catch (Exception e) {
-                System.err.println("⚠️ Failed to create order record: " + e.getMessage());
-                e.printStackTrace();
-                throw new RuntimeException("Failed to save order: " + e.getMessage());
-            }
-            
-            // Update retailer credit or kickback based on payment mode
-            // Note: eSIM sales are handled separately via /admin/stock/esims/send-qr endpoint
-            try {
-                System.out.println("🔍 Looking for limits for retailer ID: " + retailer.getId());
-                System.out.println("🔍 Payment mode: " + paymentMode);
-                System.out.println("🔍 Sale amount: " + totalAmount);
+                    // Add serial numbers to order item
+                    List<String> serialNumbers = assignedItems.stream()
+                        .map(item -> item.get("serialNumber"))
+                        .collect(Collectors.toList());
+                    orderItem.setSerialNumbers(serialNumbers);
                 
-                BigDecimal saleAmount = BigDecimal.valueOf(totalAmount);
+                    order.setItems(Arrays.asList(orderItem));
                 
-                if ("kickback".equalsIgnoreCase(paymentMode)) {
-                    // Deduct from Kickback Bonus Limit
-                    Optional<RetailerKickbackLimit> kickbackLimitOpt = retailerKickbackLimitRepository.findByRetailerId(retailer.getId());
-                    
-                    if (kickbackLimitOpt.isPresent()) {
-                        RetailerKickbackLimit kickbackLimit = kickbackLimitOpt.get();
-                        
-                        System.out.println("✅ Found RetailerKickbackLimit: " + kickbackLimit.getId());
-                        System.out.println("📊 Before update - Kickback Used: " + kickbackLimit.getUsedKickback() + ", Available: " + kickbackLimit.getAvailableKickback());
-                        
-                        // Use the entity's helper method to deduct kickback
-                        kickbackLimit.useKickback(saleAmount);
-                        
-                        // Save updated kickback limit
-                        RetailerKickbackLimit savedKickback = retailerKickbackLimitRepository.save(kickbackLimit);
-                        System.out.println("✅ Kickback limit updated successfully. ID: " + savedKickback.getId());
-                        System.out.println("📊 After save - Kickback Used: " + savedKickback.getUsedKickback() + ", Available: " + savedKickback.getAvailableKickback());
-                    } else {
-                        System.out.println("⚠️ No kickback limit found for retailer ID: " + retailer.getId());
-                    }
+                    // Save order
+                    RetailerOrder savedOrder = retailerOrderRepository.save(order);
+                    System.out.println("📝 Order record created: " + orderId);
+                    System.out.println("📝 Order ID (MongoDB): " + savedOrder.getId());
+                    System.out.println("📝 Order Type: " + saleType);
+                    System.out.println("📝 Order Category: " + orderItem.getCategory());
+                    System.out.println("📝 Order Items Count: " + savedOrder.getItems().size());
+                    System.out.println("📝 First Item Type: " + savedOrder.getItems().get(0).getProductType());
+                    System.out.println("📝 First Item Category: " + savedOrder.getItems().get(0).getCategory());
+                } catch (Exception e) {
+                    System.err.println("⚠️ Failed to create order record: " + e.getMessage());
+                    e.printStackTrace();
+                    throw new RuntimeException("Failed to save order: " + e.getMessage());
+                }
+            } catch (RuntimeException e) {
+                stockAllocationService.releaseItems(claimedItems);
+                if (kickbackPayment) {
+                    retailerCreditService.reverseKickback(retailer.getId(), saleAmount, orderId);
                 } else {
-                    // Deduct from Credit Limit (default)
-                    Optional<RetailerLimit> limitOpt = retailerLimitRepository.findByRetailer_Id(retailer.getId());
-                    
-                    if (limitOpt.isPresent()) {
-                        RetailerLimit limit = limitOpt.get();
-                        
-                        System.out.println("✅ Found RetailerLimit: " + limit.getId());
-                        System.out.println("📊 Before update - ePIN Used: " + limit.getUsedCredit() + ", ePIN Available: " + limit.getAvailableCredit());
-                        
-                        // Update regular credit
-                        BigDecimal currentUsed = limit.getUsedCredit() != null ? limit.getUsedCredit() : BigDecimal.ZERO;
-                        limit.setUsedCredit(currentUsed.add(saleAmount));
-                        
-                        BigDecimal currentAvailable = limit.getAvailableCredit() != null ? limit.getAvailableCredit() : BigDecimal.ZERO;
-                        limit.setAvailableCredit(currentAvailable.subtract(saleAmount));
-                        
-                        System.out.println("💰 ePIN Credit updated - Used: " + limit.getUsedCredit() + ", Available: " + limit.getAvailableCredit());
-                        
-                        // Save updated limit
-                        RetailerLimit savedLimit = retailerLimitRepository.save(limit);
-                        System.out.println("✅ RetailerLimit saved successfully. ID: " + savedLimit.getId());
-                        System.out.println("📊 After save - ePIN Used: " + savedLimit.getUsedCredit() + ", ePIN Available: " + savedLimit.getAvailableCredit());
-                    } else {
-                        System.out.println("⚠️ No credit limit found for retailer ID: " + retailer.getId() + " - skipping credit update");
-                    }
+                    retailerCreditService.reverseDebit(retailer.getId(), saleAmount, quantity, orderId,
+                        "Direct sale failed: " + bundleName + " (x" + quantity + ")");
                 }
-            } catch (Exception e) {
-                System.err.println("⚠️ Failed to update payment limit: " + e.getMessage());
-                e.printStackTrace();
-                // Continue with the sale even if limit update fails
+                throw e;
+            }
+            
+            if (kickbackPayment) {
+                System.out.println("✅ Kickback deducted: " + saleAmount + " NOK, available: " + payment.getKickbackLimit().getAvailableKickback());
+            } else {
+                System.out.println("✅ Credit deducted: " + saleAmount + " NOK, available: " + payment.getLimit().getAvailableCredit());
             }
             
             // Prepare response
@@ -1780,13 +1775,9 @@ public class RetailerController {
             }
             
             // Find the specific item
-            StockPool.StockItem item = null;
-            for (StockPool.StockItem stockItem : pool.getItems()) {
-                if (stockItem.getItemId().equals(itemId)) {
-                    item = stockItem;
-                    break;
-                }
-            }
+            StockPool.StockItem item = stockItemRepository.findById(itemId)
+                .filter(stockItem -> poolId.equals(stockItem.getPoolId()))
+                .orElse(null);
             
             if (item == null) {
                 throw new IllegalArgumentException("eSIM item not found in stock pool");
@@ -1800,32 +1791,23 @@ public class RetailerController {
             System.out.println("✅ eSIM item found and available");
             
             // Get QR code image
-            if (item.getQrCodeImage() == null || item.getQrCodeImage().isEmpty()) {
+            QrImageStore.QrImage qrImage = stockService.getQrImage(item);
+            if (qrImage == null) {
                 throw new IllegalStateException("QR code not available for this eSIM");
             }
+            System.out.println("📸 QR Code image - " + qrImage.getLength() + " bytes");
             
-            System.out.println("📸 QR Code data - Encrypted length: " + item.getQrCodeImage().length());
-            
-            // Decrypt QR code early to validate
-            String decryptedQr = stockService.decryptData(item.getQrCodeImage());
-            System.out.println("📸 QR Code data - Decrypted length: " + decryptedQr.length());
-            System.out.println("📸 QR Code data - Starts with PNG signature: " + decryptedQr.startsWith("iVBORw0KGgo"));
+            // Base64 copy for the sale record and receipt screen; the email streams the image itself
+            String qrCodeBase64 = java.util.Base64.getEncoder().encodeToString(qrImage.getBytes());
             
             // **STEP 1: PROCESS SALE TRANSACTION**
             System.out.println("🔄 Processing website sale transaction...");
             
-            // Mark item as used (sold)
-            item.setStatus(StockPool.StockItem.ItemStatus.USED);
-            item.setUsedDate(java.time.LocalDateTime.now());
-            item.setAssignedToUserEmail(retailerEmail);
-            
-            // Update pool quantities
-            pool.setAvailableQuantity(pool.getAvailableQuantity() - 1);
-            pool.setUsedQuantity(pool.getUsedQuantity() + 1);
-            
-            // Save updated pool
-            stockPoolRepository.save(pool);
-            System.out.println("✅ Stock updated - Available: " + pool.getAvailableQuantity());
+            // Mark item as used (sold) - conditional on it still being AVAILABLE
+            item = stockAllocationService.claimItem(
+                    poolId, itemId, StockPool.StockItem.ItemStatus.USED, null, retailerEmail)
+                .orElseThrow(() -> new IllegalStateException("eSIM item is no longer available"));
+            System.out.println("✅ eSIM item marked as USED");
             
             // Create retailer order record for website sale
             RetailerOrder retailerOrder = new RetailerOrder();
@@ -1867,7 +1849,7 @@ public class RetailerController {
                     
                     // Deduct from credit limit using service
                     try {
-                        retailerLimitService.useCredit(retailer.getId(), BigDecimal.valueOf(price), 
+                        retailerLimitService.useCredit(retailer.getId(), BigDecimal.valueOf(price), 1,
                             savedOrder.getId(), "Website eSIM Sale - " + networkProvider + " to " + customerEmail);
                         System.out.println("✅ Credit limit updated - Amount deducted: " + price);
                     } catch (Exception creditEx) {
@@ -1901,7 +1883,7 @@ public class RetailerController {
                                 (item.getItemData() != null ? stockService.decryptData(item.getItemData()) : "N/A"));
             
             System.out.println("   📋 Email data - ICCID: " + actualIccid);
-            System.out.println("   📋 Email data - QR length: " + decryptedQr.length());
+            System.out.println("   📋 Email data - QR size: " + qrImage.getLength() + " bytes");
             
             emailService.sendEsimQrCodeEmail(
                 customerEmail, 
@@ -1909,7 +1891,7 @@ public class RetailerController {
                 customerLastName,
                 networkProvider != null ? networkProvider : pool.getNetworkProvider(),
                 "eSIM", // Always use "eSIM" as the product type for display
-                decryptedQr,
+                qrImage,
                 actualIccid
             );
             
@@ -1925,7 +1907,7 @@ public class RetailerController {
             response.put("networkProvider", networkProvider != null ? networkProvider : pool.getNetworkProvider());
             response.put("productType", productType != null ? productType : "eSIM");
             response.put("price", price);
-            response.put("qrCodeImage", decryptedQr); // Include QR code for potential receipt display
+            response.put("qrCodeImage", qrCodeBase64); // Include QR code for potential receipt display
             
             // Include updated credit information
             if (retailer != null) {
@@ -19,11 +19,13 @@ import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import com.example.topup.demo.entity.CreditLedgerEntry;
 import com.example.topup.demo.entity.RetailerLimit;
-import com.example.topup.demo.entity.RetailerLimit.CreditTransaction;
 import com.example.topup.demo.entity.User;
+import com.example.topup.demo.service.CreditLedgerService;
 import com.example.topup.demo.service.RetailerLimitService;
 
 @RestController
@@ -34,6 +36,9 @@ public class RetailerLimitController {
     @Autowired
     private RetailerLimitService retailerLimitService;
 
+    @Autowired
+    private CreditLedgerService creditLedgerService;
+
     // Get all retailer limits
     @GetMapping("/limits")
     @PreAuthorize("hasRole('ADMIN')")
@@ -262,18 +267,26 @@ public class RetailerLimitController {
         }
     }
 
-    // Get transaction history
+    // Get transaction history - newest first, keyset paged.
+    // Pass the returned nextCursor as 'after' to fetch the next page.
     @GetMapping("/{retailerId}/transactions")
     @PreAuthorize("hasRole('ADMIN')")
-    public ResponseEntity<Map<String, Object>> getTransactionHistory(@PathVariable String retailerId) {
+    public ResponseEntity<Map<String, Object>> getTransactionHistory(
+            @PathVariable String retailerId,
+            @RequestParam(required = false) String after,
+            @RequestParam(defaultValue = "50") int size) {
         Map<String, Object> response = new HashMap<>();
         
         try {
-            List<CreditTransaction> transactions = retailerLimitService.getTransactionHistory(retailerId);
+            int pageSize = Math.max(1, Math.min(size, 500));
+            List<CreditLedgerEntry> transactions = retailerLimitService.getTransactionHistory(retailerId, after, pageSize);
+            boolean hasMore = transactions.size() == pageSize;
             
             response.put("success", true);
             response.put("data", transactions);
             response.put("count", transactions.size());
+            response.put("hasMore", hasMore);
+            response.put("nextCursor", hasMore ? creditLedgerService.cursorOf(transactions.get(transactions.size() - 1)) : null);
             return ResponseEntity.ok(response);
             
         } catch (NoSuchElementException e) {
@@ -281,6 +294,11 @@ public class RetailerLimitController {
             response.put("message", "Retailer limit not found");
             return ResponseEntity.status(HttpStatus.NOT_FOUND).body(response);
             
+        } catch (IllegalArgumentException e) {
+            response.put("success", false);
+            response.put("message", e.getMessage());
+            return ResponseEntity.badRequest().body(response);
+            
         } catch (Exception e) {
             response.put("success", false);
             response.put("message", "Failed to fetch transaction history: " + e.getMessage());
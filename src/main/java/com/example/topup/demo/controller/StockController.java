@@ -1,5 +1,6 @@
 package com.example.topup.demo.controller;
 
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
@@ -7,12 +8,18 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.InputStreamResource;
 import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -26,26 +33,41 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.context.request.async.WebAsyncTask;
 
-import com.example.topup.demo.entity.EsimOrderRequest;
-import com.example.topup.demo.entity.EsimPosSale;
+import com.example.topup.demo.entity.OutboxEvent;
 import com.example.topup.demo.entity.RetailerLimit;
-import com.example.topup.demo.entity.RetailerOrder;
+import com.example.topup.demo.entity.StockIngestJob;
 import com.example.topup.demo.entity.StockPool;
 import com.example.topup.demo.entity.User;
-import com.example.topup.demo.repository.EsimOrderRequestRepository;
-import com.example.topup.demo.repository.EsimPosSaleRepository;
 import com.example.topup.demo.repository.RetailerLimitRepository;
-import com.example.topup.demo.repository.RetailerOrderRepository;
+import com.example.topup.demo.repository.StockItemRepository;
 import com.example.topup.demo.repository.StockPoolRepository;
 import com.example.topup.demo.repository.UserRepository;
-import com.example.topup.demo.service.EmailService;
-import com.example.topup.demo.service.RetailerService;
+import com.example.topup.demo.service.IdempotencyService;
+import com.example.topup.demo.service.InMemoryLowStockEventSink;
+import com.example.topup.demo.service.LowStockAlertService;
+import com.example.topup.demo.service.OutboxService;
+import com.example.topup.demo.service.PosCatalogService;
+import com.example.topup.demo.service.PostSaleService;
+import com.example.topup.demo.service.QrImageStore;
+import com.example.topup.demo.service.RetailerCreditService;
+import com.example.topup.demo.service.StockAllocationBuffer;
+import com.example.topup.demo.service.StockAllocationService;
+import com.example.topup.demo.service.StockArchiveService;
+import com.example.topup.demo.service.StockCounterService;
+import com.example.topup.demo.service.StockDedupeService;
+import com.example.topup.demo.service.StockExportService;
+import com.example.topup.demo.service.StockIngestService;
+import com.example.topup.demo.service.StockLevelStreamService;
 import com.example.topup.demo.service.StockService;
+import com.example.topup.demo.service.StockShardService;
 
 @RestController
 @RequestMapping("/api/admin/stock")
@@ -61,34 +83,61 @@ public class StockController {
     private StockPoolRepository stockPoolRepository;
 
     @Autowired
-    private EmailService emailService;
+    private StockItemRepository stockItemRepository;
 
     @Autowired
-    private UserRepository userRepository;
+    private StockAllocationService stockAllocationService;
 
     @Autowired
-    private RetailerOrderRepository retailerOrderRepository;
+    private StockAllocationBuffer stockAllocationBuffer;
 
     @Autowired
-    private RetailerLimitRepository retailerLimitRepository;
+    private StockIngestService stockIngestService;
+
+    @Autowired
+    private StockCounterService stockCounterService;
+
+    @Autowired
+    private StockArchiveService stockArchiveService;
+
+    @Autowired
+    private StockExportService stockExportService;
+
+    @Autowired
+    private StockDedupeService stockDedupeService;
+
+    @Autowired
+    private StockShardService stockShardService;
 
     @Autowired
-    private EsimOrderRequestRepository esimOrderRequestRepository;
+    private IdempotencyService idempotencyService;
 
     @Autowired
-    private EsimPosSaleRepository esimPosSaleRepository;
+    private OutboxService outboxService;
 
     @Autowired
-    private RetailerService retailerService;
+    private LowStockAlertService lowStockAlertService;
 
     @Autowired
-    private com.example.topup.demo.repository.RetailerKickbackLimitRepository retailerKickbackLimitRepository;
+    private PosCatalogService posCatalogService;
 
     @Autowired
-    private com.example.topup.demo.service.KickbackCampaignService kickbackCampaignService;
+    private StockLevelStreamService stockLevelStreamService;
 
     @Autowired
-    private com.example.topup.demo.service.RetailerLimitService retailerLimitService;
+    private InMemoryLowStockEventSink lowStockEvents;
+
+    @Autowired
+    private QrImageStore qrImageStore;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private RetailerCreditService retailerCreditService;
+
+    @Autowired
+    private RetailerLimitRepository retailerLimitRepository;
 
     // Test endpoint to verify controller is loaded
     @GetMapping("/test")
@@ -100,25 +149,17 @@ public class StockController {
         return ResponseEntity.ok(response);
     }
 
-    // 1. Get all stock pools with optional filters (PINs are masked by default)
+    // 1. Get all stock pools with optional filters - counters and metadata only,
+    // items are paged via /pools/{poolId}/items
     @GetMapping("/pools")
     @PreAuthorize("hasRole('ADMIN')")
     public ResponseEntity<List<Map<String, Object>>> getAllStockPools(
             @RequestParam(required = false) String stockType,
             @RequestParam(required = false) String productId) {
         try {
-            List<StockPool> pools;
-            
-            if (stockType != null) {
-                StockPool.StockType type = StockPool.StockType.valueOf(stockType.toUpperCase());
-                pools = stockService.getStockPoolsByType(type);
-            } else if (productId != null) {
-                pools = stockService.getStockPoolsByProduct(productId);
-            } else {
-                pools = stockService.getAllStockPools();
-            }
+            StockPool.StockType type = stockType != null ? StockPool.StockType.valueOf(stockType.toUpperCase()) : null;
+            List<StockPool> pools = stockService.getStockPoolSummaries(type, productId);
             
-            // Mask sensitive data in response
             List<Map<String, Object>> maskedPools = new ArrayList<>();
             for (StockPool pool : pools) {
                 Map<String, Object> poolMap = new HashMap<>();
@@ -141,21 +182,7 @@ public class StockController {
                 poolMap.put("lastModifiedDate", pool.getLastModifiedDate());
                 poolMap.put("createdBy", pool.getCreatedBy());
                 poolMap.put("lastModifiedBy", pool.getLastModifiedBy());
-                
-                // Mask individual items (don't send full PINs/ICCIDs)
-                List<Map<String, Object>> maskedItems = new ArrayList<>();
-                for (StockPool.StockItem item : pool.getItems()) {
-                    Map<String, Object> itemMap = new HashMap<>();
-                    itemMap.put("itemId", item.getItemId());
-                    // Decrypt then mask for display
-                    String decrypted = stockService.decryptData(item.getItemData());
-                    itemMap.put("itemData", stockService.maskData(decrypted)); // ****1234
-                    itemMap.put("status", item.getStatus());
-                    itemMap.put("assignedToOrderId", item.getAssignedToOrderId());
-                    maskedItems.add(itemMap);
-                }
-                poolMap.put("items", maskedItems);
-                poolMap.put("itemCount", maskedItems.size());
+                poolMap.put("itemCount", pool.getTotalQuantity());
                 
                 maskedPools.add(poolMap);
             }
@@ -257,13 +284,13 @@ public class StockController {
                 throw new IllegalArgumentException("Uploaded file is empty");
             }
             
-            Map<String, Object> result = stockService.uploadPinStock(file, uploadedBy, poolName, productId, price, notes, productType, networkProvider);
+            // Parsing, encryption and inserts run as a background job - poll /ingest-jobs/{jobId} for progress
+            StockIngestJob job = stockIngestService.startPinIngest(file, uploadedBy, poolName, productId, price, notes, productType, networkProvider);
             
-            System.out.println("✅ Upload successful!");
-            System.out.println("Result: " + result);
+            System.out.println("✅ Upload accepted - ingest job " + job.getId());
             System.out.println("===============================================");
             
-            return ResponseEntity.ok(result);
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(ingestJobResponse(job));
         } catch (Exception e) {
             System.err.println("❌ Upload failed!");
             System.err.println("Error: " + e.getMessage());
@@ -309,40 +336,35 @@ public class StockController {
             System.out.println("QR Code Files: " + (qrCodeFiles != null ? qrCodeFiles.size() : 0));
             System.out.println("===============================================");
             
-            // Convert QR code files to Base64 strings for storage
+            // Put QR code files into the QR image store
             if (qrCodeFiles != null && !qrCodeFiles.isEmpty()) {
                 System.out.println("🔄 Processing " + qrCodeFiles.size() + " QR code images...");
                 
-                // Create a map of filename (without extension) to Base64 QR code
-                Map<String, String> qrCodeByFilename = new HashMap<>();
+                // Create a map of filename (without extension) to QR image reference
+                Map<String, String> qrCodeRefByFilename = new HashMap<>();
                 for (MultipartFile qrFile : qrCodeFiles) {
                     String filename = qrFile.getOriginalFilename();
-                    if (filename != null) {
+                    if (filename != null && !qrFile.isEmpty()) {
                         // Remove file extension and clean the filename
                         String filenameWithoutExt = filename.replaceFirst("[.][^.]+$", "").trim();
                         
-                        byte[] qrBytes = qrFile.getBytes();
-                        String base64QR = java.util.Base64.getEncoder().encodeToString(qrBytes);
-                        qrCodeByFilename.put(filenameWithoutExt, base64QR);
+                        String qrCodeRef = qrImageStore.store(qrFile.getBytes());
+                        qrCodeRefByFilename.put(filenameWithoutExt, qrCodeRef);
                         
-                        System.out.println("   📸 Loaded QR: " + filename + " (key: " + filenameWithoutExt + ")");
-                        System.out.println("      📏 Original file size: " + qrFile.getSize() + " bytes");
-                        System.out.println("      📏 Byte array length: " + qrBytes.length + " bytes");
-                        System.out.println("      📏 Base64 string length: " + base64QR.length() + " chars");
-                        System.out.println("      🔍 Base64 starts with: " + base64QR.substring(0, Math.min(100, base64QR.length())));
+                        System.out.println("   📸 Stored QR: " + filename + " (key: " + filenameWithoutExt + ", " + qrFile.getSize() + " bytes)");
                     }
                 }
-                System.out.println("✅ QR codes loaded successfully");
+                System.out.println("✅ QR codes stored successfully");
                 
-                // Pass the filename-based map instead of index-based map
-                Map<String, Object> result = stockService.uploadEsimStockWithQRByFilename(
-                    file, qrCodeByFilename, uploadedBy, poolName, productId, price, notes, productType, networkProvider);
-                return ResponseEntity.ok(result);
+                // Pass the filename-based map; the job matches QR codes to ICCIDs while streaming the CSV
+                StockIngestJob job = stockIngestService.startEsimIngest(
+                    file, qrCodeRefByFilename, uploadedBy, poolName, productId, price, notes, productType, networkProvider);
+                return ResponseEntity.status(HttpStatus.ACCEPTED).body(ingestJobResponse(job));
             } else {
                 // No QR codes provided, use regular upload
-                Map<String, Object> result = stockService.uploadEsimStockWithQR(
+                StockIngestJob job = stockIngestService.startEsimIngest(
                     file, new HashMap<>(), uploadedBy, poolName, productId, price, notes, productType, networkProvider);
-                return ResponseEntity.ok(result);
+                return ResponseEntity.status(HttpStatus.ACCEPTED).body(ingestJobResponse(job));
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -353,6 +375,49 @@ public class StockController {
         }
     }
 
+    // Progress of a background upload job: rows read, inserted, rejected and throughput
+    @GetMapping("/ingest-jobs/{jobId}")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, Object>> getIngestJob(@PathVariable String jobId) {
+        return stockIngestService.getJob(jobId)
+            .map(job -> ResponseEntity.ok(ingestJobResponse(job)))
+            .orElseGet(() -> ResponseEntity.notFound().build());
+    }
+
+    // Recent upload jobs, newest first
+    @GetMapping("/ingest-jobs")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<List<Map<String, Object>>> getRecentIngestJobs() {
+        List<Map<String, Object>> jobs = new ArrayList<>();
+        for (StockIngestJob job : stockIngestService.getRecentJobs()) {
+            jobs.add(ingestJobResponse(job));
+        }
+        return ResponseEntity.ok(jobs);
+    }
+
+    private Map<String, Object> ingestJobResponse(StockIngestJob job) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", job.getStatus() != StockIngestJob.JobStatus.FAILED);
+        response.put("jobId", job.getId());
+        response.put("status", job.getStatus());
+        response.put("stockType", job.getStockType());
+        response.put("fileName", job.getFileName());
+        response.put("bundleName", job.getPoolName());
+        response.put("poolId", job.getPoolId());
+        response.put("rowsRead", job.getRowsRead());
+        response.put("rowsInserted", job.getRowsInserted());
+        response.put("rowsRejected", job.getRowsRejected());
+        response.put("rejectReasons", job.getRejectReasons());
+        response.put("rowsDuplicate", job.getRowsDuplicate());
+        response.put("duplicateRows", job.getDuplicateRows());
+        response.put("rowsPerSecond", job.getRowsPerSecond());
+        response.put("error", job.getErrorMessage());
+        response.put("createdDate", job.getCreatedDate());
+        response.put("startedDate", job.getStartedDate());
+        response.put("finishedDate", job.getFinishedDate());
+        return response;
+    }
+
     // 8. Get stock statistics
     @GetMapping("/statistics")
     @PreAuthorize("hasRole('ADMIN')")
@@ -366,6 +431,140 @@ public class StockController {
         }
     }
 
+    // Allocation buffer metrics: queue depth, refill latency and misses per hot pool
+    @GetMapping("/allocation-buffer/metrics")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, Object>> getAllocationBufferMetrics() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("metrics", stockAllocationBuffer.getMetrics());
+        return ResponseEntity.ok(response);
+    }
+
+    // Live stock levels for POS terminals (Server-Sent Events): a "snapshot" event, then
+    // coalesced "stock-level" events per pool, optionally for one network provider only
+    @GetMapping(value = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    @PreAuthorize("hasAnyRole('ADMIN', 'RETAILER')")
+    public SseEmitter streamStockLevels(@RequestParam(required = false) String networkProvider) {
+        return stockLevelStreamService.subscribe(
+            networkProvider != null && !networkProvider.isEmpty() && !networkProvider.startsWith("All ") ? networkProvider : null);
+    }
+
+    // POS catalog metrics: hits, rebuilds and snapshot age
+    @GetMapping("/catalog/metrics")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, Object>> getCatalogMetrics() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        Map<String, Object> metrics = posCatalogService.getMetrics();
+        metrics.put("streamSubscribers", stockLevelStreamService.getSubscriberCount());
+        response.put("metrics", metrics);
+        return ResponseEntity.ok(response);
+    }
+
+    // Upload duplicate check metrics: values skipped by the Bloom filter vs looked up in the database
+    @GetMapping("/ingest-jobs/dedupe-metrics")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, Object>> getDedupeMetrics() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("metrics", stockDedupeService.getMetrics());
+        return ResponseEntity.ok(response);
+    }
+
+    // Idempotency-Key replays and coalesced duplicates of POS sales and purchases
+    @GetMapping("/idempotency/metrics")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, Object>> getIdempotencyMetrics() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("metrics", idempotencyService.getMetrics());
+        return ResponseEntity.ok(response);
+    }
+
+    // Post-sale outbox: queue depth per status, oldest pending age, throughput and failures
+    @GetMapping("/outbox/metrics")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, Object>> getOutboxMetrics() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("metrics", outboxService.getMetrics());
+        return ResponseEntity.ok(response);
+    }
+
+    // Dead-lettered post-sale events (failed every attempt), newest first
+    @GetMapping("/outbox/dead")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, Object>> getOutboxDeadLetters(@RequestParam(defaultValue = "50") int limit) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("events", outboxService.getDeadLetters(Math.max(1, Math.min(limit, 500))));
+        return ResponseEntity.ok(response);
+    }
+
+    // Run a dead-lettered post-sale event again (its completed steps are skipped)
+    @PostMapping("/outbox/{id}/retry")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, Object>> retryOutboxEvent(@PathVariable String id) {
+        Map<String, Object> response = new HashMap<>();
+        if (!outboxService.retryDeadLetter(id)) {
+            response.put("success", false);
+            response.put("message", "No dead-lettered event with id " + id);
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(response);
+        }
+        response.put("success", true);
+        response.put("message", "Event queued again");
+        return ResponseEntity.ok(response);
+    }
+
+    // Recount every pool's items now and correct drifted counters (also runs on a schedule)
+    @PostMapping("/counters/reconcile")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, Object>> reconcileStockCounters() {
+        try {
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("report", stockCounterService.reconcileAll());
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("success", false);
+            error.put("message", "Counter reconciliation failed: " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
+        }
+    }
+
+    // Move sold/expired items past the retention window to the archive now (also runs on a schedule)
+    @PostMapping("/archive/run")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, Object>> runStockArchive() {
+        try {
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("report", stockArchiveService.archiveNow());
+            return ResponseEntity.ok(response);
+        } catch (IllegalStateException e) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("success", false);
+            error.put("message", e.getMessage());
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(error);
+        } catch (Exception e) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("success", false);
+            error.put("message", "Stock archival failed: " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
+        }
+    }
+
+    @GetMapping("/archive/status")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, Object>> getStockArchiveStatus() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("archive", stockArchiveService.getStatus());
+        return ResponseEntity.ok(response);
+    }
+
     // 9. Get stock usage report
     @GetMapping("/usage-report")
     @PreAuthorize("hasRole('ADMIN')")
@@ -388,27 +587,141 @@ public class StockController {
         }
     }
 
-    // 10. Get low stock alerts - TODO: Implement in service
+    // 10. Get low stock alerts: pools currently below their threshold and this node's recent events
     @GetMapping("/low-stock-alerts")
     @PreAuthorize("hasRole('ADMIN')")
-    public ResponseEntity<Map<String, String>> getLowStockAlerts(
-            @RequestParam(defaultValue = "10") int threshold) {
-        Map<String, String> response = new HashMap<>();
-        response.put("message", "Low stock alerts functionality will be added soon");
-        return ResponseEntity.status(HttpStatus.NOT_IMPLEMENTED).body(response);
+    public ResponseEntity<Map<String, Object>> getLowStockAlerts() {
+        List<Map<String, Object>> pools = new ArrayList<>();
+        for (StockPool pool : lowStockAlertService.getAlertedPools()) {
+            Map<String, Object> poolInfo = new HashMap<>();
+            poolInfo.put("id", pool.getId());
+            poolInfo.put("name", pool.getName());
+            poolInfo.put("stockType", pool.getStockType());
+            poolInfo.put("availableQuantity", pool.getAvailableQuantity());
+            poolInfo.put("lowStockThreshold", lowStockAlertService.thresholdFor(pool));
+            pools.add(poolInfo);
+        }
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("pools", pools);
+        response.put("recentEvents", lowStockEvents.getRecentEvents());
+        return ResponseEntity.ok(response);
+    }
+
+    // Set a pool's low-stock threshold; omit "threshold" to fall back to the default
+    @PutMapping("/pools/{poolId}/low-stock-threshold")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, Object>> updateLowStockThreshold(
+            @PathVariable String poolId,
+            @RequestBody Map<String, Integer> request) {
+        try {
+            StockPool pool = lowStockAlertService.updateThreshold(poolId, request.get("threshold"));
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("poolId", poolId);
+            response.put("lowStockThreshold", lowStockAlertService.thresholdFor(pool));
+            response.put("lowStockAlerted", pool.getLowStockAlerted());
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("success", false);
+            error.put("error", e.getMessage());
+            return ResponseEntity.badRequest().body(error);
+        }
     }
 
-    // 11. Get stock items from a pool - TODO: Implement in service
+    // Split a hot pool into shard buckets (1 = not sharded); unsold items are re-bucketed
+    @PutMapping("/pools/{poolId}/shards")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, Object>> updatePoolShards(
+            @PathVariable String poolId,
+            @RequestBody Map<String, Integer> request) {
+        try {
+            Integer shardCount = request.get("shardCount");
+            if (shardCount == null) {
+                throw new IllegalArgumentException("shardCount is required");
+            }
+            stockShardService.configure(poolId, shardCount);
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("shards", stockShardService.getStatus(poolId));
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("success", false);
+            error.put("error", e.getMessage());
+            return ResponseEntity.badRequest().body(error);
+        }
+    }
+
+    @GetMapping("/pools/{poolId}/shards")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, Object>> getPoolShards(@PathVariable String poolId) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("shards", stockShardService.getStatus(poolId));
+        return ResponseEntity.ok(response);
+    }
+
+    // 11. Get stock items from a pool - keyset paged by item id, masked values only.
+    // Pass the returned nextCursor as 'after' to fetch the next page.
     @GetMapping("/pools/{poolId}/items")
     @PreAuthorize("hasRole('ADMIN')")
-    public ResponseEntity<Map<String, String>> getStockItems(
+    public ResponseEntity<Map<String, Object>> getStockItems(
             @PathVariable String poolId,
             @RequestParam(required = false) String status,
-            @RequestParam(defaultValue = "0") int page,
+            @RequestParam(required = false) String after,
             @RequestParam(defaultValue = "50") int size) {
-        Map<String, String> response = new HashMap<>();
-        response.put("message", "Get stock items functionality will be added soon");
-        return ResponseEntity.status(HttpStatus.NOT_IMPLEMENTED).body(response);
+        try {
+            StockPool.StockItem.ItemStatus itemStatus = status != null
+                ? StockPool.StockItem.ItemStatus.valueOf(status.toUpperCase())
+                : null;
+            int pageSize = Math.max(1, Math.min(size, 500));
+
+            List<StockPool.StockItem> page = stockService.getPoolItemsPage(poolId, itemStatus, after, pageSize);
+
+            List<Map<String, Object>> items = new ArrayList<>();
+            for (StockPool.StockItem item : page) {
+                Map<String, Object> itemMap = new HashMap<>();
+                itemMap.put("itemId", item.getItemId());
+                itemMap.put("itemData", item.getMaskedData()); // ****1234, stored at upload
+                itemMap.put("serialNumber", item.getSerialNumber());
+                itemMap.put("status", item.getStatus());
+                itemMap.put("assignedDate", item.getAssignedDate());
+                itemMap.put("assignedToOrderId", item.getAssignedToOrderId());
+                itemMap.put("assignedToUserEmail", item.getAssignedToUserEmail());
+                itemMap.put("usedDate", item.getUsedDate());
+                itemMap.put("productId", item.getProductId());
+                itemMap.put("price", item.getPrice());
+                itemMap.put("type", item.getType());
+                items.add(itemMap);
+            }
+
+            boolean hasMore = page.size() == pageSize;
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("poolId", poolId);
+            response.put("items", items);
+            response.put("size", items.size());
+            response.put("hasMore", hasMore);
+            response.put("nextCursor", hasMore ? page.get(page.size() - 1).getItemId() : null);
+            return ResponseEntity.ok(response);
+        } catch (IllegalArgumentException e) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("success", false);
+            error.put("error", "Invalid status: " + status);
+            return ResponseEntity.badRequest().body(error);
+        } catch (Exception e) {
+            log.error("Error fetching stock items: ", e);
+            Map<String, Object> error = new HashMap<>();
+            error.put("success", false);
+            error.put("error", "Failed to retrieve items: " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
+        }
     }
 
     // NEW: Get stock items with decryption for admin viewing
@@ -421,13 +734,22 @@ public class StockController {
                 return ResponseEntity.notFound().build();
             }
 
+            List<StockPool.StockItem> items = stockItemRepository.findByPoolId(pool.getId());
+
+            // Decrypt the whole pool in one batch
+            List<String> encryptedData = new ArrayList<>(items.size());
+            for (StockPool.StockItem item : items) {
+                encryptedData.add(item.getItemData());
+            }
+            List<String> decryptedValues = stockService.decryptAll(encryptedData);
+
             List<Map<String, Object>> decryptedItems = new ArrayList<>();
-            for (StockPool.StockItem item : pool.getItems()) {
+            for (int i = 0; i < items.size(); i++) {
+                StockPool.StockItem item = items.get(i);
                 Map<String, Object> itemMap = new HashMap<>();
                 itemMap.put("itemId", item.getItemId());
 
-                // Decrypt underlying data once for this item
-                String decryptedData = stockService.decryptData(item.getItemData());
+                String decryptedData = decryptedValues.get(i);
 
                 // Always return masked value for display safety
                 itemMap.put("itemData", stockService.maskData(decryptedData));
@@ -479,6 +801,44 @@ public class StockController {
         }
     }
 
+    // Streamed, gzipped export of a pool's items with decrypted values (format=csv|ndjson) for supplier reconciliation
+    @GetMapping("/pools/{poolId}/items/export")
+    @PreAuthorize("hasRole('ADMIN')")
+    public WebAsyncTask<Void> exportDecryptedStockItems(
+            @PathVariable String poolId,
+            @RequestParam(defaultValue = "csv") String format,
+            @RequestParam(defaultValue = "false") boolean includeArchived,
+            Authentication authentication,
+            HttpServletResponse response) {
+        StockExportService.Format exportFormat;
+        try {
+            exportFormat = StockExportService.Format.valueOf(format.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            response.setStatus(HttpStatus.BAD_REQUEST.value());
+            return null;
+        }
+        StockPool pool = stockService.getStockPoolById(poolId);
+        if (pool == null) {
+            response.setStatus(HttpStatus.NOT_FOUND.value());
+            return null;
+        }
+
+        String admin = authentication != null ? authentication.getName() : "unknown";
+        System.out.println("📤 Decrypted export of pool " + poolId + " (" + exportFormat + ") requested by " + admin);
+
+        String fileName = "stock-" + poolId + (exportFormat == StockExportService.Format.CSV ? ".csv.gz" : ".ndjson.gz");
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileName + "\"");
+        response.setHeader(HttpHeaders.CACHE_CONTROL, CacheControl.noStore().getHeaderValue());
+        response.setContentType("application/gzip");
+
+        // Streamed on an async thread with the export's own timeout rather than a global async timeout
+        return new WebAsyncTask<>(stockExportService.getTimeoutMs(), () -> {
+            stockExportService.export(pool, exportFormat, includeArchived, response.getOutputStream());
+            response.flushBuffer();
+            return null;
+        });
+    }
+
     // 12. Download PIN CSV template (Simplified: PIN ID and PINS only)
     @GetMapping("/templates/pin-template.csv")
     public ResponseEntity<Resource> downloadPinTemplate() {
@@ -519,6 +879,39 @@ public class StockController {
         }
     }
 
+    // Stream an eSIM QR image from the QR image store. References are content hashes,
+    // so the bytes never change and clients can cache them for good.
+    @GetMapping("/qr-codes/{ref}")
+    @PreAuthorize("hasAnyRole('ADMIN', 'RETAILER')")
+    public ResponseEntity<Resource> getQrCodeImage(
+            @PathVariable String ref,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        if (!ref.matches("[0-9a-f]{64}")) {
+            return ResponseEntity.notFound().build();
+        }
+        String etag = "\"" + ref + "\"";
+        CacheControl cacheControl = CacheControl.maxAge(365, TimeUnit.DAYS).cachePrivate().immutable();
+        if (etag.equals(ifNoneMatch)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).cacheControl(cacheControl).build();
+        }
+
+        try {
+            QrImageStore.QrImage qrImage = qrImageStore.find(ref);
+            if (qrImage == null) {
+                return ResponseEntity.notFound().build();
+            }
+            return ResponseEntity.ok()
+                    .eTag(etag)
+                    .cacheControl(cacheControl)
+                    .contentType(MediaType.IMAGE_PNG)
+                    .contentLength(qrImage.getLength())
+                    .body(new InputStreamResource(qrImage.getInputStream()));
+        } catch (IOException e) {
+            log.error("Failed to stream QR image {}", ref, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
     // Additional helper endpoint: Assign stock to order (called by order service)
     @PostMapping("/assign")
     @PreAuthorize("hasRole('ADMIN') or hasRole('SYSTEM')")
@@ -644,37 +1037,14 @@ public class StockController {
             @RequestParam(required = false) String networkProvider,
             @RequestParam(required = false) String productId) {
         try {
-            System.out.println("📱 Fetching available eSIMs for Point of Sale");
-            System.out.println("   - Network Provider: " + networkProvider);
-            System.out.println("   - Product ID: " + productId);
-            
-            // Get all eSIM stock pools
-            List<StockPool> pools = stockService.getStockPoolsByType(StockPool.StockType.ESIM);
-            
-            // Filter by network provider if specified
-            if (networkProvider != null && !networkProvider.equals("All Operators")) {
-                pools = pools.stream()
-                    .filter(pool -> networkProvider.equals(pool.getNetworkProvider()))
-                    .collect(java.util.stream.Collectors.toList());
-            }
-            
-            // Filter by product ID if specified
-            if (productId != null && !productId.isEmpty()) {
-                pools = pools.stream()
-                    .filter(pool -> productId.equals(pool.getProductId()))
-                    .collect(java.util.stream.Collectors.toList());
-            }
-            
+            // Answered from the in-memory POS catalog - no pool/item queries per request
             List<Map<String, Object>> availableEsims = new ArrayList<>();
-            
-            for (StockPool pool : pools) {
-                // Only include pools with available stock
-                if (pool.getAvailableQuantity() <= 0) {
-                    continue;
-                }
-                
+            for (PosCatalogService.CatalogEntry pool : posCatalogService.find(StockPool.StockType.ESIM,
+                    networkProvider != null && !networkProvider.equals("All Operators") ? networkProvider : null,
+                    null,
+                    productId != null && !productId.isEmpty() ? productId : null)) {
                 Map<String, Object> esimProduct = new HashMap<>();
-                esimProduct.put("id", pool.getId());
+                esimProduct.put("id", pool.getPoolId());
                 esimProduct.put("poolName", pool.getName());
                 esimProduct.put("productId", pool.getProductId());
                 esimProduct.put("networkProvider", pool.getNetworkProvider());
@@ -683,61 +1053,11 @@ public class StockController {
                 esimProduct.put("totalQuantity", pool.getTotalQuantity());
                 esimProduct.put("availableQuantity", pool.getAvailableQuantity());
                 esimProduct.put("description", pool.getDescription());
-                
-                // Get available eSIM items with decrypted QR codes
-                List<Map<String, Object>> availableItems = new ArrayList<>();
-                for (StockPool.StockItem item : pool.getItems()) {
-                    if (item.getStatus() == StockPool.StockItem.ItemStatus.AVAILABLE) {
-                        Map<String, Object> itemData = new HashMap<>();
-                        
-                        // Decrypt sensitive data
-                        itemData.put("itemId", item.getItemId());
-                        itemData.put("iccid", stockService.decryptData(item.getItemData()));
-                        
-                        if (item.getActivationCode() != null) {
-                            itemData.put("activationCode", stockService.decryptData(item.getActivationCode()));
-                        }
-                        
-                        // Decrypt QR code image (Base64)
-                        if (item.getQrCodeImage() != null && !item.getQrCodeImage().isEmpty()) {
-                            itemData.put("qrCodeImage", stockService.decryptData(item.getQrCodeImage()));
-                        }
-                        
-                        // Include SM-DP+ Address
-                        if (item.getActivationUrl() != null && !item.getActivationUrl().isEmpty()) {
-                            itemData.put("smDpAddress", stockService.decryptData(item.getActivationUrl()));
-                        } else if (item.getActivationCode() != null) {
-                            // Try to extract from activation code
-                            String decryptedCode = stockService.decryptData(item.getActivationCode());
-                            if (decryptedCode != null && decryptedCode.contains("$")) {
-                                String[] parts = decryptedCode.split("\\$");
-                                if (parts.length > 1) {
-                                    itemData.put("smDpAddress", parts[1]);
-                                }
-                            }
-                        }
-                        
-                        // Include PIN/PUK if available (already encryptrd)
-                        if (item.getPin1() != null) {
-                            itemData.put("pin1", stockService.decryptData(item.getPin1()));
-                        }
-                        if (item.getPuk1() != null) {
-                            itemData.put("puk1", stockService.decryptData(item.getPuk1()));
-                        }
-                        if (item.getPin2() != null) {
-                            itemData.put("pin2", stockService.decryptData(item.getPin2()));
-                        }
-                        if (item.getPuk2() != null) {
-                            itemData.put("puk2", stockService.decryptData(item.getPuk2()));
-                        }
-                        
-                        availableItems.add(itemData);
-                    }
-                }
-                
-                esimProduct.put("availableEsims", availableItems);
-                esimProduct.put("availableCount", availableItems.size());
-                
+
+                // First sellable eSIMs with decrypted details; availableCount is the whole pool
+                esimProduct.put("availableEsims", pool.getItems());
+                esimProduct.put("availableCount", pool.getAvailableQuantity());
+
                 availableEsims.add(esimProduct);
             }
             
@@ -855,216 +1175,52 @@ public class StockController {
                 throw new IllegalArgumentException("Stock pool not found with ID: " + poolId);
             }
             System.out.println("✅ Stock pool found: " + pool.getName());
-            System.out.println("   Total items in pool: " + pool.getItems().size());
             
             // Find the eSIM item in inventory by ICCID
             System.out.println("🔍 Searching for eSIM item with ICCID: " + iccid);
             System.out.println("🔍 Searching for eSIM item with ItemId: " + itemId);
             
-            // First, let's log all items to see what we have
-            System.out.println("📋 All items in pool:");
-            for (int i = 0; i < pool.getItems().size(); i++) {
-                var item = pool.getItems().get(i);
-                System.out.println("   Item " + i + ":");
-                System.out.println("      - ItemId: " + item.getItemId());
-                System.out.println("      - SerialNumber: " + item.getSerialNumber());
-                
-                // Try to decrypt itemData to see if it contains ICCID
-                if (item.getItemData() != null && !item.getItemData().isEmpty()) {
-                    try {
-                        String decryptedItemData = stockService.decryptData(item.getItemData());
-                        System.out.println("      - ItemData (decrypted): " + decryptedItemData);
-                    } catch (Exception e) {
-                        System.out.println("      - ItemData (encrypted): " + item.getItemData().substring(0, Math.min(20, item.getItemData().length())) + "...");
-                    }
+            // Match by itemId first, then by serialNumber
+            StockPool.StockItem esimItem = stockItemRepository.findById(itemId)
+                    .filter(item -> poolId.equals(item.getPoolId()))
+                    .orElse(null);
+            if (esimItem != null) {
+                System.out.println("✅ Found by ItemId: " + esimItem.getItemId());
+            } else {
+                esimItem = stockItemRepository.findFirstByPoolIdAndSerialNumber(poolId, iccid).orElse(null);
+                if (esimItem != null) {
+                    System.out.println("✅ Found by SerialNumber: " + esimItem.getSerialNumber());
                 }
             }
             
-            // Search for the item - check multiple fields
-            var esimItem = pool.getItems().stream()
-                    .filter(item -> {
-                        // Match by itemId first
-                        if (itemId.equals(item.getItemId())) {
-                            System.out.println("✅ Found by ItemId: " + item.getItemId());
-                            return true;
-                        }
-                        
-                        // Match by serialNumber
-                        if (iccid.equals(item.getSerialNumber())) {
-                            System.out.println("✅ Found by SerialNumber: " + item.getSerialNumber());
-                            return true;
-                        }
-                        
-                        // Match by decrypted itemData (ICCID might be stored here)
-                        if (item.getItemData() != null && !item.getItemData().isEmpty()) {
-                            try {
-                                String decryptedData = stockService.decryptData(item.getItemData());
-                                if (iccid.equals(decryptedData)) {
-                                    System.out.println("✅ Found by decrypted ItemData: " + decryptedData);
-                                    return true;
-                                }
-                            } catch (Exception e) {
-                                // Ignore decryption errors
-                            }
-                        }
-                        
-                        return false;
-                    })
-                    .findFirst()
-                    .orElse(null);
+            // Match by itemData (ICCID might be stored here) via its lookup hash
+            if (esimItem == null) {
+                esimItem = stockService.findItemByValue(poolId, iccid).orElse(null);
+                if (esimItem != null) {
+                    System.out.println("✅ Found by ItemData hash");
+                }
+            }
             
             if (esimItem == null) {
                 System.err.println("❌ eSIM item not found!");
                 System.err.println("   Searched for ICCID: " + iccid);
                 System.err.println("   Searched for ItemId: " + itemId);
-                System.err.println("   Total items in pool: " + pool.getItems().size());
                 throw new IllegalArgumentException("eSIM item not found with ICCID: " + iccid + " or ItemId: " + itemId + " in pool: " + poolId);
             }
             
             System.out.println("✅ eSIM item found - ItemId: " + esimItem.getItemId());
             
-            // Decrypt eSIM details for email
-            String decryptedActivationCode = "";
-            String smDpAddress = "";
-            String qrCodeBase64 = "";
-            
-            System.out.println("🔍 Checking eSIM item data:");
-            System.out.println("   - ICCID (serialNumber): " + esimItem.getSerialNumber());
-            System.out.println("   - ItemId: " + esimItem.getItemId());
-            System.out.println("   - Has activationCode: " + (esimItem.getActivationCode() != null && !esimItem.getActivationCode().isEmpty()));
-            System.out.println("   - Has qrCodeImage: " + (esimItem.getQrCodeImage() != null && !esimItem.getQrCodeImage().isEmpty()));
-            System.out.println("   - Has activationUrl: " + (esimItem.getActivationUrl() != null && !esimItem.getActivationUrl().isEmpty()));
-            System.out.println("   - Has qrCodeUrl: " + (esimItem.getQrCodeUrl() != null && !esimItem.getQrCodeUrl().isEmpty()));
-            
-            try {
-                // Decrypt activation code
-                if (esimItem.getActivationCode() != null && !esimItem.getActivationCode().isEmpty()) {
-                    decryptedActivationCode = stockService.decryptData(esimItem.getActivationCode());
-                    System.out.println("✅ Decrypted activation code for ICCID " + esimItem.getSerialNumber());
-                }
-                
-                // Get QR code from qrCodeImage - check if it needs decryption or is already base64
-                if (esimItem.getQrCodeImage() != null && !esimItem.getQrCodeImage().isEmpty()) {
-                    String rawQrCode = esimItem.getQrCodeImage();
-                    System.out.println("🔍 Raw QR code length: " + rawQrCode.length() + " chars");
-                    
-                    // Check if it's already valid base64 (PNG starts with iVBORw0KGgo)
-                    if (rawQrCode.startsWith("iVBORw0KGgo")) {
-                        // Already plain base64, use directly
-                        qrCodeBase64 = rawQrCode;
-                        System.out.println("✅ QR code is already in base64 format (not encrypted) - length: " + qrCodeBase64.length() + " chars");
-                    } else {
-                        // Needs decryption
-                        try {
-                            qrCodeBase64 = stockService.decryptData(rawQrCode);
-                            System.out.println("✅ Decrypted QR code - length: " + qrCodeBase64.length() + " chars");
-                        } catch (Exception e) {
-                            System.err.println("⚠️ Failed to decrypt QR code, using raw value: " + e.getMessage());
-                            qrCodeBase64 = rawQrCode;
-                        }
-                    }
-                    
-                    System.out.println("   QR code starts with: " + (qrCodeBase64.length() > 50 ? qrCodeBase64.substring(0, 50) + "..." : qrCodeBase64));
-                    System.out.println("   Is valid PNG: " + qrCodeBase64.startsWith("iVBORw0KGgo"));
-                } else {
-                    System.out.println("⚠️ No QR code image stored in database");
-                }
-                
-                // SM-DP address - decrypt from activationUrl or extract from activation code
-                if (esimItem.getActivationUrl() != null && !esimItem.getActivationUrl().isEmpty()) {
-                    smDpAddress = stockService.decryptData(esimItem.getActivationUrl());
-                    System.out.println("✅ Decrypted SM-DP address from activationUrl: " + smDpAddress);
-                } else if (decryptedActivationCode != null && decryptedActivationCode.startsWith("LPA:")) {
-                    // Extract SM-DP+ from LPA string (format: LPA:1$SM-DP-ADDRESS$ACTIVATION-CODE)
-                    String[] parts = decryptedActivationCode.split("\\$");
-                    if (parts.length >= 2) {
-                        smDpAddress = parts[1];
-                        System.out.println("✅ Extracted SM-DP address from activation code: " + smDpAddress);
-                    }
-                }
-            } catch (Exception e) {
-                System.err.println("⚠️ Error decrypting eSIM data: " + e.getMessage());
-                e.printStackTrace();
-            }
-            
-            System.out.println("📊 Final email data:");
-            System.out.println("   - Activation Code: " + (decryptedActivationCode != null && !decryptedActivationCode.isEmpty() ? "✅" : "❌"));
-            System.out.println("   - SM-DP Address: " + (smDpAddress != null && !smDpAddress.isEmpty() ? "✅" : "❌"));
-            System.out.println("   - QR Code: " + (qrCodeBase64 != null && !qrCodeBase64.isEmpty() ? "✅ (" + qrCodeBase64.length() + " chars)" : "❌"));
-            
             // Generate order ID
             String orderId = "eSIM-" + System.currentTimeMillis();
             
-            // Send email only if skipEmail is false
-            if (!skipEmail) {
-                System.out.println("📤 Sending eSIM QR code email to: " + customerEmail);
-                System.out.println("   - Product: " + pool.getName());
-                System.out.println("   - Network Provider: " + pool.getNetworkProvider());
-                System.out.println("   - ICCID: " + iccid);
-                System.out.println("   - Price: " + priceStr + " NOK");
-                System.out.println("   - Has QR Code: " + (qrCodeBase64 != null && !qrCodeBase64.isEmpty()));
-                System.out.println("   - QR Code Length: " + (qrCodeBase64 != null ? qrCodeBase64.length() : 0));
-                
-                // Parse customer name into first and last name
-                String firstName = "";
-                String lastName = "";
-                if (customerName != null && !customerName.isEmpty()) {
-                    String[] nameParts = customerName.trim().split("\\s+", 2);
-                    firstName = nameParts[0];
-                    lastName = nameParts.length > 1 ? nameParts[1] : "";
-                }
-                
-                // Use the same email method as POS app for consistent template
-                emailService.sendEsimQrCodeEmail(
-                    customerEmail,
-                    firstName,
-                    lastName,
-                    pool.getNetworkProvider() != null ? pool.getNetworkProvider() : "Network Provider",
-                    "eSIM",
-                    qrCodeBase64,
-                    iccid
-                );
-                System.out.println("✅ eSIM QR code email sent successfully with modern template");
-            } else {
-                System.out.println("⏭️ Skipping email send (skipEmail=true) - POS Print mode");
-            }
-            
-            // Mark item as USED and remove from pool
-            System.out.println("📦 Updating stock pool - marking item as USED and removing from inventory");
-            esimItem.setStatus(StockPool.StockItem.ItemStatus.USED);
-            
             // Set assignment info - use placeholder for print orders
             String assignedEmail = skipEmail ? "print@easytopup.no" : customerEmail;
-            String customerInfo = skipEmail ? "POS Print Order" : customerName + " (" + customerEmail + ")";
-            
-            esimItem.setAssignedToUserEmail(assignedEmail);
-            esimItem.setUsedDate(java.time.LocalDateTime.now());
-            esimItem.setNotes("Sold to: " + customerInfo);
-            
-            // Remove from available inventory
-            pool.getItems().remove(esimItem);
             
-            // Update pool quantities
-            if (pool.getAvailableQuantity() != null && pool.getAvailableQuantity() > 0) {
-                pool.setAvailableQuantity(pool.getAvailableQuantity() - 1);
-            }
-            if (pool.getUsedQuantity() != null) {
-                pool.setUsedQuantity(pool.getUsedQuantity() + 1);
-            } else {
-                pool.setUsedQuantity(1);
-            }
-            
-            stockPoolRepository.save(pool);
-            System.out.println("✅ Item marked as USED and removed from pool. Remaining items: " + pool.getItems().size());
-            
-            // Record the sale in database - CRITICAL: This must happen for analytics and credit updates
-            System.out.println("\n=== STARTING SALE RECORDING PROCESS ===");
-            System.out.println("📋 Authentication object: " + (authentication != null ? "Present" : "NULL"));
-            if (authentication != null) {
-                System.out.println("📋 Authentication name: " + authentication.getName());
-                System.out.println("📋 Authentication principal: " + authentication.getPrincipal());
-                System.out.println("📋 Authentication authorities: " + authentication.getAuthorities());
-            }
+            // Claim the item before anything else - fails if another terminal already sold it
+            System.out.println("📦 Claiming eSIM item - marking as USED");
+            StockPool.StockItem claimedItem = stockAllocationService.claimItem(
+                    poolId, esimItem.getItemId(), StockPool.StockItem.ItemStatus.USED, orderId, assignedEmail)
+                .orElseThrow(() -> new IllegalStateException("eSIM item is no longer available for sale"));
             
             // Get retailer - with fallback to any BUSINESS user if authentication is null
             String retailerEmail = null;
@@ -1079,315 +1235,53 @@ public class StockController {
                     retailerEmail = businessUsers.get(0).getEmail();
                     System.out.println("💾 Using fallback BUSINESS user: " + retailerEmail);
                 } else {
-                    System.err.println("❌ No BUSINESS user found for fallback");
+                    retailerEmail = "pos-app@local";
+                    System.err.println("❌ No BUSINESS user found for fallback - sale will not be recorded");
                 }
             }
             
-            if (retailerEmail != null) {
-                System.out.println("💾 Recording eSIM sale for user: " + retailerEmail);
-                
-                var retailerOpt = userRepository.findByEmail(retailerEmail);
-                if (!retailerOpt.isPresent()) {
-                    System.err.println("⚠️ Retailer user not found: " + retailerEmail);
-                } else {
-                    User retailer = retailerOpt.get();
-                    try {
-                        // Create RetailerOrder with OrderItem
-                        RetailerOrder order = new RetailerOrder();
-                        order.setRetailerId(retailer.getId());
-                        order.setOrderNumber("eSIM-" + System.currentTimeMillis());
-                        
-                        // Add customer details in notes field - use placeholder for print orders
-                        String orderNotes = skipEmail ? "POS Print Order" : "Customer: " + customerName + " (" + customerEmail + ")";
-                        order.setNotes(orderNotes);
-                        
-                        // Create OrderItem for the eSIM
-                        RetailerOrder.OrderItem item = new RetailerOrder.OrderItem();
-                        item.setProductId(poolId);
-                        item.setProductName(pool.getName());
-                        item.setProductType("ESIM");
-                        item.setCategory("ESIM");
-                        item.setQuantity(1);
-                        item.setUnitPrice(BigDecimal.valueOf(price));
-                        item.setRetailPrice(BigDecimal.valueOf(price));
-                        item.setSerialNumbers(java.util.Arrays.asList(iccid));
-                        
-                        // Set network provider from pool
-                        if (pool.getNetworkProvider() != null && !pool.getNetworkProvider().isEmpty()) {
-                            item.setNetworkProvider(pool.getNetworkProvider());
-                            System.out.println("   📡 OrderItem Network Provider set: " + pool.getNetworkProvider());
-                        } else {
-                            System.out.println("   ⚠️ Network Provider not available in pool for OrderItem");
-                        }
-                        
-                        order.addItem(item);
-                        order.setTotalAmount(BigDecimal.valueOf(price));
-                        order.setCurrency("NOK");
-                        order.setStatus(RetailerOrder.OrderStatus.COMPLETED);
-                        order.setPaymentStatus(RetailerOrder.PaymentStatus.COMPLETED);
-                        order.setPaymentMethod("POINT_OF_SALE");
-                        order.setCreatedDate(java.time.LocalDateTime.now());
-                        order.setLastModifiedDate(java.time.LocalDateTime.now());
-                        order.setCreatedBy(retailerEmail);
-                        
-                        retailerOrderRepository.save(order);
-                        System.out.println("=== RetailerOrder SAVED SUCCESSFULLY ===");
-                        System.out.println("✅ RetailerOrder created with ID: " + order.getId());
-                        System.out.println("📝 Order Number: " + order.getOrderNumber());
-                        System.out.println("📝 Retailer ID: " + order.getRetailerId());
-                        System.out.println("📝 Payment Method: " + order.getPaymentMethod());
-                        System.out.println("📝 Status: " + order.getStatus());
-                        System.out.println("📝 Customer: " + customerName + " (" + customerEmail + ")");
-                        System.out.println("📝 ICCID: " + iccid);
-                        System.out.println("📝 Amount: NOK " + price);
-                        
-                        // Create EsimOrderRequest to store customer details for sales report
-                        EsimOrderRequest esimOrderRequest = new EsimOrderRequest();
-                        esimOrderRequest.setOrderNumber(order.getOrderNumber());
-                        esimOrderRequest.setCustomerFullName(skipEmail ? "POS Print Order" : customerName);
-                        esimOrderRequest.setCustomerEmail(skipEmail ? "print@easytopup.no" : customerEmail);
-                        esimOrderRequest.setProductName(pool.getName());
-                        esimOrderRequest.setProductId(poolId);
-                        esimOrderRequest.setAmount((double) price);
-                        esimOrderRequest.setPaymentMethod("POINT_OF_SALE");
-                        esimOrderRequest.setStatus("APPROVED");
-                        esimOrderRequest.setAssignedEsimSerial(iccid);
-                        esimOrderRequest.setApprovedByAdmin(retailerEmail);
-                        esimOrderRequest.setApprovedDate(java.time.LocalDateTime.now());
-                        esimOrderRequest.setRequestDate(java.time.LocalDateTime.now());
-                        esimOrderRequestRepository.save(esimOrderRequest);
-                        System.out.println("✅ EsimOrderRequest created for sales report with ICCID: " + iccid);
-                        
-                        // ========== SAVE TO NEW esim_pos_sales COLLECTION ==========
-                        EsimPosSale savedPosSale = null;
-                        try {
-                            EsimPosSale posSale = new EsimPosSale(retailer, skipEmail ? "print@easytopup.no" : customerEmail);
-                            posSale.setCustomerName(skipEmail ? "POS Print Order" : customerName);
-                            posSale.setIccid(iccid);
-                            posSale.setProductName(pool.getName());
-                            posSale.setProductId(poolId);
-                            posSale.setStockPoolId(poolId);
-                            posSale.setStockPoolName(pool.getName());
-                            posSale.setSalePrice(BigDecimal.valueOf(price));
-                            posSale.setOrderId(order.getId());
-                            posSale.setOrderReference(order.getOrderNumber());
-                            posSale.setStatus(EsimPosSale.SaleStatus.COMPLETED);
-                            posSale.setEmailSent(!skipEmail); // Only mark as sent if email was actually sent
-                            posSale.setDeliveryMethod(skipEmail ? "print" : "email"); // Set delivery method based on skipEmail flag
-                            posSale.setCreatedBy(retailerEmail);
-                            
-                            // Store QR code as base64 data URL if available
-                            if (qrCodeBase64 != null && !qrCodeBase64.isEmpty()) {
-                                String qrDataUrl = "data:image/png;base64," + qrCodeBase64;
-                                posSale.setQrCodeUrl(qrDataUrl);
-                                System.out.println("   📸 QR Code saved to POS sale (length: " + qrDataUrl.length() + " chars)");
-                            } else {
-                                System.out.println("   ⚠️ No QR code available to save");
-                            }
-                            
-                            // Set cost price if available
-                            if (pool.getPrice() != null && !pool.getPrice().isEmpty()) {
-                                try {
-                                    BigDecimal poolCostPrice = new BigDecimal(pool.getPrice());
-                                    posSale.setCostPrice(poolCostPrice);
-                                    posSale.setMargin(BigDecimal.valueOf(price).subtract(poolCostPrice));
-                                } catch (NumberFormatException e) {
-                                    posSale.setCostPrice(BigDecimal.ZERO);
-                                }
-                            }
-                            
-                            // Set bundle info if available - use pool name as bundle name
-                            posSale.setBundleName(pool.getName());
-                            posSale.setBundleId(poolId);
-                            
-                            // Set operator from networkProvider if available
-                            if (pool.getNetworkProvider() != null && !pool.getNetworkProvider().isEmpty()) {
-                                posSale.setOperator(pool.getNetworkProvider());
-                                System.out.println("   📡 Network Provider set: " + pool.getNetworkProvider());
-                            } else {
-                                System.out.println("   ⚠️ Network Provider not set in pool");
-                            }
-                            
-                            savedPosSale = esimPosSaleRepository.save(posSale);
-                            System.out.println("✅ EsimPosSale saved to esim_pos_sales collection with ID: " + savedPosSale.getId());
-                            System.out.println("   📊 Customer: " + customerName + " (" + customerEmail + ")");
-                            System.out.println("   📊 ICCID: " + iccid);
-                            System.out.println("   📊 Sale Price: NOK " + savedPosSale.getSalePrice());
-                            System.out.println("   📊 Retailer: " + retailerEmail);
-                            System.out.println("   📊 Operator: " + savedPosSale.getOperator());
-                        } catch (Exception posSaleEx) {
-                            System.err.println("⚠️ Error saving to esim_pos_sales collection: " + posSaleEx.getMessage());
-                            posSaleEx.printStackTrace();
-                        }
-                        // ========== END SAVE TO esim_pos_sales ==========
-                        
-                        // ========== DEDUCT CREDIT BASED ON PAYMENT MODE ==========
-                        if (savedPosSale != null && savedPosSale.getSalePrice() != null) {
-                            System.out.println("\n=== STARTING CREDIT DEDUCTION (from esim_pos_sales) ===");
-                            System.out.println("📊 POS Sale ID: " + savedPosSale.getId());
-                            System.out.println("📊 Retailer ID: " + retailer.getId());
-                            System.out.println("📊 Sale Price from POS Sale: " + savedPosSale.getSalePrice());
-                            System.out.println("📊 Payment Mode: " + paymentMode);
-                            
-                            BigDecimal salePriceFromPOS = savedPosSale.getSalePrice();
-                            
-                            try {
-                                if ("kickback".equalsIgnoreCase(paymentMode)) {
-                                    // ========== DEDUCT FROM KICKBACK BONUS ==========
-                                    System.out.println("💰 Deducting from KICKBACK BONUS");
-                                    var kickbackLimitOpt = retailerKickbackLimitRepository.findByRetailerId(retailer.getId());
-                                    
-                                    if (kickbackLimitOpt.isPresent()) {
-                                        var kickbackLimit = kickbackLimitOpt.get();
-                                        System.out.println("📊 BEFORE - Kickback Available: " + kickbackLimit.getAvailableKickback());
-                                        System.out.println("📊 BEFORE - Kickback Used: " + kickbackLimit.getUsedKickback());
-                                        
-                                        // Use kickback for eSIM sale
-                                        kickbackLimit.useKickback(salePriceFromPOS);
-                                        
-                                        System.out.println("📊 AFTER useKickback() - Kickback Available: " + kickbackLimit.getAvailableKickback());
-                                        System.out.println("📊 AFTER useKickback() - Kickback Used: " + kickbackLimit.getUsedKickback());
-                                        
-                                        var savedKickback = retailerKickbackLimitRepository.save(kickbackLimit);
-                                        System.out.println("✅ KICKBACK DEDUCTED for eSIM Sale: " + salePriceFromPOS);
-                                        System.out.println("📊 SAVED - Kickback Available: " + savedKickback.getAvailableKickback());
-                                        System.out.println("📊 SAVED - Kickback Used: " + savedKickback.getUsedKickback());
-                                        
-                                        // Update the POS sale with kickback deduction info
-                                        savedPosSale.setNotes("Kickback deducted: " + salePriceFromPOS + " NOK");
-                                        esimPosSaleRepository.save(savedPosSale);
-                                        
-                                        order.setNotes(order.getNotes() + " | Kickback Bonus Updated from POS Sale");
-                                    } else {
-                                        System.err.println("⚠️ No Kickback Limit record found for retailer: " + retailer.getId());
-                                    }
-                                } else {
-                                    // ========== DEDUCT FROM UNIFIED CREDIT (DEFAULT) ==========
-                                    System.out.println("💳 Deducting from UNIFIED CREDIT");
-                                    var limitOpt = retailerLimitRepository.findByRetailer_Id(retailer.getId());
-                                    
-                                    if (limitOpt.isPresent()) {
-                                        RetailerLimit limit = limitOpt.get();
-                                        System.out.println("📊 BEFORE - Credit Limit: " + limit.getCreditLimit());
-                                        System.out.println("📊 BEFORE - Available Credit: " + limit.getAvailableCredit());
-                                        System.out.println("📊 BEFORE - Used Credit: " + limit.getUsedCredit());
-                                        
-                                        // Deduct from unified credit limit (used for both eSIM and ePIN)
-                                        limit.useCredit(salePriceFromPOS, savedPosSale.getId(), 
-                                            "eSIM POS Sale: " + pool.getName() + " to " + customerEmail);
-                                        
-                                        System.out.println("📊 AFTER useCredit() - Available: " + limit.getAvailableCredit());
-                                        System.out.println("📊 AFTER useCredit() - Used: " + limit.getUsedCredit());
-                                        
-                                        RetailerLimit savedLimit = retailerLimitRepository.save(limit);
-                                        System.out.println("✅ UNIFIED CREDIT DEDUCTED using POS Sale price: " + salePriceFromPOS);
-                                        System.out.println("📊 SAVED - Available Credit: " + savedLimit.getAvailableCredit());
-                                        System.out.println("📊 SAVED - Used Credit: " + savedLimit.getUsedCredit());
-                                        System.out.println("=== UNIFIED CREDIT DEDUCTION COMPLETE ===\n");
-                                        
-                                        // Update the POS sale with credit deduction info
-                                        savedPosSale.setNotes("Credit deducted: " + salePriceFromPOS + " NOK");
-                                        esimPosSaleRepository.save(savedPosSale);
-                                        
-                                        // Store updated credit info for response
-                                        order.setNotes(order.getNotes() + " | Unified Credit Updated from POS Sale");
-                                    } else {
-                                        System.err.println("⚠️ No Credit Limit record found for retailer: " + retailer.getId());
-                                        System.err.println("⚠️ Admin needs to set credit limit for this retailer first");
-                                    }
-                                }
-                            } catch (Exception creditEx) {
-                                System.err.println("❌ CRITICAL: Error deducting credit: " + creditEx.getMessage());
-                                creditEx.printStackTrace();
-                            }
-                        } else {
-                            System.err.println("⚠️ No POS Sale saved - skipping credit deduction");
-                        }
-                        // ========== END CREDIT DEDUCTION ==========
-                        
-                        // Record profit/earnings for this sale
-                        try {
-                            BigDecimal saleAmount = savedPosSale != null ? savedPosSale.getSalePrice() : BigDecimal.valueOf(price);
-                            // For eSIMs, cost price is typically the wholesale price
-                            // Assuming pool.getPrice() is the cost price, or use a default margin
-                            BigDecimal costPrice = BigDecimal.ZERO;
-                            if (pool.getPrice() != null && !pool.getPrice().isEmpty()) {
-                                try {
-                                    costPrice = new BigDecimal(pool.getPrice());
-                                } catch (NumberFormatException e) {
-                                    System.err.println("⚠️ Invalid price format in pool: " + pool.getPrice());
-                                    costPrice = BigDecimal.ZERO;
-                                }
-                            }
-                            
-                            String bundleName = pool.getName();
-                            String bundleId = poolId;
-                            Double marginRate = 0.0; // Can be configured or passed from frontend
-                            
-                            // If cost price is same as sale price, assume 0 margin (retail = wholesale)
-                            if (costPrice.compareTo(BigDecimal.ZERO) > 0) {
-                                marginRate = ((saleAmount.subtract(costPrice)).divide(costPrice, 4, java.math.RoundingMode.HALF_UP).multiply(BigDecimal.valueOf(100))).doubleValue();
-                            }
-                            
-                            System.out.println("📊 Recording profit - Sale: " + saleAmount + ", Cost: " + costPrice + ", Margin: " + marginRate + "%");
-                            retailerService.recordProfit(retailer, saleAmount, costPrice, bundleName, bundleId, marginRate);
-                            System.out.println("✅ Profit/earnings recorded in retailer_profits collection");
-                        } catch (Exception profitEx) {
-                            System.err.println("⚠️ Error recording profit: " + profitEx.getMessage());
-                            profitEx.printStackTrace();
-                        }
-                    } catch (Exception e) {
-                        System.err.println("⚠️ Error recording eSIM sale: " + e.getMessage());
-                        e.printStackTrace();
-                    }
-                }
-            } else {
-                System.err.println("❌ No retailer email found - cannot record sale");
+            // Charge the retailer before anything is queued; a refused charge puts the eSIM back on sale
+            User retailer = userRepository.findByEmail(retailerEmail).orElse(null);
+            if (retailer == null) {
+                return refuseSale(claimedItem, HttpStatus.BAD_REQUEST, "Retailer account not found: " + retailerEmail, null);
+            }
+            String posSaleId = new ObjectId().toHexString();
+            boolean kickback = "kickback".equalsIgnoreCase(paymentMode);
+            BigDecimal amount = BigDecimal.valueOf(price);
+            String saleDescription = "eSIM POS Sale: " + pool.getName() + " to " + customerEmail;
+            RetailerCreditService.DebitResult payment = chargeSale(claimedItem, retailer, kickback, amount, posSaleId, saleDescription);
+            if (!payment.isDebited()) {
+                return refuseSale(claimedItem, payment);
             }
             
-            System.out.println("\n✅ eSIM QR code sent and sale recorded successfully\n");
+            // Email, order/report records and profit run from the outbox after the response
+            Map<String, Object> payload = new HashMap<>();
+            payload.put("channel", PostSaleService.SEND_QR);
+            payload.put("poolId", poolId);
+            payload.put("itemId", claimedItem.getItemId());
+            payload.put("iccid", iccid);
+            payload.put("customerEmail", customerEmail);
+            payload.put("customerName", customerName);
+            payload.put("price", price);
+            payload.put("paymentMode", paymentMode);
+            payload.put("skipEmail", skipEmail);
+            payload.put("orderId", new ObjectId().toHexString());
+            payload.put("orderNumber", orderId);
+            payload.put("esimOrderRequestId", new ObjectId().toHexString());
+            payload.put("posSaleId", posSaleId);
+            OutboxEvent postSale = enqueuePostSale(retailerEmail, payload, claimedItem,
+                () -> refundSale(retailer, kickback, amount, posSaleId, saleDescription));
+            
+            System.out.println("\n✅ eSIM sold - QR code email and sale recording queued (" + postSale.getId() + ")\n");
             
-            // Build response with updated eSIM credit information
             Map<String, Object> response = new HashMap<>();
             response.put("success", true);
-            response.put("message", "eSIM QR code sent to " + customerEmail);
+            response.put("message", skipEmail ? "eSIM sold" : "eSIM sold - QR code will be sent to " + customerEmail);
             response.put("customerId", itemId);
             response.put("iccid", iccid);
             response.put("salePrice", price);
-            
-            // Include updated unified credit balance in response for immediate UI update
-            // Use retailerEmail variable instead of authentication.getName()
-            if (retailerEmail != null) {
-                try {
-                    var retailerOpt = userRepository.findByEmail(retailerEmail);
-                    if (retailerOpt.isPresent()) {
-                        var limitOpt = retailerLimitRepository.findByRetailer_Id(retailerOpt.get().getId());
-                        if (limitOpt.isPresent()) {
-                            RetailerLimit limit = limitOpt.get();
-                            Map<String, Object> creditInfo = new HashMap<>();
-                            creditInfo.put("creditLimit", limit.getCreditLimit() != null ? limit.getCreditLimit().doubleValue() : 0.0);
-                            creditInfo.put("availableCredit", limit.getAvailableCredit() != null ? limit.getAvailableCredit().doubleValue() : 0.0);
-                            creditInfo.put("usedCredit", limit.getUsedCredit() != null ? limit.getUsedCredit().doubleValue() : 0.0);
-                            
-                            // Calculate usage percentage
-                            if (limit.getCreditLimit() != null && limit.getCreditLimit().compareTo(BigDecimal.ZERO) > 0) {
-                                double usagePercentage = limit.getUsedCredit()
-                                    .multiply(BigDecimal.valueOf(100))
-                                    .divide(limit.getCreditLimit(), 2, java.math.RoundingMode.HALF_UP)
-                                    .doubleValue();
-                                creditInfo.put("creditUsagePercentage", usagePercentage);
-                            } else {
-                                creditInfo.put("creditUsagePercentage", 0.0);
-                            }
-                            
-                            response.put("updatedCredit", creditInfo);
-                            System.out.println("📊 Response includes updated unified credit: " + creditInfo);
-                        }
-                    }
-                } catch (Exception ex) {
-                    System.err.println("⚠️ Could not include updated credit in response: " + ex.getMessage());
-                }
-            }
+            response.put("postSaleEventId", postSale.getId());
+            putUpdatedCredit(response, retailer, payment);
             
             return ResponseEntity.ok(response);
             
@@ -1466,13 +1360,9 @@ public class StockController {
             }
             
             // Find the specific item
-            StockPool.StockItem item = null;
-            for (StockPool.StockItem stockItem : pool.getItems()) {
-                if (stockItem.getItemId().equals(itemId)) {
-                    item = stockItem;
-                    break;
-                }
-            }
+            StockPool.StockItem item = stockItemRepository.findById(itemId)
+                .filter(stockItem -> poolId.equals(stockItem.getPoolId()))
+                .orElse(null);
             
             if (item == null) {
                 throw new IllegalArgumentException("eSIM item not found in stock pool");
@@ -1485,141 +1375,66 @@ public class StockController {
             
             System.out.println("✅ eSIM item found and available");
             
-            // Mark item as used (sold) in existing status model
-            item.setStatus(StockPool.StockItem.ItemStatus.USED);
-            item.setUsedDate(java.time.LocalDateTime.now());
-            item.setAssignedToUserEmail(retailerEmail);
-            
-            // Update pool quantities
-            pool.setAvailableQuantity(pool.getAvailableQuantity() - 1);
-            pool.setUsedQuantity(pool.getUsedQuantity() + 1);
-            
-            // Save updated pool
-            stockPoolRepository.save(pool);
-            System.out.println("✅ Stock updated - Available: " + pool.getAvailableQuantity());
-            
-            // Create POS sale record
-            EsimPosSale posSale = new EsimPosSale();
-            posSale.setPoolId(poolId);
-            posSale.setItemId(itemId);
-            posSale.setIccid(iccid);
-            posSale.setProductId(productId);
-            posSale.setProductType(productType);
-            posSale.setNetworkProvider(networkProvider);
-            posSale.setPrice(price);
-            posSale.setPosType("APP"); // Distinguish app POS from website POS
-            posSale.setDeliveryMethod("print"); // App POS uses print/display
-            posSale.setStockPoolId(poolId);
-            posSale.setStockPoolName(pool.getName());
-            posSale.setProductName(pool.getName());
-            posSale.setOperator(networkProvider);
-            posSale.setSalePrice(BigDecimal.valueOf(price));
-            posSale.setCreatedBy(retailerEmail);
-            posSale.setStatus(EsimPosSale.SaleStatus.COMPLETED);
-            
-            // Decrypt and save QR code to POS sale
-            if (item.getQrCodeImage() != null && !item.getQrCodeImage().isEmpty()) {
+            // Mark item as used (sold) - conditional on it still being AVAILABLE
+            item = stockAllocationService.claimItem(
+                    poolId, itemId, StockPool.StockItem.ItemStatus.USED, null, retailerEmail)
+                .orElseThrow(() -> new IllegalStateException("eSIM item is no longer available for sale"));
+            System.out.println("✅ eSIM item marked as USED");
+            
+            // QR code for the receipt
+            String qrCodeBase64 = null;
+            if (stockService.hasQrCode(item)) {
                 try {
-                    String decryptedQr = stockService.decryptData(item.getQrCodeImage());
-                    String qrDataUrl = "data:image/png;base64," + decryptedQr;
-                    posSale.setQrCodeUrl(qrDataUrl);
-                    System.out.println("   📸 QR Code saved to POS sale (APP) - length: " + qrDataUrl.length() + " chars");
+                    qrCodeBase64 = stockService.getQrCodeBase64(item);
                 } catch (Exception e) {
-                    System.err.println("⚠️ Failed to decrypt/save QR code: " + e.getMessage());
+                    System.err.println("⚠️ Failed to decrypt QR code: " + e.getMessage());
                 }
             }
             
-            // Get user details for retailer info
+            // Charge the retailer before anything is queued; a refused charge puts the eSIM back on sale
             User retailer = userRepository.findByEmail(retailerEmail).orElse(null);
-            if (retailer != null) {
-                posSale.setRetailer(retailer);
-            } else {
-                posSale.setRetailerId(retailerEmail);
-                posSale.setRetailerEmail(retailerEmail);
+            if (retailer == null) {
+                return refuseSale(item, HttpStatus.BAD_REQUEST, "Retailer account not found: " + retailerEmail, null);
             }
-            
-            // Save sale record
-            EsimPosSale savedPosSale = esimPosSaleRepository.save(posSale);
-            System.out.println("✅ POS sale recorded: " + savedPosSale.getId());
-            
-            // **CRITICAL ADDITION: Process credit limit and kickback like website POS**
-            if (retailer != null) {
-                try {
-                    System.out.println("🔄 Processing credit limit and kickback for POS sale...");
-                    
-                    // 1. DEDUCT FROM CREDIT LIMIT (like website POS does)
-                    try {
-                        retailerLimitService.useCredit(retailer.getId(), BigDecimal.valueOf(price), 
-                            savedPosSale.getId(), "POS App Sale - " + networkProvider + " eSIM");
-                        System.out.println("✅ Credit limit updated - Amount deducted: " + price);
-                    } catch (Exception creditEx) {
-                        System.err.println("⚠️ Credit limit update failed: " + creditEx.getMessage());
-                        // Continue processing even if credit limit update fails
-                    }
-                    
-                    // 2. PROCESS KICKBACK CAMPAIGNS (like website POS does)
-                    try {
-                        String retailerName = retailer.getFirstName() + " " + retailer.getLastName();
-                        kickbackCampaignService.processRetailerSale(
-                            retailerEmail, 
-                            retailerName, 
-                            productId != null ? productId : networkProvider,
-                            BigDecimal.valueOf(price)
-                        );
-                        System.out.println("✅ Kickback campaigns processed for sale");
-                    } catch (Exception kickbackEx) {
-                        System.err.println("⚠️ Kickback processing failed: " + kickbackEx.getMessage());
-                        // Continue processing even if kickback fails
-                    }
-                    
-                    System.out.println("✅ Credit limit and kickback processing completed");
-                } catch (Exception ex) {
-                    System.err.println("⚠️ Error in credit/kickback processing: " + ex.getMessage());
-                    ex.printStackTrace();
-                }
+            String posSaleId = new ObjectId().toHexString();
+            BigDecimal amount = BigDecimal.valueOf(price);
+            String saleDescription = "POS App Sale - " + networkProvider + " eSIM";
+            RetailerCreditService.DebitResult payment = chargeSale(item, retailer, false, amount, posSaleId, saleDescription);
+            if (!payment.isDebited()) {
+                return refuseSale(item, payment);
             }
             
+            // Sale record and kickbacks run from the outbox after the response
+            Map<String, Object> payload = new HashMap<>();
+            payload.put("channel", PostSaleService.POS_APP);
+            payload.put("poolId", poolId);
+            payload.put("itemId", itemId);
+            payload.put("iccid", iccid);
+            payload.put("productId", productId);
+            payload.put("productType", productType);
+            payload.put("networkProvider", networkProvider);
+            payload.put("price", price);
+            payload.put("posSaleId", posSaleId);
+            OutboxEvent postSale = enqueuePostSale(retailerEmail, payload, item,
+                () -> refundSale(retailer, false, amount, posSaleId, saleDescription));
+            System.out.println("✅ POS sale queued for recording: " + posSaleId);
+            
             // Prepare response with decrypted data for receipt
             Map<String, Object> response = new HashMap<>();
             response.put("success", true);
             response.put("message", "eSIM sold successfully");
-            response.put("saleId", savedPosSale.getId());
+            response.put("saleId", posSaleId);
             response.put("iccid", iccid);
             response.put("networkProvider", networkProvider);
             response.put("productType", productType);
             response.put("price", price);
+            response.put("postSaleEventId", postSale.getId());
+            putUpdatedCredit(response, retailer, payment);
             
-            // Include updated credit information (like website POS)
-            if (retailer != null) {
-                try {
-                    RetailerLimit updatedLimit = retailerLimitRepository.findByRetailer(retailer).orElse(null);
-                    if (updatedLimit != null) {
-                        Map<String, Object> creditInfo = new HashMap<>();
-                        creditInfo.put("availableCredit", updatedLimit.getAvailableCredit());
-                        creditInfo.put("usedCredit", updatedLimit.getUsedCredit());
-                        creditInfo.put("creditLimit", updatedLimit.getCreditLimit());
-                        
-                        // Calculate usage percentage
-                        double usagePercentage = 0.0;
-                        if (updatedLimit.getCreditLimit().compareTo(BigDecimal.ZERO) > 0) {
-                            usagePercentage = updatedLimit.getUsedCredit()
-                                .divide(updatedLimit.getCreditLimit(), 4, java.math.RoundingMode.HALF_UP)
-                                .multiply(BigDecimal.valueOf(100)).doubleValue();
-                        }
-                        creditInfo.put("creditUsagePercentage", usagePercentage);
-                        
-                        response.put("updatedCredit", creditInfo);
-                        System.out.println("📊 Updated credit info included in response");
-                    }
-                } catch (Exception ex) {
-                    System.err.println("⚠️ Could not include updated credit info: " + ex.getMessage());
-                }
-            }
-            
-            // Decrypt and include QR code for receipt
-            if (item.getQrCodeImage() != null && !item.getQrCodeImage().isEmpty()) {
-                String decryptedQr = stockService.decryptData(item.getQrCodeImage());
-                response.put("qrCodeImage", decryptedQr);
+            // Include QR code for receipt
+            if (qrCodeBase64 != null) {
+                response.put("qrCodeImage", qrCodeBase64);
+                response.put("qrCodeRef", item.getQrCodeRef());
             }
             
             System.out.println("✅ POS sale completed successfully");
@@ -1700,13 +1515,9 @@ public class StockController {
             }
             
             // Find the specific item
-            StockPool.StockItem item = null;
-            for (StockPool.StockItem stockItem : pool.getItems()) {
-                if (stockItem.getItemId().equals(itemId)) {
-                    item = stockItem;
-                    break;
-                }
-            }
+            StockPool.StockItem item = stockItemRepository.findById(itemId)
+                .filter(stockItem -> poolId.equals(stockItem.getPoolId()))
+                .orElse(null);
             
             if (item == null) {
                 throw new IllegalArgumentException("eSIM item not found in stock pool");
@@ -1720,163 +1531,74 @@ public class StockController {
             System.out.println("✅ eSIM item found and available");
             
             // Get QR code image
-            if (item.getQrCodeImage() == null || item.getQrCodeImage().isEmpty()) {
+            QrImageStore.QrImage qrImage = stockService.getQrImage(item);
+            if (qrImage == null) {
                 throw new IllegalStateException("QR code not available for this eSIM");
             }
+            System.out.println("📸 QR Code image - " + qrImage.getLength() + " bytes");
             
-            System.out.println("📸 QR Code data - Encrypted length: " + item.getQrCodeImage().length());
-            
-            // Decrypt QR code early to validate
-            String decryptedQr = stockService.decryptData(item.getQrCodeImage());
-            System.out.println("📸 QR Code data - Decrypted length: " + decryptedQr.length());
-            System.out.println("📸 QR Code data - Starts with PNG signature: " + decryptedQr.startsWith("iVBORw0KGgo"));
+            // Base64 copy for the receipt screen; the queued email streams the image itself
+            String qrCodeBase64 = java.util.Base64.getEncoder().encodeToString(qrImage.getBytes());
             
             // **STEP 1: PROCESS SALE TRANSACTION (same as pos-sale endpoint)**
             System.out.println("🔄 Processing sale transaction...");
             
-            // Mark item as used (sold)
-            item.setStatus(StockPool.StockItem.ItemStatus.USED);
-            item.setUsedDate(java.time.LocalDateTime.now());
-            item.setAssignedToUserEmail(retailerEmail);
-            
-            // Update pool quantities
-            pool.setAvailableQuantity(pool.getAvailableQuantity() - 1);
-            pool.setUsedQuantity(pool.getUsedQuantity() + 1);
-            
-            // Save updated pool
-            stockPoolRepository.save(pool);
-            System.out.println("✅ Stock updated - Available: " + pool.getAvailableQuantity());
-            
-            // Create POS sale record
-            EsimPosSale posSale = new EsimPosSale();
-            posSale.setPoolId(poolId);
-            posSale.setItemId(itemId);
-            posSale.setIccid(iccid != null ? iccid : item.getSerialNumber());
-            posSale.setProductId(productId);
-            posSale.setProductType(productType);
-            posSale.setNetworkProvider(networkProvider);
-            posSale.setPrice(price);
-            posSale.setPosType("APP"); 
-            posSale.setDeliveryMethod("email"); // Via email delivery
-            posSale.setStockPoolId(poolId);
-            posSale.setStockPoolName(pool.getName());
-            posSale.setProductName(pool.getName());
-            posSale.setOperator(networkProvider);
-            posSale.setSalePrice(BigDecimal.valueOf(price));
-            posSale.setCreatedBy(retailerEmail);
-            posSale.setStatus(EsimPosSale.SaleStatus.COMPLETED);
-            posSale.setCustomerEmail(customerEmail);
-            posSale.setCustomerName(customerFirstName + " " + customerLastName);
-            
-            // Save QR code to POS sale (already decrypted earlier)
-            String qrDataUrl = "data:image/png;base64," + decryptedQr;
-            posSale.setQrCodeUrl(qrDataUrl);
-            System.out.println("   📸 QR Code saved to POS sale (EMAIL) - length: " + qrDataUrl.length() + " chars");
-            
-            // Get user details for retailer info
-            User retailer = userRepository.findByEmail(retailerEmail).orElse(null);
-            if (retailer != null) {
-                posSale.setRetailer(retailer);
-            } else {
-                posSale.setRetailerId(retailerEmail);
-                posSale.setRetailerEmail(retailerEmail);
-            }
+            // Mark item as used (sold) - conditional on it still being AVAILABLE
+            item = stockAllocationService.claimItem(
+                    poolId, itemId, StockPool.StockItem.ItemStatus.USED, null, retailerEmail)
+                .orElseThrow(() -> new IllegalStateException("eSIM item is no longer available"));
+            System.out.println("✅ eSIM item marked as USED");
             
-            // Save sale record
-            EsimPosSale savedPosSale = esimPosSaleRepository.save(posSale);
-            System.out.println("✅ POS sale recorded: " + savedPosSale.getId());
-            
-            // **STEP 2: PROCESS CREDIT LIMIT AND KICKBACK**
-            if (retailer != null) {
-                try {
-                    System.out.println("🔄 Processing credit limit and kickback for email sale...");
-                    
-                    // Deduct from credit limit
-                    try {
-                        retailerLimitService.useCredit(retailer.getId(), BigDecimal.valueOf(price), 
-                            savedPosSale.getId(), "POS App Email Sale - " + networkProvider + " eSIM");
-                        System.out.println("✅ Credit limit updated - Amount deducted: " + price);
-                    } catch (Exception creditEx) {
-                        System.err.println("⚠️ Credit limit update failed: " + creditEx.getMessage());
-                    }
-                    
-                    // Process kickback campaigns
-                    try {
-                        String retailerName = retailer.getFirstName() + " " + retailer.getLastName();
-                        kickbackCampaignService.processRetailerSale(
-                            retailerEmail, 
-                            retailerName,
-                            savedPosSale.getId(),
-                            BigDecimal.valueOf(price)
-                        );
-                        System.out.println("✅ Kickback campaigns processed");
-                    } catch (Exception kickbackEx) {
-                        System.err.println("⚠️ Kickback processing failed: " + kickbackEx.getMessage());
-                    }
-                } catch (Exception e) {
-                    System.err.println("⚠️ Credit/Kickback processing error: " + e.getMessage());
-                }
-            }
-            
-            // **STEP 3: SEND EMAIL WITH QR CODE**
-            System.out.println("📧 Sending eSIM QR code via email...");
             // Use the actual ICCID from the item's serial number or itemData
             String actualIccid = iccid != null ? iccid : 
                                 (item.getSerialNumber() != null ? item.getSerialNumber() : 
                                 (item.getItemData() != null ? stockService.decryptData(item.getItemData()) : "N/A"));
             
-            System.out.println("   📋 Email data - ICCID: " + actualIccid);
-            System.out.println("   📋 Email data - QR length: " + decryptedQr.length());
-            
-            emailService.sendEsimQrCodeEmail(
-                customerEmail, 
-                customerFirstName, 
-                customerLastName,
-                networkProvider != null ? networkProvider : pool.getNetworkProvider(),
-                "eSIM", // Always use "eSIM" as the product type for display
-                decryptedQr,
-                actualIccid
-            );
+            // **STEP 2: CHARGE THE RETAILER** (a refused charge puts the eSIM back on sale)
+            User retailer = userRepository.findByEmail(retailerEmail).orElse(null);
+            if (retailer == null) {
+                return refuseSale(item, HttpStatus.BAD_REQUEST, "Retailer account not found: " + retailerEmail, null);
+            }
+            String posSaleId = new ObjectId().toHexString();
+            BigDecimal amount = BigDecimal.valueOf(price);
+            String saleDescription = "POS App Email Sale - " + networkProvider + " eSIM";
+            RetailerCreditService.DebitResult payment = chargeSale(item, retailer, false, amount, posSaleId, saleDescription);
+            if (!payment.isDebited()) {
+                return refuseSale(item, payment);
+            }
             
-            System.out.println("✅ eSIM sold and QR code sent via email successfully");
+            // **STEP 3: QUEUE EMAIL, SALE RECORD AND KICKBACK** (run from the outbox after the response)
+            Map<String, Object> payload = new HashMap<>();
+            payload.put("channel", PostSaleService.POS_APP_EMAIL);
+            payload.put("poolId", poolId);
+            payload.put("itemId", itemId);
+            payload.put("iccid", actualIccid);
+            payload.put("productId", productId);
+            payload.put("productType", productType);
+            payload.put("networkProvider", networkProvider);
+            payload.put("price", price);
+            payload.put("customerEmail", customerEmail);
+            payload.put("firstName", customerFirstName);
+            payload.put("lastName", customerLastName);
+            payload.put("posSaleId", posSaleId);
+            OutboxEvent postSale = enqueuePostSale(retailerEmail, payload, item,
+                () -> refundSale(retailer, false, amount, posSaleId, saleDescription));
+            
+            System.out.println("✅ eSIM sold - QR code email queued for " + customerEmail);
             
             // Build response with all sale details
             Map<String, Object> response = new HashMap<>();
             response.put("success", true);
-            response.put("message", "eSIM sold and sent to " + customerEmail + " successfully");
-            response.put("saleId", savedPosSale.getId());
+            response.put("message", "eSIM sold - QR code will be sent to " + customerEmail);
+            response.put("saleId", posSaleId);
             response.put("customerEmail", customerEmail);
             response.put("iccid", iccid != null ? iccid : item.getSerialNumber());
             response.put("networkProvider", networkProvider);
             response.put("productType", productType);
             response.put("price", price);
-            response.put("qrCodeImage", decryptedQr); // Include QR code for receipt screen
-            
-            // Include updated credit information
-            if (retailer != null) {
-                try {
-                    RetailerLimit updatedLimit = retailerLimitRepository.findByRetailer(retailer).orElse(null);
-                    if (updatedLimit != null) {
-                        Map<String, Object> creditInfo = new HashMap<>();
-                        creditInfo.put("availableCredit", updatedLimit.getAvailableCredit());
-                        creditInfo.put("usedCredit", updatedLimit.getUsedCredit());
-                        creditInfo.put("creditLimit", updatedLimit.getCreditLimit());
-                        
-                        double usagePercentage = 0.0;
-                        if (updatedLimit.getCreditLimit().compareTo(BigDecimal.ZERO) > 0) {
-                            usagePercentage = updatedLimit.getUsedCredit()
-                                .divide(updatedLimit.getCreditLimit(), 4, java.math.RoundingMode.HALF_UP)
-                                .multiply(BigDecimal.valueOf(100)).doubleValue();
-                        }
-                        creditInfo.put("creditUsagePercentage", usagePercentage);
-                        
-                        response.put("updatedCredit", creditInfo);
-                        System.out.println("📊 Updated credit info included in response");
-                    }
-                } catch (Exception ex) {
-                    System.err.println("⚠️ Could not include updated credit info: " + ex.getMessage());
-                }
-            }
+            response.put("qrCodeImage", qrCodeBase64); // Include QR code for receipt screen
+            response.put("postSaleEventId", postSale.getId());
+            putUpdatedCredit(response, retailer, payment);
             
             return ResponseEntity.ok(response);
             
@@ -1950,20 +1672,8 @@ public class StockController {
             System.out.println("📦 Stock pool found: " + stockPool.getName());
             System.out.println("   Available quantity: " + stockPool.getAvailableQuantity());
             
-            // Find and mark the specific PIN as used in stock pool
-            List<StockPool.StockItem> items = stockPool.getItems();
-            StockPool.StockItem targetItem = null;
-            
-            if (items != null) {
-                for (StockPool.StockItem item : items) {
-                    // Decrypt the PIN to compare
-                    String decryptedPin = stockService.decryptData(item.getItemData());
-                    if (decryptedPin.equals(pinNumber) && item.getStatus() == StockPool.StockItem.ItemStatus.AVAILABLE) {
-                        targetItem = item;
-                        break;
-                    }
-                }
-            }
+            // Find the specific PIN by its lookup hash (no decryption of the pool)
+            StockPool.StockItem targetItem = stockService.findAvailableItemByValue(productId, pinNumber).orElse(null);
             
             if (targetItem == null) {
                 throw new IllegalStateException("ePIN not available for sale (already sold or not found)");
@@ -1972,185 +1682,40 @@ public class StockController {
             System.out.println("✅ ePIN found and available in stock pool");
             System.out.println("   Serial Number: " + targetItem.getSerialNumber());
             
-            // Store the actual serial number for later use in order
-            String actualSerialNumber = targetItem.getSerialNumber();
+            // Mark PIN as USED (sold) - conditional on it still being AVAILABLE
+            targetItem = stockAllocationService.claimItem(
+                    productId, targetItem.getItemId(), StockPool.StockItem.ItemStatus.USED,
+                    "POS-" + System.currentTimeMillis(), retailerEmail)
+                .orElseThrow(() -> new IllegalStateException("ePIN not available for sale (already sold or not found)"));
+            System.out.println("✅ ePIN marked as SOLD");
             
-            // Mark PIN as USED (sold)
-            targetItem.setStatus(StockPool.StockItem.ItemStatus.USED);
-            targetItem.setAssignedToOrderId("POS-" + System.currentTimeMillis());
-            targetItem.setAssignedToUserEmail(retailerEmail);
-            targetItem.setUsedDate(java.time.LocalDateTime.now());
-            
-            // Update stock pool quantities
-            stockPool.setAvailableQuantity(stockPool.getAvailableQuantity() - 1);
-            Integer currentUsed = stockPool.getUsedQuantity();
-            stockPool.setUsedQuantity((currentUsed != null ? currentUsed : 0) + 1);
-            
-            // Save updated stock pool
-            stockPoolRepository.save(stockPool);
-            System.out.println("✅ ePIN marked as SOLD and stock pool updated");
-            
-            // Get user details for retailer info  
+            // Charge the retailer before anything is queued; a refused charge puts the PIN back on sale
             User retailer = userRepository.findByEmail(retailerEmail).orElse(null);
-            
-            // **CRITICAL: Process credit limit and kickback like eSIM POS**
-            if (retailer != null) {
-                try {
-                    System.out.println("🔄 Processing credit limit and kickback for ePIN POS sale...");
-                    
-                    // 1. DEDUCT FROM CREDIT LIMIT
-                    try {
-                        retailerLimitService.useCredit(retailer.getId(), BigDecimal.valueOf(price), 
-                            productId, "POS App ePIN Sale - " + networkProvider + " PIN");
-                        System.out.println("✅ Credit limit updated - Amount deducted: " + price);
-                    } catch (Exception creditEx) {
-                        System.err.println("⚠️ Credit limit update failed: " + creditEx.getMessage());
-                    }
-                    
-                    // 2. PROCESS KICKBACK CAMPAIGNS
-                    try {
-                        String retailerName = retailer.getFirstName() + " " + retailer.getLastName();
-                        kickbackCampaignService.processRetailerSale(
-                            retailerEmail, 
-                            retailerName, 
-                            productId,
-                            BigDecimal.valueOf(price)
-                        );
-                        System.out.println("✅ Kickback campaigns processed for ePIN sale");
-                    } catch (Exception kickbackEx) {
-                        System.err.println("⚠️ Kickback processing failed: " + kickbackEx.getMessage());
-                    }
-                    
-                    System.out.println("✅ Credit limit and kickback processing completed");
-                } catch (Exception ex) {
-                    System.err.println("⚠️ Error in credit/kickback processing: " + ex.getMessage());
-                    ex.printStackTrace();
-                }
+            if (retailer == null) {
+                return refuseSale(targetItem, HttpStatus.BAD_REQUEST, "Retailer account not found: " + retailerEmail, null);
             }
-            
-            // **NEW: Create RetailerOrder and record profit (match eSIM implementation)**
-            try {
-                System.out.println("📝 Creating RetailerOrder and recording profit...");
-                
-                // 1. CREATE RETAILER ORDER
-                RetailerOrder order = new RetailerOrder();
-                order.setRetailerId(retailer.getId());
-                order.setOrderNumber("ePIN-POS-" + System.currentTimeMillis());
-                order.setNotes("POS App ePIN Sale - " + (networkProvider != null ? networkProvider : stockPool.getNetworkProvider()));
-                
-                // Create OrderItem for the ePIN
-                RetailerOrder.OrderItem item = new RetailerOrder.OrderItem();
-                item.setProductId(productId);
-                item.setProductName(stockPool.getName());
-                item.setProductType("EPIN");
-                item.setCategory("EPIN");
-                item.setQuantity(1);
-                item.setUnitPrice(BigDecimal.valueOf(price > 0 ? price : Double.parseDouble(stockPool.getPrice())));
-                item.setRetailPrice(BigDecimal.valueOf(price > 0 ? price : Double.parseDouble(stockPool.getPrice())));
-                
-                // Store both the PIN (for POS app display) and serial number (for analytics)
-                // PINs are stored separately for display, serial number is for tracking
-                List<String> itemSerials = new ArrayList<>();
-                itemSerials.add(pinNumber); // First element is the PIN for POS app compatibility
-                if (actualSerialNumber != null && !actualSerialNumber.isEmpty()) {
-                    itemSerials.add(actualSerialNumber); // Second element is the actual serial number
-                }
-                item.setSerialNumbers(itemSerials);
-                
-                // Set network provider from pool
-                if (stockPool.getNetworkProvider() != null && !stockPool.getNetworkProvider().isEmpty()) {
-                    item.setNetworkProvider(stockPool.getNetworkProvider());
-                    System.out.println("   📡 OrderItem Network Provider set: " + stockPool.getNetworkProvider());
-                }
-                
-                order.addItem(item);
-                order.setTotalAmount(BigDecimal.valueOf(price > 0 ? price : Double.parseDouble(stockPool.getPrice())));
-                order.setCurrency("NOK");
-                order.setStatus(RetailerOrder.OrderStatus.COMPLETED);
-                order.setPaymentStatus(RetailerOrder.PaymentStatus.COMPLETED);
-                order.setPaymentMethod("POINT_OF_SALE");
-                order.setCreatedDate(java.time.LocalDateTime.now());
-                order.setLastModifiedDate(java.time.LocalDateTime.now());
-                order.setCreatedBy(retailerEmail);
-                
-                RetailerOrder savedOrder = retailerOrderRepository.save(order);
-                System.out.println("✅ RetailerOrder created: " + savedOrder.getOrderNumber());
-                
-                // 2. CREATE ESIM POS SALE RECORD (reuse for ePIN tracking)
-                EsimPosSale posSale = new EsimPosSale();
-                posSale.setRetailer(retailer);
-                posSale.setRetailerId(retailer.getId());
-                posSale.setRetailerEmail(retailerEmail);
-                posSale.setRetailerName(retailer.getFirstName() + " " + retailer.getLastName());
-                posSale.setProductName(stockPool.getName());
-                posSale.setProductId(productId);
-                posSale.setProductType("EPIN");
-                posSale.setBundleName(stockPool.getName());
-                posSale.setBundleId(productId);
-                posSale.setStockPoolId(productId);
-                posSale.setStockPoolName(stockPool.getName());
-                posSale.setSalePrice(BigDecimal.valueOf(price > 0 ? price : Double.parseDouble(stockPool.getPrice())));
-                posSale.setCurrency("NOK");
-                posSale.setOrderId(savedOrder.getId());
-                posSale.setOrderReference(savedOrder.getOrderNumber());
-                posSale.setStatus(EsimPosSale.SaleStatus.COMPLETED);
-                posSale.setPosType("APP"); // Distinguish app POS from website POS
-                posSale.setDeliveryMethod("print"); // App POS uses print/display
-                posSale.setCreatedBy(retailerEmail);
-                
-                // Set cost price if available
-                if (stockPool.getPrice() != null && !stockPool.getPrice().isEmpty()) {
-                    try {
-                        BigDecimal poolCostPrice = new BigDecimal(stockPool.getPrice());
-                        posSale.setCostPrice(poolCostPrice);
-                        BigDecimal salePrice = BigDecimal.valueOf(price > 0 ? price : Double.parseDouble(stockPool.getPrice()));
-                        posSale.setMargin(salePrice.subtract(poolCostPrice));
-                    } catch (NumberFormatException e) {
-                        posSale.setCostPrice(BigDecimal.ZERO);
-                    }
-                }
-                
-                // Set operator from networkProvider
-                if (stockPool.getNetworkProvider() != null && !stockPool.getNetworkProvider().isEmpty()) {
-                    posSale.setOperator(stockPool.getNetworkProvider());
-                }
-                
-                EsimPosSale savedPosSale = esimPosSaleRepository.save(posSale);
-                System.out.println("✅ EsimPosSale created for ePIN tracking: " + savedPosSale.getId());
-                
-                // 3. RECORD PROFIT
-                try {
-                    BigDecimal saleAmount = BigDecimal.valueOf(price > 0 ? price : Double.parseDouble(stockPool.getPrice()));
-                    BigDecimal costPrice = BigDecimal.ZERO;
-                    if (stockPool.getPrice() != null && !stockPool.getPrice().isEmpty()) {
-                        try {
-                            costPrice = new BigDecimal(stockPool.getPrice());
-                        } catch (NumberFormatException e) {
-                            costPrice = BigDecimal.ZERO;
-                        }
-                    }
-                    
-                    String bundleName = stockPool.getName();
-                    String bundleId = productId;
-                    Double marginRate = 0.0;
-                    
-                    if (costPrice.compareTo(BigDecimal.ZERO) > 0) {
-                        marginRate = ((saleAmount.subtract(costPrice)).divide(costPrice, 4, java.math.RoundingMode.HALF_UP).multiply(BigDecimal.valueOf(100))).doubleValue();
-                    }
-                    
-                    System.out.println("📊 Recording profit - Sale: " + saleAmount + ", Cost: " + costPrice + ", Margin: " + marginRate + "%");
-                    retailerService.recordProfit(retailer, saleAmount, costPrice, bundleName, bundleId, marginRate);
-                    System.out.println("✅ Profit/earnings recorded in retailer_profits collection");
-                } catch (Exception profitEx) {
-                    System.err.println("⚠️ Error recording profit: " + profitEx.getMessage());
-                }
-                
-                System.out.println("✅ RetailerOrder, POS Sale, and Profit tracking completed");
-            } catch (Exception orderEx) {
-                System.err.println("⚠️ Error creating order/profit records: " + orderEx.getMessage());
-                orderEx.printStackTrace();
+            String posSaleId = new ObjectId().toHexString();
+            double finalPrice = price > 0 ? price : Double.parseDouble(stockPool.getPrice());
+            BigDecimal amount = BigDecimal.valueOf(finalPrice);
+            String saleDescription = "POS App ePIN Sale - " + networkProvider + " PIN";
+            RetailerCreditService.DebitResult payment = chargeSale(targetItem, retailer, false, amount, posSaleId, saleDescription);
+            if (!payment.isDebited()) {
+                return refuseSale(targetItem, payment);
             }
             
+            // Kickbacks, order/report records and profit run from the outbox after the response
+            Map<String, Object> payload = new HashMap<>();
+            payload.put("channel", PostSaleService.EPIN_POS_APP);
+            payload.put("poolId", productId);
+            payload.put("itemId", targetItem.getItemId());
+            payload.put("networkProvider", networkProvider);
+            payload.put("price", price);
+            payload.put("orderId", new ObjectId().toHexString());
+            payload.put("orderNumber", "ePIN-POS-" + System.currentTimeMillis());
+            payload.put("posSaleId", posSaleId);
+            OutboxEvent postSale = enqueuePostSale(retailerEmail, payload, targetItem,
+                () -> refundSale(retailer, false, amount, posSaleId, saleDescription));
+            
             // Prepare response with complete receipt information
             Map<String, Object> response = new HashMap<>();
             response.put("success", true);
@@ -2196,39 +1761,13 @@ public class StockController {
             response.put("description", description);
             
             // Price
-            double finalPrice = price > 0 ? price : Double.parseDouble(stockPool.getPrice());
             response.put("price", finalPrice);
             
             // Additional details
             response.put("validity", "30 days");
             response.put("dataAmount", ""); // Not applicable for ePINs
-            
-            // Include updated credit information
-            if (retailer != null) {
-                try {
-                    RetailerLimit updatedLimit = retailerLimitRepository.findByRetailer(retailer).orElse(null);
-                    if (updatedLimit != null) {
-                        Map<String, Object> creditInfo = new HashMap<>();
-                        creditInfo.put("availableCredit", updatedLimit.getAvailableCredit());
-                        creditInfo.put("usedCredit", updatedLimit.getUsedCredit());
-                        creditInfo.put("creditLimit", updatedLimit.getCreditLimit());
-                        
-                        // Calculate usage percentage
-                        double usagePercentage = 0.0;
-                        if (updatedLimit.getCreditLimit().compareTo(BigDecimal.ZERO) > 0) {
-                            usagePercentage = updatedLimit.getUsedCredit()
-                                .divide(updatedLimit.getCreditLimit(), 4, java.math.RoundingMode.HALF_UP)
-                                .multiply(BigDecimal.valueOf(100)).doubleValue();
-                        }
-                        creditInfo.put("creditUsagePercentage", usagePercentage);
-                        
-                        response.put("updatedCredit", creditInfo);
-                        System.out.println("📊 Updated credit info included in ePIN response");
-                    }
-                } catch (Exception ex) {
-                    System.err.println("⚠️ Could not include updated credit info: " + ex.getMessage());
-                }
-            }
+            response.put("postSaleEventId", postSale.getId());
+            putUpdatedCredit(response, retailer, payment);
             
             // Log complete response for debugging
             System.out.println("\n📋 ===== ePIN POS Sale Response =====");
@@ -2264,6 +1803,101 @@ public class StockController {
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
         }
     }
+
+    /**
+     * Queue the side effects of a sale whose item is claimed and paid for; if the event cannot be
+     * stored the charge is refunded, the item goes back on sale and the sale fails, so no sale is
+     * left without its side effects
+     */
+    private OutboxEvent enqueuePostSale(String retailerEmail, Map<String, Object> payload, StockPool.StockItem soldItem,
+                                        Runnable refund) {
+        try {
+            return outboxService.enqueue(PostSaleService.EVENT_TYPE, retailerEmail, payload);
+        } catch (RuntimeException e) {
+            refund.run();
+            stockAllocationService.releaseItems(List.of(soldItem));
+            throw e;
+        }
+    }
+
+    /**
+     * Debit a POS sale from the retailer's credit (or kickback bonus), once per sale id.
+     * The claimed item goes back on sale if the debit itself fails.
+     */
+    private RetailerCreditService.DebitResult chargeSale(StockPool.StockItem soldItem, User retailer, boolean kickback,
+                                                         BigDecimal amount, String posSaleId, String description) {
+        try {
+            return kickback
+                ? retailerCreditService.debitKickback(retailer.getId(), amount, posSaleId)
+                : retailerCreditService.debit(retailer.getId(), amount, 1, posSaleId, description);
+        } catch (RuntimeException e) {
+            stockAllocationService.releaseItems(List.of(soldItem));
+            throw e;
+        }
+    }
+
+    private void refundSale(User retailer, boolean kickback, BigDecimal amount, String posSaleId, String description) {
+        try {
+            if (kickback) {
+                retailerCreditService.reverseKickback(retailer.getId(), amount, posSaleId);
+            } else {
+                retailerCreditService.reverseDebit(retailer.getId(), amount, 1, posSaleId, "Sale failed: " + description);
+            }
+        } catch (RuntimeException e) {
+            System.err.println("❌ Could not refund POS sale " + posSaleId + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Refuse a sale the retailer cannot pay for (409 when the balances were busy, so the POS retries);
+     * the claimed item goes back on sale
+     */
+    private ResponseEntity<Map<String, Object>> refuseSale(StockPool.StockItem soldItem, RetailerCreditService.DebitResult payment) {
+        HttpStatus status = payment.getOutcome() == RetailerCreditService.DebitResult.Outcome.CONFLICT
+            ? HttpStatus.CONFLICT : HttpStatus.BAD_REQUEST;
+        return refuseSale(soldItem, status, payment.getMessage(), payment.getOutcome().name());
+    }
+
+    private ResponseEntity<Map<String, Object>> refuseSale(StockPool.StockItem soldItem, HttpStatus status, String message, String outcome) {
+        stockAllocationService.releaseItems(List.of(soldItem));
+        System.err.println("❌ POS sale refused: " + message);
+        Map<String, Object> error = new HashMap<>();
+        error.put("success", false);
+        error.put("message", message);
+        if (outcome != null) {
+            error.put("outcome", outcome);
+        }
+        return ResponseEntity.status(status).body(error);
+    }
+
+    /**
+     * Unified credit after the sale, for the POS screens
+     */
+    private void putUpdatedCredit(Map<String, Object> response, User retailer, RetailerCreditService.DebitResult payment) {
+        try {
+            RetailerLimit limit = payment.getLimit() != null
+                ? payment.getLimit()
+                : retailerLimitRepository.findByRetailer_Id(retailer.getId()).orElse(null);
+            if (limit == null) {
+                return;
+            }
+            Map<String, Object> creditInfo = new HashMap<>();
+            creditInfo.put("availableCredit", limit.getAvailableCredit());
+            creditInfo.put("usedCredit", limit.getUsedCredit());
+            creditInfo.put("creditLimit", limit.getCreditLimit());
+            
+            double usagePercentage = 0.0;
+            if (limit.getCreditLimit() != null && limit.getCreditLimit().compareTo(BigDecimal.ZERO) > 0) {
+                usagePercentage = limit.getUsedCredit()
+                    .divide(limit.getCreditLimit(), 4, java.math.RoundingMode.HALF_UP)
+                    .multiply(BigDecimal.valueOf(100)).doubleValue();
+            }
+            creditInfo.put("creditUsagePercentage", usagePercentage);
+            response.put("updatedCredit", creditInfo);
+        } catch (Exception ex) {
+            System.err.println("⚠️ Could not include updated credit info: " + ex.getMessage());
+        }
+    }
     
     // Get available ePINs with decrypted data for retailer Point of Sale
     @GetMapping("/pins/available")
@@ -2272,53 +1906,14 @@ public class StockController {
             @RequestParam(required = false) String networkProvider,
             @RequestParam(required = false) String productCategory) {
         try {
-            System.out.println("🏷️ Fetching available ePINs for Point of Sale");
-            System.out.println("   - Network Provider: " + networkProvider);
-            System.out.println("   - Product Category: " + productCategory);
-            
-            // Get all ePIN stock pools (changed from products to stock_pools)
-            List<StockPool> stockPools = stockPoolRepository.findAll();
-            System.out.println("📦 Total stock pools found: " + stockPools.size());
-            
-            // Filter by stockType = EPIN (enum comparison)
-            stockPools = stockPools.stream()
-                .filter(pool -> pool.getStockType() != null && pool.getStockType() == StockPool.StockType.EPIN)
-                .collect(java.util.stream.Collectors.toList());
-            System.out.println("📦 After EPIN filter: " + stockPools.size() + " pools");
-            
-            // Filter by network provider if specified  
-            if (networkProvider != null && !networkProvider.isEmpty() && !networkProvider.equals("All Providers")) {
-                stockPools = stockPools.stream()
-                    .filter(pool -> networkProvider.equals(pool.getNetworkProvider()))
-                    .collect(java.util.stream.Collectors.toList());
-                System.out.println("📦 After network provider filter: " + stockPools.size() + " pools");
-            }
-            
-            // Filter by category if specified
-            if (productCategory != null && !productCategory.isEmpty()) {
-                final int beforeCategoryFilter = stockPools.size();
-                stockPools = stockPools.stream()
-                    .filter(pool -> {
-                        boolean matches = productCategory.equals(pool.getProductType());
-                        System.out.println("   Pool: " + pool.getName() + " productType='" + pool.getProductType() + "' vs requested='" + productCategory + "' matches=" + matches);
-                        return matches;
-                    })
-                    .collect(java.util.stream.Collectors.toList());
-                System.out.println("📦 After category filter: " + stockPools.size() + " pools (from " + beforeCategoryFilter + ")");
-            }
-            
+            // Answered from the in-memory POS catalog - no pool/item queries per request
             List<Map<String, Object>> availableEpins = new ArrayList<>();
-            
-            for (StockPool pool : stockPools) {
-                System.out.println("🔍 Checking pool: " + pool.getName() + " availableQty=" + pool.getAvailableQuantity());
-                // Only include pools with available stock
-                if (pool.getAvailableQuantity() <= 0) {
-                    System.out.println("   ⏭️ Skipping (no available quantity)");
-                    continue;
-                }
-                
+            for (PosCatalogService.CatalogEntry pool : posCatalogService.find(StockPool.StockType.EPIN,
+                    networkProvider != null && !networkProvider.isEmpty() && !networkProvider.equals("All Providers") ? networkProvider : null,
+                    productCategory != null && !productCategory.isEmpty() ? productCategory : null,
+                    null)) {
                 Map<String, Object> epinProduct = new HashMap<>();
-                epinProduct.put("id", pool.getId());
+                epinProduct.put("id", pool.getPoolId());
                 epinProduct.put("name", pool.getName());
                 epinProduct.put("productId", pool.getProductId());
                 epinProduct.put("networkProvider", pool.getNetworkProvider());
@@ -2335,21 +1930,9 @@ public class StockController {
                 epinProduct.put("status", "ACTIVE"); // Add status field
                 epinProduct.put("retailerCommissionPercentage", 30.0); // Default commission
                 
-                // Get available ePIN items - decrypt for POS display
-                List<String> availablePinNumbers = new ArrayList<>();
-                if (pool.getItems() != null) {
-                    for (StockPool.StockItem item : pool.getItems()) {
-                        // Check enum status correctly
-                        if (item.getStatus() == StockPool.StockItem.ItemStatus.AVAILABLE) {
-                            // Decrypt PIN for POS app to display
-                            String decryptedPin = stockService.decryptData(item.getItemData());
-                            availablePinNumbers.add(decryptedPin);
-                        }
-                    }
-                }
-                
-                epinProduct.put("availablePins", availablePinNumbers);
-                epinProduct.put("availableCount", availablePinNumbers.size());
+                // First sellable PINs, decrypted for POS display; availableCount is the whole pool
+                epinProduct.put("availablePins", pool.getItems());
+                epinProduct.put("availableCount", pool.getAvailableQuantity());
                 
                 availableEpins.add(epinProduct);
             }
@@ -2,6 +2,7 @@ package com.example.topup.demo.controller;
 
 import com.example.topup.demo.entity.StockPool;
 import com.example.topup.demo.repository.StockPoolRepository;
+import com.example.topup.demo.service.StockService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
@@ -19,6 +20,9 @@ public class StockUtilityController {
     @Autowired
     private StockPoolRepository stockPoolRepository;
 
+    @Autowired
+    private StockService stockService;
+
     /**
      * Utility endpoint to add price to all items in a pool
      * This is useful when you've uploaded CSVs without price and want to add it later
@@ -35,22 +39,7 @@ public class StockUtilityController {
             StockPool pool = stockPoolRepository.findById(poolId)
                 .orElseThrow(() -> new RuntimeException("Pool not found: " + poolId));
             
-            int updatedCount = 0;
-            for (StockPool.StockItem item : pool.getItems()) {
-                // Update price if force=true OR if price is empty
-                if (force || item.getPrice() == null || item.getPrice().isEmpty()) {
-                    item.setPrice(price);
-                    updatedCount++;
-                }
-                // Update type if force=true OR if type is empty
-                if (force || (type != null && !type.isEmpty() && (item.getType() == null || item.getType().isEmpty()))) {
-                    if (type != null && !type.isEmpty()) {
-                        item.setType(type);
-                    }
-                }
-            }
-            
-            stockPoolRepository.save(pool);
+            long updatedCount = stockService.addPriceToPoolItems(poolId, price, type, force);
             
             Map<String, Object> response = new HashMap<>();
             response.put("success", true);
@@ -84,20 +73,12 @@ public class StockUtilityController {
             @RequestParam(required = false) String type) {
         
         try {
-            StockPool pool = stockPoolRepository.findById(poolId)
-                .orElseThrow(() -> new RuntimeException("Pool not found: " + poolId));
-            
-            StockPool.StockItem item = pool.getItems().stream()
-                .filter(i -> itemId.equals(i.getItemId()))
-                .findFirst()
-                .orElseThrow(() -> new RuntimeException("Item not found: " + itemId));
-            
-            item.setPrice(price);
+            Map<String, String> updates = new HashMap<>();
+            updates.put("price", price);
             if (type != null && !type.isEmpty()) {
-                item.setType(type);
+                updates.put("type", type);
             }
-            
-            stockPoolRepository.save(pool);
+            stockService.updateStockItem(poolId, itemId, updates);
             
             Map<String, Object> response = new HashMap<>();
             response.put("success", true);
@@ -0,0 +1,38 @@
+package com.example.topup.demo.dto;
+
+import jakarta.validation.Valid;
+import jakarta.validation.constraints.NotEmpty;
+
+import java.util.List;
+
+public class RetailerCartPurchaseRequest {
+    
+    @NotEmpty(message = "Cart must contain at least one product")
+    @Valid
+    private List<RetailerPurchaseRequest> items;
+    
+    private String notes;
+    
+    public RetailerCartPurchaseRequest() {}
+    
+    public RetailerCartPurchaseRequest(List<RetailerPurchaseRequest> items) {
+        this.items = items;
+    }
+    
+    // Getters and Setters
+    public List<RetailerPurchaseRequest> getItems() {
+        return items;
+    }
+    
+    public void setItems(List<RetailerPurchaseRequest> items) {
+        this.items = items;
+    }
+    
+    public String getNotes() {
+        return notes;
+    }
+    
+    public void setNotes(String notes) {
+        this.notes = notes;
+    }
+}
@@ -1,5 +1,7 @@
 package com.example.topup.demo.dto;
 
+import java.time.LocalDateTime;
+
 public class StockItemDTO {
     private String itemData; // PIN or ICCID
     private String serialNumber;
@@ -14,10 +16,12 @@ public class StockItemDTO {
     private String puk2; // PUK 2
     private String qrCodeUrl;
     private String qrCodeImage; // Base64 encoded QR code
+    private String qrCodeRef; // QR image already in the QR image store
     
     private String notes;
     private String price; // Price from CSV
     private String type;  // Type from CSV (e.g., "Data Bundle", "Voice", etc.)
+    private LocalDateTime expiryDate; // expiry_date from CSV
 
     public StockItemDTO() {}
 
@@ -60,6 +64,9 @@ public class StockItemDTO {
     public String getQrCodeImage() { return qrCodeImage; }
     public void setQrCodeImage(String qrCodeImage) { this.qrCodeImage = qrCodeImage; }
 
+    public String getQrCodeRef() { return qrCodeRef; }
+    public void setQrCodeRef(String qrCodeRef) { this.qrCodeRef = qrCodeRef; }
+
     public String getNotes() { return notes; }
     public void setNotes(String notes) { this.notes = notes; }
 
@@ -68,4 +75,7 @@ public class StockItemDTO {
 
     public String getType() { return type; }
     public void setType(String type) { this.type = type; }
+
+    public LocalDateTime getExpiryDate() { return expiryDate; }
+    public void setExpiryDate(LocalDateTime expiryDate) { this.expiryDate = expiryDate; }
 }
@@ -0,0 +1,83 @@
+package com.example.topup.demo.entity;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import com.example.topup.demo.entity.RetailerLimit.CreditTransaction;
+
+/**
+ * One retailer credit transaction (order, payment, refund, limit change), append-only
+ * Collection: credit_ledger
+ */
+@Document(collection = "credit_ledger")
+@CompoundIndex(name = "retailer_date_idx", def = "{'retailerId': 1, 'transactionDate': -1, '_id': -1}")
+public class CreditLedgerEntry {
+
+    @Id
+    private String id;
+
+    private String retailerId;
+    private String retailerLimitId;
+
+    private String transactionId;
+    private CreditTransaction.TransactionType type;
+    private BigDecimal amount;
+    private BigDecimal balanceAfter; // Available credit after this transaction
+    private LocalDateTime transactionDate;
+    private String description;
+    private String referenceOrderId;
+    private String processedBy; // Admin or system
+
+    public CreditLedgerEntry() {}
+
+    public CreditLedgerEntry(String retailerId, String retailerLimitId, CreditTransaction transaction) {
+        this.retailerId = retailerId;
+        this.retailerLimitId = retailerLimitId;
+        this.transactionId = transaction.getTransactionId();
+        this.type = transaction.getType();
+        this.amount = transaction.getAmount();
+        this.balanceAfter = transaction.getBalanceAfter();
+        this.transactionDate = transaction.getTransactionDate();
+        this.description = transaction.getDescription();
+        this.referenceOrderId = transaction.getReferenceOrderId();
+        this.processedBy = transaction.getProcessedBy();
+    }
+
+    // Getters and Setters
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public String getRetailerId() { return retailerId; }
+    public void setRetailerId(String retailerId) { this.retailerId = retailerId; }
+
+    public String getRetailerLimitId() { return retailerLimitId; }
+    public void setRetailerLimitId(String retailerLimitId) { this.retailerLimitId = retailerLimitId; }
+
+    public String getTransactionId() { return transactionId; }
+    public void setTransactionId(String transactionId) { this.transactionId = transactionId; }
+
+    public CreditTransaction.TransactionType getType() { return type; }
+    public void setType(CreditTransaction.TransactionType type) { this.type = type; }
+
+    public BigDecimal getAmount() { return amount; }
+    public void setAmount(BigDecimal amount) { this.amount = amount; }
+
+    public BigDecimal getBalanceAfter() { return balanceAfter; }
+    public void setBalanceAfter(BigDecimal balanceAfter) { this.balanceAfter = balanceAfter; }
+
+    public LocalDateTime getTransactionDate() { return transactionDate; }
+    public void setTransactionDate(LocalDateTime transactionDate) { this.transactionDate = transactionDate; }
+
+    public String getDescription() { return description; }
+    public void setDescription(String description) { this.description = description; }
+
+    public String getReferenceOrderId() { return referenceOrderId; }
+    public void setReferenceOrderId(String referenceOrderId) { this.referenceOrderId = referenceOrderId; }
+
+    public String getProcessedBy() { return processedBy; }
+    public void setProcessedBy(String processedBy) { this.processedBy = processedBy; }
+}
@@ -27,6 +27,11 @@ public class EsimOrderRequest {
     private String assignedEsimSerial;
     private String assignedEsimQrCode;
     
+    // eSIM held for this order until approval, rejection or reservationExpiresAt
+    private String reservedItemId;
+    private String reservedPoolId;
+    private LocalDateTime reservationExpiresAt;
+    
     private LocalDateTime requestDate;
     private LocalDateTime approvedDate;
     private LocalDateTime rejectedDate;
@@ -199,4 +204,28 @@ public class EsimOrderRequest {
     public void setApprovedByAdmin(String approvedByAdmin) {
         this.approvedByAdmin = approvedByAdmin;
     }
+    
+    public String getReservedItemId() {
+        return reservedItemId;
+    }
+    
+    public void setReservedItemId(String reservedItemId) {
+        this.reservedItemId = reservedItemId;
+    }
+    
+    public String getReservedPoolId() {
+        return reservedPoolId;
+    }
+    
+    public void setReservedPoolId(String reservedPoolId) {
+        this.reservedPoolId = reservedPoolId;
+    }
+    
+    public LocalDateTime getReservationExpiresAt() {
+        return reservationExpiresAt;
+    }
+    
+    public void setReservationExpiresAt(LocalDateTime reservationExpiresAt) {
+        this.reservationExpiresAt = reservationExpiresAt;
+    }
 }
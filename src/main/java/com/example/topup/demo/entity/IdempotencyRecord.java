@@ -0,0 +1,71 @@
+package com.example.topup.demo.entity;
+
+import java.time.LocalDateTime;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * Outcome of a request sent with an Idempotency-Key header, replayed to retries of the same key
+ * Collection: idempotency_keys
+ */
+@Document(collection = "idempotency_keys")
+public class IdempotencyRecord {
+
+    @Id
+    private String id; // caller + endpoint + Idempotency-Key
+
+    private String path;
+    private String requestHash; // SHA-256 of the request body; a retry must send the same body
+
+    private Status status = Status.IN_PROGRESS;
+
+    // Stored response, set once COMPLETED
+    private Integer responseStatus;
+    private String responseContentType;
+    private String responseBody;
+
+    private LocalDateTime startedDate;
+    private LocalDateTime completedDate;
+
+    @Indexed(name = "expiresAt_ttl", expireAfterSeconds = 0) // Removed by Mongo once expired
+    private LocalDateTime expiresAt;
+
+    public enum Status {
+        IN_PROGRESS, COMPLETED
+    }
+
+    public IdempotencyRecord() {}
+
+    // Getters and Setters
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public String getPath() { return path; }
+    public void setPath(String path) { this.path = path; }
+
+    public String getRequestHash() { return requestHash; }
+    public void setRequestHash(String requestHash) { this.requestHash = requestHash; }
+
+    public Status getStatus() { return status; }
+    public void setStatus(Status status) { this.status = status; }
+
+    public Integer getResponseStatus() { return responseStatus; }
+    public void setResponseStatus(Integer responseStatus) { this.responseStatus = responseStatus; }
+
+    public String getResponseContentType() { return responseContentType; }
+    public void setResponseContentType(String responseContentType) { this.responseContentType = responseContentType; }
+
+    public String getResponseBody() { return responseBody; }
+    public void setResponseBody(String responseBody) { this.responseBody = responseBody; }
+
+    public LocalDateTime getStartedDate() { return startedDate; }
+    public void setStartedDate(LocalDateTime startedDate) { this.startedDate = startedDate; }
+
+    public LocalDateTime getCompletedDate() { return completedDate; }
+    public void setCompletedDate(LocalDateTime completedDate) { this.completedDate = completedDate; }
+
+    public LocalDateTime getExpiresAt() { return expiresAt; }
+    public void setExpiresAt(LocalDateTime expiresAt) { this.expiresAt = expiresAt; }
+}
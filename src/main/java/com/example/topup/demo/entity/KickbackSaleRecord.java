@@ -0,0 +1,39 @@
+package com.example.topup.demo.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * A sale already counted towards a campaign, saved in the same transaction as the earning,
+ * so a retried sale is not counted twice
+ */
+@Entity
+@Table(name = "kickback_sale_records",
+       uniqueConstraints = @UniqueConstraint(columnNames = {"campaignId", "saleReference"}))
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class KickbackSaleRecord {
+    
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+    
+    @Column(nullable = false)
+    private Long campaignId;
+    
+    @Column(nullable = false)
+    private String saleReference; // POS sale id
+    
+    @Column(nullable = false, updatable = false)
+    private LocalDateTime createdAt = LocalDateTime.now();
+    
+    public KickbackSaleRecord(Long campaignId, String saleReference) {
+        this.campaignId = campaignId;
+        this.saleReference = saleReference;
+    }
+}
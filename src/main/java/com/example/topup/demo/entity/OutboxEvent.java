@@ -0,0 +1,112 @@
+package com.example.topup.demo.entity;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * Side effects of a committed sale (emails, order/report records, credit, kickbacks) waiting
+ * to be run by OutboxService. Events of one retailer run one at a time, oldest first.
+ * Collection: outbox_events
+ */
+@Document(collection = "outbox_events")
+public class OutboxEvent {
+
+    @Id
+    private String id;
+
+    private String type; // OutboxHandler that runs the event
+    private String retailerKey; // Ordering key: the retailer's login email
+    private Map<String, Object> payload;
+
+    // Steps already done, skipped when a failed event is retried
+    private List<String> completedSteps = new ArrayList<>();
+
+    private Status status = Status.PENDING;
+    private int attempts;
+    private String lastError;
+
+    private LocalDateTime createdDate;
+    private LocalDateTime nextAttemptAt;
+    private LocalDateTime lockedUntil; // Lease of the node running it; taken over once expired
+    private String lockToken;
+    private LocalDateTime completedDate;
+    private LocalDateTime expiresAt; // DONE events are removed by a TTL index after the retention
+
+    public enum Status {
+        PENDING, PROCESSING, DONE, DEAD
+    }
+
+    public OutboxEvent() {}
+
+    public OutboxEvent(String type, String retailerKey, Map<String, Object> payload) {
+        this.type = type;
+        this.retailerKey = retailerKey;
+        this.payload = payload;
+        this.createdDate = LocalDateTime.now();
+        this.nextAttemptAt = this.createdDate;
+    }
+
+    // Getters and Setters
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public String getType() { return type; }
+    public void setType(String type) { this.type = type; }
+
+    public String getRetailerKey() { return retailerKey; }
+    public void setRetailerKey(String retailerKey) { this.retailerKey = retailerKey; }
+
+    public Map<String, Object> getPayload() { return payload; }
+    public void setPayload(Map<String, Object> payload) { this.payload = payload; }
+
+    public List<String> getCompletedSteps() { return completedSteps; }
+    public void setCompletedSteps(List<String> completedSteps) { this.completedSteps = completedSteps; }
+
+    public Status getStatus() { return status; }
+    public void setStatus(Status status) { this.status = status; }
+
+    public int getAttempts() { return attempts; }
+    public void setAttempts(int attempts) { this.attempts = attempts; }
+
+    public String getLastError() { return lastError; }
+    public void setLastError(String lastError) { this.lastError = lastError; }
+
+    public LocalDateTime getCreatedDate() { return createdDate; }
+    public void setCreatedDate(LocalDateTime createdDate) { this.createdDate = createdDate; }
+
+    public LocalDateTime getNextAttemptAt() { return nextAttemptAt; }
+    public void setNextAttemptAt(LocalDateTime nextAttemptAt) { this.nextAttemptAt = nextAttemptAt; }
+
+    public LocalDateTime getLockedUntil() { return lockedUntil; }
+    public void setLockedUntil(LocalDateTime lockedUntil) { this.lockedUntil = lockedUntil; }
+
+    public String getLockToken() { return lockToken; }
+    public void setLockToken(String lockToken) { this.lockToken = lockToken; }
+
+    public LocalDateTime getCompletedDate() { return completedDate; }
+    public void setCompletedDate(LocalDateTime completedDate) { this.completedDate = completedDate; }
+
+    public LocalDateTime getExpiresAt() { return expiresAt; }
+    public void setExpiresAt(LocalDateTime expiresAt) { this.expiresAt = expiresAt; }
+
+    // Payload accessors
+    public String getString(String key) {
+        Object value = payload != null ? payload.get(key) : null;
+        return value != null ? value.toString() : null;
+    }
+
+    public boolean getBoolean(String key) {
+        Object value = payload != null ? payload.get(key) : null;
+        return value instanceof Boolean ? (Boolean) value : value != null && Boolean.parseBoolean(value.toString());
+    }
+
+    public double getDouble(String key) {
+        Object value = payload != null ? payload.get(key) : null;
+        return value instanceof Number ? ((Number) value).doubleValue() : 0.0;
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.topup.demo.entity;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * Outgoing email waiting to be delivered by MailQueueService. The complete MIME message is
+ * stored (encrypted), so a queued mail survives restarts and is sent exactly as EmailService built it.
+ * Collection: mail_queue
+ */
+@Document(collection = "mail_queue")
+public class QueuedMail {
+
+    @Id
+    private String id;
+
+    private String account; // SMTP account the mail is sent through (rate limited per account)
+    private List<String> recipients = new ArrayList<>();
+    private String subject;
+    private byte[] mime; // RFC 822 message encrypted by StockCryptoService, dropped once sent
+
+    private Status status = Status.PENDING;
+    private int attempts;
+    private String lastError;
+
+    private LocalDateTime createdDate;
+    private LocalDateTime nextAttemptAt;
+    private LocalDateTime lockedUntil; // Lease of the node sending it; taken over once expired
+    private String lockToken;
+    private LocalDateTime sentDate;
+    private LocalDateTime expiresAt; // SENT and DEAD mails are removed by a TTL index after their retention
+
+    public enum Status {
+        PENDING, SENDING, SENT, DEAD
+    }
+
+    public QueuedMail() {}
+
+    public QueuedMail(String account, List<String> recipients, String subject, byte[] mime) {
+        this.account = account;
+        this.recipients = recipients;
+        this.subject = subject;
+        this.mime = mime;
+        this.createdDate = LocalDateTime.now();
+        this.nextAttemptAt = this.createdDate;
+    }
+
+    // Getters and Setters
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public String getAccount() { return account; }
+    public void setAccount(String account) { this.account = account; }
+
+    public List<String> getRecipients() { return recipients; }
+    public void setRecipients(List<String> recipients) { this.recipients = recipients; }
+
+    public String getSubject() { return subject; }
+    public void setSubject(String subject) { this.subject = subject; }
+
+    public byte[] getMime() { return mime; }
+    public void setMime(byte[] mime) { this.mime = mime; }
+
+    public Status getStatus() { return status; }
+    public void setStatus(Status status) { this.status = status; }
+
+    public int getAttempts() { return attempts; }
+    public void setAttempts(int attempts) { this.attempts = attempts; }
+
+    public String getLastError() { return lastError; }
+    public void setLastError(String lastError) { this.lastError = lastError; }
+
+    public LocalDateTime getCreatedDate() { return createdDate; }
+    public void setCreatedDate(LocalDateTime createdDate) { this.createdDate = createdDate; }
+
+    public LocalDateTime getNextAttemptAt() { return nextAttemptAt; }
+    public void setNextAttemptAt(LocalDateTime nextAttemptAt) { this.nextAttemptAt = nextAttemptAt; }
+
+    public LocalDateTime getLockedUntil() { return lockedUntil; }
+    public void setLockedUntil(LocalDateTime lockedUntil) { this.lockedUntil = lockedUntil; }
+
+    public String getLockToken() { return lockToken; }
+    public void setLockToken(String lockToken) { this.lockToken = lockToken; }
+
+    public LocalDateTime getSentDate() { return sentDate; }
+    public void setSentDate(LocalDateTime sentDate) { this.sentDate = sentDate; }
+
+    public LocalDateTime getExpiresAt() { return expiresAt; }
+    public void setExpiresAt(LocalDateTime expiresAt) { this.expiresAt = expiresAt; }
+}
@@ -5,6 +5,8 @@ import org.springframework.data.annotation.CreatedDate;
 import org.springframework.data.annotation.LastModifiedDate;
 import org.springframework.data.mongodb.core.mapping.Document;
 import org.springframework.data.mongodb.core.mapping.DBRef;
+import org.springframework.data.mongodb.core.mapping.Field;
+import org.springframework.data.mongodb.core.mapping.FieldType;
 import org.springframework.data.mongodb.core.index.Indexed;
 import jakarta.validation.constraints.*;
 
@@ -25,14 +27,18 @@ public class RetailerKickbackLimit {
     @Indexed(unique = true)
     private User retailer;
 
+    // Balances are stored as Decimal128 so RetailerCreditService can compare and $inc them atomically
     @NotNull(message = "Kickback limit is required")
     @DecimalMin(value = "0.0", message = "Kickback limit must be non-negative")
+    @Field(targetType = FieldType.DECIMAL128)
     private BigDecimal kickbackLimit = BigDecimal.ZERO;
 
     @DecimalMin(value = "0.0", message = "Used kickback must be non-negative")
+    @Field(targetType = FieldType.DECIMAL128)
     private BigDecimal usedKickback = BigDecimal.ZERO;
 
     @DecimalMin(value = "0.0", message = "Available kickback must be non-negative")
+    @Field(targetType = FieldType.DECIMAL128)
     private BigDecimal availableKickback = BigDecimal.ZERO;
 
     @Indexed
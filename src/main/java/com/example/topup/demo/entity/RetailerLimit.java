@@ -3,8 +3,11 @@ package com.example.topup.demo.entity;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.annotation.CreatedDate;
 import org.springframework.data.annotation.LastModifiedDate;
+import org.springframework.data.annotation.Transient;
 import org.springframework.data.mongodb.core.mapping.Document;
 import org.springframework.data.mongodb.core.mapping.DBRef;
+import org.springframework.data.mongodb.core.mapping.Field;
+import org.springframework.data.mongodb.core.mapping.FieldType;
 import org.springframework.data.mongodb.core.index.Indexed;
 import jakarta.validation.constraints.*;
 
@@ -23,17 +26,22 @@ public class RetailerLimit {
     @Indexed(unique = true)
     private User retailer;
 
+    // Balances are stored as Decimal128 so RetailerCreditService can compare and $inc them atomically
     @NotNull(message = "Credit limit is required")
     @DecimalMin(value = "0.0", message = "Credit limit must be non-negative")
+    @Field(targetType = FieldType.DECIMAL128)
     private BigDecimal creditLimit = BigDecimal.ZERO;
 
     @DecimalMin(value = "0.0", message = "Available credit must be non-negative")
+    @Field(targetType = FieldType.DECIMAL128)
     private BigDecimal availableCredit = BigDecimal.ZERO;
 
     @DecimalMin(value = "0.0", message = "Used credit must be non-negative")
+    @Field(targetType = FieldType.DECIMAL128)
     private BigDecimal usedCredit = BigDecimal.ZERO;
 
     @DecimalMin(value = "0.0", message = "Outstanding amount must be non-negative")
+    @Field(targetType = FieldType.DECIMAL128)
     private BigDecimal outstandingAmount = BigDecimal.ZERO;
 
     @Min(value = 1, message = "Payment terms must be at least 1 day")
@@ -59,8 +67,10 @@ public class RetailerLimit {
     private boolean autoRenewal = false;
     private LocalDateTime renewalDate;
 
-    // Credit history
-    private List<CreditTransaction> transactions = new ArrayList<>();
+    // Credit history lives in credit_ledger; these are the transactions recorded since the
+    // limit was loaded, appended to the ledger when it is saved (CreditLedgerService)
+    @Transient
+    private List<CreditTransaction> pendingTransactions = new ArrayList<>();
 
     // Alert settings
     private BigDecimal lowCreditThreshold; // Alert when credit falls below this
@@ -218,7 +228,7 @@ public class RetailerLimit {
             description
         );
         transaction.setReferenceOrderId(orderId);
-        this.transactions.add(transaction);
+        this.pendingTransactions.add(transaction);
 
         // Check if alert should be sent
         if (sendLowCreditAlert && lowCreditThreshold != null &&
@@ -245,7 +255,7 @@ public class RetailerLimit {
             description
         );
         transaction.setProcessedBy(processedBy);
-        this.transactions.add(transaction);
+        this.pendingTransactions.add(transaction);
     }
 
     public void adjustCreditLimit(BigDecimal newLimit, String adminId, String reason) {
@@ -263,7 +273,7 @@ public class RetailerLimit {
             reason
         );
         transaction.setProcessedBy(adminId);
-        this.transactions.add(transaction);
+        this.pendingTransactions.add(transaction);
     }
 
     public void refundCredit(BigDecimal amount, String orderId, String processedBy, String description) {
@@ -288,7 +298,7 @@ public class RetailerLimit {
         );
         transaction.setReferenceOrderId(orderId);
         transaction.setProcessedBy(processedBy);
-        this.transactions.add(transaction);
+        this.pendingTransactions.add(transaction);
     }
 
     private void calculateNextDueDate() {
@@ -434,12 +444,8 @@ public class RetailerLimit {
         this.renewalDate = renewalDate;
     }
 
-    public List<CreditTransaction> getTransactions() {
-        return transactions;
-    }
-
-    public void setTransactions(List<CreditTransaction> transactions) {
-        this.transactions = transactions;
+    public List<CreditTransaction> getPendingTransactions() {
+        return pendingTransactions;
     }
 
     public BigDecimal getLowCreditThreshold() {
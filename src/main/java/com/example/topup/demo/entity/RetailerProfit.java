@@ -7,6 +7,8 @@ import org.springframework.data.mongodb.core.mapping.Document;
 import java.math.BigDecimal;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Entity to track retailer profit/earnings over time
@@ -41,6 +43,9 @@ public class RetailerProfit {
     // Margin information
     private Double marginRate;        // Margin rate used (percentage)
     
+    // Sales already counted in this record (latest ones only), so a retried sale is not added twice
+    private List<String> recentSaleRefs = new ArrayList<>();
+    
     // Metadata
     private LocalDateTime createdAt;
     private LocalDateTime updatedAt;
@@ -171,6 +176,14 @@ public class RetailerProfit {
         this.marginRate = marginRate;
     }
     
+    public List<String> getRecentSaleRefs() {
+        return recentSaleRefs;
+    }
+    
+    public void setRecentSaleRefs(List<String> recentSaleRefs) {
+        this.recentSaleRefs = recentSaleRefs;
+    }
+    
     public LocalDateTime getCreatedAt() {
         return createdAt;
     }
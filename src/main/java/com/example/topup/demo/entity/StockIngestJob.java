@@ -0,0 +1,139 @@
+package com.example.topup.demo.entity;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * Background PIN/eSIM CSV upload job and its progress
+ * Collection: stock_ingest_jobs
+ */
+@Document(collection = "stock_ingest_jobs")
+public class StockIngestJob {
+
+    @Id
+    private String id;
+
+    private StockPool.StockType stockType;
+
+    @Indexed
+    private JobStatus status = JobStatus.QUEUED;
+
+    // Upload metadata from the admin form
+    private String fileName;
+    private String poolName;
+    private String productId;
+    private String price;
+    private String notes;
+    private String productType;
+    private String networkProvider;
+    private String createdBy;
+
+    // Target pool, set once the job starts
+    private String poolId;
+
+    // Progress counters
+    private long rowsRead;
+    private long rowsInserted;
+    private long rowsRejected;
+    private long rowsDuplicate; // Part of rowsRejected: PIN/ICCID or serial already in the file or in stock
+    private List<String> rejectReasons = new ArrayList<>(); // First few reasons only
+    private List<Long> duplicateRows = new ArrayList<>(); // CSV row numbers of duplicates (first 10,000)
+
+    private String errorMessage;
+
+    @Indexed
+    private LocalDateTime createdDate;
+    private LocalDateTime startedDate;
+    private LocalDateTime finishedDate;
+
+    public enum JobStatus {
+        QUEUED, RUNNING, COMPLETED, FAILED
+    }
+
+    public StockIngestJob() {}
+
+    /**
+     * Inserted rows per second since the job started
+     */
+    public long getRowsPerSecond() {
+        if (startedDate == null) {
+            return 0;
+        }
+        LocalDateTime end = finishedDate != null ? finishedDate : LocalDateTime.now();
+        long millis = Duration.between(startedDate, end).toMillis();
+        return millis <= 0 ? rowsInserted : rowsInserted * 1000 / millis;
+    }
+
+    // Getters and Setters
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public StockPool.StockType getStockType() { return stockType; }
+    public void setStockType(StockPool.StockType stockType) { this.stockType = stockType; }
+
+    public JobStatus getStatus() { return status; }
+    public void setStatus(JobStatus status) { this.status = status; }
+
+    public String getFileName() { return fileName; }
+    public void setFileName(String fileName) { this.fileName = fileName; }
+
+    public String getPoolName() { return poolName; }
+    public void setPoolName(String poolName) { this.poolName = poolName; }
+
+    public String getProductId() { return productId; }
+    public void setProductId(String productId) { this.productId = productId; }
+
+    public String getPrice() { return price; }
+    public void setPrice(String price) { this.price = price; }
+
+    public String getNotes() { return notes; }
+    public void setNotes(String notes) { this.notes = notes; }
+
+    public String getProductType() { return productType; }
+    public void setProductType(String productType) { this.productType = productType; }
+
+    public String getNetworkProvider() { return networkProvider; }
+    public void setNetworkProvider(String networkProvider) { this.networkProvider = networkProvider; }
+
+    public String getCreatedBy() { return createdBy; }
+    public void setCreatedBy(String createdBy) { this.createdBy = createdBy; }
+
+    public String getPoolId() { return poolId; }
+    public void setPoolId(String poolId) { this.poolId = poolId; }
+
+    public long getRowsRead() { return rowsRead; }
+    public void setRowsRead(long rowsRead) { this.rowsRead = rowsRead; }
+
+    public long getRowsInserted() { return rowsInserted; }
+    public void setRowsInserted(long rowsInserted) { this.rowsInserted = rowsInserted; }
+
+    public long getRowsRejected() { return rowsRejected; }
+    public void setRowsRejected(long rowsRejected) { this.rowsRejected = rowsRejected; }
+
+    public long getRowsDuplicate() { return rowsDuplicate; }
+    public void setRowsDuplicate(long rowsDuplicate) { this.rowsDuplicate = rowsDuplicate; }
+
+    public List<Long> getDuplicateRows() { return duplicateRows; }
+    public void setDuplicateRows(List<Long> duplicateRows) { this.duplicateRows = duplicateRows; }
+
+    public List<String> getRejectReasons() { return rejectReasons; }
+    public void setRejectReasons(List<String> rejectReasons) { this.rejectReasons = rejectReasons; }
+
+    public String getErrorMessage() { return errorMessage; }
+    public void setErrorMessage(String errorMessage) { this.errorMessage = errorMessage; }
+
+    public LocalDateTime getCreatedDate() { return createdDate; }
+    public void setCreatedDate(LocalDateTime createdDate) { this.createdDate = createdDate; }
+
+    public LocalDateTime getStartedDate() { return startedDate; }
+    public void setStartedDate(LocalDateTime startedDate) { this.startedDate = startedDate; }
+
+    public LocalDateTime getFinishedDate() { return finishedDate; }
+    public void setFinishedDate(LocalDateTime finishedDate) { this.finishedDate = finishedDate; }
+}
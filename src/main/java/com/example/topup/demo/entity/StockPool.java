@@ -5,13 +5,12 @@ import org.springframework.data.annotation.CreatedDate;
 import org.springframework.data.annotation.LastModifiedDate;
 import org.springframework.data.mongodb.core.mapping.Document;
 import org.springframework.data.mongodb.core.mapping.DBRef;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
 import org.springframework.data.mongodb.core.index.Indexed;
 import jakarta.validation.constraints.NotBlank;
 import jakarta.validation.constraints.NotNull;
 
 import java.time.LocalDateTime;
-import java.util.ArrayList;
-import java.util.List;
 
 @Document(collection = "stock_pools")
 public class StockPool {
@@ -32,13 +31,17 @@ public class StockPool {
     @Indexed
     private String productId; // For easier querying
 
-    private List<StockItem> items = new ArrayList<>();
+    // Items live in the stock_items collection (see StockItem) and are linked back via poolId
 
     private Integer totalQuantity = 0;
     private Integer availableQuantity = 0;
     private Integer usedQuantity = 0;
     private Integer reservedQuantity = 0;
 
+    private Integer lowStockThreshold; // null = app.stock.low-stock.default-threshold
+    private Boolean lowStockAlerted = false; // Set when a low-stock event was emitted, cleared once restocked
+    private Integer shardCount; // null = not sharded, see StockShardService
+
     @Indexed
     private StockStatus status = StockStatus.ACTIVE;
 
@@ -70,10 +73,28 @@ public class StockPool {
         ACTIVE, INACTIVE, DEPLETED
     }
 
-    // Nested class for Stock Items (PINs or eSIMs)
+    // Stock Items (PINs or eSIMs) - one document per item in the stock_items collection
+    @Document(collection = "stock_items")
+    @CompoundIndex(name = "pool_status_idx", def = "{'poolId': 1, 'status': 1}")
+    @CompoundIndex(name = "status_lease_idx", def = "{'status': 1, 'leaseExpiresAt': 1}")
+    @CompoundIndex(name = "pool_status_item_idx", def = "{'poolId': 1, 'status': 1, '_id': 1}")
+    @CompoundIndex(name = "pool_status_added_idx", def = "{'poolId': 1, 'status': 1, 'addedDate': 1, '_id': 1}")
+    @CompoundIndex(name = "pool_status_expiry_idx", def = "{'poolId': 1, 'status': 1, 'expiryDate': 1, 'addedDate': 1, '_id': 1}")
+    @CompoundIndex(name = "status_item_idx", def = "{'status': 1, '_id': 1}")
     public static class StockItem {
+        @Id
         private String itemId;
+
+        private String poolId; // Owning StockPool id
+        private StockType stockType;
+
         private String itemData; // PIN number or eSIM ICCID (encrypted)
+
+        @Indexed
+        private String itemDataHash; // HMAC of the plain PIN/ICCID for indexed lookups
+        private String maskedData; // Masked PIN/ICCID for display (****1234), set at upload
+
+        @Indexed
         private String serialNumber;
         private String productId; // Product ID from CSV
         
@@ -85,23 +106,34 @@ public class StockPool {
         private String pin2; // PIN 2 (encrypted)
         private String puk2; // PUK 2 (encrypted)
         private String qrCodeUrl;
-        private String qrCodeImage; // Base64 encoded QR code (encrypted)
+        private String qrCodeImage; // Legacy: Base64 QR code (encrypted), moved to the QR image store
+        private String qrCodeRef; // QR image store reference (content hash)
         
         private ItemStatus status = ItemStatus.AVAILABLE;
         private LocalDateTime assignedDate;
+
+        @Indexed
         private String assignedToOrderId;
         private String assignedToUserId;
         private String assignedToUserEmail;
         
         private LocalDateTime usedDate;
         private LocalDateTime expiryDate;
+        private LocalDateTime addedDate; // Upload time, for FIFO allocation
+
+        // Set while the item is RESERVED in a node's allocation buffer
+        private String leaseOwner;
+        private LocalDateTime leaseExpiresAt;
+
+        private Integer shard; // Bucket of a sharded pool, null otherwise
         
         private String notes;
         private String price; // Price from CSV
         private String type;  // Type from CSV (e.g., "Data Bundle", "Voice", etc.)
 
+        // RESERVED: in a node's allocation buffer, still on sale. HELD: kept for a customer order, not on sale
         public enum ItemStatus {
-            AVAILABLE, RESERVED, ASSIGNED, USED, EXPIRED, FAILED
+            AVAILABLE, RESERVED, HELD, ASSIGNED, USED, EXPIRED, FAILED
         }
 
         // Constructors
@@ -117,9 +149,21 @@ public class StockPool {
         public String getItemId() { return itemId; }
         public void setItemId(String itemId) { this.itemId = itemId; }
 
+        public String getPoolId() { return poolId; }
+        public void setPoolId(String poolId) { this.poolId = poolId; }
+
+        public StockType getStockType() { return stockType; }
+        public void setStockType(StockType stockType) { this.stockType = stockType; }
+
         public String getItemData() { return itemData; }
         public void setItemData(String itemData) { this.itemData = itemData; }
 
+        public String getItemDataHash() { return itemDataHash; }
+        public void setItemDataHash(String itemDataHash) { this.itemDataHash = itemDataHash; }
+
+        public String getMaskedData() { return maskedData; }
+        public void setMaskedData(String maskedData) { this.maskedData = maskedData; }
+
         public String getSerialNumber() { return serialNumber; }
         public void setSerialNumber(String serialNumber) { this.serialNumber = serialNumber; }
 
@@ -150,6 +194,9 @@ public class StockPool {
         public String getQrCodeImage() { return qrCodeImage; }
         public void setQrCodeImage(String qrCodeImage) { this.qrCodeImage = qrCodeImage; }
 
+        public String getQrCodeRef() { return qrCodeRef; }
+        public void setQrCodeRef(String qrCodeRef) { this.qrCodeRef = qrCodeRef; }
+
         public ItemStatus getStatus() { return status; }
         public void setStatus(ItemStatus status) { this.status = status; }
 
@@ -171,6 +218,18 @@ public class StockPool {
         public LocalDateTime getExpiryDate() { return expiryDate; }
         public void setExpiryDate(LocalDateTime expiryDate) { this.expiryDate = expiryDate; }
 
+        public LocalDateTime getAddedDate() { return addedDate; }
+        public void setAddedDate(LocalDateTime addedDate) { this.addedDate = addedDate; }
+
+        public String getLeaseOwner() { return leaseOwner; }
+        public void setLeaseOwner(String leaseOwner) { this.leaseOwner = leaseOwner; }
+
+        public LocalDateTime getLeaseExpiresAt() { return leaseExpiresAt; }
+        public void setLeaseExpiresAt(LocalDateTime leaseExpiresAt) { this.leaseExpiresAt = leaseExpiresAt; }
+
+        public Integer getShard() { return shard; }
+        public void setShard(Integer shard) { this.shard = shard; }
+
         public String getNotes() { return notes; }
         public void setNotes(String notes) { this.notes = notes; }
 
@@ -211,9 +270,6 @@ public class StockPool {
     public String getProductId() { return productId; }
     public void setProductId(String productId) { this.productId = productId; }
 
-    public List<StockItem> getItems() { return items; }
-    public void setItems(List<StockItem> items) { this.items = items; }
-
     public Integer getTotalQuantity() { return totalQuantity; }
     public void setTotalQuantity(Integer totalQuantity) { this.totalQuantity = totalQuantity; }
 
@@ -226,6 +282,15 @@ public class StockPool {
     public Integer getReservedQuantity() { return reservedQuantity; }
     public void setReservedQuantity(Integer reservedQuantity) { this.reservedQuantity = reservedQuantity; }
 
+    public Integer getLowStockThreshold() { return lowStockThreshold; }
+    public void setLowStockThreshold(Integer lowStockThreshold) { this.lowStockThreshold = lowStockThreshold; }
+
+    public Boolean getLowStockAlerted() { return lowStockAlerted; }
+    public void setLowStockAlerted(Boolean lowStockAlerted) { this.lowStockAlerted = lowStockAlerted; }
+
+    public Integer getShardCount() { return shardCount; }
+    public void setShardCount(Integer shardCount) { this.shardCount = shardCount; }
+
     public StockStatus getStatus() { return status; }
     public void setStatus(StockStatus status) { this.status = status; }
 
@@ -258,38 +323,4 @@ public class StockPool {
 
     public String getLastModifiedBy() { return lastModifiedBy; }
     public void setLastModifiedBy(String lastModifiedBy) { this.lastModifiedBy = lastModifiedBy; }
-
-    // Helper methods
-    public void addItem(StockItem item) {
-        if (items == null) {
-            items = new ArrayList<>();
-        }
-        items.add(item);
-        updateQuantities();
-    }
-
-    public void updateQuantities() {
-        if (items == null) {
-            this.totalQuantity = 0;
-            this.availableQuantity = 0;
-            this.usedQuantity = 0;
-            this.reservedQuantity = 0;
-            return;
-        }
-
-        this.totalQuantity = items.size();
-        this.availableQuantity = (int) items.stream()
-            .filter(item -> item.getStatus() == StockItem.ItemStatus.AVAILABLE)
-            .count();
-        this.usedQuantity = (int) items.stream()
-            .filter(item -> item.getStatus() == StockItem.ItemStatus.USED)
-            .count();
-        this.reservedQuantity = (int) items.stream()
-            .filter(item -> item.getStatus() == StockItem.ItemStatus.RESERVED)
-            .count();
-
-        if (this.availableQuantity == 0 && this.reservedQuantity == 0) {
-            this.status = StockStatus.DEPLETED;
-        }
-    }
 }
@@ -0,0 +1,17 @@
+package com.example.topup.demo.repository;
+
+import com.example.topup.demo.entity.CreditLedgerEntry;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Repository for retailer credit transactions
+ * Collection: credit_ledger
+ */
+@Repository
+public interface CreditLedgerRepository extends MongoRepository<CreditLedgerEntry, String> {
+
+    boolean existsByRetailerIdAndReferenceOrderId(String retailerId, String referenceOrderId);
+
+    long countByRetailerId(String retailerId);
+}
@@ -0,0 +1,11 @@
+package com.example.topup.demo.repository;
+
+import com.example.topup.demo.entity.KickbackSaleRecord;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface KickbackSaleRecordRepository extends JpaRepository<KickbackSaleRecord, Long> {
+    
+    boolean existsByCampaignIdAndSaleReference(Long campaignId, String saleReference);
+}
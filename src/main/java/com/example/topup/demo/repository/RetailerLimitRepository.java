@@ -18,6 +18,8 @@ public interface RetailerLimitRepository extends MongoRepository<RetailerLimit,
     Optional<RetailerLimit> findByRetailer(User retailer);
     
     Optional<RetailerLimit> findByRetailer_Id(String retailerId);
+
+    boolean existsByRetailer_Id(String retailerId);
     
     List<RetailerLimit> findByStatus(LimitStatus status);
     
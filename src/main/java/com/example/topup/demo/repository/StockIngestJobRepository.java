@@ -0,0 +1,17 @@
+package com.example.topup.demo.repository;
+
+import com.example.topup.demo.entity.StockIngestJob;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+/**
+ * Repository for background stock upload jobs
+ * Collection: stock_ingest_jobs
+ */
+@Repository
+public interface StockIngestJobRepository extends MongoRepository<StockIngestJob, String> {
+
+    List<StockIngestJob> findTop20ByOrderByCreatedDateDesc();
+}
@@ -0,0 +1,55 @@
+package com.example.topup.demo.repository;
+
+import com.example.topup.demo.entity.StockPool;
+import com.example.topup.demo.entity.StockPool.StockItem;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Repository for individual PIN/eSIM stock items
+ * Collection: stock_items
+ */
+@Repository
+public interface StockItemRepository extends MongoRepository<StockItem, String> {
+
+    // Find by pool
+    List<StockItem> findByPoolId(String poolId);
+
+    List<StockItem> findByPoolIdAndStatus(String poolId, StockItem.ItemStatus status);
+
+    List<StockItem> findByPoolIdAndStatus(String poolId, StockItem.ItemStatus status, Pageable pageable);
+
+    Optional<StockItem> findFirstByPoolIdAndStatus(String poolId, StockItem.ItemStatus status);
+
+    List<StockItem> findByPoolIdInAndStatus(Collection<String> poolIds, StockItem.ItemStatus status);
+
+    List<StockItem> findByStockTypeAndStatus(StockPool.StockType stockType, StockItem.ItemStatus status);
+
+    // Find by serial number / order
+    List<StockItem> findBySerialNumber(String serialNumber);
+
+    Optional<StockItem> findFirstByPoolIdAndSerialNumber(String poolId, String serialNumber);
+
+    List<StockItem> findByAssignedToOrderId(String assignedToOrderId);
+
+    // Find by HMAC of the plain PIN/ICCID
+    Optional<StockItem> findFirstByPoolIdAndItemDataHash(String poolId, String itemDataHash);
+
+    Optional<StockItem> findFirstByPoolIdAndItemDataHashAndStatus(String poolId, String itemDataHash, StockItem.ItemStatus status);
+
+    Optional<StockItem> findFirstByPoolIdInAndItemDataHash(Collection<String> poolIds, String itemDataHash);
+
+    // Counts used to keep StockPool quantities in sync
+    long countByPoolId(String poolId);
+
+    long countByPoolIdAndStatus(String poolId, StockItem.ItemStatus status);
+
+    long countByPoolIdAndStatusIn(String poolId, Collection<StockItem.ItemStatus> statuses);
+
+    void deleteByPoolId(String poolId);
+}
@@ -21,6 +21,16 @@ public interface StockPoolRepository extends MongoRepository<StockPool, String>
     
     Optional<StockPool> findByProductIdAndStockType(String productId, StockPool.StockType stockType);
     
+    // Summary reads for listings: skip legacy embedded items and the product DBRef
+    @Query(value = "{}", fields = "{ 'items': 0, 'product': 0 }")
+    List<StockPool> findAllSummaries();
+
+    @Query(value = "{ 'stockType': ?0 }", fields = "{ 'items': 0, 'product': 0 }")
+    List<StockPool> findSummariesByStockType(StockPool.StockType stockType);
+
+    @Query(value = "{ 'productId': ?0 }", fields = "{ 'items': 0, 'product': 0 }")
+    List<StockPool> findSummariesByProductId(String productId);
+    
     @Query("{ 'availableQuantity' : { $gt: 0 } }")
     List<StockPool> findAllWithAvailableStock();
     
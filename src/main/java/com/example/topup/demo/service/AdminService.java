@@ -23,6 +23,7 @@ import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 
 import com.example.topup.demo.dto.RetailerCreditLimitDTO;
@@ -91,6 +92,9 @@ public class AdminService {
     @Autowired
     private ProductRepository productRepository;
 
+    @Autowired
+    private RetailerCreditService retailerCreditService;
+
     /**
      * Get dashboard analytics data
      */
@@ -848,52 +852,47 @@ public class AdminService {
                 throw new RuntimeException("User is not a business/retailer account");
             }
             
-            // Get or create retailer limit
-            RetailerLimit limit = retailerLimitRepository.findByRetailer(retailer)
-                .orElse(new RetailerLimit());
-            
-            // If new limit, set retailer and initial values
-            if (limit.getId() == null) {
+            BigDecimal newLimit = request.getCreditLimit();
+            Optional<RetailerLimit> existing = retailerLimitRepository.findByRetailer(retailer);
+            if (existing.isEmpty()) {
+                // New limit: nothing can be debiting it yet
+                RetailerLimit limit = new RetailerLimit();
                 limit.setRetailer(retailer);
                 limit.setUsedCredit(BigDecimal.ZERO);
                 limit.setOutstandingAmount(BigDecimal.ZERO);
                 limit.setStatus(RetailerLimit.LimitStatus.ACTIVE);
+                limit.setCreditLimit(newLimit);
+                limit.setAvailableCredit(newLimit);
+                if (request.getPaymentTermsDays() != null) {
+                    limit.setPaymentTermsDays(request.getPaymentTermsDays());
+                }
+                if (request.getUnitLimit() != null) {
+                    limit.setUnitLimit(request.getUnitLimit());
+                    limit.setUsedUnits(0);
+                    limit.updateAvailableUnits();
+                }
+                retailerLimitRepository.insert(limit);
+                System.out.println("✅ Created credit limit of " + newLimit + " for retailer " + retailer.getEmail());
+                return convertToRetailerCreditLimitDTO(retailer);
             }
             
-            // Update credit limit
-            BigDecimal oldLimit = limit.getCreditLimit();
-            BigDecimal newLimit = request.getCreditLimit();
-            limit.setCreditLimit(newLimit);
-            
-            // Recalculate available credit
-            BigDecimal usedCredit = limit.getUsedCredit() != null ? limit.getUsedCredit() : BigDecimal.ZERO;
-            limit.setAvailableCredit(newLimit.subtract(usedCredit));
+            // Existing limit: conditional updates, so sales debiting it meanwhile are not overwritten
+            BigDecimal oldLimit = existing.get().getCreditLimit();
+            retailerCreditService.adjustCreditLimit(retailer.getId(), newLimit, "admin", "Credit limit updated by admin");
             
             // Update payment terms if provided
             if (request.getPaymentTermsDays() != null) {
-                limit.setPaymentTermsDays(request.getPaymentTermsDays());
+                retailerCreditService.updateFields(retailer.getId(), new Update().set("paymentTermsDays", request.getPaymentTermsDays()));
             }
             
             // Update unit limit if provided
             if (request.getUnitLimit() != null) {
-                Integer oldUnitLimit = limit.getUnitLimit();
-                limit.setUnitLimit(request.getUnitLimit());
-                
-                // Initialize used units if not set
-                if (limit.getUsedUnits() == null) {
-                    limit.setUsedUnits(0);
-                }
-                
-                // Update available units
-                limit.updateAvailableUnits();
-                
+                Integer oldUnitLimit = existing.get().getUnitLimit();
+                retailerCreditService.adjustUnitLimit(retailer.getId(), request.getUnitLimit(), "admin");
                 System.out.println("✅ Updated unit limit for retailer " + retailer.getEmail() + 
                                  " from " + oldUnitLimit + " to " + request.getUnitLimit());
             }
             
-            // Save the updated limit
-            retailerLimitRepository.save(limit);
-            
             System.out.println("✅ Updated credit limit for retailer " + retailer.getEmail() + 
                              " from " + oldLimit + " to " + newLimit);
             
@@ -917,38 +916,25 @@ public class AdminService {
                 throw new RuntimeException("User is not a business/retailer account");
             }
             
-            // Get or create retailer limit
-            RetailerLimit limit = retailerLimitRepository.findByRetailer(retailer)
-                .orElse(new RetailerLimit());
-            
-            // If new limit, set retailer and initial values
-            if (limit.getId() == null) {
+            Optional<RetailerLimit> existing = retailerLimitRepository.findByRetailer(retailer);
+            Integer oldUnitLimit = existing.map(RetailerLimit::getUnitLimit).orElse(null);
+            if (existing.isEmpty()) {
+                // New limit with no credit yet
+                RetailerLimit limit = new RetailerLimit();
                 limit.setRetailer(retailer);
                 limit.setUsedCredit(BigDecimal.ZERO);
                 limit.setOutstandingAmount(BigDecimal.ZERO);
                 limit.setStatus(RetailerLimit.LimitStatus.ACTIVE);
-                // Set default credit limit if not set
-                if (limit.getCreditLimit() == null) {
-                    limit.setCreditLimit(BigDecimal.ZERO);
-                    limit.setAvailableCredit(BigDecimal.ZERO);
-                }
-            }
-            
-            // Update unit limit
-            Integer oldUnitLimit = limit.getUnitLimit();
-            limit.setUnitLimit(request.getUnitLimit());
-            
-            // Initialize used units if not set
-            if (limit.getUsedUnits() == null) {
+                limit.setCreditLimit(BigDecimal.ZERO);
+                limit.setAvailableCredit(BigDecimal.ZERO);
+                limit.setUnitLimit(request.getUnitLimit());
                 limit.setUsedUnits(0);
+                limit.updateAvailableUnits();
+                retailerLimitRepository.insert(limit);
+            } else {
+                retailerCreditService.adjustUnitLimit(retailer.getId(), request.getUnitLimit(), "admin");
             }
             
-            // Update available units
-            limit.updateAvailableUnits();
-            
-            // Save the updated limit
-            retailerLimitRepository.save(limit);
-            
             System.out.println("✅ Updated unit limit for retailer " + retailer.getEmail() + 
                              " from " + oldUnitLimit + " to " + request.getUnitLimit());
             
@@ -1816,24 +1802,18 @@ public class AdminService {
                                     // Fallback: fetch serial number from StockPool by matching the PIN
                                     System.out.println("⚠️ No serial number in order, fetching from StockPool...");
                                     try {
-                                        List<StockPool> stockPools = stockPoolRepository.findByProductId(item.getProductId());
-                                        for (StockPool pool : stockPools) {
-                                            if (pool.getStockType() == stockType && pool.getItems() != null) {
-                                                for (StockPool.StockItem stockItem : pool.getItems()) {
-                                                    try {
-                                                        String decryptedPin = stockService.decryptData(stockItem.getItemData());
-                                                        if (orderSerials.get(0).equals(decryptedPin)) {
-                                                            serialNumbers.add(stockItem.getSerialNumber());
-                                                            System.out.println("✅ Found serial number from StockPool: " + stockItem.getSerialNumber());
-                                                            break;
-                                                        }
-                                                    } catch (Exception e) {
-                                                        // Skip if decryption fails
-                                                    }
-                                                }
-                                                if (!serialNumbers.isEmpty()) break;
+                                        List<String> poolIds = new ArrayList<>();
+                                        for (StockPool pool : stockPoolRepository.findByProductId(item.getProductId())) {
+                                            if (pool.getStockType() == stockType) {
+                                                poolIds.add(pool.getId());
                                             }
                                         }
+                                        // Indexed lookup by the PIN's hash instead of decrypting every item
+                                        Optional<StockPool.StockItem> matchedItem = stockService.findItemByValue(poolIds, orderSerials.get(0));
+                                        if (matchedItem.isPresent()) {
+                                            serialNumbers.add(matchedItem.get().getSerialNumber());
+                                            System.out.println("✅ Found serial number from StockPool: " + matchedItem.get().getSerialNumber());
+                                        }
                                     } catch (Exception e) {
                                         System.err.println("Error fetching serial number for POS App ePIN: " + e.getMessage());
                                     }
@@ -1846,15 +1826,19 @@ public class AdminService {
                             // Fetch the actual encrypted PINs from StockPool using serial numbers
                             try {
                                 List<StockPool> stockPools = stockPoolRepository.findByProductId(item.getProductId());
+                                Set<String> poolIds = new HashSet<>();
                                 for (StockPool pool : stockPools) {
-                                    if (pool.getStockType() == stockType && pool.getItems() != null) {
-                                        for (StockPool.StockItem stockItem : pool.getItems()) {
-                                            if (serialNumbers.contains(stockItem.getSerialNumber())) {
-                                                // Get the actual PIN data (itemData field)
-                                                String pinData = stockItem.getItemData();
-                                                if (pinData != null && !pinData.isEmpty()) {
-                                                    encryptedPinsSet.add(pinData); // Add to Set to ensure uniqueness
-                                                }
+                                    if (pool.getStockType() == stockType) {
+                                        poolIds.add(pool.getId());
+                                    }
+                                }
+                                for (String serial : serialNumbers) {
+                                    for (StockPool.StockItem stockItem : stockService.findItemsBySerialNumber(serial)) {
+                                        if (poolIds.contains(stockItem.getPoolId())) {
+                                            // Get the actual PIN data (itemData field)
+                                            String pinData = stockItem.getItemData();
+                                            if (pinData != null && !pinData.isEmpty()) {
+                                                encryptedPinsSet.add(pinData); // Add to Set to ensure uniqueness
                                             }
                                         }
                                     }
@@ -1868,23 +1852,32 @@ public class AdminService {
                                 // Find stock pool for this product
                                 List<StockPool> stockPools = stockPoolRepository.findByProductId(item.getProductId());
                                 
+                                Set<String> poolIds = new HashSet<>();
                                 for (StockPool pool : stockPools) {
-                                    if (pool.getStockType() == stockType && pool.getItems() != null) {
-                                        // Try matching with order number first (POS orders)
-                                        for (StockPool.StockItem stockItem : pool.getItems()) {
-                                            String assignedTo = stockItem.getAssignedToOrderId();
-                                            if (assignedTo != null && 
-                                                (assignedTo.equals(order.getId()) || assignedTo.equals(order.getOrderNumber()))) {
-                                                String serial = stockItem.getSerialNumber();
-                                                String pinData = stockItem.getItemData();
-                                                
-                                                if (serial != null && !serial.isEmpty()) {
-                                                    serialNumbers.add(serial);
-                                                }
-                                                if (pinData != null && !pinData.isEmpty()) {
-                                                    encryptedPinsSet.add(pinData); // Add to Set to ensure uniqueness
-                                                }
-                                            }
+                                    if (pool.getStockType() == stockType) {
+                                        poolIds.add(pool.getId());
+                                    }
+                                }
+                                
+                                // Try matching with order id and order number (POS orders)
+                                List<StockPool.StockItem> assignedItems = new ArrayList<>();
+                                if (order.getId() != null) {
+                                    assignedItems.addAll(stockService.findItemsByAssignedOrderId(order.getId()));
+                                }
+                                if (order.getOrderNumber() != null && !order.getOrderNumber().equals(order.getId())) {
+                                    assignedItems.addAll(stockService.findItemsByAssignedOrderId(order.getOrderNumber()));
+                                }
+                                
+                                for (StockPool.StockItem stockItem : assignedItems) {
+                                    if (poolIds.contains(stockItem.getPoolId())) {
+                                        String serial = stockItem.getSerialNumber();
+                                        String pinData = stockItem.getItemData();
+                                        
+                                        if (serial != null && !serial.isEmpty()) {
+                                            serialNumbers.add(serial);
+                                        }
+                                        if (pinData != null && !pinData.isEmpty()) {
+                                            encryptedPinsSet.add(pinData); // Add to Set to ensure uniqueness
                                         }
                                     }
                                 }
@@ -0,0 +1,106 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.CreditLedgerEntry;
+import com.example.topup.demo.entity.RetailerLimit;
+import com.example.topup.demo.entity.RetailerLimit.CreditTransaction;
+import com.example.topup.demo.repository.CreditLedgerRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only retailer credit ledger (credit_ledger).
+ *
+ * RetailerLimit only keeps the running balances; the transactions its business methods
+ * record are held on the loaded limit and appended here once the limit is saved, whichever
+ * code path saves it. History is read newest first in keyset pages on
+ * (retailerId, transactionDate, _id).
+ */
+@Service
+public class CreditLedgerService extends AbstractMongoEventListener<RetailerLimit> {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private CreditLedgerRepository creditLedgerRepository;
+
+    @Override
+    public void onAfterSave(AfterSaveEvent<RetailerLimit> event) {
+        RetailerLimit limit = event.getSource();
+        List<CreditTransaction> pending = limit.getPendingTransactions();
+        if (pending == null || pending.isEmpty()) {
+            return;
+        }
+        append(limit.getRetailer() != null ? limit.getRetailer().getId() : null, limit.getId(), pending);
+        pending.clear();
+    }
+
+    /**
+     * Append transactions whose balance change is already saved on the retailer's limit
+     */
+    public void append(String retailerId, String retailerLimitId, List<CreditTransaction> transactions) {
+        List<CreditLedgerEntry> entries = new ArrayList<>(transactions.size());
+        for (CreditTransaction transaction : transactions) {
+            entries.add(new CreditLedgerEntry(retailerId, retailerLimitId, transaction));
+        }
+        try {
+            mongoTemplate.insertAll(entries);
+        } catch (Exception e) {
+            // The balances (and a debit's order id, which guards against debiting it twice) are already
+            // saved; losing the history line is logged rather than failing the sale
+            System.err.println("❌ Could not append " + entries.size() + " credit transaction(s) for retailer "
+                + retailerId + " to the ledger: " + e.getMessage());
+        }
+    }
+
+    /**
+     * A page of a retailer's transactions, newest first. Pass the previous page's
+     * nextCursor as {@code after} to continue; null starts from the newest.
+     */
+    public List<CreditLedgerEntry> getPage(String retailerId, String after, int size) {
+        Criteria criteria = Criteria.where("retailerId").is(retailerId);
+        if (after != null && !after.isBlank()) {
+            int separator = after.lastIndexOf('|');
+            LocalDateTime date;
+            try {
+                date = LocalDateTime.parse(after.substring(0, Math.max(separator, 0)));
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Invalid cursor: " + after);
+            }
+            String id = after.substring(separator + 1);
+            criteria.orOperator(
+                Criteria.where("transactionDate").lt(date),
+                Criteria.where("transactionDate").is(date).and("_id").lt(id));
+        }
+        Query query = new Query(criteria)
+            .with(Sort.by(Sort.Direction.DESC, "transactionDate").and(Sort.by(Sort.Direction.DESC, "_id")))
+            .limit(size);
+        return mongoTemplate.find(query, CreditLedgerEntry.class);
+    }
+
+    /**
+     * Cursor for the page after the one ending with this entry
+     */
+    public String cursorOf(CreditLedgerEntry entry) {
+        return entry.getTransactionDate() + "|" + entry.getId();
+    }
+
+    public boolean isOrderRecorded(String retailerId, String orderId) {
+        return creditLedgerRepository.existsByRetailerIdAndReferenceOrderId(retailerId, orderId);
+    }
+
+    public long countTransactions(String retailerId) {
+        return creditLedgerRepository.countByRetailerId(retailerId);
+    }
+}
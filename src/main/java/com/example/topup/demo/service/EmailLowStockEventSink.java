@@ -0,0 +1,34 @@
+package com.example.topup.demo.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Mails low-stock events to the addresses in app.stock.low-stock.alert-emails
+ */
+@Service
+public class EmailLowStockEventSink implements LowStockEventSink {
+
+    @Autowired
+    private EmailService emailService;
+
+    @Value("${app.stock.low-stock.alert-emails:}")
+    private String alertEmails;
+
+    @Override
+    public String getName() {
+        return "email";
+    }
+
+    @Override
+    public void publish(LowStockEvent event) {
+        for (String email : alertEmails.split(",")) {
+            if (!email.isBlank()) {
+                emailService.sendLowStockAlertEmail(email.trim(), event.getPoolName(),
+                    event.getStockType() != null ? event.getStockType().name() : "EPIN",
+                    event.getAvailableQuantity(), event.getThreshold());
+            }
+        }
+    }
+}
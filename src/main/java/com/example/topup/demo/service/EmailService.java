@@ -7,7 +7,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ByteArrayResource;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.InputStreamSource;
 import org.springframework.core.io.Resource;
 import org.springframework.mail.javamail.JavaMailSender;
 import org.springframework.mail.javamail.MimeMessageHelper;
@@ -27,6 +29,9 @@ public class EmailService {
     @Autowired
     private JavaMailSender javaMailSender;
 
+    @Autowired
+    private MailQueueService mailQueueService;
+
     @Value("${spring.mail.username}")
     private String fromEmail;
 
@@ -322,7 +327,7 @@ public class EmailService {
                 htmlContent,
                 qrCodeBase64
             );
-            log.info("eSIM approval email sent successfully to: {}", toEmail);
+            log.info("eSIM approval email queued for: {}", toEmail);
         } catch (Exception e) {
             log.error("Failed to send eSIM approval email to: {}", toEmail, e);
             e.printStackTrace();
@@ -330,6 +335,36 @@ public class EmailService {
         }
     }
 
+    /**
+     * Send eSIM approval email with the QR code streamed from the QR image store as an inline attachment
+     */
+    public void sendEsimApprovalEmail(String toEmail, String customerName, String orderNumber,
+                                      String esimSerial, InputStreamSource qrCode, String activationCode, String smDpAddress) {
+        try {
+            String qrCodeHtml = qrCode != null
+                ? "<img src=\"cid:qrCodeImage\" alt=\"eSIM QR Code\" width=\"220\" height=\"220\" border=\"0\" " +
+                  "style=\"display: block; width: 220px; height: 220px; max-width: 220px; max-height: 220px; margin: 0 auto;\" />"
+                : "<p style=\"color: #dc2626; text-align: center; font-weight: bold;\">⚠️ QR Code not available - please contact support</p>";
+            String htmlContent = renderEsimApprovalHtml(orderNumber, qrCodeHtml, activationCode, smDpAddress, null);
+
+            MimeMessage message = mailSender.createMimeMessage();
+            MimeMessageHelper helper = new MimeMessageHelper(message, true, "UTF-8");
+            helper.setFrom(supportEmail);
+            helper.setTo(toEmail);
+            helper.setSubject("Your eSIM is Ready! - Order #" + orderNumber + " - " + appName);
+            helper.setText(htmlContent, true);
+            if (qrCode != null) {
+                helper.addInline("qrCodeImage", qrCode, QrImageStore.CONTENT_TYPE);
+            }
+
+            mailQueueService.enqueue(message);
+            log.info("eSIM approval email queued for: {}", toEmail);
+        } catch (Exception e) {
+            log.error("Failed to send eSIM approval email to: {}", toEmail, e);
+            throw new RuntimeException("Failed to send eSIM approval email", e);
+        }
+    }
+
     /**
      * Send eSIM rejection email
      */
@@ -346,7 +381,7 @@ public class EmailService {
                 "eSIM Order Update - Order #" + orderNumber + " - " + appName,
                 htmlContent
             );
-            log.info("eSIM rejection email sent successfully to: {}", toEmail);
+            log.info("eSIM rejection email queued for: {}", toEmail);
         } catch (Exception e) {
             log.error("Failed to send eSIM rejection email to: {}", toEmail, e);
             throw new RuntimeException("Failed to send eSIM rejection email", e);
@@ -359,10 +394,23 @@ public class EmailService {
     public void sendEsimQrCodeEmail(String toEmail, String firstName, String lastName, 
                                     String networkProvider, String productType, 
                                     String qrCodeBase64, String iccid) {
+        InputStreamSource qrCode = null;
+        if (qrCodeBase64 != null && !qrCodeBase64.isEmpty()) {
+            qrCode = new ByteArrayResource(java.util.Base64.getDecoder().decode(qrCodeBase64));
+        }
+        sendEsimQrCodeEmail(toEmail, firstName, lastName, networkProvider, productType, qrCode, iccid);
+    }
+
+    /**
+     * Send eSIM QR code via email for POS app, attaching the image straight from its stream
+     */
+    public void sendEsimQrCodeEmail(String toEmail, String firstName, String lastName,
+                                    String networkProvider, String productType,
+                                    InputStreamSource qrCode, String iccid) {
         try {
             log.info("=== Sending eSIM QR code email ===");
             log.info("To: {}", toEmail);
-            log.info("QR code length: {}", qrCodeBase64 != null ? qrCodeBase64.length() : 0);
+            log.info("Has QR code: {}", qrCode != null);
             
             String customerName = firstName + " " + lastName;
             
@@ -384,15 +432,10 @@ public class EmailService {
             helper.setText(htmlContent, true);
             
             // Add QR code as inline attachment
-            if (qrCodeBase64 != null && !qrCodeBase64.isEmpty()) {
+            if (qrCode != null) {
                 try {
                     log.info("Adding QR code as inline attachment...");
-                    byte[] qrBytes = java.util.Base64.getDecoder().decode(qrCodeBase64);
-                    log.info("QR decoded to {} bytes", qrBytes.length);
-                    
-                    // Use ByteArrayResource instead of ByteArrayDataSource
-                    org.springframework.core.io.ByteArrayResource qrResource = new org.springframework.core.io.ByteArrayResource(qrBytes);
-                    helper.addInline("qrcode", qrResource, "image/png");
+                    helper.addInline("qrcode", qrCode, QrImageStore.CONTENT_TYPE);
                     log.info("✅ QR code attached successfully");
                 } catch (Exception attachEx) {
                     log.error("❌ Failed to attach QR code: {}", attachEx.getMessage());
@@ -402,8 +445,8 @@ public class EmailService {
                 log.warn("⚠️ QR code is null or empty, skipping attachment");
             }
             
-            javaMailSender.send(message);
-            log.info("✅ eSIM QR code email sent successfully to: {}", toEmail);
+            mailQueueService.enqueue(message);
+            log.info("✅ eSIM QR code email queued for: {}", toEmail);
         } catch (Exception e) {
             log.error("❌ Failed to send eSIM QR code email to: {}", toEmail, e);
             e.printStackTrace();
@@ -441,7 +484,7 @@ public class EmailService {
         helper.setSubject(subject);
         helper.setText(htmlContent, true);
         
-        mailSender.send(message);
+        mailQueueService.enqueue(message);
     }
 
     /**
@@ -500,8 +543,8 @@ public class EmailService {
                 helper.setText(htmlContent, true);
             }
             
-            mailSender.send(message);
-            System.out.println("   ✅ Email sent successfully!");
+            mailQueueService.enqueue(message);
+            System.out.println("   ✅ Email queued for delivery!");
             System.out.println("=================================\n");
         } catch (Exception e) {
             log.error("Error sending email with QR code attachment", e);
@@ -943,8 +986,8 @@ public class EmailService {
             boolean isHtml = message.contains("<html") || message.contains("<div") || message.contains("<p");
             helper.setText(message, isHtml);
 
-            mailSender.send(mimeMessage);
-            log.info("Email sent successfully to: {}", toEmail);
+            mailQueueService.enqueue(mimeMessage);
+            log.info("Email queued for: {}", toEmail);
             
         } catch (MessagingException e) {
             log.error("Failed to send email to {}: {}", toEmail, e.getMessage());
@@ -964,6 +1007,39 @@ public class EmailService {
     private String generateEsimApprovalHtml(String customerName, String orderNumber, 
                                            String esimSerial, String qrCodeBase64,
                                            String activationCode, String smDpAddress, String bundlePrice) {
+        // Build the QR image tag, then fill the template
+        System.out.println("\n🔍 === generateEsimApprovalHtml DEBUG ===");
+        System.out.println("   qrCodeBase64 input length: " + (qrCodeBase64 != null ? qrCodeBase64.length() : 0));
+        System.out.println("   qrCodeBase64 is null: " + (qrCodeBase64 == null));
+        
+        String qrCodeToUse = "";
+        if (qrCodeBase64 != null && !qrCodeBase64.isEmpty()) {
+            // Verify it's valid base64 PNG
+            if (qrCodeBase64.startsWith("iVBORw0KGgo")) {
+                // Simple img tag for maximum Gmail compatibility - no wrapper divs
+                qrCodeToUse = "<img src=\"data:image/png;base64," + qrCodeBase64 + "\" " +
+                             "alt=\"eSIM QR Code\" " +
+                             "width=\"220\" " +
+                             "height=\"220\" " +
+                             "border=\"0\" " +
+                             "style=\"display: block; width: 220px; height: 220px; max-width: 220px; max-height: 220px; margin: 0 auto;\" " +
+                             "/>";
+                System.out.println("   ✅ QR code image tag created successfully (Gmail-optimized)");
+            } else {
+                qrCodeToUse = "<p style=\"color: #dc2626; text-align: center; font-weight: bold;\">⚠️ QR Code format invalid (doesn't start with PNG signature)</p>";
+                System.out.println("   ⚠️ QR code doesn't start with PNG signature: " + qrCodeBase64.substring(0, Math.min(50, qrCodeBase64.length())));
+            }
+        } else {
+            qrCodeToUse = "<p style=\"color: #dc2626; text-align: center; font-weight: bold;\">⚠️ QR Code not available - please contact support</p>";
+            System.out.println("   ❌ QR code is null or empty!");
+        }
+        System.out.println("   qrCodeToUse length: " + qrCodeToUse.length());
+
+        return renderEsimApprovalHtml(orderNumber, qrCodeToUse, activationCode, smDpAddress, bundlePrice);
+    }
+
+    private String renderEsimApprovalHtml(String orderNumber, String qrCodeImageHtml,
+                                          String activationCode, String smDpAddress, String bundlePrice) {
         String template = """
 <!DOCTYPE html>
 <html lang="en">
@@ -1069,35 +1145,6 @@ a:hover{text-decoration:underline}
 </html>
             """;
 
-        // Replace placeholders with actual values
-        System.out.println("\n🔍 === generateEsimApprovalHtml DEBUG ===");
-        System.out.println("   qrCodeBase64 input length: " + (qrCodeBase64 != null ? qrCodeBase64.length() : 0));
-        System.out.println("   qrCodeBase64 is null: " + (qrCodeBase64 == null));
-        System.out.println("   Template contains {{QR_CODE_IMAGE}}: " + template.contains("{{QR_CODE_IMAGE}}"));
-        
-        String qrCodeToUse = "";
-        if (qrCodeBase64 != null && !qrCodeBase64.isEmpty()) {
-            // Verify it's valid base64 PNG
-            if (qrCodeBase64.startsWith("iVBORw0KGgo")) {
-                // Simple img tag for maximum Gmail compatibility - no wrapper divs
-                qrCodeToUse = "<img src=\"data:image/png;base64," + qrCodeBase64 + "\" " +
-                             "alt=\"eSIM QR Code\" " +
-                             "width=\"220\" " +
-                             "height=\"220\" " +
-                             "border=\"0\" " +
-                             "style=\"display: block; width: 220px; height: 220px; max-width: 220px; max-height: 220px; margin: 0 auto;\" " +
-                             "/>";
-                System.out.println("   ✅ QR code image tag created successfully (Gmail-optimized)");
-            } else {
-                qrCodeToUse = "<p style=\"color: #dc2626; text-align: center; font-weight: bold;\">⚠️ QR Code format invalid (doesn't start with PNG signature)</p>";
-                System.out.println("   ⚠️ QR code doesn't start with PNG signature: " + qrCodeBase64.substring(0, Math.min(50, qrCodeBase64.length())));
-            }
-        } else {
-            qrCodeToUse = "<p style=\"color: #dc2626; text-align: center; font-weight: bold;\">⚠️ QR Code not available - please contact support</p>";
-            System.out.println("   ❌ QR code is null or empty!");
-        }
-        System.out.println("   qrCodeToUse length: " + qrCodeToUse.length());
-        
         String bundlePriceDisplay = (bundlePrice != null && !bundlePrice.isEmpty()) ? bundlePrice : "N/A";
         
         String htmlContent = template
@@ -1107,7 +1154,7 @@ a:hover{text-decoration:underline}
             .replace("{{BUNDLE_PRICE}}", bundlePriceDisplay)
             .replace("{{SM_DP_ADDRESS}}", smDpAddress != null && !smDpAddress.isEmpty() ? smDpAddress : "N/A")
             .replace("{{ACTIVATION_CODE}}", activationCode != null && !activationCode.isEmpty() ? activationCode : "N/A")
-            .replace("{{QR_CODE_IMAGE}}", qrCodeToUse)
+            .replace("{{QR_CODE_IMAGE}}", qrCodeImageHtml)
             .replace("{{WHATSAPP_NUMBER}}", "+47 123 456 789")
             .replace("{{SUPPORT_EMAIL}}", supportEmail)
             .replace("{{APN_SETTINGS}}", "internet");
@@ -1121,7 +1168,7 @@ a:hover{text-decoration:underline}
             int afterBase64 = qrIndex + "data:image/png;base64,".length();
             int previewEnd = Math.min(afterBase64 + 50, htmlContent.length());
             System.out.println("   QR base64 in HTML starts with: " + htmlContent.substring(afterBase64, previewEnd));
-        } else {
+        } else if (!htmlContent.contains("cid:qrCodeImage")) {
             System.out.println("   ⚠️ WARNING: QR code not found in final HTML!");
         }
         
@@ -1398,11 +1445,11 @@ a:hover{text-decoration:underline}
             helper.setSubject("🎉 Your Lycamobile ePIN - Ready to Use!");
             helper.setText(htmlContent, true);
             
-            log.info("Message configured, attempting to send...");
-            javaMailSender.send(message);
+            log.info("Message configured, queueing for delivery...");
+            mailQueueService.enqueue(message);
             
-            log.info("✅ ePIN delivery email sent successfully to: {}", toEmail);
-            System.out.println("✅ ePIN delivery email sent successfully to: " + toEmail);
+            log.info("✅ ePIN delivery email queued for: {}", toEmail);
+            System.out.println("✅ ePIN delivery email queued for: " + toEmail);
         } catch (Exception e) {
             log.error("❌ Failed to send ePIN delivery email to: {}", toEmail, e);
             log.error("Error type: {}", e.getClass().getName());
@@ -1608,9 +1655,9 @@ a:hover{text-decoration:underline}
             );
             
             helper.setText(htmlContent, true);
-            javaMailSender.send(message);
+            mailQueueService.enqueue(message);
             
-            log.info("Suspension email sent to: {}", toEmail);
+            log.info("Suspension email queued for: {}", toEmail);
         } catch (MessagingException e) {
             log.error("Failed to send suspension email to {}: {}", toEmail, e.getMessage());
             throw new RuntimeException("Failed to send suspension email", e);
@@ -1679,9 +1726,9 @@ a:hover{text-decoration:underline}
             );
             
             helper.setText(htmlContent, true);
-            javaMailSender.send(message);
+            mailQueueService.enqueue(message);
             
-            log.info("Activation email sent to: {}", toEmail);
+            log.info("Activation email queued for: {}", toEmail);
         } catch (MessagingException e) {
             log.error("Failed to send activation email to {}: {}", toEmail, e.getMessage());
             throw new RuntimeException("Failed to send activation email", e);
@@ -1820,9 +1867,9 @@ a:hover{text-decoration:underline}
             // Add QR code as inline attachment with Content-ID
             helper.addInline("qrCodeImage", new jakarta.mail.util.ByteArrayDataSource(qrCodeBytes, "image/png"));
             
-            javaMailSender.send(message);
+            mailQueueService.enqueue(message);
             
-            log.info("✅ eSIM QR code email sent successfully to: {}", toEmail);
+            log.info("✅ eSIM QR code email queued for: {}", toEmail);
         } catch (MessagingException e) {
             log.error("❌ Failed to send eSIM QR code email to {}: {}", toEmail, e.getMessage());
             throw new RuntimeException("Failed to send eSIM QR code email", e);
@@ -1967,12 +2014,39 @@ a:hover{text-decoration:underline}
                 htmlContent
             );
             
-            log.info("Low credit alert email sent to: " + toEmail);
+            log.info("Low credit alert email queued for: " + toEmail);
         } catch (Exception e) {
             log.error("Failed to send low credit alert email", e);
         }
     }
 
+    /**
+     * Send low stock alert email to an admin
+     */
+    public void sendLowStockAlertEmail(String toEmail, String poolName, String stockType,
+                                       int availableQuantity, int threshold) {
+        try {
+            String htmlContent = String.format("""
+                <html>
+                <body style="font-family: Arial, sans-serif; padding: 20px; background-color: #f3f4f6;">
+                    <div style="max-width: 600px; margin: 0 auto; background: white; border-radius: 12px; padding: 30px;">
+                        <h1 style="color: #d97706; margin: 0 0 20px 0;">⚠️ Low Stock Alert</h1>
+                        <p style="color: #374151;">The %s stock pool <strong>%s</strong> is running low.</p>
+                        <p style="color: #374151;">Available: <strong>%d</strong> (alert threshold: %d)</p>
+                        <p style="color: #4b5563;">Upload new stock from the <a href="%s/admin/stock">stock dashboard</a> before it sells out.</p>
+                        <p style="color: #9ca3af; font-size: 12px;">%s</p>
+                    </div>
+                </body>
+                </html>
+                """, stockType, poolName, availableQuantity, threshold, appUrl, appName);
+
+            sendHtmlEmail(toEmail, "⚠️ Low Stock: " + poolName + " (" + availableQuantity + " left)", htmlContent);
+            log.info("Low stock alert email queued for: " + toEmail);
+        } catch (Exception e) {
+            log.error("Failed to send low stock alert email", e);
+        }
+    }
+
     /**
      * Generate low credit alert HTML content
      */
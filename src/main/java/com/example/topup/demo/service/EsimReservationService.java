@@ -0,0 +1,251 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.EsimOrderRequest;
+import com.example.topup.demo.entity.StockPool;
+import com.example.topup.demo.entity.StockPool.StockItem;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds an eSIM for a customer order from the moment it is placed until an admin approves
+ * (confirm) or rejects (release) it, or the reservation times out.
+ *
+ * The item is moved to HELD under the lease owner "esim-order:{orderNumber}": it counts in the
+ * pool's reservedQuantity but, unlike allocation buffer reservations, not as available. Timeouts are kept in a TimingWheel
+ * on the node that made the reservation; leases still open on startup are loaded back into the wheel.
+ * A wheel only knows its own node's leases, so releaseExpiredHolds() also runs on every node and
+ * picks up holds whose node went away. Every release is conditional on the lease owner, so a late
+ * timer or a sweep racing another node is a no-op.
+ */
+@Service
+public class EsimReservationService {
+
+    static final String LEASE_PREFIX = "esim-order:";
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private StockAllocationService stockAllocationService;
+
+    @Value("${app.stock.reservation.esim-order-ttl-minutes:1440}")
+    private long ttlMinutes;
+
+    @Value("${app.stock.reservation.wheel-tick-ms:1000}")
+    private long wheelTickMs;
+
+    @Value("${app.stock.reservation.wheel-size:60}")
+    private int wheelSize;
+
+    private TimingWheel wheel;
+
+    private final AtomicLong reserved = new AtomicLong();
+    private final AtomicLong confirmed = new AtomicLong();
+    private final AtomicLong released = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+    private final ConcurrentLinkedDeque<Long> recentExpirations = new ConcurrentLinkedDeque<>();
+
+    @PostConstruct
+    public void init() {
+        wheel = new TimingWheel("esim-reservation-wheel", wheelTickMs, wheelSize);
+        wheel.start();
+        try {
+            recoverLeases();
+        } catch (Exception e) {
+            System.err.println("❌ Could not reload eSIM reservations: " + e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // Leases stay in the database and are reloaded by the next start
+        wheel.stop();
+    }
+
+    /**
+     * Reserve an eSIM for a new order and record it on the request (not saved here).
+     * Returns false when no ESIM pool has stock; the order is then assigned at approval time.
+     */
+    public boolean reserve(EsimOrderRequest request) {
+        Query poolQuery = new Query(Criteria.where("stockType").is(StockPool.StockType.ESIM)
+            .and("status").is(StockPool.StockStatus.ACTIVE));
+        poolQuery.fields().include("_id");
+        List<String> poolIds = new ArrayList<>();
+        for (StockPool pool : mongoTemplate.find(poolQuery, StockPool.class)) {
+            poolIds.add(pool.getId());
+        }
+
+        LocalDateTime expiresAt = LocalDateTime.now().plusMinutes(ttlMinutes);
+        String leaseOwner = leaseOwner(request.getOrderNumber());
+        Optional<StockItem> item = stockAllocationService.holdNextItem(poolIds, leaseOwner, expiresAt);
+        if (!item.isPresent()) {
+            return false;
+        }
+
+        request.setReservedItemId(item.get().getItemId());
+        request.setReservedPoolId(item.get().getPoolId());
+        request.setReservationExpiresAt(expiresAt);
+        schedule(request.getOrderNumber(), item.get().getItemId(), expiresAt);
+        reserved.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Turn the order's reservation into an assignment. Returns empty when the order has no
+     * reservation or it expired in the meantime; the caller then claims a fresh item.
+     */
+    public Optional<StockItem> confirm(EsimOrderRequest request) {
+        if (request.getReservedItemId() == null) {
+            return Optional.empty();
+        }
+        wheel.cancel(request.getOrderNumber());
+        Optional<StockItem> item = stockAllocationService.confirmHeldItem(
+            request.getReservedPoolId(), request.getReservedItemId(), leaseOwner(request.getOrderNumber()),
+            StockItem.ItemStatus.ASSIGNED, request.getOrderNumber(), null, request.getCustomerEmail());
+        (item.isPresent() ? confirmed : lost).incrementAndGet();
+        clearReservation(request);
+        return item;
+    }
+
+    /**
+     * Give the order's reserved eSIM back to the pool (e.g. on rejection)
+     */
+    public void release(EsimOrderRequest request) {
+        if (request.getReservedItemId() == null) {
+            return;
+        }
+        wheel.cancel(request.getOrderNumber());
+        if (stockAllocationService.releaseHold(request.getReservedItemId(), leaseOwner(request.getOrderNumber()))) {
+            released.incrementAndGet();
+        }
+        clearReservation(request);
+    }
+
+    /**
+     * Runs on every node so holds of a node that died (and was not restarted) still time out
+     */
+    @Scheduled(fixedDelayString = "${app.stock.reservation.sweep-interval-ms:60000}")
+    public void releaseExpiredHolds() {
+        try {
+            // leaseExpiresAt is written together with the order's reservationExpiresAt
+            Query query = new Query(Criteria.where("status").is(StockItem.ItemStatus.HELD)
+                .and("leaseOwner").regex("^" + LEASE_PREFIX)
+                .and("leaseExpiresAt").lt(LocalDateTime.now()));
+            query.fields().include("_id").include("leaseOwner");
+
+            long swept = 0;
+            for (StockItem item : mongoTemplate.find(query, StockItem.class)) {
+                String orderNumber = item.getLeaseOwner().substring(LEASE_PREFIX.length());
+                wheel.cancel(orderNumber);
+                if (expire(orderNumber, item.getItemId())) {
+                    swept++;
+                }
+            }
+            if (swept > 0) {
+                System.out.println("↩️ Released " + swept + " expired eSIM order reservation(s)");
+            }
+        } catch (Exception e) {
+            System.err.println("❌ Failed to release expired eSIM order reservations: " + e.getMessage());
+        }
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("activeLeases", wheel.size());
+        metrics.put("expirationsLastMinute", expirationsLastMinute());
+        metrics.put("reserved", reserved.get());
+        metrics.put("confirmed", confirmed.get());
+        metrics.put("released", released.get());
+        metrics.put("expired", expired.get());
+        metrics.put("lostBeforeConfirm", lost.get());
+        metrics.put("ttlMinutes", ttlMinutes);
+        return metrics;
+    }
+
+    private void schedule(String orderNumber, String itemId, LocalDateTime expiresAt) {
+        long deadlineMs = expiresAt.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        wheel.schedule(orderNumber, deadlineMs, () -> expire(orderNumber, itemId));
+    }
+
+    private boolean expire(String orderNumber, String itemId) {
+        if (!stockAllocationService.releaseHold(itemId, leaseOwner(orderNumber))) {
+            return false;
+        }
+        expired.incrementAndGet();
+        recentExpirations.add(System.currentTimeMillis());
+        expirationsLastMinute(); // prune
+
+        // The order stays PENDING; approval claims a fresh eSIM
+        mongoTemplate.updateFirst(
+            new Query(Criteria.where("orderNumber").is(orderNumber).and("reservedItemId").is(itemId)),
+            new Update().unset("reservedItemId").unset("reservedPoolId").unset("reservationExpiresAt"),
+            EsimOrderRequest.class);
+        System.out.println("⏰ eSIM reservation for order " + orderNumber + " expired, item returned to stock");
+        return true;
+    }
+
+    /**
+     * Put leases that outlived the last run back on the wheel (already expired ones fire on the next tick)
+     */
+    private void recoverLeases() {
+        // Order leases from before HELD existed were RESERVED and counted as available
+        long converted = stockAllocationService.holdReservedLeases(LEASE_PREFIX);
+        if (converted > 0) {
+            System.out.println("⏰ Moved " + converted + " RESERVED eSIM order reservation(s) to HELD");
+        }
+
+        Query query = new Query(Criteria.where("status").is(StockItem.ItemStatus.HELD)
+            .and("leaseOwner").regex("^" + LEASE_PREFIX));
+        query.fields().include("_id").include("leaseOwner").include("leaseExpiresAt");
+
+        int recovered = 0;
+        for (StockItem item : mongoTemplate.find(query, StockItem.class)) {
+            String orderNumber = item.getLeaseOwner().substring(LEASE_PREFIX.length());
+            LocalDateTime expiresAt = item.getLeaseExpiresAt() != null ? item.getLeaseExpiresAt() : LocalDateTime.now();
+            schedule(orderNumber, item.getItemId(), expiresAt);
+            recovered++;
+        }
+        if (recovered > 0) {
+            System.out.println("⏰ Reloaded " + recovered + " eSIM order reservation(s)");
+        }
+    }
+
+    private long expirationsLastMinute() {
+        long cutoff = System.currentTimeMillis() - 60_000;
+        Iterator<Long> iterator = recentExpirations.iterator();
+        while (iterator.hasNext() && iterator.next() < cutoff) {
+            iterator.remove();
+        }
+        return recentExpirations.size();
+    }
+
+    private static void clearReservation(EsimOrderRequest request) {
+        request.setReservedItemId(null);
+        request.setReservedPoolId(null);
+        request.setReservationExpiresAt(null);
+    }
+
+    private static String leaseOwner(String orderNumber) {
+        return LEASE_PREFIX + orderNumber;
+    }
+}
@@ -0,0 +1,33 @@
+package com.example.topup.demo.service;
+
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * First expiry, first out: the unexpired item with the earliest expiryDate across the pools
+ * (pool_status_expiry_idx), then items without an expiry date in upload order.
+ * Expired items are never handed out.
+ */
+@Service
+public class FefoAllocationStrategy implements StockAllocationStrategy {
+
+    @Override
+    public String getName() {
+        return "fefo";
+    }
+
+    @Override
+    public List<ClaimAttempt> plan(List<String> poolIds) {
+        return List.of(
+            new ClaimAttempt(Criteria.where("poolId").in(poolIds).and("expiryDate").gt(LocalDateTime.now()),
+                Sort.by("expiryDate", "addedDate", "_id")),
+            // Mongo sorts missing dates first, so undated items get their own attempt after the dated ones
+            new ClaimAttempt(Criteria.where("poolId").in(poolIds).and("expiryDate").is(null),
+                Sort.by("addedDate", "_id"))
+        );
+    }
+}
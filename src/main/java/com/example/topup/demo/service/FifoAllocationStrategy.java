@@ -0,0 +1,25 @@
+package com.example.topup.demo.service;
+
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+
+/**
+ * First in, first out: the earliest uploaded item across the pools (pool_status_added_idx).
+ * Items from before addedDate existed have none and go first.
+ */
+@Service
+public class FifoAllocationStrategy implements StockAllocationStrategy {
+
+    @Override
+    public String getName() {
+        return "fifo";
+    }
+
+    @Override
+    public List<ClaimAttempt> plan(List<String> poolIds) {
+        return List.of(new ClaimAttempt(Criteria.where("poolId").in(poolIds), Sort.by("addedDate", "_id")));
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.topup.demo.service;
+
+import com.mongodb.client.gridfs.model.GridFSFile;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.gridfs.GridFsCriteria;
+import org.springframework.data.mongodb.gridfs.GridFsTemplate;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+
+/**
+ * QR image store backed by MongoDB GridFS (fs.files / fs.chunks).
+ * The GridFS filename is the content hash.
+ */
+@Service
+public class GridFsQrImageStore implements QrImageStore {
+
+    @Autowired
+    private GridFsTemplate gridFsTemplate;
+
+    @Override
+    public String store(byte[] imageBytes) {
+        if (imageBytes == null || imageBytes.length == 0) {
+            throw new IllegalArgumentException("QR image is empty");
+        }
+        String ref = contentHash(imageBytes);
+        if (findFile(ref) == null) {
+            gridFsTemplate.store(new ByteArrayInputStream(imageBytes), ref, CONTENT_TYPE,
+                new Document("kind", "esim-qr"));
+        }
+        return ref;
+    }
+
+    @Override
+    public QrImage find(String ref) {
+        GridFSFile file = findFile(ref);
+        if (file == null) {
+            return null;
+        }
+        // Resolve the resource per call so each attachment/response gets its own download stream
+        return new QrImage(ref, file.getLength(), () -> gridFsTemplate.getResource(file).getInputStream());
+    }
+
+    private GridFSFile findFile(String ref) {
+        return gridFsTemplate.findOne(new Query(GridFsCriteria.whereFilename().is(ref)));
+    }
+
+    private static String contentHash(byte[] imageBytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(imageBytes));
+        } catch (Exception e) {
+            throw new RuntimeException("QR image hash failed", e);
+        }
+    }
+}
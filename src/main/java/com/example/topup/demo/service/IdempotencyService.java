@@ -0,0 +1,268 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.IdempotencyRecord;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a request at most once per idempotency key and replays its response to retries.
+ *
+ * Finished responses are kept in idempotency_keys (removed by a TTL index after
+ * app.idempotency.ttl-hours) with an LRU of recent keys in front of it. A key is claimed by
+ * inserting an IN_PROGRESS record, so only one node executes it; a duplicate arriving on the
+ * same node waits on the running execution, one on another node polls the record until the
+ * response is stored. Both wait at most app.idempotency.wait-timeout-ms (a few seconds, so
+ * retries do not pile up on request threads) and are then answered 409 with Retry-After. A claim left IN_PROGRESS past app.idempotency.in-progress-timeout-ms
+ * (the node died) is taken over. 5xx responses are not kept, so a retry runs the request again.
+ */
+@Service
+public class IdempotencyService {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Value("${app.idempotency.ttl-hours:24}")
+    private long ttlHours;
+
+    @Value("${app.idempotency.cache-size:10000}")
+    private int cacheSize;
+
+    @Value("${app.idempotency.wait-timeout-ms:3000}")
+    private long waitTimeoutMs;
+
+    @Value("${app.idempotency.retry-after-seconds:2}")
+    private int retryAfterSeconds;
+
+    @Value("${app.idempotency.in-progress-timeout-ms:120000}")
+    private long inProgressTimeoutMs;
+
+    private Map<String, IdempotencyRecord> recent;
+    private final Map<String, CompletableFuture<IdempotencyRecord>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong replayedFromCache = new AtomicLong();
+    private final AtomicLong replayedFromDatabase = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * The request itself; returns the response to store
+     */
+    @FunctionalInterface
+    public interface Execution {
+        IdempotencyRecord run() throws Exception;
+    }
+
+    @PostConstruct
+    public void init() {
+        recent = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, IdempotencyRecord> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        try {
+            // auto-index-creation is disabled
+            mongoTemplate.getCollection(mongoTemplate.getCollectionName(IdempotencyRecord.class))
+                .createIndex(Indexes.ascending("expiresAt"), new IndexOptions().name("expiresAt_ttl").expireAfter(0L, TimeUnit.SECONDS));
+        } catch (Exception e) {
+            System.err.println("❌ Could not create the idempotency key TTL index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Run {@code execution} unless the key already has a response, which is returned instead.
+     * Throws IllegalArgumentException if the key was used with a different request body and
+     * IllegalStateException if the first execution is still running after the wait timeout.
+     */
+    public IdempotencyRecord execute(String key, String path, String requestHash, Execution execution) throws Exception {
+        IdempotencyRecord cached = cached(key);
+        if (cached != null) {
+            replayedFromCache.incrementAndGet();
+            return replay(cached, requestHash);
+        }
+
+        CompletableFuture<IdempotencyRecord> mine = new CompletableFuture<>();
+        CompletableFuture<IdempotencyRecord> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            coalesced.incrementAndGet();
+            return replay(await(running), requestHash);
+        }
+
+        try {
+            IdempotencyRecord stored = claim(key, path, requestHash);
+            if (stored != null) {
+                replayedFromDatabase.incrementAndGet();
+                remember(stored);
+                mine.complete(stored);
+                return replay(stored, requestHash);
+            }
+
+            IdempotencyRecord response;
+            try {
+                response = execution.run();
+            } catch (Exception e) {
+                release(key);
+                mine.completeExceptionally(e);
+                throw e;
+            }
+            executed.incrementAndGet();
+            response.setId(key);
+            response.setRequestHash(requestHash);
+
+            if (response.getResponseStatus() >= 500) {
+                release(key);
+            } else {
+                store(key, response);
+            }
+            mine.complete(response);
+            return response;
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /**
+     * Seconds a duplicate that timed out waiting should back off before retrying
+     */
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        synchronized (recent) {
+            metrics.put("cachedKeys", recent.size());
+        }
+        metrics.put("inFlight", inFlight.size());
+        metrics.put("executed", executed.get());
+        metrics.put("replayedFromCache", replayedFromCache.get());
+        metrics.put("replayedFromDatabase", replayedFromDatabase.get());
+        metrics.put("coalesced", coalesced.get());
+        return metrics;
+    }
+
+    /**
+     * Claim the key for this node. Returns null when this node should execute the request,
+     * or the stored response when another execution already finished it.
+     */
+    private IdempotencyRecord claim(String key, String path, String requestHash) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + waitTimeoutMs;
+        while (true) {
+            LocalDateTime now = LocalDateTime.now();
+            IdempotencyRecord record = new IdempotencyRecord();
+            record.setId(key);
+            record.setPath(path);
+            record.setRequestHash(requestHash);
+            record.setStartedDate(now);
+            record.setExpiresAt(now.plusHours(ttlHours));
+            try {
+                mongoTemplate.insert(record);
+                return null;
+            } catch (DuplicateKeyException e) {
+                // Executed or being executed elsewhere
+            }
+
+            IdempotencyRecord existing = mongoTemplate.findById(key, IdempotencyRecord.class);
+            if (existing == null) {
+                continue; // released or expired meanwhile
+            }
+            if (existing.getStatus() == IdempotencyRecord.Status.COMPLETED) {
+                return existing;
+            }
+            if (existing.getStartedDate() != null && existing.getStartedDate().isBefore(now.minus(inProgressTimeoutMs, ChronoUnit.MILLIS))) {
+                // The node running it died: take it over
+                Query abandoned = new Query(Criteria.where("_id").is(key)
+                    .and("status").is(IdempotencyRecord.Status.IN_PROGRESS)
+                    .and("startedDate").is(existing.getStartedDate()));
+                Update takeOver = new Update().set("startedDate", now).set("requestHash", requestHash);
+                if (mongoTemplate.updateFirst(abandoned, takeOver, IdempotencyRecord.class).getModifiedCount() > 0) {
+                    return null;
+                }
+                continue;
+            }
+            long remainingMs = deadline - System.currentTimeMillis();
+            if (remainingMs <= 0) {
+                throw new IllegalStateException("A request with this Idempotency-Key is still being processed");
+            }
+            Thread.sleep(Math.min(100, remainingMs));
+        }
+    }
+
+    private void store(String key, IdempotencyRecord response) {
+        response.setStatus(IdempotencyRecord.Status.COMPLETED);
+        response.setCompletedDate(LocalDateTime.now());
+        response.setExpiresAt(response.getCompletedDate().plusHours(ttlHours));
+        mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(key)),
+            new Update()
+                .set("status", IdempotencyRecord.Status.COMPLETED)
+                .set("responseStatus", response.getResponseStatus())
+                .set("responseContentType", response.getResponseContentType())
+                .set("responseBody", response.getResponseBody())
+                .set("completedDate", response.getCompletedDate())
+                .set("expiresAt", response.getExpiresAt()), // TTL counts from completion, as in the cache
+            IdempotencyRecord.class);
+        remember(response);
+    }
+
+    private void release(String key) {
+        mongoTemplate.remove(new Query(Criteria.where("_id").is(key)
+            .and("status").is(IdempotencyRecord.Status.IN_PROGRESS)), IdempotencyRecord.class);
+    }
+
+    private IdempotencyRecord await(CompletableFuture<IdempotencyRecord> running) throws InterruptedException {
+        try {
+            return running.get(waitTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("A request with this Idempotency-Key is still being processed");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("The original request with this Idempotency-Key failed, please retry");
+        }
+    }
+
+    private IdempotencyRecord replay(IdempotencyRecord stored, String requestHash) {
+        if (stored.getRequestHash() != null && !stored.getRequestHash().equals(requestHash)) {
+            throw new IllegalArgumentException("Idempotency-Key was already used for a different request");
+        }
+        return stored;
+    }
+
+    private IdempotencyRecord cached(String key) {
+        synchronized (recent) {
+            IdempotencyRecord record = recent.get(key);
+            if (record != null && record.getExpiresAt() != null && record.getExpiresAt().isBefore(LocalDateTime.now())) {
+                recent.remove(key);
+                return null;
+            }
+            return record;
+        }
+    }
+
+    private void remember(IdempotencyRecord record) {
+        synchronized (recent) {
+            recent.put(record.getId(), record);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.topup.demo.service;
+
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the most recent low-stock events of this node and forwards them to in-process subscribers
+ */
+@Service
+public class InMemoryLowStockEventSink implements LowStockEventSink {
+
+    private static final int MAX_RECENT = 100;
+
+    private final Deque<LowStockEvent> recent = new ConcurrentLinkedDeque<>();
+    private final List<Consumer<LowStockEvent>> subscribers = new CopyOnWriteArrayList<>();
+
+    @Override
+    public String getName() {
+        return "memory";
+    }
+
+    @Override
+    public void publish(LowStockEvent event) {
+        recent.addFirst(event);
+        while (recent.size() > MAX_RECENT) {
+            recent.pollLast();
+        }
+        for (Consumer<LowStockEvent> subscriber : subscribers) {
+            try {
+                subscriber.accept(event);
+            } catch (RuntimeException e) {
+                System.err.println("❌ Low-stock subscriber failed: " + e.getMessage());
+            }
+        }
+    }
+
+    public void subscribe(Consumer<LowStockEvent> subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    public void unsubscribe(Consumer<LowStockEvent> subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    /**
+     * Recent events, newest first
+     */
+    public List<LowStockEvent> getRecentEvents() {
+        return new ArrayList<>(recent);
+    }
+}
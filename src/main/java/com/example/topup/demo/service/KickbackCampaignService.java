@@ -27,6 +27,7 @@ public class KickbackCampaignService {
     private final KickbackCampaignRepository campaignRepository;
     private final KickbackEarningRepository earningRepository;
     private final RetailerKickbackParticipationRepository participationRepository;
+    private final KickbackSaleRecordRepository saleRecordRepository;
     
     /**
      * Create a new kickback campaign
@@ -467,6 +468,15 @@ public class KickbackCampaignService {
      */
     @Transactional
     public void processRetailerSale(String retailerEmail, String retailerName, String productId, BigDecimal saleAmount) {
+        processRetailerSale(retailerEmail, retailerName, productId, saleAmount, null);
+    }
+    
+    /**
+     * Process a retailer sale at most once per campaign for {@code saleReference} (null: no check)
+     */
+    @Transactional
+    public void processRetailerSale(String retailerEmail, String retailerName, String productId, BigDecimal saleAmount,
+                                    String saleReference) {
         LocalDate today = LocalDate.now();
         
         log.info("🔍 Processing sale - Retailer: {}, ProductId: {}, Amount: {}", 
@@ -519,6 +529,14 @@ public class KickbackCampaignService {
         
         // Record sales for each qualifying campaign
         for (KickbackCampaign campaign : activeCampaigns) {
+            if (saleReference != null) {
+                if (saleRecordRepository.existsByCampaignIdAndSaleReference(campaign.getId(), saleReference)) {
+                    log.info("⏭️ Sale {} already recorded for campaign: {}", saleReference, campaign.getCampaignName());
+                    continue;
+                }
+                // Committed with the earning below, or rolled back with it
+                saleRecordRepository.save(new KickbackSaleRecord(campaign.getId(), saleReference));
+            }
             log.info("✅ Recording sale for campaign: {} - Product: {}, Amount: {}", 
                 campaign.getCampaignName(), productId, saleAmount);
             recordDailySales(campaign.getId(), retailerEmail, retailerName, saleAmount, today);
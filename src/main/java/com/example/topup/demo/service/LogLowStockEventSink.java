@@ -0,0 +1,20 @@
+package com.example.topup.demo.service;
+
+import org.springframework.stereotype.Service;
+
+/**
+ * Writes low-stock events to the application log
+ */
+@Service
+public class LogLowStockEventSink implements LowStockEventSink {
+
+    @Override
+    public String getName() {
+        return "log";
+    }
+
+    @Override
+    public void publish(LowStockEvent event) {
+        System.out.println("⚠️ Low stock: " + event);
+    }
+}
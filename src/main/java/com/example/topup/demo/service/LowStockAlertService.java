@@ -0,0 +1,152 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.StockPool;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+/**
+ * Detects low-stock threshold crossings when a pool's counters move (see StockCounterService)
+ * instead of polling all pools.
+ *
+ * A pool alerts once when its available quantity drops to its threshold or below. The
+ * lowStockAlerted flag on the pool is set with a conditional update, so only one node emits
+ * the event, and it is only cleared once the pool is back above threshold + rearm-margin,
+ * so a pool hovering around the threshold does not flap.
+ */
+@Service
+public class LowStockAlertService {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private List<LowStockEventSink> sinks;
+
+    @Value("${app.stock.low-stock.default-threshold:10}")
+    private int defaultThreshold;
+
+    @Value("${app.stock.low-stock.rearm-margin:5}")
+    private int rearmMargin;
+
+    @Value("${app.stock.low-stock.sinks:log,memory}")
+    private String enabledSinkNames;
+
+    private List<LowStockEventSink> enabledSinks = new ArrayList<>();
+
+    // Sinks (e.g. email) run off the allocation path
+    private final ExecutorService dispatcher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "low-stock-events");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void init() {
+        Set<String> names = Arrays.stream(enabledSinkNames.split(","))
+            .map(String::trim)
+            .filter(name -> !name.isEmpty())
+            .collect(Collectors.toSet());
+        enabledSinks = sinks.stream()
+            .filter(sink -> names.contains(sink.getName()))
+            .collect(Collectors.toList());
+        System.out.println("📉 Low-stock alerts: default threshold " + defaultThreshold + ", sinks "
+            + enabledSinks.stream().map(LowStockEventSink::getName).collect(Collectors.toList()));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        dispatcher.shutdown();
+    }
+
+    /**
+     * Check a pool snapshot taken right after its counters changed
+     */
+    public void evaluate(StockPool pool) {
+        if (pool == null || pool.getAvailableQuantity() == null) {
+            return;
+        }
+        int threshold = thresholdFor(pool);
+        int available = pool.getAvailableQuantity();
+        boolean alerted = Boolean.TRUE.equals(pool.getLowStockAlerted());
+
+        if (!alerted && available <= threshold) {
+            // Only the caller that flips the flag emits the event
+            long flipped = mongoTemplate.updateFirst(
+                new Query(Criteria.where("_id").is(pool.getId()).and("lowStockAlerted").ne(true)),
+                new Update().set("lowStockAlerted", true),
+                StockPool.class
+            ).getModifiedCount();
+            if (flipped > 0) {
+                dispatch(new LowStockEvent(pool.getId(), pool.getName(), pool.getStockType(), pool.getProductId(),
+                    available, threshold));
+            }
+        } else if (alerted && available >= threshold + rearmMargin) {
+            mongoTemplate.updateFirst(
+                new Query(Criteria.where("_id").is(pool.getId()).and("lowStockAlerted").is(true)),
+                new Update().set("lowStockAlerted", false),
+                StockPool.class
+            );
+        }
+    }
+
+    /**
+     * Set a pool's own threshold (null = default) and re-check it against the new value
+     */
+    public StockPool updateThreshold(String poolId, Integer threshold) {
+        if (threshold != null && threshold < 0) {
+            throw new IllegalArgumentException("Low-stock threshold cannot be negative");
+        }
+        Update update = threshold != null
+            ? new Update().set("lowStockThreshold", threshold)
+            : new Update().unset("lowStockThreshold");
+        if (mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(poolId)), update, StockPool.class).getMatchedCount() == 0) {
+            throw new RuntimeException("Stock pool not found: " + poolId);
+        }
+
+        Query query = new Query(Criteria.where("_id").is(poolId));
+        query.fields().exclude("product");
+        StockPool pool = mongoTemplate.findOne(query, StockPool.class);
+        evaluate(pool);
+        return pool;
+    }
+
+    /**
+     * Pools currently below their threshold (alerted and not yet restocked)
+     */
+    public List<StockPool> getAlertedPools() {
+        Query query = new Query(Criteria.where("lowStockAlerted").is(true));
+        query.fields().exclude("product");
+        return mongoTemplate.find(query, StockPool.class);
+    }
+
+    public int thresholdFor(StockPool pool) {
+        return pool.getLowStockThreshold() != null ? pool.getLowStockThreshold() : defaultThreshold;
+    }
+
+    private void dispatch(LowStockEvent event) {
+        for (LowStockEventSink sink : enabledSinks) {
+            dispatcher.execute(() -> {
+                try {
+                    sink.publish(event);
+                } catch (Exception e) {
+                    System.err.println("❌ Low-stock sink '" + sink.getName() + "' failed: " + e.getMessage());
+                }
+            });
+        }
+    }
+}
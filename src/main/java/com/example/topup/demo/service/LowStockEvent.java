@@ -0,0 +1,44 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.StockPool;
+
+import java.time.LocalDateTime;
+
+/**
+ * Emitted once when a stock pool's available quantity drops to or below its low-stock threshold
+ */
+public class LowStockEvent {
+
+    private final String poolId;
+    private final String poolName;
+    private final StockPool.StockType stockType;
+    private final String productId;
+    private final int availableQuantity;
+    private final int threshold;
+    private final LocalDateTime occurredAt;
+
+    public LowStockEvent(String poolId, String poolName, StockPool.StockType stockType, String productId,
+                         int availableQuantity, int threshold) {
+        this.poolId = poolId;
+        this.poolName = poolName;
+        this.stockType = stockType;
+        this.productId = productId;
+        this.availableQuantity = availableQuantity;
+        this.threshold = threshold;
+        this.occurredAt = LocalDateTime.now();
+    }
+
+    public String getPoolId() { return poolId; }
+    public String getPoolName() { return poolName; }
+    public StockPool.StockType getStockType() { return stockType; }
+    public String getProductId() { return productId; }
+    public int getAvailableQuantity() { return availableQuantity; }
+    public int getThreshold() { return threshold; }
+    public LocalDateTime getOccurredAt() { return occurredAt; }
+
+    @Override
+    public String toString() {
+        return "pool " + poolName + " (" + poolId + ", " + stockType + "): " + availableQuantity
+            + " available, threshold " + threshold;
+    }
+}
@@ -0,0 +1,15 @@
+package com.example.topup.demo.service;
+
+/**
+ * Destination for low-stock events. Every sink bean is picked up by LowStockAlertService
+ * and enabled by name in app.stock.low-stock.sinks.
+ */
+public interface LowStockEventSink {
+
+    /**
+     * Name used in app.stock.low-stock.sinks
+     */
+    String getName();
+
+    void publish(LowStockEvent event);
+}
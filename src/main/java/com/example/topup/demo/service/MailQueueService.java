@@ -0,0 +1,433 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.QueuedMail;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.mail.Address;
+import jakarta.mail.internet.MimeMessage;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.mail.MailParseException;
+import org.springframework.mail.MailPreparationException;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent outgoing mail queue.
+ *
+ * EmailService builds its messages as before but only enqueue()s them: the complete MIME message
+ * is stored in mail_queue, encrypted with StockCryptoService (mails carry PINs and eSIM QR codes),
+ * so callers never wait on SMTP and queued mail survives restarts. Every
+ * app.mail.queue.poll-interval-ms each node claims due mails under a lease and hands them to a pool
+ * of app.mail.queue.threads workers in batches of up to app.mail.queue.batch-size; each batch is sent
+ * over one pooled SMTP connection (SmtpTransportPool) rather than a new connection per mail.
+ *
+ * Each SMTP account is throttled by a token bucket (app.mail.queue.rate-per-second, overridable per
+ * account with app.mail.queue.account-rates=account=rate,...); the limit applies per node. A failed
+ * send is retried with exponential backoff and dead-lettered (DEAD) after app.mail.queue.max-attempts;
+ * a message that cannot be parsed or prepared is dead-lettered at once. Sent mails are removed after
+ * app.mail.queue.retention-hours, dead letters after app.mail.queue.dead-retention-hours.
+ * Delivery is at least once: a node dying between the SMTP send and marking the mail SENT sends
+ * it again after the lease.
+ */
+@Service
+public class MailQueueService {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private JavaMailSender mailSender;
+
+    @Autowired
+    private SmtpTransportPool smtpTransportPool;
+
+    @Autowired
+    private StockCryptoService stockCryptoService;
+
+    @Value("${spring.mail.username}")
+    private String defaultAccount;
+
+    @Value("${app.mail.queue.threads:4}")
+    private int threads;
+
+    @Value("${app.mail.queue.batch-size:20}")
+    private int batchSize;
+
+    @Value("${app.mail.queue.max-attempts:8}")
+    private int maxAttempts;
+
+    @Value("${app.mail.queue.backoff-base-ms:5000}")
+    private long backoffBaseMs;
+
+    @Value("${app.mail.queue.backoff-max-ms:1800000}")
+    private long backoffMaxMs;
+
+    @Value("${app.mail.queue.lease-seconds:300}")
+    private long leaseSeconds;
+
+    @Value("${app.mail.queue.retention-hours:72}")
+    private long retentionHours;
+
+    @Value("${app.mail.queue.dead-retention-hours:336}")
+    private long deadRetentionHours;
+
+    @Value("${app.mail.queue.rate-per-second:5}")
+    private double defaultRatePerSecond;
+
+    @Value("${app.mail.queue.account-rates:}")
+    private String accountRates;
+
+    private ExecutorService workers;
+    private final AtomicInteger running = new AtomicInteger();
+    private final Map<String, Double> ratePerAccount = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failedAttempts = new AtomicLong();
+    private final AtomicLong deadLettered = new AtomicLong();
+    private final AtomicLong sendMillis = new AtomicLong();
+    private final AtomicLong throttledMillis = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        for (String entry : accountRates.split(",")) {
+            int separator = entry.lastIndexOf('=');
+            if (separator > 0) {
+                ratePerAccount.put(entry.substring(0, separator).trim(),
+                    Double.parseDouble(entry.substring(separator + 1).trim()));
+            }
+        }
+        workers = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "mail-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            // auto-index-creation is disabled
+            MongoCollection<Document> mails = mongoTemplate.getCollection(mongoTemplate.getCollectionName(QueuedMail.class));
+            mails.createIndex(Indexes.ascending("status", "nextAttemptAt", "createdDate"), new IndexOptions().name("status_due_idx"));
+            mails.createIndex(Indexes.ascending("expiresAt"), new IndexOptions().name("expiresAt_ttl").expireAfter(0L, TimeUnit.SECONDS));
+        } catch (Exception e) {
+            System.err.println("❌ Could not create the mail_queue indexes: " + e.getMessage());
+        }
+        System.out.println("📬 Mail queue: " + threads + " worker(s), " + defaultRatePerSecond
+            + " mail(s)/s per SMTP account" + (ratePerAccount.isEmpty() ? "" : ", overrides " + ratePerAccount));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    /**
+     * Store a fully built message to be sent through the configured SMTP account.
+     * Throws if it could not be stored.
+     */
+    public QueuedMail enqueue(MimeMessage message) {
+        try {
+            message.saveChanges();
+            ByteArrayOutputStream raw = new ByteArrayOutputStream();
+            message.writeTo(raw);
+
+            List<String> recipients = new ArrayList<>();
+            Address[] addresses = message.getAllRecipients();
+            if (addresses != null) {
+                for (Address address : addresses) {
+                    recipients.add(address.toString());
+                }
+            }
+            QueuedMail mail = mongoTemplate.insert(
+                new QueuedMail(defaultAccount, recipients, message.getSubject(), stockCryptoService.encrypt(raw.toByteArray())));
+            enqueued.incrementAndGet();
+            return mail;
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to queue email: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Claim due mails, oldest first, and hand them to the workers in batches
+     */
+    @Scheduled(fixedDelayString = "${app.mail.queue.poll-interval-ms:500}")
+    public void poll() {
+        int free = Math.max(1, threads) - running.get();
+        if (free <= 0) {
+            return;
+        }
+        try {
+            Query dueQuery = new Query(Criteria.where("status").is(QueuedMail.Status.PENDING)
+                    .and("nextAttemptAt").lte(LocalDateTime.now()))
+                .with(Sort.by(Sort.Direction.ASC, "createdDate")).limit(free * Math.max(1, batchSize));
+            dueQuery.fields().include("_id");
+
+            List<QueuedMail> claimed = new ArrayList<>();
+            for (QueuedMail candidate : mongoTemplate.find(dueQuery, QueuedMail.class)) {
+                QueuedMail mail = claim(candidate.getId());
+                if (mail != null) { // Otherwise taken by another node
+                    claimed.add(mail);
+                }
+            }
+
+            // Spread the claimed mails evenly over the free workers
+            int perWorker = (claimed.size() + free - 1) / free;
+            for (int from = 0; from < claimed.size(); from += perWorker) {
+                List<QueuedMail> batch = claimed.subList(from, Math.min(from + perWorker, claimed.size()));
+                running.incrementAndGet();
+                workers.execute(() -> {
+                    try {
+                        deliver(batch);
+                    } finally {
+                        running.decrementAndGet();
+                    }
+                });
+            }
+        } catch (Exception e) {
+            System.err.println("❌ Mail queue poll failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Put mails whose node died while sending them back in the queue
+     */
+    @Scheduled(fixedDelayString = "${app.mail.queue.lease-sweep-interval-ms:60000}")
+    public void releaseExpiredLeases() {
+        try {
+            long released = mongoTemplate.updateMulti(
+                new Query(Criteria.where("status").is(QueuedMail.Status.SENDING).and("lockedUntil").lt(LocalDateTime.now())),
+                new Update().set("status", QueuedMail.Status.PENDING).unset("lockedUntil").unset("lockToken"),
+                QueuedMail.class).getModifiedCount();
+            if (released > 0) {
+                System.out.println("📬 Released " + released + " queued mail(s) with an expired lease");
+            }
+        } catch (Exception e) {
+            System.err.println("❌ Mail queue lease sweep failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Dead-lettered mails, newest first, without their message body
+     */
+    public List<QueuedMail> getDeadLetters(int limit) {
+        Query query = new Query(Criteria.where("status").is(QueuedMail.Status.DEAD))
+            .with(Sort.by(Sort.Direction.DESC, "createdDate")).limit(limit);
+        query.fields().exclude("mime");
+        return mongoTemplate.find(query, QueuedMail.class);
+    }
+
+    /**
+     * Queue a dead-lettered mail again with a fresh set of attempts; false if it is not DEAD
+     */
+    public boolean retryDeadLetter(String id) {
+        return mongoTemplate.updateFirst(
+            new Query(Criteria.where("_id").is(id).and("status").is(QueuedMail.Status.DEAD)),
+            new Update().set("status", QueuedMail.Status.PENDING).set("attempts", 0).set("nextAttemptAt", LocalDateTime.now())
+                .unset("expiresAt"),
+            QueuedMail.class).getModifiedCount() > 0;
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        for (QueuedMail.Status status : QueuedMail.Status.values()) {
+            metrics.put(status.name().toLowerCase(), mongoTemplate.count(
+                new Query(Criteria.where("status").is(status)), QueuedMail.class));
+        }
+        metrics.put("depth", (long) metrics.get("pending") + (long) metrics.get("sending"));
+
+        Query oldestQuery = new Query(Criteria.where("status").is(QueuedMail.Status.PENDING))
+            .with(Sort.by(Sort.Direction.ASC, "createdDate"));
+        oldestQuery.fields().include("createdDate");
+        QueuedMail oldest = mongoTemplate.findOne(oldestQuery, QueuedMail.class);
+        metrics.put("oldestPendingAgeMs", oldest != null
+            ? Duration.between(oldest.getCreatedDate(), LocalDateTime.now()).toMillis() : 0);
+
+        long delivered = sent.get();
+        long failed = failedAttempts.get();
+        metrics.put("running", running.get());
+        metrics.put("enqueued", enqueued.get());
+        metrics.put("sent", delivered);
+        metrics.put("failedAttempts", failed);
+        metrics.put("deadLettered", deadLettered.get());
+        metrics.put("failureRate", delivered + failed > 0 ? (double) failed / (delivered + failed) : 0.0);
+        metrics.put("avgSendMs", delivered > 0 ? sendMillis.get() / delivered : 0);
+        metrics.put("throttledMs", throttledMillis.get());
+        metrics.put("smtp", smtpTransportPool.getMetrics());
+        return metrics;
+    }
+
+    /**
+     * Take the mail under a lease if it is still pending
+     */
+    private QueuedMail claim(String id) {
+        LocalDateTime now = LocalDateTime.now();
+        return mongoTemplate.findAndModify(
+            new Query(Criteria.where("_id").is(id).and("status").is(QueuedMail.Status.PENDING).and("nextAttemptAt").lte(now)),
+            new Update().set("status", QueuedMail.Status.SENDING)
+                .set("lockedUntil", now.plusSeconds(leaseSeconds))
+                .set("lockToken", UUID.randomUUID().toString()),
+            FindAndModifyOptions.options().returnNew(true), QueuedMail.class);
+    }
+
+    // Send a batch over one SMTP connection
+    private void deliver(List<QueuedMail> batch) {
+        try (SmtpTransportPool.Lease connection = smtpTransportPool.acquire()) {
+            for (QueuedMail mail : batch) {
+                if (Thread.currentThread().isInterrupted()) {
+                    release(mail); // Shutting down
+                } else {
+                    deliver(mail, connection);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // Unsent mails go back to the queue when their lease expires
+        }
+    }
+
+    private void deliver(QueuedMail mail, SmtpTransportPool.Lease connection) {
+        try {
+            MimeMessage message = mailSender.createMimeMessage(new ByteArrayInputStream(decrypt(mail)));
+            throttle(mail.getAccount());
+
+            long started = System.currentTimeMillis();
+            connection.send(message);
+            sendMillis.addAndGet(System.currentTimeMillis() - started);
+
+            LocalDateTime now = LocalDateTime.now();
+            mongoTemplate.updateFirst(owned(mail),
+                new Update().set("status", QueuedMail.Status.SENT)
+                    .set("sentDate", now)
+                    .set("expiresAt", now.plusHours(retentionHours))
+                    .inc("attempts", 1)
+                    .unset("mime").unset("lockedUntil").unset("lockToken").unset("lastError"),
+                QueuedMail.class);
+            sent.incrementAndGet();
+        } catch (InterruptedException e) {
+            // Interrupted while throttled: not a send failure, the mail goes back as it was
+            Thread.currentThread().interrupt();
+            release(mail);
+        } catch (MailParseException | MailPreparationException e) {
+            fail(mail, e, true); // Retrying cannot fix a broken message
+        } catch (Exception e) {
+            fail(mail, e, false);
+        }
+    }
+
+    private byte[] decrypt(QueuedMail mail) {
+        try {
+            return stockCryptoService.decrypt(mail.getMime());
+        } catch (RuntimeException e) {
+            throw new MailPreparationException("Could not decrypt the queued message: " + e.getMessage(), e);
+        }
+    }
+
+    // Wait for the account's next send slot
+    private void throttle(String account) throws InterruptedException {
+        TokenBucket bucket = buckets.computeIfAbsent(account,
+            key -> new TokenBucket(ratePerAccount.getOrDefault(key, defaultRatePerSecond)));
+        long waitMs = bucket.reserve();
+        if (waitMs > 0) {
+            throttledMillis.addAndGet(waitMs);
+            Thread.sleep(waitMs);
+        }
+    }
+
+    private void fail(QueuedMail mail, Exception e, boolean permanent) {
+        failedAttempts.incrementAndGet();
+        int attempts = mail.getAttempts() + 1;
+        String error = e.getClass().getSimpleName() + ": " + e.getMessage();
+        Update update = new Update().set("attempts", attempts).set("lastError", error)
+            .unset("lockedUntil").unset("lockToken");
+
+        if (permanent || attempts >= maxAttempts) {
+            // Kept (still encrypted) for a retry until the retention ends
+            update.set("status", QueuedMail.Status.DEAD)
+                .set("expiresAt", LocalDateTime.now().plusHours(deadRetentionHours));
+            deadLettered.incrementAndGet();
+            System.err.println("☠️ Mail " + mail.getId() + " (\"" + mail.getSubject() + "\" to " + mail.getRecipients()
+                + ") dead-lettered after " + attempts + " attempt(s): " + error);
+        } else {
+            long delay = Math.min(backoffMaxMs, backoffBaseMs << Math.min(attempts - 1, 30));
+            update.set("status", QueuedMail.Status.PENDING)
+                .set("nextAttemptAt", LocalDateTime.now().plusNanos(delay * 1_000_000L));
+            System.err.println("⚠️ Mail " + mail.getId() + " to " + mail.getRecipients() + " failed, attempt "
+                + attempts + "/" + maxAttempts + ", retrying in " + delay + " ms: " + error);
+        }
+        mongoTemplate.updateFirst(owned(mail), update, QueuedMail.class);
+    }
+
+    // Back to the queue without counting an attempt
+    private void release(QueuedMail mail) {
+        try {
+            mongoTemplate.updateFirst(owned(mail),
+                new Update().set("status", QueuedMail.Status.PENDING).unset("lockedUntil").unset("lockToken"),
+                QueuedMail.class);
+        } catch (Exception e) {
+            // Released by the lease sweep instead
+        }
+    }
+
+    // Only the node holding the lease may finish the mail
+    private Query owned(QueuedMail mail) {
+        return new Query(Criteria.where("_id").is(mail.getId()).and("lockToken").is(mail.getLockToken()));
+    }
+
+    /**
+     * Send slots of one SMTP account: ratePerSecond slots a second with a burst of one second's worth.
+     * Callers reserve a slot and wait for it, so waiting workers are served in order.
+     */
+    private static final class TokenBucket {
+
+        private final double ratePerSecond;
+        private final double capacity;
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+
+        TokenBucket(double ratePerSecond) {
+            this.ratePerSecond = ratePerSecond;
+            this.capacity = Math.max(1.0, ratePerSecond);
+            this.tokens = capacity;
+        }
+
+        /**
+         * Reserve the next slot; returns how many milliseconds the caller has to wait for it
+         */
+        synchronized long reserve() {
+            if (ratePerSecond <= 0) {
+                return 0; // Unlimited
+            }
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - refilledAt) / 1_000_000_000.0 * ratePerSecond);
+            refilledAt = now;
+            tokens -= 1;
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / ratePerSecond * 1000);
+        }
+    }
+}
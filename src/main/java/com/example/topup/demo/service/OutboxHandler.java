@@ -0,0 +1,31 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.OutboxEvent;
+
+/**
+ * Runs outbox events of one type. Every handler bean is picked up by OutboxService.
+ * An event that throws is retried later, so each piece of work should be wrapped in a
+ * step: steps that completed are skipped on the retry.
+ */
+public interface OutboxHandler {
+
+    /**
+     * Event type this handler runs (OutboxEvent.type)
+     */
+    String getType();
+
+    void handle(OutboxEvent event, Steps steps) throws Exception;
+
+    @FunctionalInterface
+    interface Steps {
+        /**
+         * Run {@code step} unless it already completed in an earlier attempt of the event
+         */
+        void run(String name, Step step) throws Exception;
+    }
+
+    @FunctionalInterface
+    interface Step {
+        void run() throws Exception;
+    }
+}
@@ -0,0 +1,323 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.OutboxEvent;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transactional outbox for the side effects of a sale.
+ *
+ * A sale stores its core write and then enqueue()s one event describing everything that has
+ * to follow; if the event cannot be stored the sale is undone, so a sale never commits without
+ * its side effects. Every app.outbox.poll-interval-ms each node claims due events under a lease
+ * and hands them to a pool of app.outbox.threads workers, which run them with the OutboxHandler
+ * of their type.
+ *
+ * Events of one retailer run strictly one after another, oldest first: an event is only claimed
+ * while no older event of its retailer is pending or running, on any node. A failed event is
+ * retried with exponential backoff (its completed steps are skipped) and holds back its
+ * retailer's later events meanwhile; after app.outbox.max-attempts it is dead-lettered (DEAD),
+ * which releases the retailer's queue, and stays in outbox_events until retried by an admin.
+ */
+@Service
+public class OutboxService {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private List<OutboxHandler> handlerBeans;
+
+    @Value("${app.outbox.threads:8}")
+    private int threads;
+
+    @Value("${app.outbox.max-attempts:8}")
+    private int maxAttempts;
+
+    @Value("${app.outbox.backoff-base-ms:1000}")
+    private long backoffBaseMs;
+
+    @Value("${app.outbox.backoff-max-ms:600000}")
+    private long backoffMaxMs;
+
+    @Value("${app.outbox.lease-seconds:300}")
+    private long leaseSeconds;
+
+    @Value("${app.outbox.retention-hours:72}")
+    private long retentionHours;
+
+    private final Map<String, OutboxHandler> handlers = new HashMap<>();
+    private ExecutorService workers;
+    private final AtomicInteger running = new AtomicInteger();
+
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failedAttempts = new AtomicLong();
+    private final AtomicLong deadLettered = new AtomicLong();
+    private final AtomicLong processingMillis = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        for (OutboxHandler handler : handlerBeans) {
+            handlers.put(handler.getType(), handler);
+        }
+        workers = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "outbox-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            // auto-index-creation is disabled
+            MongoCollection<Document> events = mongoTemplate.getCollection(mongoTemplate.getCollectionName(OutboxEvent.class));
+            events.createIndex(Indexes.ascending("status", "nextAttemptAt", "createdDate"), new IndexOptions().name("status_due_idx"));
+            events.createIndex(Indexes.ascending("retailerKey", "status", "createdDate"), new IndexOptions().name("retailer_status_idx"));
+            events.createIndex(Indexes.ascending("expiresAt"), new IndexOptions().name("expiresAt_ttl").expireAfter(0L, TimeUnit.SECONDS));
+        } catch (Exception e) {
+            System.err.println("❌ Could not create the outbox_events indexes: " + e.getMessage());
+        }
+        System.out.println("📮 Outbox: handlers " + handlers.keySet() + ", " + threads + " worker(s)");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    /**
+     * Store an event to be run after the caller's sale. Throws if it could not be stored;
+     * the caller is expected to undo its core write then.
+     */
+    public OutboxEvent enqueue(String type, String retailerKey, Map<String, Object> payload) {
+        if (!handlers.containsKey(type)) {
+            throw new IllegalArgumentException("No outbox handler for event type: " + type);
+        }
+        OutboxEvent event = mongoTemplate.insert(new OutboxEvent(type, retailerKey, payload));
+        enqueued.incrementAndGet();
+        return event;
+    }
+
+    /**
+     * Claim the due events at the head of their retailer's queue and hand them to the workers
+     */
+    @Scheduled(fixedDelayString = "${app.outbox.poll-interval-ms:200}")
+    public void poll() {
+        int free = Math.max(1, threads) - running.get();
+        if (free <= 0) {
+            return;
+        }
+        try {
+            LocalDateTime now = LocalDateTime.now();
+
+            // Retailers whose oldest open event is running or waiting for its retry
+            List<String> blocked = mongoTemplate.findDistinct(new Query(new Criteria().orOperator(
+                    Criteria.where("status").is(OutboxEvent.Status.PROCESSING),
+                    Criteria.where("status").is(OutboxEvent.Status.PENDING).and("nextAttemptAt").gt(now))),
+                "retailerKey", OutboxEvent.class, String.class);
+
+            // Oldest due event of each other retailer, so one busy retailer cannot fill the batch
+            Aggregation heads = Aggregation.newAggregation(
+                Aggregation.match(Criteria.where("status").is(OutboxEvent.Status.PENDING)
+                    .and("nextAttemptAt").lte(now)
+                    .and("retailerKey").nin(blocked)),
+                Aggregation.sort(Sort.by(Sort.Direction.ASC, "createdDate", "_id")),
+                Aggregation.group("retailerKey").first("_id").as("eventId").first("createdDate").as("createdDate"),
+                Aggregation.sort(Sort.by(Sort.Direction.ASC, "createdDate")),
+                Aggregation.limit(free));
+
+            for (Document head : mongoTemplate.aggregate(heads, OutboxEvent.class, Document.class).getMappedResults()) {
+                if (free <= 0) {
+                    break;
+                }
+                OutboxEvent event = claim(head.get("eventId").toString());
+                if (event == null) {
+                    continue;
+                }
+                free--;
+                running.incrementAndGet();
+                workers.execute(() -> {
+                    try {
+                        process(event);
+                    } finally {
+                        running.decrementAndGet();
+                    }
+                });
+            }
+        } catch (Exception e) {
+            System.err.println("❌ Outbox poll failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Put events whose node died while running them back in the queue
+     */
+    @Scheduled(fixedDelayString = "${app.outbox.lease-sweep-interval-ms:60000}")
+    public void releaseExpiredLeases() {
+        try {
+            long released = mongoTemplate.updateMulti(
+                new Query(Criteria.where("status").is(OutboxEvent.Status.PROCESSING).and("lockedUntil").lt(LocalDateTime.now())),
+                new Update().set("status", OutboxEvent.Status.PENDING).unset("lockedUntil").unset("lockToken"),
+                OutboxEvent.class).getModifiedCount();
+            if (released > 0) {
+                System.out.println("📮 Released " + released + " outbox event(s) with an expired lease");
+            }
+        } catch (Exception e) {
+            System.err.println("❌ Outbox lease sweep failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Dead-lettered events, newest first
+     */
+    public List<OutboxEvent> getDeadLetters(int limit) {
+        return mongoTemplate.find(new Query(Criteria.where("status").is(OutboxEvent.Status.DEAD))
+            .with(Sort.by(Sort.Direction.DESC, "createdDate")).limit(limit), OutboxEvent.class);
+    }
+
+    /**
+     * Queue a dead-lettered event again with a fresh set of attempts; false if it is not DEAD
+     */
+    public boolean retryDeadLetter(String id) {
+        return mongoTemplate.updateFirst(
+            new Query(Criteria.where("_id").is(id).and("status").is(OutboxEvent.Status.DEAD)),
+            new Update().set("status", OutboxEvent.Status.PENDING).set("attempts", 0).set("nextAttemptAt", LocalDateTime.now()),
+            OutboxEvent.class).getModifiedCount() > 0;
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        for (OutboxEvent.Status status : OutboxEvent.Status.values()) {
+            metrics.put(status.name().toLowerCase(), mongoTemplate.count(
+                new Query(Criteria.where("status").is(status)), OutboxEvent.class));
+        }
+        OutboxEvent oldest = mongoTemplate.findOne(new Query(Criteria.where("status").is(OutboxEvent.Status.PENDING))
+            .with(Sort.by(Sort.Direction.ASC, "createdDate")), OutboxEvent.class);
+        metrics.put("oldestPendingAgeMs", oldest != null
+            ? Duration.between(oldest.getCreatedDate(), LocalDateTime.now()).toMillis() : 0);
+        metrics.put("running", running.get());
+        metrics.put("enqueued", enqueued.get());
+        metrics.put("completed", completed.get());
+        metrics.put("failedAttempts", failedAttempts.get());
+        metrics.put("deadLettered", deadLettered.get());
+        long done = completed.get();
+        metrics.put("avgProcessingMs", done > 0 ? processingMillis.get() / done : 0);
+        return metrics;
+    }
+
+    /**
+     * Take the event under a lease if it is still pending and no older event of its retailer is open
+     */
+    private OutboxEvent claim(String id) {
+        LocalDateTime now = LocalDateTime.now();
+        String token = UUID.randomUUID().toString();
+        OutboxEvent event = mongoTemplate.findAndModify(
+            new Query(Criteria.where("_id").is(id).and("status").is(OutboxEvent.Status.PENDING).and("nextAttemptAt").lte(now)),
+            new Update().set("status", OutboxEvent.Status.PROCESSING)
+                .set("lockedUntil", now.plusSeconds(leaseSeconds))
+                .set("lockToken", token),
+            FindAndModifyOptions.options().returnNew(true), OutboxEvent.class);
+        if (event == null) {
+            return null; // Taken by another node
+        }
+
+        // The blocked list is a snapshot: an older event may have gone back to PENDING since
+        boolean olderOpen = mongoTemplate.exists(new Query(Criteria.where("retailerKey").is(event.getRetailerKey())
+            .and("status").in(OutboxEvent.Status.PENDING, OutboxEvent.Status.PROCESSING)
+            .orOperator(
+                Criteria.where("createdDate").lt(event.getCreatedDate()),
+                Criteria.where("createdDate").is(event.getCreatedDate()).and("_id").lt(event.getId()))),
+            OutboxEvent.class);
+        if (olderOpen) {
+            mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(id).and("lockToken").is(token)),
+                new Update().set("status", OutboxEvent.Status.PENDING).unset("lockedUntil").unset("lockToken"),
+                OutboxEvent.class);
+            return null;
+        }
+        return event;
+    }
+
+    private void process(OutboxEvent event) {
+        long started = System.currentTimeMillis();
+        OutboxHandler handler = handlers.get(event.getType());
+        try {
+            if (handler == null) {
+                throw new IllegalStateException("No outbox handler for event type: " + event.getType());
+            }
+            handler.handle(event, (name, step) -> {
+                if (event.getCompletedSteps().contains(name)) {
+                    return;
+                }
+                step.run();
+                mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(event.getId())),
+                    new Update().addToSet("completedSteps", name), OutboxEvent.class);
+                event.getCompletedSteps().add(name);
+            });
+
+            LocalDateTime now = LocalDateTime.now();
+            mongoTemplate.updateFirst(owned(event),
+                new Update().set("status", OutboxEvent.Status.DONE)
+                    .set("completedDate", now)
+                    .set("expiresAt", now.plusHours(retentionHours))
+                    .unset("lockedUntil").unset("lockToken").unset("lastError"),
+                OutboxEvent.class);
+            completed.incrementAndGet();
+            processingMillis.addAndGet(System.currentTimeMillis() - started);
+        } catch (Exception e) {
+            fail(event, e);
+        }
+    }
+
+    private void fail(OutboxEvent event, Exception e) {
+        failedAttempts.incrementAndGet();
+        int attempts = event.getAttempts() + 1;
+        String error = e.getClass().getSimpleName() + ": " + e.getMessage();
+        Update update = new Update().set("attempts", attempts).set("lastError", error)
+            .unset("lockedUntil").unset("lockToken");
+
+        if (attempts >= maxAttempts) {
+            update.set("status", OutboxEvent.Status.DEAD);
+            deadLettered.incrementAndGet();
+            System.err.println("☠️ Outbox event " + event.getId() + " (" + event.getType() + ", retailer "
+                + event.getRetailerKey() + ") dead-lettered after " + attempts + " attempts: " + error);
+        } else {
+            long delay = Math.min(backoffMaxMs, backoffBaseMs << Math.min(attempts - 1, 30));
+            update.set("status", OutboxEvent.Status.PENDING)
+                .set("nextAttemptAt", LocalDateTime.now().plusNanos(delay * 1_000_000L));
+            System.err.println("⚠️ Outbox event " + event.getId() + " (" + event.getType() + ") failed, attempt "
+                + attempts + "/" + maxAttempts + ", retrying in " + delay + " ms: " + error);
+        }
+        mongoTemplate.updateFirst(owned(event), update, OutboxEvent.class);
+    }
+
+    // Only the node holding the lease may finish the event
+    private Query owned(OutboxEvent event) {
+        return new Query(Criteria.where("_id").is(event.getId()).and("lockToken").is(event.getLockToken()));
+    }
+}
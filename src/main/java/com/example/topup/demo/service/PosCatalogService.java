@@ -0,0 +1,343 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.StockPool;
+import com.example.topup.demo.entity.StockPool.StockItem;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory catalog of sellable stock pools for the POS endpoints (/pins/available, /esims/available).
+ *
+ * The catalog is an immutable snapshot indexed by stock type, network provider, category
+ * (productType) and product. Terminals read it without touching MongoDB; a new snapshot is
+ * built and swapped in atomically:
+ * - for pools whose counters changed on this node (reported by StockCounterService),
+ *   within app.stock.catalog.refresh-interval-ms
+ * - completely once the snapshot is older than app.stock.catalog.max-staleness-ms, which
+ *   bounds how stale sales made on other nodes can be.
+ *
+ * Each pool lists at most app.stock.catalog.items-per-pool sellable items. An item sold in the
+ * meantime is rejected by the conditional claim in the sale endpoints.
+ */
+@Service
+public class PosCatalogService {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private StockService stockService;
+
+    @Autowired
+    private StockCounterService stockCounterService;
+
+    @Value("${app.stock.catalog.items-per-pool:20}")
+    private int itemsPerPool;
+
+    @Value("${app.stock.catalog.max-staleness-ms:30000}")
+    private long maxStalenessMs;
+
+    private volatile Snapshot snapshot;
+    private final Object rebuildLock = new Object();
+    private final Set<String> dirtyPools = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final AtomicLong fullRebuilds = new AtomicLong();
+    private final AtomicLong poolRebuilds = new AtomicLong();
+    private final AtomicLong lastRebuildMillis = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        stockCounterService.addPoolChangeListener(dirtyPools::add);
+    }
+
+    /**
+     * Sellable pools of a type, optionally narrowed by provider, category and product (null = any)
+     */
+    public List<CatalogEntry> find(StockPool.StockType stockType, String networkProvider, String category, String productId) {
+        Snapshot current = snapshot;
+        if (current == null || current.isOlderThan(maxStalenessMs)) {
+            misses.increment();
+            current = rebuildAll();
+        } else {
+            hits.increment();
+        }
+
+        // Start from the most selective index, then filter on the rest
+        List<CatalogEntry> candidates = current.byType.getOrDefault(stockType, List.of());
+        if (productId != null) {
+            candidates = current.byProduct.getOrDefault(productId, List.of());
+        } else if (networkProvider != null) {
+            candidates = current.byProvider.getOrDefault(networkProvider, List.of());
+        } else if (category != null) {
+            candidates = current.byCategory.getOrDefault(category, List.of());
+        }
+
+        List<CatalogEntry> result = new ArrayList<>();
+        for (CatalogEntry entry : candidates) {
+            if (entry.getStockType() == stockType
+                    && (networkProvider == null || networkProvider.equals(entry.getNetworkProvider()))
+                    && (category == null || category.equals(entry.getProductType()))
+                    && (productId == null || productId.equals(entry.getProductId()))) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    @Scheduled(fixedDelayString = "${app.stock.catalog.refresh-interval-ms:1000}")
+    public void refresh() {
+        try {
+            Snapshot current = snapshot;
+            if (current == null) {
+                return; // built on first use
+            }
+            if (current.isOlderThan(maxStalenessMs)) {
+                rebuildAll();
+            } else if (!dirtyPools.isEmpty()) {
+                rebuildDirty();
+            }
+        } catch (Exception e) {
+            System.err.println("❌ POS catalog refresh failed: " + e.getMessage());
+        }
+    }
+
+    public Map<String, Object> getMetrics() {
+        Snapshot current = snapshot;
+        Map<String, Object> metrics = new HashMap<>();
+        metrics.put("hits", hits.sum());
+        metrics.put("misses", misses.sum());
+        metrics.put("fullRebuilds", fullRebuilds.get());
+        metrics.put("poolRebuilds", poolRebuilds.get());
+        metrics.put("lastRebuildMillis", lastRebuildMillis.get());
+        metrics.put("pools", current != null ? current.entries.size() : 0);
+        metrics.put("snapshotAgeMillis", current != null ? System.currentTimeMillis() - current.builtAt : -1);
+        metrics.put("maxStalenessMillis", maxStalenessMs);
+        metrics.put("dirtyPools", dirtyPools.size());
+        return metrics;
+    }
+
+    private Snapshot rebuildAll() {
+        synchronized (rebuildLock) {
+            Snapshot current = snapshot;
+            if (current != null && !current.isOlderThan(maxStalenessMs)) {
+                return current; // another thread just rebuilt it
+            }
+            long started = System.currentTimeMillis();
+            dirtyPools.clear();
+
+            Query query = new Query(Criteria.where("availableQuantity").gt(0));
+            query.fields().exclude("product");
+            Map<String, CatalogEntry> entries = new LinkedHashMap<>();
+            for (StockPool pool : mongoTemplate.find(query, StockPool.class)) {
+                entries.put(pool.getId(), toEntry(pool));
+            }
+
+            Snapshot rebuilt = new Snapshot(entries);
+            snapshot = rebuilt;
+            fullRebuilds.incrementAndGet();
+            lastRebuildMillis.set(System.currentTimeMillis() - started);
+            return rebuilt;
+        }
+    }
+
+    private void rebuildDirty() {
+        synchronized (rebuildLock) {
+            Snapshot current = snapshot;
+            long started = System.currentTimeMillis();
+            Map<String, CatalogEntry> entries = new LinkedHashMap<>(current.entries);
+
+            List<String> poolIds = new ArrayList<>(dirtyPools);
+            dirtyPools.removeAll(poolIds);
+            Query query = new Query(Criteria.where("_id").in(poolIds));
+            query.fields().exclude("product");
+            Map<String, StockPool> changed = new HashMap<>();
+            for (StockPool pool : mongoTemplate.find(query, StockPool.class)) {
+                changed.put(pool.getId(), pool);
+            }
+            for (String poolId : poolIds) {
+                StockPool pool = changed.get(poolId);
+                if (pool == null || pool.getAvailableQuantity() == null || pool.getAvailableQuantity() <= 0) {
+                    entries.remove(poolId);
+                } else {
+                    entries.put(poolId, toEntry(pool));
+                }
+            }
+
+            // Keeps the age of the last full rebuild: dirty pools only cover this node's sales
+            snapshot = new Snapshot(entries, current.builtAt);
+            poolRebuilds.addAndGet(poolIds.size());
+            lastRebuildMillis.set(System.currentTimeMillis() - started);
+        }
+    }
+
+    private CatalogEntry toEntry(StockPool pool) {
+        Query query = new Query(Criteria.where("poolId").is(pool.getId())
+            .and("status").is(StockItem.ItemStatus.AVAILABLE))
+            .with(Sort.by("_id"))
+            .limit(itemsPerPool);
+        List<StockItem> items = mongoTemplate.find(query, StockItem.class);
+
+        List<Object> sellable = new ArrayList<>(items.size());
+        if (pool.getStockType() == StockPool.StockType.ESIM) {
+            for (StockItem item : items) {
+                sellable.add(Collections.unmodifiableMap(esimView(item)));
+            }
+        } else {
+            List<String> pins = stockService.decryptAll(items.stream().map(StockItem::getItemData).toList());
+            sellable.addAll(pins);
+        }
+        return new CatalogEntry(pool, sellable);
+    }
+
+    /**
+     * Decrypted eSIM fields as shown to the POS
+     */
+    private Map<String, Object> esimView(StockItem item) {
+        Map<String, Object> itemData = new HashMap<>();
+        itemData.put("itemId", item.getItemId());
+        itemData.put("iccid", stockService.decryptData(item.getItemData()));
+
+        if (item.getActivationCode() != null) {
+            itemData.put("activationCode", stockService.decryptData(item.getActivationCode()));
+        }
+
+        // QR code image (Base64) and its QR image store reference
+        if (stockService.hasQrCode(item)) {
+            itemData.put("qrCodeImage", stockService.getQrCodeBase64(item));
+            itemData.put("qrCodeRef", item.getQrCodeRef());
+        }
+
+        // SM-DP+ address, or the part of the activation code after '$'
+        if (item.getActivationUrl() != null && !item.getActivationUrl().isEmpty()) {
+            itemData.put("smDpAddress", stockService.decryptData(item.getActivationUrl()));
+        } else if (item.getActivationCode() != null) {
+            String decryptedCode = stockService.decryptData(item.getActivationCode());
+            if (decryptedCode != null && decryptedCode.contains("$")) {
+                String[] parts = decryptedCode.split("\\$");
+                if (parts.length > 1) {
+                    itemData.put("smDpAddress", parts[1]);
+                }
+            }
+        }
+
+        if (item.getPin1() != null) {
+            itemData.put("pin1", stockService.decryptData(item.getPin1()));
+        }
+        if (item.getPuk1() != null) {
+            itemData.put("puk1", stockService.decryptData(item.getPuk1()));
+        }
+        if (item.getPin2() != null) {
+            itemData.put("pin2", stockService.decryptData(item.getPin2()));
+        }
+        if (item.getPuk2() != null) {
+            itemData.put("puk2", stockService.decryptData(item.getPuk2()));
+        }
+        return itemData;
+    }
+
+    /**
+     * Immutable catalog with its lookup indexes
+     */
+    private static final class Snapshot {
+
+        private final Map<String, CatalogEntry> entries;
+        private final Map<StockPool.StockType, List<CatalogEntry>> byType = new HashMap<>();
+        private final Map<String, List<CatalogEntry>> byProvider = new HashMap<>();
+        private final Map<String, List<CatalogEntry>> byCategory = new HashMap<>();
+        private final Map<String, List<CatalogEntry>> byProduct = new HashMap<>();
+        private final long builtAt;
+
+        Snapshot(Map<String, CatalogEntry> entries) {
+            this(entries, System.currentTimeMillis());
+        }
+
+        Snapshot(Map<String, CatalogEntry> entries, long builtAt) {
+            this.entries = Collections.unmodifiableMap(entries);
+            this.builtAt = builtAt;
+            for (CatalogEntry entry : entries.values()) {
+                index(byType, entry.getStockType(), entry);
+                index(byProvider, entry.getNetworkProvider(), entry);
+                index(byCategory, entry.getProductType(), entry);
+                index(byProduct, entry.getProductId(), entry);
+            }
+        }
+
+        boolean isOlderThan(long millis) {
+            return System.currentTimeMillis() - builtAt > millis;
+        }
+
+        private static <K> void index(Map<K, List<CatalogEntry>> index, K key, CatalogEntry entry) {
+            if (key != null) {
+                index.computeIfAbsent(key, k -> new ArrayList<>()).add(entry);
+            }
+        }
+    }
+
+    /**
+     * One sellable pool: its display fields, counters and first sellable items
+     * (decrypted PINs for ePIN pools, eSIM detail maps for eSIM pools)
+     */
+    public static final class CatalogEntry {
+
+        private final String poolId;
+        private final String name;
+        private final StockPool.StockType stockType;
+        private final String productId;
+        private final String networkProvider;
+        private final String productType;
+        private final String price;
+        private final String description;
+        private final int totalQuantity;
+        private final int availableQuantity;
+        private final int usedQuantity;
+        private final List<Object> items;
+
+        CatalogEntry(StockPool pool, List<Object> items) {
+            this.poolId = pool.getId();
+            this.name = pool.getName();
+            this.stockType = pool.getStockType();
+            this.productId = pool.getProductId();
+            this.networkProvider = pool.getNetworkProvider();
+            this.productType = pool.getProductType();
+            this.price = pool.getPrice();
+            this.description = pool.getDescription();
+            this.totalQuantity = pool.getTotalQuantity() != null ? pool.getTotalQuantity() : 0;
+            this.availableQuantity = pool.getAvailableQuantity() != null ? pool.getAvailableQuantity() : 0;
+            this.usedQuantity = pool.getUsedQuantity() != null ? pool.getUsedQuantity() : 0;
+            this.items = Collections.unmodifiableList(items);
+        }
+
+        public String getPoolId() { return poolId; }
+        public String getName() { return name; }
+        public StockPool.StockType getStockType() { return stockType; }
+        public String getProductId() { return productId; }
+        public String getNetworkProvider() { return networkProvider; }
+        public String getProductType() { return productType; }
+        public String getPrice() { return price; }
+        public String getDescription() { return description; }
+        public int getTotalQuantity() { return totalQuantity; }
+        public int getAvailableQuantity() { return availableQuantity; }
+        public int getUsedQuantity() { return usedQuantity; }
+        public List<Object> getItems() { return items; }
+    }
+}
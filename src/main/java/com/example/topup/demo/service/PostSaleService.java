@@ -0,0 +1,467 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.EsimOrderRequest;
+import com.example.topup.demo.entity.EsimPosSale;
+import com.example.topup.demo.entity.OutboxEvent;
+import com.example.topup.demo.entity.RetailerOrder;
+import com.example.topup.demo.entity.StockPool;
+import com.example.topup.demo.entity.User;
+import com.example.topup.demo.repository.EsimOrderRequestRepository;
+import com.example.topup.demo.repository.EsimPosSaleRepository;
+import com.example.topup.demo.repository.RetailerOrderRepository;
+import com.example.topup.demo.repository.StockItemRepository;
+import com.example.topup.demo.repository.UserRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Side effects of a POS sale, run from the outbox once the sold item is claimed and the retailer's
+ * credit (or kickback bonus) debited by the sale request: customer email, RetailerOrder /
+ * EsimOrderRequest / EsimPosSale records, kickback campaigns and profit. The records get the ids
+ * chosen at sale time, so a retried step overwrites instead of duplicating. Campaign earning and
+ * profit are applied together with a marker of the sale id, so a step retried after it already
+ * took effect (e.g. the node died before the step was marked complete) is not applied twice.
+ */
+@Service
+public class PostSaleService implements OutboxHandler {
+
+    public static final String EVENT_TYPE = "POST_SALE";
+
+    // Sale endpoints (payload "channel")
+    public static final String SEND_QR = "SEND_QR";
+    public static final String POS_APP = "POS_APP";
+    public static final String POS_APP_EMAIL = "POS_APP_EMAIL";
+    public static final String EPIN_POS_APP = "EPIN_POS_APP";
+
+    private static final String PRINT_EMAIL = "print@easytopup.no";
+    private static final String PRINT_CUSTOMER = "POS Print Order";
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private StockService stockService;
+
+    @Autowired
+    private StockItemRepository stockItemRepository;
+
+    @Autowired
+    private EmailService emailService;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private RetailerOrderRepository retailerOrderRepository;
+
+    @Autowired
+    private EsimOrderRequestRepository esimOrderRequestRepository;
+
+    @Autowired
+    private EsimPosSaleRepository esimPosSaleRepository;
+
+    @Autowired
+    private KickbackCampaignService kickbackCampaignService;
+
+    @Autowired
+    private RetailerService retailerService;
+
+    @Override
+    public String getType() {
+        return EVENT_TYPE;
+    }
+
+    @Override
+    public void handle(OutboxEvent event, Steps steps) throws Exception {
+        String channel = event.getString("channel");
+        if (SEND_QR.equals(channel)) {
+            handleSendQr(event, steps);
+        } else if (POS_APP.equals(channel)) {
+            handlePosAppSale(event, steps, false);
+        } else if (POS_APP_EMAIL.equals(channel)) {
+            handlePosAppSale(event, steps, true);
+        } else if (EPIN_POS_APP.equals(channel)) {
+            handleEpinSale(event, steps);
+        } else {
+            throw new IllegalArgumentException("Unknown sale channel: " + channel);
+        }
+    }
+
+    /**
+     * eSIM sold from the website POS (/esims/send-qr)
+     */
+    private void handleSendQr(OutboxEvent event, Steps steps) throws Exception {
+        String poolId = event.getString("poolId");
+        String itemId = event.getString("itemId");
+        String iccid = event.getString("iccid");
+        String customerEmail = event.getString("customerEmail");
+        String customerName = event.getString("customerName");
+        boolean skipEmail = event.getBoolean("skipEmail");
+        double price = event.getDouble("price");
+        String retailerEmail = event.getRetailerKey();
+        StockPool pool = stockService.getStockPoolById(poolId);
+
+        if (!skipEmail) {
+            steps.run("email", () -> {
+                StockPool.StockItem item = findItem(itemId);
+                String[] nameParts = customerName != null ? customerName.trim().split("\\s+", 2) : new String[] {""};
+                emailService.sendEsimQrCodeEmail(
+                    customerEmail,
+                    nameParts[0],
+                    nameParts.length > 1 ? nameParts[1] : "",
+                    pool.getNetworkProvider() != null ? pool.getNetworkProvider() : "Network Provider",
+                    "eSIM",
+                    stockService.getQrImage(item),
+                    iccid
+                );
+                System.out.println("✅ eSIM QR code email sent to " + customerEmail);
+            });
+        }
+
+        steps.run("itemNotes", () -> mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(itemId)),
+            new Update().set("notes", "Sold to: " + (skipEmail ? PRINT_CUSTOMER : customerName + " (" + customerEmail + ")")),
+            StockPool.StockItem.class));
+
+        User retailer = userRepository.findByEmail(retailerEmail).orElse(null);
+        if (retailer == null) {
+            System.err.println("⚠️ Retailer user not found: " + retailerEmail + " - eSIM sale not recorded");
+            return;
+        }
+
+        String orderId = event.getString("orderId");
+        String orderNumber = event.getString("orderNumber");
+        String posSaleId = event.getString("posSaleId");
+        String recordedEmail = skipEmail ? PRINT_EMAIL : customerEmail;
+        String recordedName = skipEmail ? PRINT_CUSTOMER : customerName;
+
+        steps.run("retailerOrder", () -> {
+            RetailerOrder order = new RetailerOrder();
+            order.setId(orderId);
+            order.setRetailerId(retailer.getId());
+            order.setOrderNumber(orderNumber);
+            order.setNotes(skipEmail ? PRINT_CUSTOMER : "Customer: " + customerName + " (" + customerEmail + ")");
+
+            RetailerOrder.OrderItem item = new RetailerOrder.OrderItem();
+            item.setProductId(poolId);
+            item.setProductName(pool.getName());
+            item.setProductType("ESIM");
+            item.setCategory("ESIM");
+            item.setQuantity(1);
+            item.setUnitPrice(BigDecimal.valueOf(price));
+            item.setRetailPrice(BigDecimal.valueOf(price));
+            item.setSerialNumbers(Arrays.asList(iccid));
+            if (pool.getNetworkProvider() != null && !pool.getNetworkProvider().isEmpty()) {
+                item.setNetworkProvider(pool.getNetworkProvider());
+            }
+
+            order.addItem(item);
+            completePosOrder(order, BigDecimal.valueOf(price), retailerEmail, event.getCreatedDate());
+            retailerOrderRepository.save(order);
+            System.out.println("✅ RetailerOrder " + orderNumber + " saved for eSIM sale " + iccid);
+        });
+
+        steps.run("esimOrderRequest", () -> {
+            EsimOrderRequest request = new EsimOrderRequest();
+            request.setId(event.getString("esimOrderRequestId"));
+            request.setOrderNumber(orderNumber);
+            request.setCustomerFullName(recordedName);
+            request.setCustomerEmail(recordedEmail);
+            request.setProductName(pool.getName());
+            request.setProductId(poolId);
+            request.setAmount(price);
+            request.setPaymentMethod("POINT_OF_SALE");
+            request.setStatus("APPROVED");
+            request.setAssignedEsimSerial(iccid);
+            request.setApprovedByAdmin(retailerEmail);
+            request.setApprovedDate(event.getCreatedDate());
+            request.setRequestDate(event.getCreatedDate());
+            esimOrderRequestRepository.save(request);
+            System.out.println("✅ EsimOrderRequest saved for sales report with ICCID: " + iccid);
+        });
+
+        steps.run("posSale", () -> {
+            EsimPosSale posSale = new EsimPosSale(retailer, recordedEmail);
+            posSale.setId(posSaleId);
+            posSale.setCustomerName(recordedName);
+            posSale.setIccid(iccid);
+            posSale.setProductName(pool.getName());
+            posSale.setProductId(poolId);
+            posSale.setStockPoolId(poolId);
+            posSale.setStockPoolName(pool.getName());
+            posSale.setSalePrice(BigDecimal.valueOf(price));
+            posSale.setOrderId(orderId);
+            posSale.setOrderReference(orderNumber);
+            posSale.setStatus(EsimPosSale.SaleStatus.COMPLETED);
+            posSale.setEmailSent(!skipEmail);
+            posSale.setDeliveryMethod(skipEmail ? "print" : "email");
+            posSale.setCreatedBy(retailerEmail);
+            posSale.setSaleDate(event.getCreatedDate());
+            posSale.setNotes(("kickback".equalsIgnoreCase(event.getString("paymentMode")) ? "Kickback" : "Credit")
+                + " deducted: " + price + " NOK");
+
+            String qrCodeBase64 = stockService.getQrCodeBase64(findItem(itemId));
+            if (qrCodeBase64 != null) {
+                posSale.setQrCodeUrl("data:image/png;base64," + qrCodeBase64);
+            }
+            BigDecimal costPrice = parsePrice(pool.getPrice());
+            if (costPrice != null) {
+                posSale.setCostPrice(costPrice);
+                posSale.setMargin(BigDecimal.valueOf(price).subtract(costPrice));
+            }
+            posSale.setBundleName(pool.getName());
+            posSale.setBundleId(poolId);
+            if (pool.getNetworkProvider() != null && !pool.getNetworkProvider().isEmpty()) {
+                posSale.setOperator(pool.getNetworkProvider());
+            }
+            esimPosSaleRepository.save(posSale);
+            System.out.println("✅ EsimPosSale " + posSaleId + " saved for retailer " + retailerEmail);
+        });
+
+        steps.run("profit", () -> recordProfit(retailer, BigDecimal.valueOf(price), pool.getPrice(), pool.getName(), poolId,
+            event.getCreatedDate(), posSaleId));
+    }
+
+    /**
+     * eSIM sold from the POS app, printed (/esims/pos-sale) or emailed (/esims/send-via-email)
+     */
+    private void handlePosAppSale(OutboxEvent event, Steps steps, boolean emailed) throws Exception {
+        String poolId = event.getString("poolId");
+        String itemId = event.getString("itemId");
+        String iccid = event.getString("iccid");
+        String productId = event.getString("productId");
+        String productType = event.getString("productType");
+        String networkProvider = event.getString("networkProvider");
+        String customerEmail = event.getString("customerEmail");
+        String firstName = event.getString("firstName");
+        String lastName = event.getString("lastName");
+        double price = event.getDouble("price");
+        String posSaleId = event.getString("posSaleId");
+        String retailerEmail = event.getRetailerKey();
+        StockPool pool = stockService.getStockPoolById(poolId);
+
+        if (emailed) {
+            steps.run("email", () -> {
+                emailService.sendEsimQrCodeEmail(
+                    customerEmail,
+                    firstName,
+                    lastName,
+                    networkProvider != null ? networkProvider : pool.getNetworkProvider(),
+                    "eSIM", // Always use "eSIM" as the product type for display
+                    stockService.getQrImage(findItem(itemId)),
+                    iccid
+                );
+                System.out.println("✅ eSIM QR code email sent to " + customerEmail);
+            });
+        }
+
+        User retailer = userRepository.findByEmail(retailerEmail).orElse(null);
+
+        steps.run("posSale", () -> {
+            EsimPosSale posSale = new EsimPosSale();
+            posSale.setId(posSaleId);
+            posSale.setPoolId(poolId);
+            posSale.setItemId(itemId);
+            posSale.setIccid(iccid);
+            posSale.setProductId(productId);
+            posSale.setProductType(productType);
+            posSale.setNetworkProvider(networkProvider);
+            posSale.setPrice(price);
+            posSale.setPosType("APP"); // Distinguish app POS from website POS
+            posSale.setDeliveryMethod(emailed ? "email" : "print");
+            posSale.setStockPoolId(poolId);
+            posSale.setStockPoolName(pool.getName());
+            posSale.setProductName(pool.getName());
+            posSale.setOperator(networkProvider);
+            posSale.setSalePrice(BigDecimal.valueOf(price));
+            posSale.setCreatedBy(retailerEmail);
+            posSale.setStatus(EsimPosSale.SaleStatus.COMPLETED);
+            posSale.setSaleDate(event.getCreatedDate());
+            if (emailed) {
+                posSale.setCustomerEmail(customerEmail);
+                posSale.setCustomerName(firstName + " " + lastName);
+                posSale.setEmailSent(true);
+            }
+
+            String qrCodeBase64 = stockService.getQrCodeBase64(findItem(itemId));
+            if (qrCodeBase64 != null) {
+                posSale.setQrCodeUrl("data:image/png;base64," + qrCodeBase64);
+            }
+            if (retailer != null) {
+                posSale.setRetailer(retailer);
+            } else {
+                posSale.setRetailerId(retailerEmail);
+                posSale.setRetailerEmail(retailerEmail);
+            }
+            esimPosSaleRepository.save(posSale);
+            System.out.println("✅ POS sale recorded: " + posSaleId);
+        });
+
+        if (retailer == null) {
+            return;
+        }
+
+        steps.run("kickback", () -> kickbackCampaignService.processRetailerSale(
+            retailerEmail,
+            retailer.getFirstName() + " " + retailer.getLastName(),
+            emailed ? posSaleId : (productId != null ? productId : networkProvider),
+            BigDecimal.valueOf(price),
+            posSaleId
+        ));
+    }
+
+    /**
+     * ePIN sold from the POS app (/pins/pos-sale)
+     */
+    private void handleEpinSale(OutboxEvent event, Steps steps) throws Exception {
+        String poolId = event.getString("poolId");
+        String itemId = event.getString("itemId");
+        String networkProvider = event.getString("networkProvider");
+        double price = event.getDouble("price");
+        String posSaleId = event.getString("posSaleId");
+        String retailerEmail = event.getRetailerKey();
+
+        User retailer = userRepository.findByEmail(retailerEmail).orElse(null);
+        if (retailer == null) {
+            System.err.println("⚠️ Retailer user not found: " + retailerEmail + " - ePIN sale not recorded");
+            return;
+        }
+        StockPool stockPool = stockService.getStockPoolById(poolId);
+        BigDecimal saleAmount = BigDecimal.valueOf(price > 0 ? price : Double.parseDouble(stockPool.getPrice()));
+
+        steps.run("kickback", () -> kickbackCampaignService.processRetailerSale(
+            retailerEmail,
+            retailer.getFirstName() + " " + retailer.getLastName(),
+            poolId,
+            BigDecimal.valueOf(price),
+            posSaleId
+        ));
+
+        String orderId = event.getString("orderId");
+        String orderNumber = event.getString("orderNumber");
+
+        steps.run("retailerOrder", () -> {
+            StockPool.StockItem pin = findItem(itemId);
+
+            RetailerOrder order = new RetailerOrder();
+            order.setId(orderId);
+            order.setRetailerId(retailer.getId());
+            order.setOrderNumber(orderNumber);
+            order.setNotes("POS App ePIN Sale - " + (networkProvider != null ? networkProvider : stockPool.getNetworkProvider()));
+
+            RetailerOrder.OrderItem item = new RetailerOrder.OrderItem();
+            item.setProductId(poolId);
+            item.setProductName(stockPool.getName());
+            item.setProductType("EPIN");
+            item.setCategory("EPIN");
+            item.setQuantity(1);
+            item.setUnitPrice(saleAmount);
+            item.setRetailPrice(saleAmount);
+
+            // First element is the PIN for POS app compatibility, second the serial number for analytics
+            List<String> itemSerials = new ArrayList<>();
+            itemSerials.add(stockService.decryptData(pin.getItemData()));
+            if (pin.getSerialNumber() != null && !pin.getSerialNumber().isEmpty()) {
+                itemSerials.add(pin.getSerialNumber());
+            }
+            item.setSerialNumbers(itemSerials);
+            if (stockPool.getNetworkProvider() != null && !stockPool.getNetworkProvider().isEmpty()) {
+                item.setNetworkProvider(stockPool.getNetworkProvider());
+            }
+
+            order.addItem(item);
+            completePosOrder(order, saleAmount, retailerEmail, event.getCreatedDate());
+            retailerOrderRepository.save(order);
+            System.out.println("✅ RetailerOrder created: " + orderNumber);
+        });
+
+        steps.run("posSale", () -> {
+            EsimPosSale posSale = new EsimPosSale();
+            posSale.setId(posSaleId);
+            posSale.setRetailer(retailer);
+            posSale.setProductName(stockPool.getName());
+            posSale.setProductId(poolId);
+            posSale.setProductType("EPIN");
+            posSale.setBundleName(stockPool.getName());
+            posSale.setBundleId(poolId);
+            posSale.setStockPoolId(poolId);
+            posSale.setStockPoolName(stockPool.getName());
+            posSale.setSalePrice(saleAmount);
+            posSale.setCurrency("NOK");
+            posSale.setOrderId(orderId);
+            posSale.setOrderReference(orderNumber);
+            posSale.setStatus(EsimPosSale.SaleStatus.COMPLETED);
+            posSale.setPosType("APP"); // Distinguish app POS from website POS
+            posSale.setDeliveryMethod("print"); // App POS uses print/display
+            posSale.setCreatedBy(retailerEmail);
+            posSale.setSaleDate(event.getCreatedDate());
+
+            BigDecimal costPrice = parsePrice(stockPool.getPrice());
+            if (costPrice != null) {
+                posSale.setCostPrice(costPrice);
+                posSale.setMargin(saleAmount.subtract(costPrice));
+            }
+            if (stockPool.getNetworkProvider() != null && !stockPool.getNetworkProvider().isEmpty()) {
+                posSale.setOperator(stockPool.getNetworkProvider());
+            }
+            esimPosSaleRepository.save(posSale);
+            System.out.println("✅ EsimPosSale created for ePIN tracking: " + posSaleId);
+        });
+
+        steps.run("profit", () -> recordProfit(retailer, saleAmount, stockPool.getPrice(), stockPool.getName(), poolId,
+            event.getCreatedDate(), posSaleId));
+    }
+
+    private void recordProfit(User retailer, BigDecimal saleAmount, String poolPrice, String bundleName, String bundleId,
+                              LocalDateTime soldAt, String posSaleId) {
+        BigDecimal costPrice = parsePrice(poolPrice);
+        if (costPrice == null) {
+            costPrice = BigDecimal.ZERO;
+        }
+        Double marginRate = 0.0;
+        if (costPrice.compareTo(BigDecimal.ZERO) > 0) {
+            marginRate = saleAmount.subtract(costPrice).divide(costPrice, 4, RoundingMode.HALF_UP)
+                .multiply(BigDecimal.valueOf(100)).doubleValue();
+        }
+        System.out.println("📊 Recording profit - Sale: " + saleAmount + ", Cost: " + costPrice + ", Margin: " + marginRate + "%");
+        retailerService.recordProfit(retailer, saleAmount, costPrice, bundleName, bundleId, marginRate,
+            soldAt.toLocalDate(), posSaleId);
+    }
+
+    private void completePosOrder(RetailerOrder order, BigDecimal total, String retailerEmail, LocalDateTime soldAt) {
+        order.setTotalAmount(total);
+        order.setCurrency("NOK");
+        order.setStatus(RetailerOrder.OrderStatus.COMPLETED);
+        order.setPaymentStatus(RetailerOrder.PaymentStatus.COMPLETED);
+        order.setPaymentMethod("POINT_OF_SALE");
+        order.setCreatedDate(soldAt);
+        order.setLastModifiedDate(LocalDateTime.now());
+        order.setCreatedBy(retailerEmail);
+    }
+
+    private StockPool.StockItem findItem(String itemId) {
+        return stockItemRepository.findById(itemId)
+            .orElseThrow(() -> new IllegalStateException("Sold stock item not found: " + itemId));
+    }
+
+    private BigDecimal parsePrice(String price) {
+        if (price == null || price.isEmpty()) {
+            return null;
+        }
+        try {
+            return new BigDecimal(price);
+        } catch (NumberFormatException e) {
+            return BigDecimal.ZERO;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.topup.demo.service;
+
+import org.springframework.core.io.InputStreamSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Content-addressed store for eSIM QR code images.
+ * Images are keyed by the SHA-256 of their bytes, so the same image is stored once
+ * and stock items only keep the reference.
+ */
+public interface QrImageStore {
+
+    String CONTENT_TYPE = "image/png";
+
+    /**
+     * Store image bytes and return their reference; existing content is not stored again
+     */
+    String store(byte[] imageBytes);
+
+    /**
+     * Image for a reference, or null if there is none
+     */
+    QrImage find(String ref);
+
+    /**
+     * A stored image. Every getInputStream() call opens a fresh stream, so it can be
+     * used as a mail attachment as well as streamed to an HTTP response.
+     */
+    class QrImage implements InputStreamSource {
+
+        private final String ref;
+        private final long length;
+        private final InputStreamSource source;
+
+        public QrImage(String ref, long length, InputStreamSource source) {
+            this.ref = ref;
+            this.length = length;
+            this.source = source;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return source.getInputStream();
+        }
+
+        public byte[] getBytes() throws IOException {
+            try (InputStream in = getInputStream()) {
+                return in.readAllBytes();
+            }
+        }
+
+        public String getRef() { return ref; }
+        public long getLength() { return length; }
+    }
+}
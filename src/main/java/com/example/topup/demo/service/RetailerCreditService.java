@@ -0,0 +1,448 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.RetailerKickbackLimit;
+import com.example.topup.demo.entity.RetailerLimit;
+import com.example.topup.demo.entity.RetailerLimit.CreditTransaction;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Credit engine for retailer sales: checks and debits a retailer's credit (and unit limit)
+ * in one conditional update on the retailer_limits document, so concurrent sales for one
+ * retailer can neither overdraw the credit nor overwrite each other's balance changes.
+ * The debit is recorded in the credit ledger. The returned limit has no retailer loaded.
+ * Sales paid from the kickback bonus are debited the same way on retailer_kickback_limits.
+ * A debit pushes its order id onto the document's recentDebitRefs in the same update and
+ * only applies while the id is not there, so a retried sale is never debited twice.
+ * Admin changes (payments, refunds, credit and unit limits, status) are conditional updates
+ * too: balances are $inc'ed, other fields $set, never the whole document saved.
+ */
+@Service
+public class RetailerCreditService {
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final String DEBIT_REFS = "recentDebitRefs";
+    private static final int MAX_DEBIT_REFS = 500; // Far more than the sales an outbox retry can lag behind
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private CreditLedgerService creditLedgerService;
+
+    /**
+     * Outcome of a debit; on failure the limit (or kickback limit) holds the balances that refused it (if any)
+     */
+    public static class DebitResult {
+
+        public enum Outcome {
+            DEBITED,
+            ALREADY_DEBITED,
+            NO_LIMIT,
+            LIMIT_NOT_ACTIVE,
+            INSUFFICIENT_CREDIT,
+            UNIT_LIMIT_REACHED,
+            CONFLICT
+        }
+
+        private final Outcome outcome;
+        private final RetailerLimit limit;
+        private final RetailerKickbackLimit kickbackLimit;
+        private final String message;
+
+        DebitResult(Outcome outcome, RetailerLimit limit, String message) {
+            this(outcome, limit, null, message);
+        }
+
+        DebitResult(Outcome outcome, RetailerLimit limit, RetailerKickbackLimit kickbackLimit, String message) {
+            this.outcome = outcome;
+            this.limit = limit;
+            this.kickbackLimit = kickbackLimit;
+            this.message = message;
+        }
+
+        public boolean isDebited() { return outcome == Outcome.DEBITED || outcome == Outcome.ALREADY_DEBITED; }
+        public Outcome getOutcome() { return outcome; }
+        public RetailerLimit getLimit() { return limit; }
+        public RetailerKickbackLimit getKickbackLimit() { return kickbackLimit; }
+        public String getMessage() { return message; }
+    }
+
+    /**
+     * Debit {@code amount} and {@code units} sold units if the retailer's limit is ACTIVE, has at
+     * least that much available credit and (when a unit limit is set) that many available units.
+     */
+    public DebitResult debit(String retailerId, BigDecimal amount, int units, String orderId, String description) {
+        if (amount == null || amount.signum() < 0 || units < 0) {
+            throw new IllegalArgumentException("Debit amount and units must be non-negative");
+        }
+
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            // Retailers without a unit limit first (the default), then unit-limited ones
+            RetailerLimit limit = tryDebit(retailerId, amount, units, orderId, false);
+            if (limit == null) {
+                limit = tryDebit(retailerId, amount, units, orderId, true);
+            }
+            if (limit != null) {
+                CreditTransaction transaction = new CreditTransaction(
+                    CreditTransaction.TransactionType.ORDER_PLACED, amount, limit.getAvailableCredit(), description);
+                transaction.setReferenceOrderId(orderId);
+                creditLedgerService.append(retailerId, limit.getId(), List.of(transaction));
+                return new DebitResult(DebitResult.Outcome.DEBITED, limit, "Credit debited");
+            }
+
+            if (orderId != null) {
+                RetailerLimit debited = mongoTemplate.findOne(limitQuery(retailerId, Criteria.where(DEBIT_REFS).is(orderId)), RetailerLimit.class);
+                if (debited != null) {
+                    return new DebitResult(DebitResult.Outcome.ALREADY_DEBITED, debited, "Credit already debited for " + orderId);
+                }
+            }
+            DebitResult refused = explainRefusal(retailerId, amount, units);
+            if (refused != null) {
+                System.out.println("💳 Debit of NOK " + amount + " refused for retailer " + retailerId + ": " + refused.getMessage());
+                return refused;
+            }
+            // The balances changed between the debit and the check: try again
+        }
+        return new DebitResult(DebitResult.Outcome.CONFLICT, null, "Credit is being updated by another sale, please retry");
+    }
+
+    /**
+     * Put back a debit whose sale did not go through; recorded in the ledger as a refund
+     */
+    public RetailerLimit reverseDebit(String retailerId, BigDecimal amount, int units, String orderId, String description) {
+        RetailerLimit limit = mongoTemplate.findAndModify(limitQuery(retailerId, Criteria.where("unitLimit").gt(0)),
+            withoutRef(balanceChange(amount.negate(), -units).inc("availableUnits", units), orderId),
+            FindAndModifyOptions.options().returnNew(true), RetailerLimit.class);
+        if (limit == null) {
+            limit = mongoTemplate.findAndModify(limitQuery(retailerId, Criteria.where("unitLimit").not().gt(0)),
+                withoutRef(balanceChange(amount.negate(), -units), orderId),
+                FindAndModifyOptions.options().returnNew(true), RetailerLimit.class);
+        }
+        if (limit == null) {
+            throw new IllegalStateException("Retailer limit not found for retailer: " + retailerId);
+        }
+
+        CreditTransaction transaction = new CreditTransaction(
+            CreditTransaction.TransactionType.REFUND, amount, limit.getAvailableCredit(), description);
+        transaction.setReferenceOrderId(orderId);
+        transaction.setProcessedBy("system");
+        creditLedgerService.append(retailerId, limit.getId(), List.of(transaction));
+        return limit;
+    }
+
+    /**
+     * Debit {@code amount} from the retailer's kickback bonus if its kickback limit is ACTIVE and
+     * has at least that much available, once per {@code reference}
+     */
+    public DebitResult debitKickback(String retailerId, BigDecimal amount, String reference) {
+        if (amount == null || amount.signum() < 0) {
+            throw new IllegalArgumentException("Debit amount must be non-negative");
+        }
+
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            Criteria condition = Criteria.where("status").is(RetailerKickbackLimit.KickbackStatus.ACTIVE)
+                .and("availableKickback").gte(new Decimal128(amount));
+            Update update = kickbackChange(amount);
+            if (reference != null) {
+                condition.and(DEBIT_REFS).ne(reference);
+                update.push(DEBIT_REFS).slice(-MAX_DEBIT_REFS).each(reference);
+            }
+            RetailerKickbackLimit kickbackLimit = mongoTemplate.findAndModify(limitQuery(retailerId, condition),
+                update, FindAndModifyOptions.options().returnNew(true), RetailerKickbackLimit.class);
+            if (kickbackLimit != null) {
+                return new DebitResult(DebitResult.Outcome.DEBITED, null, kickbackLimit, "Kickback debited");
+            }
+
+            if (reference != null) {
+                RetailerKickbackLimit debited = mongoTemplate.findOne(limitQuery(retailerId, Criteria.where(DEBIT_REFS).is(reference)),
+                    RetailerKickbackLimit.class);
+                if (debited != null) {
+                    return new DebitResult(DebitResult.Outcome.ALREADY_DEBITED, null, debited, "Kickback already debited for " + reference);
+                }
+            }
+
+            DebitResult refused = explainKickbackRefusal(retailerId, amount);
+            if (refused != null) {
+                System.out.println("🎁 Kickback debit of NOK " + amount + " refused for retailer " + retailerId + ": " + refused.getMessage());
+                return refused;
+            }
+        }
+        return new DebitResult(DebitResult.Outcome.CONFLICT, null, "Kickback is being updated by another sale, please retry");
+    }
+
+    /**
+     * Put back a kickback debit whose sale did not go through
+     */
+    public RetailerKickbackLimit reverseKickback(String retailerId, BigDecimal amount, String reference) {
+        RetailerKickbackLimit kickbackLimit = mongoTemplate.findAndModify(limitQuery(retailerId, new Criteria()),
+            withoutRef(kickbackChange(amount.negate()), reference), FindAndModifyOptions.options().returnNew(true), RetailerKickbackLimit.class);
+        if (kickbackLimit == null) {
+            throw new IllegalStateException("Kickback limit not found for retailer: " + retailerId);
+        }
+        return kickbackLimit;
+    }
+
+    /**
+     * Payment from the retailer: outstanding goes down (not below zero) and available credit up by as much
+     */
+    public RetailerLimit receivePayment(String retailerId, BigDecimal amount, String processedBy, String description) {
+        requireNonNegative(amount);
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            RetailerLimit current = currentLimit(retailerId);
+            BigDecimal paid = amount.min(orZero(current.getOutstandingAmount()));
+            LocalDateTime now = LocalDateTime.now();
+            Update update = new Update()
+                .inc("outstandingAmount", new Decimal128(paid.negate()))
+                .inc("availableCredit", new Decimal128(paid))
+                .set("lastPaymentDate", now)
+                .set("lastModifiedDate", now);
+            if (current.getPaymentTermsDays() != null) {
+                update.set("nextDueDate", now.plusDays(current.getPaymentTermsDays()));
+            }
+            RetailerLimit limit = mongoTemplate.findAndModify(
+                limitQuery(retailerId, Criteria.where("outstandingAmount").gte(new Decimal128(paid))),
+                update, FindAndModifyOptions.options().returnNew(true), RetailerLimit.class);
+            if (limit != null) {
+                record(retailerId, limit, CreditTransaction.TransactionType.PAYMENT_RECEIVED, amount, null, processedBy, description);
+                return limit;
+            }
+        }
+        throw new IllegalStateException("Credit is being updated by another sale, please retry");
+    }
+
+    /**
+     * Refund of an order: used credit and outstanding go down (not below zero), available credit up
+     */
+    public RetailerLimit refund(String retailerId, BigDecimal amount, String orderId, String processedBy, String description) {
+        requireNonNegative(amount);
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            RetailerLimit current = currentLimit(retailerId);
+            BigDecimal used = amount.min(orZero(current.getUsedCredit()));
+            BigDecimal outstanding = amount.min(orZero(current.getOutstandingAmount()));
+            Update update = new Update()
+                .inc("usedCredit", new Decimal128(used.negate()))
+                .inc("outstandingAmount", new Decimal128(outstanding.negate()))
+                .inc("availableCredit", new Decimal128(outstanding))
+                .set("lastModifiedDate", LocalDateTime.now());
+            Criteria condition = Criteria.where("usedCredit").gte(new Decimal128(used))
+                .and("outstandingAmount").gte(new Decimal128(outstanding));
+            RetailerLimit limit = mongoTemplate.findAndModify(limitQuery(retailerId, condition), update,
+                FindAndModifyOptions.options().returnNew(true), RetailerLimit.class);
+            if (limit != null) {
+                record(retailerId, limit, CreditTransaction.TransactionType.REFUND, amount, orderId, processedBy, description);
+                return limit;
+            }
+        }
+        throw new IllegalStateException("Credit is being updated by another sale, please retry");
+    }
+
+    /**
+     * Set a new credit limit; available credit moves by the difference
+     */
+    public RetailerLimit adjustCreditLimit(String retailerId, BigDecimal newLimit, String processedBy, String reason) {
+        requireNonNegative(newLimit);
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            RetailerLimit current = currentLimit(retailerId);
+            BigDecimal difference = newLimit.subtract(orZero(current.getCreditLimit()));
+            Update update = new Update()
+                .set("creditLimit", new Decimal128(newLimit))
+                .inc("availableCredit", new Decimal128(difference))
+                .set("lastModifiedDate", LocalDateTime.now())
+                .set("lastModifiedBy", processedBy);
+            Criteria unchanged = Criteria.where("creditLimit")
+                .is(current.getCreditLimit() != null ? new Decimal128(current.getCreditLimit()) : null);
+            RetailerLimit limit = mongoTemplate.findAndModify(limitQuery(retailerId, unchanged), update,
+                FindAndModifyOptions.options().returnNew(true), RetailerLimit.class);
+            if (limit != null) {
+                if (difference.signum() != 0) {
+                    record(retailerId, limit, difference.signum() > 0
+                            ? CreditTransaction.TransactionType.CREDIT_INCREASE
+                            : CreditTransaction.TransactionType.CREDIT_DECREASE,
+                        difference.abs(), null, processedBy, reason);
+                }
+                return limit;
+            }
+        }
+        throw new IllegalStateException("Credit is being updated by another sale, please retry");
+    }
+
+    /**
+     * Set a new unit limit (null for none). Available units are derived from the used units, so
+     * the update only applies while those are unchanged.
+     */
+    public RetailerLimit adjustUnitLimit(String retailerId, Integer newUnitLimit, String processedBy) {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            RetailerLimit current = currentLimit(retailerId);
+            int usedUnits = current.getUsedUnits() != null ? current.getUsedUnits() : 0;
+            Update update = new Update()
+                .set("unitLimit", newUnitLimit)
+                .set("usedUnits", usedUnits)
+                .set("lastModifiedDate", LocalDateTime.now())
+                .set("lastModifiedBy", processedBy);
+            if (newUnitLimit != null) {
+                update.set("availableUnits", Math.max(0, newUnitLimit - usedUnits));
+            }
+            Criteria unchanged = Criteria.where("unitLimit").is(current.getUnitLimit())
+                .and("usedUnits").is(current.getUsedUnits());
+            RetailerLimit limit = mongoTemplate.findAndModify(limitQuery(retailerId, unchanged), update,
+                FindAndModifyOptions.options().returnNew(true), RetailerLimit.class);
+            if (limit != null) {
+                return limit;
+            }
+        }
+        throw new IllegalStateException("Credit is being updated by another sale, please retry");
+    }
+
+    /**
+     * Set fields that are not balances (status, payment terms, ...)
+     */
+    public RetailerLimit updateFields(String retailerId, Update fields) {
+        RetailerLimit limit = mongoTemplate.findAndModify(limitQuery(retailerId, new Criteria()),
+            fields.set("lastModifiedDate", LocalDateTime.now()), FindAndModifyOptions.options().returnNew(true), RetailerLimit.class);
+        if (limit == null) {
+            throw new NoSuchElementException("Retailer limit not found");
+        }
+        return limit;
+    }
+
+    /**
+     * Set the limit's status, recorded in the ledger as a zero adjustment
+     */
+    public RetailerLimit updateStatus(String retailerId, RetailerLimit.LimitStatus status, String processedBy, String reason) {
+        RetailerLimit limit = updateFields(retailerId, new Update().set("status", status).set("lastModifiedBy", processedBy));
+        record(retailerId, limit, CreditTransaction.TransactionType.ADJUSTMENT, BigDecimal.ZERO, null, processedBy,
+            "Status changed to " + status + ": " + reason);
+        return limit;
+    }
+
+    private RetailerLimit currentLimit(String retailerId) {
+        RetailerLimit limit = mongoTemplate.findOne(limitQuery(retailerId, new Criteria()), RetailerLimit.class);
+        if (limit == null) {
+            throw new NoSuchElementException("Retailer limit not found");
+        }
+        return limit;
+    }
+
+    private void record(String retailerId, RetailerLimit limit, CreditTransaction.TransactionType type, BigDecimal amount,
+                        String orderId, String processedBy, String description) {
+        CreditTransaction transaction = new CreditTransaction(type, amount, limit.getAvailableCredit(), description);
+        transaction.setReferenceOrderId(orderId);
+        transaction.setProcessedBy(processedBy);
+        creditLedgerService.append(retailerId, limit.getId(), List.of(transaction));
+    }
+
+    private static void requireNonNegative(BigDecimal amount) {
+        if (amount == null || amount.signum() < 0) {
+            throw new IllegalArgumentException("Amount must be non-negative");
+        }
+    }
+
+    private static BigDecimal orZero(BigDecimal value) {
+        return value != null ? value : BigDecimal.ZERO;
+    }
+
+    private RetailerLimit tryDebit(String retailerId, BigDecimal amount, int units, String orderId, boolean unitLimited) {
+        Criteria condition = Criteria.where("status").is(RetailerLimit.LimitStatus.ACTIVE)
+            .and("availableCredit").gte(new Decimal128(amount));
+        Update update = balanceChange(amount, units);
+        if (orderId != null) {
+            // The order id is recorded with the balances, so a retry finds it even if the ledger append failed
+            condition.and(DEBIT_REFS).ne(orderId);
+            update.push(DEBIT_REFS).slice(-MAX_DEBIT_REFS).each(orderId);
+        }
+        if (unitLimited) {
+            condition.and("unitLimit").gt(0).and("availableUnits").gte(units);
+            update.inc("availableUnits", -units);
+        } else {
+            condition.and("unitLimit").not().gt(0);
+        }
+        return mongoTemplate.findAndModify(limitQuery(retailerId, condition), update,
+            FindAndModifyOptions.options().returnNew(true), RetailerLimit.class);
+    }
+
+    // Debit (positive) or put back (negative) credit and used units
+    private Update balanceChange(BigDecimal amount, int units) {
+        return new Update()
+            .inc("availableCredit", new Decimal128(amount.negate()))
+            .inc("usedCredit", new Decimal128(amount))
+            .inc("outstandingAmount", new Decimal128(amount))
+            .inc("usedUnits", units)
+            .set("lastModifiedDate", LocalDateTime.now());
+    }
+
+    // A reversed debit may be taken again by a retry of its sale
+    private Update withoutRef(Update update, String reference) {
+        return reference != null ? update.pull(DEBIT_REFS, reference) : update;
+    }
+
+    // Debit (positive) or put back (negative) kickback
+    private Update kickbackChange(BigDecimal amount) {
+        return new Update()
+            .inc("availableKickback", new Decimal128(amount.negate()))
+            .inc("usedKickback", new Decimal128(amount))
+            .set("lastModifiedDate", LocalDateTime.now());
+    }
+
+    /**
+     * Why the debit did not match, or null if the current balances would allow it
+     */
+    private DebitResult explainRefusal(String retailerId, BigDecimal amount, int units) {
+        RetailerLimit limit = mongoTemplate.findOne(limitQuery(retailerId, new Criteria()), RetailerLimit.class);
+        if (limit == null) {
+            return new DebitResult(DebitResult.Outcome.NO_LIMIT, null,
+                "No credit limit is set for this retailer. Please contact admin.");
+        }
+        if (limit.getStatus() != RetailerLimit.LimitStatus.ACTIVE) {
+            return new DebitResult(DebitResult.Outcome.LIMIT_NOT_ACTIVE, limit,
+                "Retailer credit limit is " + limit.getStatus());
+        }
+        if (!limit.hasAvailableCredit(amount)) {
+            return new DebitResult(DebitResult.Outcome.INSUFFICIENT_CREDIT, limit,
+                "Insufficient credit: NOK " + limit.getAvailableCredit() + " available, NOK " + amount + " required");
+        }
+        if (!limit.hasAvailableUnits(units)) {
+            return new DebitResult(DebitResult.Outcome.UNIT_LIMIT_REACHED, limit,
+                "Unit limit reached: " + limit.getAvailableUnits() + " unit(s) available, " + units + " required");
+        }
+        return null;
+    }
+
+    private DebitResult explainKickbackRefusal(String retailerId, BigDecimal amount) {
+        RetailerKickbackLimit kickbackLimit = mongoTemplate.findOne(limitQuery(retailerId, new Criteria()), RetailerKickbackLimit.class);
+        if (kickbackLimit == null) {
+            return new DebitResult(DebitResult.Outcome.NO_LIMIT, null,
+                "No kickback limit is set for this retailer. Please contact admin.");
+        }
+        if (kickbackLimit.getStatus() != RetailerKickbackLimit.KickbackStatus.ACTIVE) {
+            return new DebitResult(DebitResult.Outcome.LIMIT_NOT_ACTIVE, null, kickbackLimit,
+                "Retailer kickback limit is " + kickbackLimit.getStatus());
+        }
+        BigDecimal available = kickbackLimit.getAvailableKickback() != null ? kickbackLimit.getAvailableKickback() : BigDecimal.ZERO;
+        if (available.compareTo(amount) < 0) {
+            return new DebitResult(DebitResult.Outcome.INSUFFICIENT_CREDIT, null, kickbackLimit,
+                "Insufficient kickback: NOK " + available + " available, NOK " + amount + " required");
+        }
+        return null;
+    }
+
+    // The retailer is left unresolved: loading the DBRef would cost a users read per sale
+    private Query limitQuery(String retailerId, Criteria condition) {
+        Object id = ObjectId.isValid(retailerId) ? new ObjectId(retailerId) : retailerId;
+        Query query = new Query(new Criteria().andOperator(Criteria.where("retailer.$id").is(id), condition));
+        query.fields().exclude("retailer");
+        return query;
+    }
+}
@@ -2,7 +2,6 @@ package com.example.topup.demo.service;
 
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -13,12 +12,16 @@ import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import com.example.topup.demo.entity.CreditLedgerEntry;
 import com.example.topup.demo.entity.RetailerLimit;
-import com.example.topup.demo.entity.RetailerLimit.CreditTransaction;
 import com.example.topup.demo.entity.User;
 import com.example.topup.demo.repository.RetailerLimitRepository;
 import com.example.topup.demo.repository.UserRepository;
@@ -37,6 +40,15 @@ public class RetailerLimitService {
     @Autowired
     private EmailService emailService;
 
+    @Autowired
+    private CreditLedgerService creditLedgerService;
+
+    @Autowired
+    private RetailerCreditService retailerCreditService;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
     // Create or initialize retailer limit
     @Transactional
     public RetailerLimit createRetailerLimit(String retailerId, BigDecimal creditLimit, String adminId) {
@@ -56,7 +68,7 @@ public class RetailerLimitService {
         limit.setCreatedBy(adminId);
         limit.setLastModifiedBy(adminId);
         
-        return retailerLimitRepository.save(limit);
+        return retailerLimitRepository.insert(limit);
     }
 
     // Get retailer limit by retailer ID
@@ -69,20 +81,13 @@ public class RetailerLimitService {
         return retailerLimitRepository.findAll();
     }
 
-    // Update credit limit
-    @Transactional
+    // Update credit limit (balances change with one conditional update, see RetailerCreditService)
     public RetailerLimit updateCreditLimit(String retailerId, BigDecimal newLimit, String adminId, String reason) {
-        RetailerLimit limit = retailerLimitRepository.findByRetailer_Id(retailerId)
-                .orElseThrow(() -> new NoSuchElementException("Retailer limit not found"));
-
-        limit.adjustCreditLimit(newLimit, adminId, reason);
-        limit.setLastModifiedBy(adminId);
-        
-        RetailerLimit saved = retailerLimitRepository.save(limit);
+        RetailerLimit saved = withRetailer(retailerCreditService.adjustCreditLimit(retailerId, newLimit, adminId, reason), retailerId);
         
         // Send notification email
         try {
-            String retailerEmail = limit.getRetailer().getEmail();
+            String retailerEmail = saved.getRetailer().getEmail();
             String subject = "Credit Limit Updated";
             String message = String.format(
                 "Your credit limit has been updated to $%s. Reason: %s",
@@ -97,44 +102,41 @@ public class RetailerLimitService {
         return saved;
     }
 
-    // Use credit for an order
-    @Transactional
-    public void useCredit(String retailerId, BigDecimal amount, String orderId, String description) {
-        RetailerLimit limit = retailerLimitRepository.findByRetailer_Id(retailerId)
-                .orElseThrow(() -> new NoSuchElementException("Retailer limit not found"));
-
-        if (limit.getStatus() != RetailerLimit.LimitStatus.ACTIVE) {
-            throw new IllegalStateException("Retailer credit limit is not active");
+    // Use credit for an order (atomic check-and-debit of credit and sold units)
+    public void useCredit(String retailerId, BigDecimal amount, int units, String orderId, String description) {
+        RetailerCreditService.DebitResult result = retailerCreditService.debit(retailerId, amount, units, orderId, description);
+        if (!result.isDebited()) {
+            if (result.getOutcome() == RetailerCreditService.DebitResult.Outcome.NO_LIMIT) {
+                throw new NoSuchElementException("Retailer limit not found");
+            }
+            throw new IllegalStateException(result.getMessage());
         }
-
-        limit.useCredit(amount, orderId, description);
-        retailerLimitRepository.save(limit);
+        if (result.getOutcome() == RetailerCreditService.DebitResult.Outcome.ALREADY_DEBITED) {
+            return; // Retried order, alerted on its first debit
+        }
+        RetailerLimit limit = result.getLimit();
 
         // Check if low credit alert needed (below 100 NOK or at limit)
         BigDecimal lowCreditThreshold = new BigDecimal("100");
         if (limit.isSendLowCreditAlert() && 
             (limit.getAvailableCredit().compareTo(lowCreditThreshold) < 0 || 
              limit.getAvailableCredit().compareTo(BigDecimal.ZERO) <= 0)) {
-            sendLowCreditAlert(limit);
+            // The debit result has no retailer loaded; the alert needs the email
+            retailerLimitRepository.findById(limit.getId()).ifPresent(this::sendLowCreditAlert);
         }
     }
 
     // Receive payment
-    @Transactional
     public RetailerLimit receivePayment(String retailerId, BigDecimal amount, String adminId, String description) {
-        RetailerLimit limit = retailerLimitRepository.findByRetailer_Id(retailerId)
-                .orElseThrow(() -> new NoSuchElementException("Retailer limit not found"));
-
-        limit.receivePayment(amount, adminId, description);
-        RetailerLimit saved = retailerLimitRepository.save(limit);
+        RetailerLimit saved = withRetailer(retailerCreditService.receivePayment(retailerId, amount, adminId, description), retailerId);
         
         // Send payment confirmation email
         try {
-            String retailerEmail = limit.getRetailer().getEmail();
+            String retailerEmail = saved.getRetailer().getEmail();
             String subject = "Payment Received";
             String message = String.format(
                 "We have received your payment of $%s. Your available credit is now $%s.",
-                amount.toString(), limit.getAvailableCredit().toString()
+                amount.toString(), saved.getAvailableCredit().toString()
             );
             emailService.sendEmail(retailerEmail, subject, message);
         } catch (Exception e) {
@@ -145,39 +147,17 @@ public class RetailerLimitService {
     }
 
     // Process refund
-    @Transactional
     public RetailerLimit processRefund(String retailerId, BigDecimal amount, String orderId, String adminId, String description) {
-        RetailerLimit limit = retailerLimitRepository.findByRetailer_Id(retailerId)
-                .orElseThrow(() -> new NoSuchElementException("Retailer limit not found"));
-
-        limit.refundCredit(amount, orderId, adminId, description);
-        return retailerLimitRepository.save(limit);
+        return withRetailer(retailerCreditService.refund(retailerId, amount, orderId, adminId, description), retailerId);
     }
 
-    // Update retailer limit status
-    @Transactional
+    // Update retailer limit status (recorded in the ledger as a zero adjustment)
     public RetailerLimit updateStatus(String retailerId, RetailerLimit.LimitStatus newStatus, String adminId, String reason) {
-        RetailerLimit limit = retailerLimitRepository.findByRetailer_Id(retailerId)
-                .orElseThrow(() -> new NoSuchElementException("Retailer limit not found"));
-
-        limit.setStatus(newStatus);
-        limit.setLastModifiedBy(adminId);
-        
-        // Add a transaction record for status change
-        CreditTransaction transaction = new CreditTransaction(
-            CreditTransaction.TransactionType.ADJUSTMENT,
-            BigDecimal.ZERO,
-            limit.getAvailableCredit(),
-            "Status changed to " + newStatus + ": " + reason
-        );
-        transaction.setProcessedBy(adminId);
-        limit.getTransactions().add(transaction);
-        
-        RetailerLimit saved = retailerLimitRepository.save(limit);
+        RetailerLimit saved = withRetailer(retailerCreditService.updateStatus(retailerId, newStatus, adminId, reason), retailerId);
         
         // Send status change notification
         try {
-            String retailerEmail = limit.getRetailer().getEmail();
+            String retailerEmail = saved.getRetailer().getEmail();
             String subject = "Credit Limit Status Changed";
             String message = String.format(
                 "Your credit limit status has been changed to %s. Reason: %s",
@@ -191,6 +171,12 @@ public class RetailerLimitService {
         return saved;
     }
 
+    // Limits returned by RetailerCreditService have no retailer loaded; callers and responses expect it
+    private RetailerLimit withRetailer(RetailerLimit limit, String retailerId) {
+        limit.setRetailer(userRepository.findById(retailerId).orElse(null));
+        return limit;
+    }
+
     // Get retailers with low credit
     public List<RetailerLimit> getRetailersNeedingCreditAlert() {
         return retailerLimitRepository.findRetailersNeedingCreditAlert();
@@ -325,8 +311,9 @@ public class RetailerLimitService {
                 
                 // Auto-suspend if overdue for more than 30 days
                 if (LocalDateTime.now().isAfter(limit.getNextDueDate().plusDays(30))) {
-                    limit.setStatus(RetailerLimit.LimitStatus.SUSPENDED);
-                    retailerLimitRepository.save(limit);
+                    mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(limit.getId())),
+                        new Update().set("status", RetailerLimit.LimitStatus.SUSPENDED).set("lastModifiedDate", LocalDateTime.now()),
+                        RetailerLimit.class);
                 }
             } catch (Exception e) {
                 System.err.println("Failed to process overdue retailer " + 
@@ -392,14 +379,12 @@ public class RetailerLimitService {
         return alertsSent;
     }
 
-    // Get transaction history for a retailer
-    public List<CreditTransaction> getTransactionHistory(String retailerId) {
-        RetailerLimit limit = retailerLimitRepository.findByRetailer_Id(retailerId)
-                .orElseThrow(() -> new NoSuchElementException("Retailer limit not found"));
-        
-        List<CreditTransaction> transactions = new ArrayList<>(limit.getTransactions());
-        transactions.sort((t1, t2) -> t2.getTransactionDate().compareTo(t1.getTransactionDate()));
-        return transactions;
+    // Get a page of a retailer's transaction history, newest first (after = previous page's cursor)
+    public List<CreditLedgerEntry> getTransactionHistory(String retailerId, String after, int size) {
+        if (!retailerLimitRepository.existsByRetailer_Id(retailerId)) {
+            throw new NoSuchElementException("Retailer limit not found");
+        }
+        return creditLedgerService.getPage(retailerId, after, size);
     }
 
     // Check if retailer has sufficient credit
@@ -1,10 +1,20 @@
 package com.example.topup.demo.service;
 
+import com.example.topup.demo.dto.RetailerCartPurchaseRequest;
 import com.example.topup.demo.dto.RetailerCreditLevel;
 import com.example.topup.demo.dto.RetailerPurchaseRequest;
 import com.example.topup.demo.entity.*;
 import com.example.topup.demo.repository.*;
+import com.mongodb.client.result.UpdateResult;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -12,6 +22,10 @@ import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 @Service
@@ -32,9 +46,36 @@ public class RetailerPurchaseService {
     @Autowired
     private StockPoolRepository stockPoolRepository;
     
+    @Autowired
+    private StockItemRepository stockItemRepository;
+    
+    @Autowired
+    private StockAllocationBuffer stockAllocationBuffer;
+
+    @Autowired
+    private StockCryptoService stockCryptoService;
+    
     @Autowired
     private RetailerOrderRepository retailerOrderRepository;
 
+    @Autowired
+    private StockAllocationService stockAllocationService;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private RetailerCreditService retailerCreditService;
+
+    @Value("${app.retailer.cart.max-lines:50}")
+    private int maxCartLines;
+
+    @Value("${app.retailer.cart.threads:8}")
+    private int cartThreads;
+
+    // Resolves and allocates the lines of cart purchases in parallel
+    private ExecutorService cartExecutor;
+
     // Credit level definitions (NOK)
     private static final List<BigDecimal> CREDIT_LEVELS = Arrays.asList(
         new BigDecimal("2000"),
@@ -46,6 +87,20 @@ public class RetailerPurchaseService {
         new BigDecimal("20000")
     );
 
+    @PostConstruct
+    public void init() {
+        cartExecutor = Executors.newFixedThreadPool(Math.max(1, cartThreads), runnable -> {
+            Thread thread = new Thread(runnable, "retailer-cart");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        cartExecutor.shutdownNow();
+    }
+
     // Get available bundles for retailer
     public List<Product> getAvailableBundles() {
         // First try to get actual products
@@ -78,12 +133,12 @@ public class RetailerPurchaseService {
         // Set pricing from first available StockItem price or use default
         BigDecimal basePrice;
         try {
-            // Try to get price from first available item in the pool
-            String priceStr = stockPool.getItems().stream()
-                .filter(item -> item.getPrice() != null && !item.getPrice().isEmpty())
+            // Try to get price from first available item in the pool, falling back to the pool price
+            String priceStr = stockItemRepository.findFirstByPoolIdAndStatus(
+                    stockPool.getId(), StockPool.StockItem.ItemStatus.AVAILABLE)
                 .map(StockPool.StockItem::getPrice)
-                .findFirst()
-                .orElse(null);
+                .filter(price -> !price.isEmpty())
+                .orElse(stockPool.getPrice());
             
             if (priceStr != null && !priceStr.isEmpty()) {
                 basePrice = new BigDecimal(priceStr);
@@ -244,7 +299,7 @@ public class RetailerPurchaseService {
     // Direct purchase - no payment required, instant allocation
     @Transactional
     public Map<String, Object> purchaseBundles(String retailerId, RetailerPurchaseRequest request) {
-        // Get retailer limit (for tracking only, no credit check)
+        // Get retailer limit (the credit itself is checked and debited atomically below)
         Optional<RetailerLimit> limitOpt = retailerLimitRepository.findByRetailer_Id(retailerId);
         
         if (limitOpt.isEmpty()) {
@@ -296,27 +351,357 @@ public class RetailerPurchaseService {
         BigDecimal unitPrice = product.getBasePrice();
         BigDecimal totalAmount = unitPrice.multiply(new BigDecimal(request.getQuantity()));
 
-        // Allocate PINs or eSIMs from admin stock
-        List<String> allocatedItems = new ArrayList<>();
-        if (isFromStockPool) {
-            // Allocate from StockPool
-            allocatedItems = allocateFromStockPool(stockPool, request.getQuantity(), retailerId);
+        // Debit the credit (and units) before allocating, in one conditional update; put back if the sale fails
+        String orderId = new ObjectId().toHexString();
+        RetailerCreditService.DebitResult debit = retailerCreditService.debit(retailerId, totalAmount, request.getQuantity(), orderId,
+            String.format("Direct Purchase: %s (x%d)", product.getName(), request.getQuantity()));
+        if (!debit.isDebited()) {
+            throw new IllegalStateException(debit.getMessage());
+        }
+        RetailerLimit savedLimit = debit.getLimit();
+
+        // Same steps as a cart line: anything that fails hands back the stock, the items and the credit
+        CartLine line = new CartLine(1, request);
+        line.product = product;
+        line.stockPool = stockPool;
+        line.unitPrice = unitPrice;
+        line.totalAmount = totalAmount;
+        line.orderId = orderId;
+        line.debited = true;
+
+        List<String> allocatedItems;
+        Order savedOrder = null;
+        try {
+            // Allocate PINs or eSIMs from admin stock
+            allocateCartLine(line, retailerId);
+            allocatedItems = line.allocatedItems;
+
+            // Product stock only goes down while it lasts (StockPool counters are moved by the item claims)
+            if (!isFromStockPool) {
+                takeProductStock(line);
+            }
+
+            // Create order
+            savedOrder = orderRepository.save(newOrder(orderId, limit, product, stockPool, request.getQuantity(), totalAmount, allocatedItems));
+
+            // ALSO CREATE RETAILER ORDER FOR INVENTORY TRACKING
+            RetailerOrder retailerOrder = newRetailerOrder(retailerId, "RO-" + System.currentTimeMillis(), product, stockPool,
+                request.getQuantity(), unitPrice, totalAmount, allocatedItems);
+            RetailerOrder savedRetailerOrder = retailerOrderRepository.save(retailerOrder);
+            System.out.println("✅ Created RetailerOrder: " + savedRetailerOrder.getOrderNumber() + " with " + savedRetailerOrder.getItems().size() + " items");
+        } catch (RuntimeException e) {
+            if (savedOrder != null) {
+                mongoTemplate.remove(new Query(Criteria.where("_id").is(orderId)), Order.class);
+            }
+            restoreProductStock(line);
+            releaseCartLine(line);
+            reverseCartLine(retailerId, line);
+            throw e;
+        }
+
+        // Calculate usage percentage for level display
+        BigDecimal usagePercent = calculateUsagePercentage(savedLimit);
+
+        // Prepare response
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("orderId", savedOrder.getId());
+        response.put("totalAmount", totalAmount);
+        response.put("itemsAllocated", allocatedItems.size());
+        response.put("allocatedItems", allocatedItems);
+        response.put("remainingCredit", savedLimit.getAvailableCredit());
+        response.put("usagePercentage", usagePercent);
+        response.put("currentLevel", getLevelInfo(savedLimit.getCreditLimit()));
+        response.put("message", "Purchase completed successfully! Items added to your inventory.");
+
+        return response;
+    }
+
+    // Bulk purchase of several products in one request (restocking)
+    @Transactional
+    public Map<String, Object> purchaseCart(String retailerId, RetailerCartPurchaseRequest request) {
+        long startedAt = System.currentTimeMillis();
+        List<RetailerPurchaseRequest> cart = request.getItems();
+        if (cart == null || cart.isEmpty()) {
+            throw new IllegalArgumentException("Cart must contain at least one product");
+        }
+        if (cart.size() > maxCartLines) {
+            throw new IllegalArgumentException("Cart cannot contain more than " + maxCartLines + " products");
+        }
+
+        RetailerLimit limit = retailerLimitRepository.findByRetailer_Id(retailerId)
+            .orElseThrow(() -> new IllegalStateException("Retailer not found. Please contact admin."));
+
+        // Look up every line's product or stock pool with one query each
+        Set<String> ids = new LinkedHashSet<>();
+        for (RetailerPurchaseRequest item : cart) {
+            if (!ids.add(item.getProductId())) {
+                throw new IllegalArgumentException("Product " + item.getProductId() + " is in the cart more than once");
+            }
+        }
+        Map<String, Product> products = new HashMap<>();
+        productRepository.findAllById(ids).forEach(product -> products.put(product.getId(), product));
+        Map<String, StockPool> stockPools = new HashMap<>();
+        stockPoolRepository.findAllById(ids.stream().filter(id -> !products.containsKey(id)).collect(Collectors.toList()))
+            .forEach(pool -> stockPools.put(pool.getId(), pool));
+
+        List<CartLine> lines = new ArrayList<>(cart.size());
+        for (int i = 0; i < cart.size(); i++) {
+            lines.add(new CartLine(i + 1, cart.get(i)));
+        }
+        runParallel(lines, line -> resolveCartLine(line, products, stockPools));
+
+        // Lines are debited in cart order, each atomically; a line that no longer fits the credit is skipped
+        RetailerLimit balances = limit;
+        for (CartLine line : lines) {
+            if (line.error == null) {
+                line.orderId = new ObjectId().toHexString();
+                RetailerCreditService.DebitResult debit = retailerCreditService.debit(retailerId, line.totalAmount,
+                    line.request.getQuantity(), line.orderId,
+                    String.format("Direct Purchase: %s (x%d)", line.product.getName(), line.request.getQuantity()));
+                if (debit.isDebited()) {
+                    line.debited = true;
+                    balances = debit.getLimit();
+                } else {
+                    line.error = debit.getMessage();
+                }
+            }
+        }
+
+        runParallel(lines, line -> {
+            if (line.error == null) {
+                allocateCartLine(line, retailerId);
+            }
+        });
+
+        // Product stock only goes down while it lasts (StockPool counters are moved by the item claims)
+        runParallel(lines, line -> {
+            if (line.error == null && line.stockPool == null) {
+                takeProductStock(line);
+            }
+        });
+
+        for (CartLine line : lines) {
+            if (line.debited && line.error != null) {
+                releaseCartLine(line);
+                balances = reverseCartLine(retailerId, line);
+            }
+        }
+        List<CartLine> allocated = lines.stream().filter(line -> line.error == null).collect(Collectors.toList());
+        if (!allocated.isEmpty()) {
+            try {
+                writeCartOrders(limit, retailerId, allocated);
+            } catch (RuntimeException e) {
+                // Hand the stock, the allocated items and the credit back before failing the request
+                for (CartLine line : allocated) {
+                    restoreProductStock(line);
+                    releaseCartLine(line);
+                    reverseCartLine(retailerId, line);
+                }
+                throw e;
+            }
+        }
+
+        List<Map<String, Object>> results = new ArrayList<>(lines.size());
+        BigDecimal totalAmount = BigDecimal.ZERO;
+        int itemsAllocated = 0;
+        for (CartLine line : lines) {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("line", line.number);
+            result.put("productId", line.request.getProductId());
+            result.put("quantity", line.request.getQuantity());
+            result.put("success", line.error == null);
+            if (line.error == null) {
+                result.put("orderId", line.order.getId());
+                result.put("totalAmount", line.totalAmount);
+                result.put("itemsAllocated", line.allocatedItems.size());
+                result.put("allocatedItems", line.allocatedItems);
+                totalAmount = totalAmount.add(line.totalAmount);
+                itemsAllocated += line.allocatedItems.size();
+            } else {
+                result.put("message", line.error);
+            }
+            results.add(result);
+        }
+
+        long elapsedMs = System.currentTimeMillis() - startedAt;
+        System.out.println("🛒 Cart purchase for retailer " + retailerId + ": " + allocated.size() + "/" + lines.size()
+            + " line(s), " + itemsAllocated + " item(s), NOK " + totalAmount + " in " + elapsedMs + "ms");
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", !allocated.isEmpty());
+        response.put("lines", results);
+        response.put("linesPurchased", allocated.size());
+        response.put("linesFailed", lines.size() - allocated.size());
+        response.put("totalAmount", totalAmount);
+        response.put("itemsAllocated", itemsAllocated);
+        response.put("remainingCredit", balances.getAvailableCredit());
+        response.put("usagePercentage", calculateUsagePercentage(balances));
+        response.put("currentLevel", getLevelInfo(balances.getCreditLimit()));
+        response.put("elapsedMs", elapsedMs);
+        response.put("message", allocated.size() == lines.size()
+            ? "Purchase completed successfully! Items added to your inventory."
+            : allocated.size() + " of " + lines.size() + " products purchased, see the failed lines.");
+        return response;
+    }
+
+    private void resolveCartLine(CartLine line, Map<String, Product> products, Map<String, StockPool> stockPools) {
+        String id = line.request.getProductId();
+        int quantity = line.request.getQuantity();
+        Product product = products.get(id);
+        if (product != null) {
+            if (product.getStatus() != Product.ProductStatus.ACTIVE) {
+                throw new IllegalStateException("Product is not available for purchase");
+            }
+            if (product.getStockQuantity() < quantity) {
+                throw new IllegalStateException("Insufficient stock. Available: " + product.getStockQuantity());
+            }
         } else {
-            // Allocate from Product
-            if (product.getProductType() == Product.ProductType.EPIN) {
-                allocatedItems = allocatePins(product, request.getQuantity(), retailerId);
-            } else if (product.getProductType() == Product.ProductType.ESIM) {
-                allocatedItems = allocateEsims(product, request.getQuantity(), retailerId);
+            StockPool stockPool = stockPools.get(id);
+            if (stockPool == null) {
+                throw new NoSuchElementException("Product or Stock Pool not found with ID: " + id);
+            }
+            if (stockPool.getStatus() != StockPool.StockStatus.ACTIVE) {
+                throw new IllegalStateException("Stock pool is not available for purchase");
             }
+            if (stockPool.getAvailableQuantity() < quantity) {
+                throw new IllegalStateException("Insufficient stock. Available: " + stockPool.getAvailableQuantity());
+            }
+            product = convertStockPoolToProduct(stockPool);
+            line.stockPool = stockPool;
+        }
+        line.product = product;
+        line.unitPrice = product.getBasePrice();
+        line.totalAmount = line.unitPrice.multiply(new BigDecimal(quantity));
+    }
+
+    private void allocateCartLine(CartLine line, String retailerId) {
+        int quantity = line.request.getQuantity();
+        if (line.stockPool != null) {
+            line.claimedItems = stockAllocationBuffer.claimItems(line.stockPool.getId(), quantity, null, retailerId, null);
+            line.allocatedItems = encodeClaimedItems(line.stockPool, line.claimedItems);
+        } else if (line.product.getProductType() == Product.ProductType.EPIN) {
+            line.productPins = takePins(line.product, quantity, retailerId);
+            line.allocatedItems = line.productPins.stream().map(pin -> encryptPin(pin.getPinNumber())).collect(Collectors.toList());
+        } else if (line.product.getProductType() == Product.ProductType.ESIM) {
+            line.productEsims = takeEsims(line.product, quantity, retailerId);
+            line.allocatedItems = line.productEsims.stream().map(esim -> encryptQrCode(esim.getQrCodeUrl())).collect(Collectors.toList());
+        }
+    }
+
+    // Take a product line's stock, failing the line if another sale got there first
+    private void takeProductStock(CartLine line) {
+        int quantity = line.request.getQuantity();
+        UpdateResult result = mongoTemplate.updateFirst(
+            new Query(Criteria.where("_id").is(line.product.getId()).and("stockQuantity").gte(quantity)),
+            new Update().inc("stockQuantity", -quantity).inc("soldQuantity", quantity),
+            Product.class);
+        if (result.getModifiedCount() == 0) {
+            throw new IllegalStateException("Insufficient stock for " + line.product.getName());
+        }
+        line.stockTaken = true;
+    }
+
+    private void restoreProductStock(CartLine line) {
+        if (line.stockTaken) {
+            int quantity = line.request.getQuantity();
+            mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(line.product.getId())),
+                new Update().inc("stockQuantity", quantity).inc("soldQuantity", -quantity), Product.class);
+            line.stockTaken = false;
+        }
+    }
+
+    /**
+     * Put the items allocated to a failed line back: claimed stock items are released, product
+     * PINs/eSIMs marked unused again (only those array elements are written)
+     */
+    private void releaseCartLine(CartLine line) {
+        stockAllocationService.releaseItems(line.claimedItems);
+        line.claimedItems = List.of();
+
+        Query product = new Query(Criteria.where("_id").is(line.product.getId()));
+        if (!line.productPins.isEmpty()) {
+            List<String> pins = line.productPins.stream().map(Product.PinData::getPinNumber).collect(Collectors.toList());
+            mongoTemplate.updateFirst(product, new Update()
+                .set("availablePins.$[pin].isUsed", false)
+                .unset("availablePins.$[pin].usedDate")
+                .unset("availablePins.$[pin].usedByUserId")
+                .filterArray(Criteria.where("pin.pinNumber").in(pins)), Product.class);
+            line.productPins = List.of();
+        }
+        if (!line.productEsims.isEmpty()) {
+            List<String> iccids = line.productEsims.stream().map(Product.EsimData::getIccid).collect(Collectors.toList());
+            mongoTemplate.updateFirst(product, new Update()
+                .set("availableEsims.$[esim].isActivated", false)
+                .unset("availableEsims.$[esim].activatedDate")
+                .unset("availableEsims.$[esim].activatedByUserId")
+                .filterArray(Criteria.where("esim.iccid").in(iccids)), Product.class);
+            line.productEsims = List.of();
+        }
+    }
+
+    private RetailerLimit reverseCartLine(String retailerId, CartLine line) {
+        line.debited = false;
+        return retailerCreditService.reverseDebit(retailerId, line.totalAmount, line.request.getQuantity(), line.orderId,
+            "Purchase failed: " + line.product.getName() + " (x" + line.request.getQuantity() + ")");
+    }
+
+    /**
+     * Write the orders and retailer orders of the allocated (and debited) lines, one bulk insert per
+     * collection. Ids are assigned up front so that a failed insert can remove whatever was written.
+     */
+    private void writeCartOrders(RetailerLimit limit, String retailerId, List<CartLine> lines) {
+        List<Order> orders = new ArrayList<>(lines.size());
+        List<RetailerOrder> retailerOrders = new ArrayList<>(lines.size());
+        String orderNumber = "RO-" + System.currentTimeMillis();
+        for (CartLine line : lines) {
+            int quantity = line.request.getQuantity();
+            orders.add(newOrder(line.orderId, limit, line.product, line.stockPool, quantity, line.totalAmount,
+                line.allocatedItems));
+            RetailerOrder retailerOrder = newRetailerOrder(retailerId, orderNumber + "-" + line.number, line.product, line.stockPool,
+                quantity, line.unitPrice, line.totalAmount, line.allocatedItems);
+            retailerOrder.setId(new ObjectId().toHexString());
+            retailerOrders.add(retailerOrder);
+        }
+
+        try {
+            orders = new ArrayList<>(mongoTemplate.insert(orders, Order.class));
+            mongoTemplate.insert(retailerOrders, RetailerOrder.class);
+        } catch (RuntimeException e) {
+            List<String> orderIds = lines.stream().map(line -> line.orderId).collect(Collectors.toList());
+            List<String> retailerOrderIds = retailerOrders.stream().map(RetailerOrder::getId).collect(Collectors.toList());
+            mongoTemplate.remove(new Query(Criteria.where("_id").in(orderIds)), Order.class);
+            mongoTemplate.remove(new Query(Criteria.where("_id").in(retailerOrderIds)), RetailerOrder.class);
+            throw e;
+        }
+        for (int i = 0; i < lines.size(); i++) {
+            lines.get(i).order = orders.get(i);
         }
+    }
 
-        // Create order
+    private void runParallel(List<CartLine> lines, Consumer<CartLine> step) {
+        List<CompletableFuture<Void>> futures = new ArrayList<>(lines.size());
+        for (CartLine line : lines) {
+            futures.add(CompletableFuture.runAsync(() -> {
+                try {
+                    step.accept(line);
+                } catch (RuntimeException e) {
+                    line.error = e.getMessage();
+                }
+            }, cartExecutor));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+    }
+
+    private Order newOrder(String orderId, RetailerLimit limit, Product product, StockPool stockPool, int quantity,
+                           BigDecimal totalAmount, List<String> allocatedItems) {
         Order order = new Order();
+        order.setId(orderId); // Known up front: the credit debit references it
         order.setRetailer(limit.getRetailer());
         order.setProduct(product);
         order.setProductName(product.getName()); // Set product name explicitly
         order.setProductType(product.getProductType().toString()); // Set product type explicitly
-        order.setQuantity(request.getQuantity());
+        order.setQuantity(quantity);
         order.setAmount(totalAmount);
         order.setStatus(Order.OrderStatus.COMPLETED);
         order.setPaymentMethod("DIRECT"); // No payment required
@@ -329,17 +714,18 @@ public class RetailerPurchaseService {
         order.getMetadata().put("allocatedItems", String.join(",", allocatedItems));
         order.getMetadata().put("itemCount", String.valueOf(allocatedItems.size()));
         order.getMetadata().put("purchaseType", "DIRECT_BUY");
-        order.getMetadata().put("sourceType", isFromStockPool ? "STOCK_POOL" : "PRODUCT");
-        if (isFromStockPool) {
+        order.getMetadata().put("sourceType", stockPool != null ? "STOCK_POOL" : "PRODUCT");
+        if (stockPool != null) {
             order.getMetadata().put("stockPoolId", stockPool.getId());
         }
-        
-        Order savedOrder = orderRepository.save(order);
+        return order;
+    }
 
-        // ALSO CREATE RETAILER ORDER FOR INVENTORY TRACKING
+    private RetailerOrder newRetailerOrder(String retailerId, String orderNumber, Product product, StockPool stockPool, int quantity,
+                                           BigDecimal unitPrice, BigDecimal totalAmount, List<String> allocatedItems) {
         RetailerOrder retailerOrder = new RetailerOrder();
         retailerOrder.setRetailerId(retailerId);
-        retailerOrder.setOrderNumber("RO-" + System.currentTimeMillis());
+        retailerOrder.setOrderNumber(orderNumber);
         retailerOrder.setTotalAmount(totalAmount);
         retailerOrder.setCurrency("NOK");
         retailerOrder.setStatus(RetailerOrder.OrderStatus.COMPLETED);
@@ -354,13 +740,13 @@ public class RetailerPurchaseService {
         orderItem.setProductName(product.getName());
         orderItem.setProductType(product.getProductType().toString());
         orderItem.setCategory("bundle");
-        orderItem.setQuantity(request.getQuantity());
+        orderItem.setQuantity(quantity);
         orderItem.setUnitPrice(unitPrice);
         orderItem.setRetailPrice(unitPrice);
         
         // Set network provider from stock pool or product
         String networkProvider = null;
-        if (isFromStockPool && stockPool != null && stockPool.getNetworkProvider() != null) {
+        if (stockPool != null && stockPool.getNetworkProvider() != null) {
             networkProvider = stockPool.getNetworkProvider();
         } else if (product.getMetadata() != null && product.getMetadata().containsKey("networkProvider")) {
             networkProvider = product.getMetadata().get("networkProvider");
@@ -383,96 +769,58 @@ public class RetailerPurchaseService {
             retailerOrder.setNotes("ENCRYPTED_PINS:" + encryptedPins);
             System.out.println("📌 Stored " + allocatedItems.size() + " encrypted PINs in order");
         }
-        
-        // Save retailer order
-        RetailerOrder savedRetailerOrder = retailerOrderRepository.save(retailerOrder);
-        System.out.println("✅ Created RetailerOrder: " + savedRetailerOrder.getOrderNumber() + " with " + savedRetailerOrder.getItems().size() + " items");
-
-        // Update credit usage (for level tracking)
-        limit.useCredit(totalAmount, savedOrder.getId(), 
-            String.format("Direct Purchase: %s (x%d)", product.getName(), request.getQuantity()));
-        
-        // Reduce stock from admin inventory
-        if (isFromStockPool) {
-            // Update StockPool quantities
-            stockPool.setAvailableQuantity(stockPool.getAvailableQuantity() - request.getQuantity());
-            stockPool.setUsedQuantity((stockPool.getUsedQuantity() != null ? stockPool.getUsedQuantity() : 0) + request.getQuantity());
-            stockPoolRepository.save(stockPool);
-        } else {
-            // Update Product quantities
-            product.setStockQuantity(product.getStockQuantity() - request.getQuantity());
-            product.setSoldQuantity((product.getSoldQuantity() != null ? product.getSoldQuantity() : 0) + request.getQuantity());
-            productRepository.save(product);
-        }
+        return retailerOrder;
+    }
 
-        // Save updated limit (for level calculation)
-        RetailerLimit savedLimit = retailerLimitRepository.save(limit);
+    // One line of a cart purchase and what happened to it
+    private static final class CartLine {
 
-        // Calculate usage percentage for level display
-        BigDecimal usagePercent = calculateUsagePercentage(savedLimit);
+        private final int number;
+        private final RetailerPurchaseRequest request;
+        private Product product;
+        private StockPool stockPool;
+        private BigDecimal unitPrice;
+        private BigDecimal totalAmount;
+        private List<StockPool.StockItem> claimedItems = List.of();
+        private List<Product.PinData> productPins = List.of();
+        private List<Product.EsimData> productEsims = List.of();
+        private List<String> allocatedItems = List.of();
+        private boolean stockTaken;
+        private String orderId;
+        private boolean debited;
+        private Order order;
+        private String error;
 
-        // Prepare response
-        Map<String, Object> response = new HashMap<>();
-        response.put("success", true);
-        response.put("orderId", savedOrder.getId());
-        response.put("totalAmount", totalAmount);
-        response.put("itemsAllocated", allocatedItems.size());
-        response.put("allocatedItems", allocatedItems);
-        response.put("remainingCredit", savedLimit.getAvailableCredit());
-        response.put("usagePercentage", usagePercent);
-        response.put("currentLevel", getLevelInfo(savedLimit.getCreditLimit()));
-        response.put("message", "Purchase completed successfully! Items added to your inventory.");
-
-        return response;
+        CartLine(int number, RetailerPurchaseRequest request) {
+            this.number = number;
+            this.request = request;
+        }
     }
 
-    private List<String> allocatePins(Product product, int quantity, String retailerId) {
-        List<String> allocated = new ArrayList<>();
+    private List<Product.PinData> takePins(Product product, int quantity, String retailerId) {
+        List<Product.PinData> taken = new ArrayList<>();
         List<Product.PinData> availablePins = product.getAvailablePins();
         
         if (availablePins == null || availablePins.size() < quantity) {
             throw new IllegalStateException("Not enough PINs available");
         }
 
-        int count = 0;
         for (Product.PinData pin : availablePins) {
-            if (!pin.isUsed() && count < quantity) {
+            if (!pin.isUsed() && taken.size() < quantity) {
                 pin.setUsed(true);
                 pin.setUsedDate(LocalDateTime.now());
                 pin.setUsedByUserId(retailerId);
-                allocated.add(encryptPin(pin.getPinNumber()));
-                count++;
+                taken.add(pin);
             }
         }
 
         productRepository.save(product);
-        return allocated;
+        return taken;
     }
     
-    private List<String> allocateFromStockPool(StockPool stockPool, int quantity, String retailerId) {
+    private List<String> encodeClaimedItems(StockPool stockPool, List<StockPool.StockItem> claimedItems) {
         List<String> allocated = new ArrayList<>();
-        List<StockPool.StockItem> items = stockPool.getItems();
-        
-        if (items == null || items.isEmpty()) {
-            throw new IllegalStateException("No items available in stock pool");
-        }
-        
-        // Filter available items
-        List<StockPool.StockItem> availableItems = items.stream()
-            .filter(item -> item.getStatus() == StockPool.StockItem.ItemStatus.AVAILABLE)
-            .limit(quantity)
-            .collect(java.util.stream.Collectors.toList());
-        
-        if (availableItems.size() < quantity) {
-            throw new IllegalStateException("Not enough items available in stock pool. Requested: " + quantity + ", Available: " + availableItems.size());
-        }
-        
-        // Allocate items
-        for (StockPool.StockItem item : availableItems) {
-            item.setStatus(StockPool.StockItem.ItemStatus.ASSIGNED);
-            item.setAssignedDate(LocalDateTime.now());
-            item.setAssignedToUserId(retailerId);
-            
+        for (StockPool.StockItem item : claimedItems) {
             // Add encrypted data to allocated list
             if (stockPool.getStockType() == StockPool.StockType.EPIN) {
                 allocated.add(encryptPin(item.getItemData()));
@@ -482,31 +830,28 @@ public class RetailerPurchaseService {
             }
         }
         
-        stockPoolRepository.save(stockPool);
         return allocated;
     }
 
-    private List<String> allocateEsims(Product product, int quantity, String retailerId) {
-        List<String> allocated = new ArrayList<>();
+    private List<Product.EsimData> takeEsims(Product product, int quantity, String retailerId) {
+        List<Product.EsimData> taken = new ArrayList<>();
         List<Product.EsimData> availableEsims = product.getAvailableEsims();
         
         if (availableEsims == null || availableEsims.size() < quantity) {
             throw new IllegalStateException("Not enough eSIMs available");
         }
 
-        int count = 0;
         for (Product.EsimData esim : availableEsims) {
-            if (!esim.isActivated() && count < quantity) {
+            if (!esim.isActivated() && taken.size() < quantity) {
                 esim.setActivated(true);
                 esim.setActivatedDate(LocalDateTime.now()); // This method exists
                 esim.setActivatedByUserId(retailerId);
-                allocated.add(encryptQrCode(esim.getQrCodeUrl())); // Use getQrCodeUrl() instead
-                count++;
+                taken.add(esim);
             }
         }
 
         productRepository.save(product);
-        return allocated;
+        return taken;
     }
 
     private String encryptPin(String pin) {
@@ -520,15 +865,12 @@ public class RetailerPurchaseService {
         // Return the actual PIN from storage
         if (encryptedPin.startsWith("ENCRYPTED:")) {
             String afterPrefix = encryptedPin.substring("ENCRYPTED:".length());
-            // Try to base64 decode it (PINs might have been base64 encoded)
+            // Stock item data: AES-GCM or legacy Base64
             try {
-                byte[] decoded = java.util.Base64.getDecoder().decode(afterPrefix);
-                String decodedPin = new String(decoded);
-                System.out.println("🔓 Decrypting ENCRYPTED: " + encryptedPin + " -> " + decodedPin);
-                return decodedPin;
+                return stockCryptoService.decrypt(afterPrefix);
             } catch (Exception e) {
-                // Not base64, return as-is
-                System.out.println("🔓 Decrypting ENCRYPTED (not base64): " + encryptedPin + " -> " + afterPrefix);
+                // Not encrypted, return as-is
+                System.out.println("🔓 ENCRYPTED PIN is plain text, returning as-is");
                 return afterPrefix;
             }
         }
@@ -15,6 +15,10 @@ import com.example.topup.demo.repository.RetailerOrderRepository;
 import com.example.topup.demo.repository.RetailerLimitRepository;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
@@ -44,6 +48,11 @@ public class RetailerService {
     
     @Autowired
     private RetailerLimitRepository retailerLimitRepository;
+    
+    @Autowired
+    private MongoTemplate mongoTemplate;
+    
+    private static final int MAX_SALE_REFS = 500;
 
     // Get all orders for a retailer
     public List<Order> getOrdersByRetailer(User retailer) {
@@ -516,8 +525,18 @@ public class RetailerService {
      */
     public void recordProfit(User retailer, BigDecimal saleAmount, BigDecimal costPrice, 
                             String bundleName, String bundleId, Double marginRate) {
+        recordProfit(retailer, saleAmount, costPrice, bundleName, bundleId, marginRate, LocalDate.now(), null);
+    }
+    
+    /**
+     * Record profit from a sale made on {@code saleDate}, at most once per record for
+     * {@code saleReference} (null: no check)
+     */
+    public void recordProfit(User retailer, BigDecimal saleAmount, BigDecimal costPrice, 
+                            String bundleName, String bundleId, Double marginRate,
+                            LocalDate saleDate, String saleReference) {
         try {
-            LocalDate today = LocalDate.now();
+            LocalDate today = saleDate;
             int currentYear = today.getYear();
             int currentMonth = today.getMonthValue();
             
@@ -535,20 +554,24 @@ public class RetailerService {
             
             // Record daily profit
             updateProfitRecord(retailer, "daily", today, currentYear, currentMonth, 
-                             saleAmount, costPrice, profit, bundleName, bundleId, marginRate);
+                             saleAmount, costPrice, profit, bundleName, bundleId, marginRate, saleReference);
             
             // Record monthly profit
             updateProfitRecord(retailer, "monthly", null, currentYear, currentMonth,
-                             saleAmount, costPrice, profit, bundleName, bundleId, marginRate);
+                             saleAmount, costPrice, profit, bundleName, bundleId, marginRate, saleReference);
             
             // Record yearly profit
             updateProfitRecord(retailer, "yearly", null, currentYear, null,
-                             saleAmount, costPrice, profit, bundleName, bundleId, marginRate);
+                             saleAmount, costPrice, profit, bundleName, bundleId, marginRate, saleReference);
             
             System.out.println("✅ Profit recorded: " + profit + " kr for " + bundleName);
         } catch (Exception e) {
             System.err.println("❌ Error recording profit: " + e.getMessage());
             e.printStackTrace();
+            if (saleReference != null) {
+                // Safe to retry: records that already counted the sale skip it
+                throw new IllegalStateException("Profit not recorded: " + e.getMessage(), e);
+            }
         }
     }
     
@@ -558,7 +581,38 @@ public class RetailerService {
     private void updateProfitRecord(User retailer, String period, LocalDate date, 
                                    Integer year, Integer month, BigDecimal revenue, 
                                    BigDecimal cost, BigDecimal profit, String bundleName,
-                                   String bundleId, Double marginRate) {
+                                   String bundleId, Double marginRate, String saleReference) {
+        for (int attempt = 0; attempt < 3; attempt++) {
+            RetailerProfit profitRecord = findProfitRecord(retailer, period, date, year, month);
+            if (profitRecord == null || saleReference == null) {
+                saveProfitRecord(profitRecord, retailer, period, date, year, month, revenue, cost, bundleName, bundleId, marginRate, saleReference);
+                return;
+            }
+            if (profitRecord.getRecentSaleRefs() != null && profitRecord.getRecentSaleRefs().contains(saleReference)) {
+                System.out.println("⏭️ Sale " + saleReference + " already in " + period + " profit");
+                return;
+            }
+            
+            // Add the sale only while no other sale changed the record, marking it counted in the same update
+            Integer seenCount = profitRecord.getSalesCount();
+            profitRecord.addSale(revenue, cost, marginRate);
+            Update update = new Update()
+                .set("revenue", profitRecord.getRevenue())
+                .set("costPrice", profitRecord.getCostPrice())
+                .set("profit", profitRecord.getProfit())
+                .set("salesCount", profitRecord.getSalesCount())
+                .set("marginRate", profitRecord.getMarginRate())
+                .set("updatedAt", profitRecord.getUpdatedAt());
+            update.push("recentSaleRefs").slice(-MAX_SALE_REFS).each(saleReference);
+            Query unchanged = new Query(Criteria.where("_id").is(profitRecord.getId()).and("salesCount").is(seenCount));
+            if (mongoTemplate.updateFirst(unchanged, update, RetailerProfit.class).getMatchedCount() > 0) {
+                return;
+            }
+        }
+        throw new IllegalStateException("Profit record is being updated by another sale, please retry");
+    }
+    
+    private RetailerProfit findProfitRecord(User retailer, String period, LocalDate date, Integer year, Integer month) {
         RetailerProfit profitRecord = null;
         
         // Find existing record
@@ -572,7 +626,12 @@ public class RetailerService {
             profitRecord = profitRepository.findByRetailer_IdAndYearAndPeriod(
                 retailer.getId(), year, period).orElse(null);
         }
-        
+        return profitRecord;
+    }
+    
+    private void saveProfitRecord(RetailerProfit profitRecord, User retailer, String period, LocalDate date,
+                                  Integer year, Integer month, BigDecimal revenue, BigDecimal cost,
+                                  String bundleName, String bundleId, Double marginRate, String saleReference) {
         // Create new record if doesn't exist
         if (profitRecord == null) {
             profitRecord = new RetailerProfit();
@@ -587,6 +646,9 @@ public class RetailerService {
         
         // Add this sale's data
         profitRecord.addSale(revenue, cost, marginRate);
+        if (saleReference != null) {
+            profitRecord.getRecentSaleRefs().add(saleReference);
+        }
         
         // Save to database
         profitRepository.save(profitRecord);
@@ -0,0 +1,190 @@
+package com.example.topup.demo.service;
+
+import jakarta.annotation.PreDestroy;
+import jakarta.mail.Address;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.MimeMessage;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.mail.MailPreparationException;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.stereotype.Service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Small pool of connected, authenticated SMTP transports.
+ *
+ * JavaMailSender.send opens a connection (TCP, STARTTLS, AUTH) for every message; MailQueueService
+ * instead acquire()s a lease and sends a whole batch over it. A connection is closed and replaced
+ * after app.mail.smtp.pool.max-messages-per-connection messages, after any send error and when it
+ * sat idle longer than app.mail.smtp.pool.idle-timeout-ms (servers drop idle clients). With
+ * app.mail.smtp.pool.enabled=false, or a sender that is not a JavaMailSenderImpl, a lease simply
+ * calls JavaMailSender.send.
+ */
+@Service
+public class SmtpTransportPool {
+
+    private final JavaMailSender mailSender;
+    private final JavaMailSenderImpl smtp; // null when not pooling
+    private final int size;
+    private final int maxMessagesPerConnection;
+    private final long idleTimeoutMs;
+
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong recycled = new AtomicLong();
+    private final AtomicLong broken = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+
+    public SmtpTransportPool(JavaMailSender mailSender,
+                             @Value("${app.mail.smtp.pool.enabled:true}") boolean enabled,
+                             @Value("${app.mail.smtp.pool.size:4}") int size,
+                             @Value("${app.mail.smtp.pool.max-messages-per-connection:100}") int maxMessagesPerConnection,
+                             @Value("${app.mail.smtp.pool.idle-timeout-ms:30000}") long idleTimeoutMs) {
+        this.mailSender = mailSender;
+        this.smtp = enabled && mailSender instanceof JavaMailSenderImpl ? (JavaMailSenderImpl) mailSender : null;
+        this.size = Math.max(1, size);
+        this.maxMessagesPerConnection = Math.max(1, maxMessagesPerConnection);
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.permits = new Semaphore(this.size);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        Connection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Take one of the pool's connections, waiting while all are leased. Close the lease to return it.
+     */
+    public Lease acquire() throws InterruptedException {
+        permits.acquire();
+        return new Lease(idle.pollFirst()); // Most recently used first, so spare connections go idle
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("pooled", smtp != null);
+        metrics.put("size", size);
+        metrics.put("idle", idle.size());
+        metrics.put("opened", opened.get());
+        metrics.put("recycled", recycled.get());
+        metrics.put("broken", broken.get());
+        metrics.put("sent", sent.get());
+        long connections = opened.get();
+        metrics.put("messagesPerConnection", connections > 0 ? (double) sent.get() / connections : 0.0);
+        return metrics;
+    }
+
+    /**
+     * Exclusive use of one connection; not thread-safe
+     */
+    public class Lease implements AutoCloseable {
+
+        private Connection connection;
+
+        private Lease(Connection connection) {
+            this.connection = connection;
+        }
+
+        public void send(MimeMessage message) {
+            if (smtp == null) {
+                mailSender.send(message);
+                sent.incrementAndGet();
+                return;
+            }
+            Address[] recipients;
+            try {
+                recipients = message.getAllRecipients();
+            } catch (MessagingException e) {
+                throw new MailPreparationException("Could not read the recipients: " + e.getMessage(), e);
+            }
+            if (recipients == null || recipients.length == 0) {
+                throw new MailPreparationException("Message has no recipients");
+            }
+
+            try {
+                if (connection != null && System.currentTimeMillis() - connection.lastUsed > idleTimeoutMs) {
+                    connection.close();
+                    connection = null;
+                }
+                if (connection == null) {
+                    connection = open();
+                }
+                connection.transport.sendMessage(message, recipients);
+            } catch (MessagingException e) {
+                // Never reuse a connection after an error: its SMTP state is unknown
+                broken.incrementAndGet();
+                if (connection != null) {
+                    connection.close();
+                    connection = null;
+                }
+                throw new MailSendException("SMTP send failed: " + e.getMessage(), e);
+            }
+
+            sent.incrementAndGet();
+            connection.lastUsed = System.currentTimeMillis();
+            if (++connection.messages >= maxMessagesPerConnection) {
+                recycled.incrementAndGet();
+                connection.close();
+                connection = null;
+            }
+        }
+
+        @Override
+        public void close() {
+            if (connection != null) {
+                idle.offerFirst(connection);
+                connection = null;
+            }
+            permits.release();
+        }
+    }
+
+    // Connect and authenticate the way JavaMailSenderImpl does for each send
+    private Connection open() throws MessagingException {
+        Transport transport = smtp.getSession().getTransport(smtp.getProtocol() != null ? smtp.getProtocol() : "smtp");
+        String username = smtp.getUsername();
+        String password = smtp.getPassword();
+        if ("".equals(username)) {
+            username = null;
+            if ("".equals(password)) {
+                password = null;
+            }
+        }
+        transport.connect(smtp.getHost(), smtp.getPort(), username, password);
+        opened.incrementAndGet();
+        return new Connection(transport);
+    }
+
+    private static final class Connection {
+
+        private final Transport transport;
+        private int messages;
+        private long lastUsed = System.currentTimeMillis();
+
+        Connection(Transport transport) {
+            this.transport = transport;
+        }
+
+        void close() {
+            try {
+                transport.close();
+            } catch (MessagingException e) {
+                // Already unusable
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.StockPool.StockItem;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.net.InetAddress;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Optional in-memory allocation buffer for hot stock pools.
+ *
+ * For every pool listed in app.stock.buffer.pools a background job keeps a bounded queue of
+ * item ids that this node has moved to RESERVED under a lease. A sale then only pops an id and
+ * confirms it (RESERVED -> ASSIGNED/USED) instead of searching the pool for a free item.
+ * Pools that are not buffered, or an empty buffer, fall back to StockAllocationService directly.
+ *
+ * Leases are renewed while the node is alive; if it dies, releaseExpiredLeases() on any other
+ * node puts the items back to AVAILABLE.
+ */
+@Service
+public class StockAllocationBuffer {
+
+    @Autowired
+    private StockAllocationService stockAllocationService;
+
+    @Value("${app.stock.buffer.pools:}")
+    private String bufferedPools;
+
+    @Value("${app.stock.buffer.capacity:100}")
+    private int capacity;
+
+    @Value("${app.stock.buffer.refill-batch:25}")
+    private int refillBatch;
+
+    @Value("${app.stock.buffer.lease-seconds:300}")
+    private long leaseSeconds;
+
+    private final String nodeId = resolveNodeId();
+    private final Map<String, PoolBuffer> buffers = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        for (String poolId : bufferedPools.split(",")) {
+            if (!poolId.isBlank()) {
+                buffers.put(poolId.trim(), new PoolBuffer());
+            }
+        }
+        if (!buffers.isEmpty()) {
+            System.out.println("📦 Stock allocation buffer enabled for " + buffers.size() + " pool(s) on node " + nodeId);
+        }
+    }
+
+    /**
+     * Claim the next item of a pool, from the buffer when the pool is buffered
+     */
+    public Optional<StockItem> claimNextItem(String poolId, StockItem.ItemStatus newStatus, String orderId, String userId, String userEmail) {
+        PoolBuffer buffer = buffers.get(poolId);
+        if (buffer == null) {
+            return stockAllocationService.claimNextItem(poolId, newStatus, orderId, userId, userEmail);
+        }
+
+        String itemId;
+        while ((itemId = buffer.poll()) != null) {
+            Optional<StockItem> item = stockAllocationService.confirmReservedItem(
+                poolId, itemId, nodeId, newStatus, orderId, userId, userEmail);
+            if (item.isPresent()) {
+                buffer.hits.increment();
+                return item;
+            }
+            // Lease expired and the item went back to the pool - try the next one
+            buffer.lostLeases.increment();
+        }
+
+        buffer.misses.increment();
+        return stockAllocationService.claimNextItem(poolId, newStatus, orderId, userId, userEmail);
+    }
+
+    /**
+     * Claim {@code quantity} items of a pool, all or nothing
+     */
+    public List<StockItem> claimItems(String poolId, int quantity, String orderId, String userId, String userEmail) {
+        if (!buffers.containsKey(poolId)) {
+            return stockAllocationService.claimItems(poolId, quantity, orderId, userId, userEmail);
+        }
+        if (quantity <= 0) {
+            throw new IllegalArgumentException("Quantity must be at least 1");
+        }
+
+        List<StockItem> claimed = new ArrayList<>(quantity);
+        for (int i = 0; i < quantity; i++) {
+            Optional<StockItem> item = claimNextItem(poolId, StockItem.ItemStatus.ASSIGNED, orderId, userId, userEmail);
+            if (!item.isPresent()) {
+                stockAllocationService.releaseItems(claimed);
+                throw new IllegalStateException("Not enough items available in stock pool. Requested: " + quantity + ", Available: " + claimed.size());
+            }
+            claimed.add(item.get());
+        }
+        return claimed;
+    }
+
+    /**
+     * Top up every buffer and keep this node's leases alive
+     */
+    @Scheduled(fixedDelayString = "${app.stock.buffer.refill-interval-ms:1000}")
+    public void refill() {
+        for (Map.Entry<String, PoolBuffer> entry : buffers.entrySet()) {
+            String poolId = entry.getKey();
+            PoolBuffer buffer = entry.getValue();
+            try {
+                LocalDateTime leaseExpiresAt = LocalDateTime.now().plusSeconds(leaseSeconds);
+
+                // Renew at a third of the lease so a slow refill never lets live leases lapse
+                long now = System.currentTimeMillis();
+                if (now - buffer.lastRenewal.get() > leaseSeconds * 1000 / 3) {
+                    stockAllocationService.renewLeases(poolId, nodeId, leaseExpiresAt);
+                    buffer.lastRenewal.set(now);
+                }
+
+                int free = capacity - buffer.depth.get();
+                if (free <= 0) {
+                    continue;
+                }
+
+                long start = System.nanoTime();
+                List<String> reserved = stockAllocationService.reserveItems(
+                    poolId, Math.min(free, refillBatch), nodeId, leaseExpiresAt);
+                long elapsedMicros = (System.nanoTime() - start) / 1000;
+
+                for (String itemId : reserved) {
+                    buffer.offer(itemId);
+                }
+                if (!reserved.isEmpty()) {
+                    buffer.refills.increment();
+                    buffer.refillMicrosTotal.add(elapsedMicros);
+                    buffer.lastRefillMicros.set(elapsedMicros);
+                }
+            } catch (Exception e) {
+                System.err.println("❌ Failed to refill allocation buffer for pool " + poolId + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Runs on every node so leases of a dead node are returned to the pool
+     */
+    @Scheduled(fixedDelayString = "${app.stock.buffer.lease-sweep-interval-ms:60000}")
+    public void releaseExpiredLeases() {
+        try {
+            long released = stockAllocationService.releaseExpiredLeases();
+            if (released > 0) {
+                System.out.println("↩️ Released " + released + " stock item(s) with expired allocation leases");
+            }
+        } catch (Exception e) {
+            System.err.println("❌ Failed to release expired allocation leases: " + e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (buffers.isEmpty()) {
+            return;
+        }
+        buffers.values().forEach(PoolBuffer::clear);
+        long released = stockAllocationService.releaseLeases(nodeId);
+        System.out.println("↩️ Allocation buffer shut down - released " + released + " reserved item(s)");
+    }
+
+    /**
+     * Queue depth, refill latency and hit/miss counters per buffered pool
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> pools = new HashMap<>();
+        for (Map.Entry<String, PoolBuffer> entry : buffers.entrySet()) {
+            PoolBuffer buffer = entry.getValue();
+            long refills = buffer.refills.sum();
+
+            Map<String, Object> poolMetrics = new HashMap<>();
+            poolMetrics.put("queueDepth", buffer.depth.get());
+            poolMetrics.put("capacity", capacity);
+            poolMetrics.put("hits", buffer.hits.sum());
+            poolMetrics.put("misses", buffer.misses.sum());
+            poolMetrics.put("lostLeases", buffer.lostLeases.sum());
+            poolMetrics.put("refills", refills);
+            poolMetrics.put("lastRefillMicros", buffer.lastRefillMicros.get());
+            poolMetrics.put("avgRefillMicros", refills == 0 ? 0 : buffer.refillMicrosTotal.sum() / refills);
+            pools.put(entry.getKey(), poolMetrics);
+        }
+
+        Map<String, Object> metrics = new HashMap<>();
+        metrics.put("nodeId", nodeId);
+        metrics.put("enabled", !buffers.isEmpty());
+        metrics.put("leaseSeconds", leaseSeconds);
+        metrics.put("pools", pools);
+        return metrics;
+    }
+
+    private static String resolveNodeId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            host = "node";
+        }
+        return host + "-" + UUID.randomUUID().toString().substring(0, 8);
+    }
+
+    /**
+     * Lock-free queue of reserved item ids; only the refill job adds, so depth stays within capacity
+     */
+    private static class PoolBuffer {
+        private final Queue<String> itemIds = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger depth = new AtomicInteger();
+        private final AtomicLong lastRenewal = new AtomicLong();
+        private final AtomicLong lastRefillMicros = new AtomicLong();
+        private final LongAdder refillMicrosTotal = new LongAdder();
+        private final LongAdder refills = new LongAdder();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder lostLeases = new LongAdder();
+
+        String poll() {
+            String itemId = itemIds.poll();
+            if (itemId != null) {
+                depth.decrementAndGet();
+            }
+            return itemId;
+        }
+
+        void offer(String itemId) {
+            itemIds.offer(itemId);
+            depth.incrementAndGet();
+        }
+
+        void clear() {
+            itemIds.clear();
+            depth.set(0);
+        }
+    }
+}
@@ -0,0 +1,420 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.StockPool.StockItem;
+import com.example.topup.demo.entity.StockPool;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Claims stock items with conditional find-and-modify updates.
+ * An item is only handed out if its status is still AVAILABLE at the moment of the write,
+ * so two terminals selling from the same pool can never receive the same PIN/eSIM.
+ * Every status change is followed by the matching pool counter update (StockCounterService).
+ * Which AVAILABLE item is taken is decided by the configured StockAllocationStrategy;
+ * in sharded pools (StockShardService) each strategy attempt is tried bucket by bucket, and
+ * the pool as a whole only once all buckets are exhausted.
+ */
+@Service
+public class StockAllocationService {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private StockCounterService stockCounterService;
+
+    @Autowired
+    private StockShardService stockShardService;
+
+    @Autowired
+    private List<StockAllocationStrategy> strategies;
+
+    @Value("${app.stock.allocation.strategy:fefo}")
+    private String strategyName;
+
+    private StockAllocationStrategy strategy;
+
+    @PostConstruct
+    public void init() {
+        strategy = strategies.stream()
+            .filter(candidate -> candidate.getName().equals(strategyName))
+            .findFirst()
+            .orElseThrow(() -> new IllegalStateException("Unknown app.stock.allocation.strategy: " + strategyName));
+        System.out.println("📦 Stock allocation strategy: " + strategy.getName());
+    }
+
+    /**
+     * Claim the next {@code quantity} available items of a pool for an order.
+     * Either all items are claimed or none: on shortage the partial claim is released
+     * and an IllegalStateException is thrown.
+     */
+    public List<StockItem> claimItems(String poolId, int quantity, String orderId, String userId, String userEmail) {
+        if (quantity <= 0) {
+            throw new IllegalArgumentException("Quantity must be at least 1");
+        }
+
+        List<StockItem> claimed = new ArrayList<>(quantity);
+        for (int i = 0; i < quantity; i++) {
+            Optional<StockItem> item = claimNextItem(poolId, StockItem.ItemStatus.ASSIGNED, orderId, userId, userEmail);
+            if (!item.isPresent()) {
+                releaseItems(claimed);
+                throw new IllegalStateException("Not enough items available in stock pool. Requested: " + quantity + ", Available: " + claimed.size());
+            }
+            claimed.add(item.get());
+        }
+
+        return claimed;
+    }
+
+    /**
+     * Claim the next available item of a pool, moving it to {@code newStatus}.
+     * Returns empty when the pool has no AVAILABLE item left.
+     */
+    public Optional<StockItem> claimNextItem(String poolId, StockItem.ItemStatus newStatus, String orderId, String userId, String userEmail) {
+        return claimFirst(List.of(poolId), newStatus, orderId, userId, userEmail);
+    }
+
+    /**
+     * Claim the next available item across all pools of a product, in strategy order (e.g. FEFO).
+     * Returns empty when none of the product's pools has an AVAILABLE item.
+     */
+    public Optional<StockItem> claimNextItemForProduct(String productId, StockPool.StockType stockType, StockItem.ItemStatus newStatus,
+                                                       String orderId, String userId, String userEmail) {
+        List<String> poolIds = getProductPoolIds(productId, stockType);
+        return poolIds.isEmpty() ? Optional.empty() : claimFirst(poolIds, newStatus, orderId, userId, userEmail);
+    }
+
+    /**
+     * Ids of every pool holding stock of a product
+     */
+    public List<String> getProductPoolIds(String productId, StockPool.StockType stockType) {
+        Query query = new Query(Criteria.where("productId").is(productId).and("stockType").is(stockType));
+        query.fields().include("_id");
+        List<String> poolIds = new ArrayList<>();
+        for (StockPool pool : mongoTemplate.find(query, StockPool.class)) {
+            poolIds.add(pool.getId());
+        }
+        return poolIds;
+    }
+
+    private Optional<StockItem> claimFirst(List<String> poolIds, StockItem.ItemStatus newStatus, String orderId, String userId, String userEmail) {
+        // Sharded pools: start in the terminal/retailer's bucket, then steal from its siblings
+        int shardCount = stockShardService.getShardCount(poolIds);
+        int[] buckets = shardCount > 1
+            ? stockShardService.claimOrder(userId != null ? userId : userEmail != null ? userEmail : orderId, shardCount)
+            : new int[0];
+
+        List<StockAllocationStrategy.ClaimAttempt> attempts = strategy.plan(poolIds);
+        for (StockAllocationStrategy.ClaimAttempt attempt : attempts) {
+            for (int i = 0; i < buckets.length; i++) {
+                StockItem item = claim(available(attempt).addCriteria(Criteria.where("shard").is(buckets[i])),
+                    newStatus, orderId, userId, userEmail);
+                if (item != null) {
+                    stockShardService.recordClaim(i);
+                    return Optional.of(item);
+                }
+            }
+        }
+        // The whole pool when it is not sharded; otherwise, once every bucket is dry, items not (yet) dealt into one
+        for (StockAllocationStrategy.ClaimAttempt attempt : attempts) {
+            StockItem item = claim(available(attempt), newStatus, orderId, userId, userEmail);
+            if (item != null) {
+                if (shardCount > 1) {
+                    stockShardService.recordUnbucketedClaim();
+                }
+                return Optional.of(item);
+            }
+        }
+        return Optional.empty();
+    }
+
+    private StockItem claim(Query query, StockItem.ItemStatus newStatus, String orderId, String userId, String userEmail) {
+        StockItem item = mongoTemplate.findAndModify(
+            query,
+            assignment(newStatus, orderId, userId, userEmail),
+            FindAndModifyOptions.options().returnNew(true),
+            StockItem.class
+        );
+        if (item != null) {
+            stockCounterService.recordTransition(item.getPoolId(), StockItem.ItemStatus.AVAILABLE, newStatus, 1);
+        }
+        return item;
+    }
+
+    /**
+     * Claim one specific item, moving it from AVAILABLE to {@code newStatus}.
+     * Returns empty if the item does not exist in the pool or was already taken.
+     */
+    public Optional<StockItem> claimItem(String poolId, String itemId, StockItem.ItemStatus newStatus, String orderId, String userEmail) {
+        Query query = new Query(Criteria.where("_id").is(itemId)
+            .and("poolId").is(poolId)
+            .and("status").is(StockItem.ItemStatus.AVAILABLE));
+
+        StockItem item = mongoTemplate.findAndModify(
+            query,
+            assignment(newStatus, orderId, null, userEmail),
+            FindAndModifyOptions.options().returnNew(true),
+            StockItem.class
+        );
+        if (item != null) {
+            stockCounterService.recordTransition(poolId, StockItem.ItemStatus.AVAILABLE, newStatus, 1);
+        }
+        return Optional.ofNullable(item);
+    }
+
+    /**
+     * Move up to {@code count} AVAILABLE items of a pool to RESERVED under a lease held by {@code leaseOwner}.
+     * Only the item ids are returned so large eSIM documents are not pulled into memory.
+     */
+    public List<String> reserveItems(String poolId, int count, String leaseOwner, LocalDateTime leaseExpiresAt) {
+        List<String> reserved = new ArrayList<>(count);
+        Update reservation = reservation(StockItem.ItemStatus.RESERVED, leaseOwner, leaseExpiresAt);
+
+        // Reserve in strategy order, so a buffer hands out items in the same order as a direct claim
+        for (StockAllocationStrategy.ClaimAttempt attempt : strategy.plan(List.of(poolId))) {
+            while (reserved.size() < count) {
+                Query query = available(attempt);
+                query.fields().include("_id");
+
+                StockItem item = mongoTemplate.findAndModify(query, reservation,
+                    FindAndModifyOptions.options().returnNew(true), StockItem.class);
+                if (item == null) {
+                    break;
+                }
+                reserved.add(item.getItemId());
+            }
+        }
+        stockCounterService.recordTransition(poolId, StockItem.ItemStatus.AVAILABLE, StockItem.ItemStatus.RESERVED, reserved.size());
+        return reserved;
+    }
+
+    /**
+     * Take the next available item across several pools off sale (HELD), in strategy order, under a lease.
+     * Only the item id and pool id are loaded.
+     */
+    public Optional<StockItem> holdNextItem(List<String> poolIds, String leaseOwner, LocalDateTime leaseExpiresAt) {
+        if (poolIds.isEmpty()) {
+            return Optional.empty();
+        }
+        for (StockAllocationStrategy.ClaimAttempt attempt : strategy.plan(poolIds)) {
+            Query query = available(attempt);
+            query.fields().include("_id").include("poolId");
+
+            StockItem item = mongoTemplate.findAndModify(query, reservation(StockItem.ItemStatus.HELD, leaseOwner, leaseExpiresAt),
+                FindAndModifyOptions.options().returnNew(true), StockItem.class);
+            if (item != null) {
+                stockCounterService.recordTransition(item.getPoolId(), StockItem.ItemStatus.AVAILABLE, StockItem.ItemStatus.HELD, 1);
+                return Optional.of(item);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Return one HELD item to AVAILABLE if {@code leaseOwner} still holds it.
+     * Returns false when the item was confirmed or released in the meantime.
+     */
+    public boolean releaseHold(String itemId, String leaseOwner) {
+        Query query = new Query(Criteria.where("_id").is(itemId)
+            .and("status").is(StockItem.ItemStatus.HELD)
+            .and("leaseOwner").is(leaseOwner));
+        query.fields().include("poolId");
+
+        StockItem item = mongoTemplate.findAndModify(query, releaseLease(),
+            FindAndModifyOptions.options().returnNew(true), StockItem.class);
+        if (item == null) {
+            return false;
+        }
+        stockCounterService.recordTransition(item.getPoolId(), StockItem.ItemStatus.HELD, StockItem.ItemStatus.AVAILABLE, 1);
+        return true;
+    }
+
+    /**
+     * Turn a RESERVED item held by {@code leaseOwner} into a sale.
+     * Returns empty if the lease was lost in the meantime (expired and released).
+     */
+    public Optional<StockItem> confirmReservedItem(String poolId, String itemId, String leaseOwner, StockItem.ItemStatus newStatus,
+                                                   String orderId, String userId, String userEmail) {
+        return confirmLeasedItem(StockItem.ItemStatus.RESERVED, poolId, itemId, leaseOwner, newStatus, orderId, userId, userEmail);
+    }
+
+    /**
+     * Turn a HELD item held by {@code leaseOwner} into a sale.
+     * Returns empty if the hold was lost in the meantime (expired and released).
+     */
+    public Optional<StockItem> confirmHeldItem(String poolId, String itemId, String leaseOwner, StockItem.ItemStatus newStatus,
+                                               String orderId, String userId, String userEmail) {
+        return confirmLeasedItem(StockItem.ItemStatus.HELD, poolId, itemId, leaseOwner, newStatus, orderId, userId, userEmail);
+    }
+
+    private Optional<StockItem> confirmLeasedItem(StockItem.ItemStatus leasedStatus, String poolId, String itemId, String leaseOwner,
+                                                  StockItem.ItemStatus newStatus, String orderId, String userId, String userEmail) {
+        Query query = new Query(Criteria.where("_id").is(itemId)
+            .and("poolId").is(poolId)
+            .and("status").is(leasedStatus)
+            .and("leaseOwner").is(leaseOwner));
+
+        StockItem item = mongoTemplate.findAndModify(
+            query,
+            assignment(newStatus, orderId, userId, userEmail).unset("leaseOwner").unset("leaseExpiresAt"),
+            FindAndModifyOptions.options().returnNew(true),
+            StockItem.class
+        );
+        if (item != null) {
+            stockCounterService.recordTransition(poolId, leasedStatus, newStatus, 1);
+        }
+        return Optional.ofNullable(item);
+    }
+
+    /**
+     * Extend every lease {@code leaseOwner} holds in a pool
+     */
+    public long renewLeases(String poolId, String leaseOwner, LocalDateTime leaseExpiresAt) {
+        Query query = new Query(Criteria.where("poolId").is(poolId)
+            .and("status").is(StockItem.ItemStatus.RESERVED)
+            .and("leaseOwner").is(leaseOwner));
+        return mongoTemplate.updateMulti(query, new Update().set("leaseExpiresAt", leaseExpiresAt), StockItem.class)
+            .getModifiedCount();
+    }
+
+    /**
+     * Return every item reserved by {@code leaseOwner} to AVAILABLE (used on shutdown)
+     */
+    public long releaseLeases(String leaseOwner) {
+        return releaseLeasesWhere(Criteria.where("status").is(StockItem.ItemStatus.RESERVED)
+            .and("leaseOwner").is(leaseOwner));
+    }
+
+    /**
+     * Return allocation buffer items whose lease ran out (e.g. the owning node died) to AVAILABLE.
+     * Order holds expire through EsimReservationService only; RESERVED order leases written before
+     * holds had their own status are skipped too until it converts them.
+     */
+    public long releaseExpiredLeases() {
+        return releaseLeasesWhere(Criteria.where("status").is(StockItem.ItemStatus.RESERVED)
+            .and("leaseExpiresAt").lt(LocalDateTime.now())
+            .and("leaseOwner").not().regex("^" + EsimReservationService.LEASE_PREFIX));
+    }
+
+    /**
+     * Move RESERVED items whose lease owner starts with {@code leaseOwnerPrefix} to HELD, pool by pool
+     */
+    public long holdReservedLeases(String leaseOwnerPrefix) {
+        Criteria leases = Criteria.where("status").is(StockItem.ItemStatus.RESERVED)
+            .and("leaseOwner").regex("^" + leaseOwnerPrefix);
+        long held = 0;
+        for (String poolId : mongoTemplate.findDistinct(new Query(leases), "poolId", StockItem.class, String.class)) {
+            Query query = new Query(Criteria.where("poolId").is(poolId)).addCriteria(leases);
+            long count = mongoTemplate.updateMulti(query, new Update().set("status", StockItem.ItemStatus.HELD), StockItem.class)
+                .getModifiedCount();
+            stockCounterService.recordTransition(poolId, StockItem.ItemStatus.RESERVED, StockItem.ItemStatus.HELD, count);
+            held += count;
+        }
+        return held;
+    }
+
+    /**
+     * Release matching leases pool by pool, so each pool's counters move by what was released there
+     */
+    private long releaseLeasesWhere(Criteria leases) {
+        long released = 0;
+        for (String poolId : mongoTemplate.findDistinct(new Query(leases), "poolId", StockItem.class, String.class)) {
+            Query query = new Query(Criteria.where("poolId").is(poolId)).addCriteria(leases);
+            long count = mongoTemplate.updateMulti(query, releaseLease(), StockItem.class).getModifiedCount();
+            stockCounterService.recordTransition(poolId, StockItem.ItemStatus.RESERVED, StockItem.ItemStatus.AVAILABLE, count);
+            released += count;
+        }
+        return released;
+    }
+
+    /**
+     * Return claimed items to AVAILABLE (e.g. when the rest of a sale fails)
+     */
+    public void releaseItems(List<StockItem> items) {
+        if (items == null || items.isEmpty()) {
+            return;
+        }
+
+        // Group by pool and current status so each pool's counters move by what was released
+        Map<String, Map<StockItem.ItemStatus, List<String>>> itemIdsByPool = new LinkedHashMap<>();
+        for (StockItem item : items) {
+            itemIdsByPool.computeIfAbsent(item.getPoolId(), poolId -> new LinkedHashMap<>())
+                .computeIfAbsent(item.getStatus(), status -> new ArrayList<>())
+                .add(item.getItemId());
+        }
+
+        Update release = new Update()
+            .set("status", StockItem.ItemStatus.AVAILABLE)
+            .unset("assignedDate")
+            .unset("assignedToOrderId")
+            .unset("assignedToUserId")
+            .unset("assignedToUserEmail")
+            .unset("usedDate");
+
+        long released = 0;
+        for (Map.Entry<String, Map<StockItem.ItemStatus, List<String>>> pool : itemIdsByPool.entrySet()) {
+            for (Map.Entry<StockItem.ItemStatus, List<String>> group : pool.getValue().entrySet()) {
+                Query query = new Query(Criteria.where("_id").in(group.getValue()).and("status").is(group.getKey()));
+                long count = mongoTemplate.updateMulti(query, release, StockItem.class).getModifiedCount();
+                stockCounterService.recordTransition(pool.getKey(), group.getKey(), StockItem.ItemStatus.AVAILABLE, count);
+                released += count;
+            }
+        }
+        System.out.println("↩️ Released " + released + " claimed stock item(s)");
+    }
+
+    private static Query available(StockAllocationStrategy.ClaimAttempt attempt) {
+        return new Query(attempt.getCriteria())
+            .addCriteria(Criteria.where("status").is(StockItem.ItemStatus.AVAILABLE))
+            .with(attempt.getSort());
+    }
+
+    private Update reservation(StockItem.ItemStatus status, String leaseOwner, LocalDateTime leaseExpiresAt) {
+        return new Update()
+            .set("status", status)
+            .set("leaseOwner", leaseOwner)
+            .set("leaseExpiresAt", leaseExpiresAt);
+    }
+
+    private Update releaseLease() {
+        return new Update()
+            .set("status", StockItem.ItemStatus.AVAILABLE)
+            .unset("leaseOwner")
+            .unset("leaseExpiresAt");
+    }
+
+    private Update assignment(StockItem.ItemStatus newStatus, String orderId, String userId, String userEmail) {
+        LocalDateTime now = LocalDateTime.now();
+        Update update = new Update()
+            .set("status", newStatus)
+            .set("assignedDate", now);
+
+        if (orderId != null) {
+            update.set("assignedToOrderId", orderId);
+        }
+        if (userId != null) {
+            update.set("assignedToUserId", userId);
+        }
+        if (userEmail != null) {
+            update.set("assignedToUserEmail", userEmail);
+        }
+        if (newStatus == StockItem.ItemStatus.USED) {
+            update.set("usedDate", now);
+        }
+        return update;
+    }
+}
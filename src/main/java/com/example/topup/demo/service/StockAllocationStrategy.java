@@ -0,0 +1,44 @@
+package com.example.topup.demo.service;
+
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.query.Criteria;
+
+import java.util.List;
+
+/**
+ * Decides which AVAILABLE item a claim takes from a set of pools.
+ *
+ * A strategy only plans the claim: an ordered list of (filter, sort) attempts that
+ * StockAllocationService runs as conditional find-and-modify updates until one finds an item.
+ * Each attempt's sort must be served by a stock_items index, so a pick is an index seek
+ * and not a scan. Strategies are chosen by name with app.stock.allocation.strategy.
+ */
+public interface StockAllocationStrategy {
+
+    /**
+     * Name used in app.stock.allocation.strategy
+     */
+    String getName();
+
+    /**
+     * Claim attempts for the given pools, best first. The AVAILABLE status condition is added by the caller.
+     */
+    List<ClaimAttempt> plan(List<String> poolIds);
+
+    /**
+     * One indexed pick: items matching {@code criteria}, first by {@code sort}
+     */
+    class ClaimAttempt {
+
+        private final Criteria criteria;
+        private final Sort sort;
+
+        public ClaimAttempt(Criteria criteria, Sort sort) {
+            this.criteria = criteria;
+            this.sort = sort;
+        }
+
+        public Criteria getCriteria() { return criteria; }
+        public Sort getSort() { return sort; }
+    }
+}
@@ -0,0 +1,217 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.StockPool.StockItem;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndReplaceOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Moves stock items that reached a terminal status (USED, ASSIGNED, EXPIRED) more than
+ * app.stock.archive.after-days ago from stock_items into the stock_items_archive collection,
+ * so the hot collection only holds sellable and recently sold stock.
+ *
+ * Each batch is copied with an upsert by _id and only then deleted from stock_items, so a run
+ * that stops half way is finished by the next one without duplicates or lost items.
+ * Archived items keep counting in their pool's total/used counters (see StockCounterService).
+ * The lookup methods here are the fallback for reads that miss the hot collection.
+ */
+@Service
+public class StockArchiveService {
+
+    public static final String ARCHIVE_COLLECTION = "stock_items_archive";
+    private static final String ITEMS_COLLECTION = "stock_items";
+
+    private static final List<StockItem.ItemStatus> TERMINAL_STATUSES = List.of(
+        StockItem.ItemStatus.USED, StockItem.ItemStatus.ASSIGNED, StockItem.ItemStatus.EXPIRED);
+
+    // Not needed once sold; QR images live in the QR image store (qrCodeRef)
+    private static final List<String> DROPPED_FIELDS = List.of("qrCodeImage", "leaseOwner", "leaseExpiresAt");
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Value("${app.stock.archive.enabled:true}")
+    private boolean enabled;
+
+    @Value("${app.stock.archive.after-days:90}")
+    private int afterDays;
+
+    @Value("${app.stock.archive.batch-size:500}")
+    private int batchSize;
+
+    @Value("${app.stock.archive.max-batches-per-run:200}")
+    private int maxBatchesPerRun;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private volatile Map<String, Object> lastRun = new LinkedHashMap<>();
+
+    @Scheduled(fixedDelayString = "${app.stock.archive.interval-ms:3600000}",
+        initialDelayString = "${app.stock.archive.initial-delay-ms:300000}")
+    public void scheduledArchive() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            archiveNow();
+        } catch (Exception e) {
+            System.err.println("❌ Stock archival failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Archive one run's worth of batches now; returns the run report
+     */
+    public Map<String, Object> archiveNow() {
+        if (!running.compareAndSet(false, true)) {
+            throw new IllegalStateException("Stock archival is already running");
+        }
+        try {
+            return archiveOlderThan(LocalDateTime.now().minusDays(afterDays));
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private Map<String, Object> archiveOlderThan(LocalDateTime cutoff) {
+        long startedAt = System.currentTimeMillis();
+        int batches = 0;
+        long scanned = 0;
+        long archived = 0;
+        Object lastId = null;
+        boolean complete = false;
+
+        while (batches < maxBatchesPerRun) {
+            // Keyset over _id: terminal items that are still too young are not re-read within a run
+            Criteria criteria = Criteria.where("status").in(TERMINAL_STATUSES).orOperator(
+                Criteria.where("usedDate").lt(cutoff),
+                Criteria.where("usedDate").is(null).and("assignedDate").lt(cutoff),
+                Criteria.where("usedDate").is(null).and("assignedDate").is(null).and("expiryDate").lt(cutoff)
+            );
+            if (lastId != null) {
+                criteria.and("_id").gt(lastId);
+            }
+            Query query = new Query(criteria).with(Sort.by(Sort.Direction.ASC, "_id")).limit(batchSize);
+            for (String field : DROPPED_FIELDS) {
+                query.fields().exclude(field);
+            }
+
+            List<Document> page = mongoTemplate.find(query, Document.class, ITEMS_COLLECTION);
+            if (page.isEmpty()) {
+                complete = true;
+                break;
+            }
+            scanned += page.size();
+            lastId = page.get(page.size() - 1).get("_id");
+            archived += moveToArchive(page);
+            batches++;
+        }
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("cutoff", cutoff);
+        report.put("batches", batches);
+        report.put("scanned", scanned);
+        report.put("archived", archived);
+        report.put("complete", complete);
+        report.put("durationMs", System.currentTimeMillis() - startedAt);
+        report.put("finishedAt", LocalDateTime.now());
+        lastRun = report;
+
+        if (archived > 0) {
+            System.out.println("🗄️ Archived " + archived + " sold/expired stock item(s) older than " + afterDays + " days"
+                + (complete ? "" : " (more left for the next run)"));
+        }
+        return report;
+    }
+
+    /**
+     * Copy a batch into the archive, then delete exactly those items from the hot collection
+     */
+    private long moveToArchive(List<Document> page) {
+        LocalDateTime now = LocalDateTime.now();
+        List<Object> ids = new ArrayList<>(page.size());
+
+        BulkOperations ops = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ARCHIVE_COLLECTION);
+        for (Document itemDoc : page) {
+            Object itemId = itemDoc.get("_id");
+            itemDoc.put("archivedDate", now);
+            ops.replaceOne(new Query(Criteria.where("_id").is(itemId)), itemDoc, FindAndReplaceOptions.options().upsert());
+            ids.add(itemId);
+        }
+        ops.execute();
+
+        // Still terminal: an item that was released/reset meanwhile stays in the hot set
+        Query archivedItems = new Query(Criteria.where("_id").in(ids).and("status").in(TERMINAL_STATUSES));
+        long deleted = mongoTemplate.remove(archivedItems, ITEMS_COLLECTION).getDeletedCount();
+        if (deleted < ids.size()) {
+            // Drop the archive copies of items that were not removed from the hot set
+            List<Object> remaining = new ArrayList<>();
+            Query stillHot = new Query(Criteria.where("_id").in(ids));
+            stillHot.fields().include("_id");
+            for (Document doc : mongoTemplate.find(stillHot, Document.class, ITEMS_COLLECTION)) {
+                remaining.add(doc.get("_id"));
+            }
+            if (!remaining.isEmpty()) {
+                mongoTemplate.remove(new Query(Criteria.where("_id").in(remaining)), ARCHIVE_COLLECTION);
+            }
+        }
+        return deleted;
+    }
+
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("enabled", enabled);
+        status.put("afterDays", afterDays);
+        status.put("running", running.get());
+        status.put("archivedItems", mongoTemplate.estimatedCount(ARCHIVE_COLLECTION));
+        status.put("lastRun", lastRun);
+        return status;
+    }
+
+    // Archive lookups, used when a read misses stock_items
+
+    public Optional<StockItem> findById(String itemId) {
+        return Optional.ofNullable(mongoTemplate.findById(itemId, StockItem.class, ARCHIVE_COLLECTION));
+    }
+
+    public List<StockItem> findBySerialNumber(String serialNumber) {
+        return mongoTemplate.find(new Query(Criteria.where("serialNumber").is(serialNumber)), StockItem.class, ARCHIVE_COLLECTION);
+    }
+
+    public List<StockItem> findByAssignedToOrderId(String orderId) {
+        return mongoTemplate.find(new Query(Criteria.where("assignedToOrderId").is(orderId)), StockItem.class, ARCHIVE_COLLECTION);
+    }
+
+    public Optional<StockItem> findFirstByPoolIdInAndItemDataHash(Collection<String> poolIds, String itemDataHash) {
+        Query query = new Query(Criteria.where("itemDataHash").is(itemDataHash).and("poolId").in(poolIds));
+        return Optional.ofNullable(mongoTemplate.findOne(query, StockItem.class, ARCHIVE_COLLECTION));
+    }
+
+    public long countByPoolIdAndStatusIn(String poolId, Collection<StockItem.ItemStatus> statuses) {
+        return mongoTemplate.count(new Query(Criteria.where("poolId").is(poolId).and("status").in(statuses)), ARCHIVE_COLLECTION);
+    }
+
+    public void deleteByPoolId(String poolId) {
+        mongoTemplate.remove(new Query(Criteria.where("poolId").is(poolId)), ARCHIVE_COLLECTION);
+    }
+
+    public void deleteAll() {
+        mongoTemplate.remove(new Query(), ARCHIVE_COLLECTION);
+    }
+}
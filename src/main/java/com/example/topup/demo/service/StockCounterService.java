@@ -0,0 +1,413 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.StockPool;
+import com.example.topup.demo.entity.StockPool.StockItem;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the StockPool quantity counters in step with item status changes.
+ *
+ * Every status change of a stock item is followed by one $inc on its pool instead of
+ * recounting the pool's items. A periodic reconciliation recounts the items per pool
+ * and corrects counters that drifted (e.g. the process died between the item update
+ * and the counter update). The updated counters are handed to LowStockAlertService.
+ * Sharded pools (see StockShardService) collect their changes in counter stripes that are
+ * drained into the pool document every app.stock.shards.rollup-interval-ms.
+ */
+@Service
+public class StockCounterService {
+
+    private static final String TOTAL = "totalQuantity";
+    private static final String AVAILABLE = "availableQuantity";
+    private static final String USED = "usedQuantity";
+    private static final String RESERVED = "reservedQuantity";
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private LowStockAlertService lowStockAlertService;
+
+    @Autowired
+    private StockShardService stockShardService;
+
+    @Value("${app.stock.counters.reconcile-threads:4}")
+    private int reconcileThreads;
+
+    private ExecutorService reconcileExecutor;
+
+    // Notified with the pool id after its counters changed (e.g. to refresh caches)
+    private final List<Consumer<String>> poolChangeListeners = new CopyOnWriteArrayList<>();
+
+    // Sharded pools with counter deltas in their stripes since the last rollup
+    private final Set<String> pendingRollup = ConcurrentHashMap.newKeySet();
+
+    // Per pool: counter difference seen on the last reconciliation, corrected if the next run sees it again
+    private final Map<String, Map<String, Long>> suspectedDrift = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        reconcileExecutor = Executors.newFixedThreadPool(Math.max(1, reconcileThreads), runnable -> {
+            Thread thread = new Thread(runnable, "stock-counter-reconcile");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        reconcileExecutor.shutdownNow();
+    }
+
+    public void addPoolChangeListener(Consumer<String> listener) {
+        poolChangeListeners.add(listener);
+    }
+
+    /**
+     * Record {@code count} items of a pool moving from one status to another
+     */
+    public void recordTransition(String poolId, StockItem.ItemStatus from, StockItem.ItemStatus to, long count) {
+        if (count <= 0 || from == to) {
+            return;
+        }
+        Map<String, Long> delta = new HashMap<>();
+        for (String counter : countersFor(from)) {
+            delta.merge(counter, -count, Long::sum);
+        }
+        for (String counter : countersFor(to)) {
+            delta.merge(counter, count, Long::sum);
+        }
+        apply(poolId, delta);
+    }
+
+    /**
+     * Record {@code count} new AVAILABLE items added to a pool
+     */
+    public void recordAdded(String poolId, long count) {
+        if (count <= 0) {
+            return;
+        }
+        Map<String, Long> delta = new HashMap<>();
+        delta.put(TOTAL, count);
+        delta.put(AVAILABLE, count);
+        apply(poolId, delta);
+    }
+
+    /**
+     * Record {@code count} items of the given status deleted from a pool
+     */
+    public void recordRemoved(String poolId, StockItem.ItemStatus status, long count) {
+        if (count <= 0) {
+            return;
+        }
+        Map<String, Long> delta = new HashMap<>();
+        delta.put(TOTAL, -count);
+        for (String counter : countersFor(status)) {
+            delta.merge(counter, -count, Long::sum);
+        }
+        apply(poolId, delta);
+    }
+
+    /**
+     * Move the counter deltas collected in sharded pools' stripes into the pool documents
+     */
+    @Scheduled(fixedDelayString = "${app.stock.shards.rollup-interval-ms:1000}")
+    public void rollUpShards() {
+        for (String poolId : new ArrayList<>(pendingRollup)) {
+            pendingRollup.remove(poolId);
+            try {
+                applyToPool(poolId, stockShardService.drainStripes(poolId));
+            } catch (Exception e) {
+                pendingRollup.add(poolId);
+                System.err.println("❌ Stock counter rollup of pool " + poolId + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${app.stock.counters.reconcile-interval-ms:900000}",
+               initialDelayString = "${app.stock.counters.reconcile-initial-delay-ms:120000}")
+    public void scheduledReconcile() {
+        try {
+            reconcileAll();
+        } catch (Exception e) {
+            System.err.println("❌ Stock counter reconciliation failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Recount every pool's items in parallel and correct counters that drifted
+     * (on two consecutive runs, see reconcilePool).
+     * Returns a report of the pools checked and the corrections made.
+     */
+    public Map<String, Object> reconcileAll() {
+        Query poolQuery = new Query();
+        poolQuery.fields().include("_id");
+        List<String> poolIds = new ArrayList<>();
+        for (Document pool : mongoTemplate.find(poolQuery, Document.class, mongoTemplate.getCollectionName(StockPool.class))) {
+            poolIds.add(pool.get("_id").toString());
+        }
+
+        List<Callable<Map<String, Object>>> tasks = new ArrayList<>(poolIds.size());
+        for (String poolId : poolIds) {
+            tasks.add(() -> reconcilePool(poolId));
+        }
+
+        List<Map<String, Object>> drifted = new ArrayList<>();
+        int corrected = 0;
+        int skipped = 0;
+        int failed = 0;
+        try {
+            for (Future<Map<String, Object>> result : reconcileExecutor.invokeAll(tasks)) {
+                try {
+                    Map<String, Object> drift = result.get();
+                    if (drift == null) {
+                        continue;
+                    }
+                    drifted.add(drift);
+                    if (Boolean.TRUE.equals(drift.get("corrected"))) {
+                        corrected++;
+                    } else {
+                        skipped++;
+                    }
+                } catch (ExecutionException e) {
+                    failed++;
+                    System.err.println("❌ Stock counter reconciliation of a pool failed: " + e.getCause().getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Stock counter reconciliation interrupted", e);
+        }
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("poolsChecked", poolIds.size());
+        report.put("poolsDrifted", drifted.size());
+        report.put("poolsCorrected", corrected);
+        report.put("poolsSkipped", skipped); // counters moved while recounting or drift not yet confirmed
+        report.put("poolsFailed", failed);
+        report.put("drift", drifted);
+
+        if (!drifted.isEmpty() || failed > 0) {
+            System.out.println("🧮 Stock counter reconciliation: " + poolIds.size() + " pool(s) checked, "
+                + drifted.size() + " drifted, " + corrected + " corrected, " + skipped + " skipped, " + failed + " failed");
+            for (Map<String, Object> drift : drifted) {
+                System.out.println("   ↳ pool " + drift.get("poolId") + ": " + drift.get("counters") + " -> " + drift.get("expected"));
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Compare one pool's counters with its item statuses; returns null when they match
+     */
+    private Map<String, Object> reconcilePool(String poolId) {
+        // Stripes left behind by any node (e.g. one that stopped before its rollup) are drained first
+        applyToPool(poolId, stockShardService.drainStripes(poolId));
+
+        Map<String, Integer> before = readCounters(poolId);
+        if (before == null) {
+            return null;
+        }
+        Map<String, Long> expected = countItems(poolId);
+        Map<String, Integer> counters = readCounters(poolId);
+        if (counters == null) {
+            return null;
+        }
+
+        Map<String, Long> difference = new LinkedHashMap<>();
+        boolean matches = true;
+        for (Map.Entry<String, Long> entry : expected.entrySet()) {
+            Integer actual = counters.get(entry.getKey());
+            long diff = entry.getValue() - (actual != null ? actual : 0);
+            difference.put(entry.getKey(), diff);
+            if (actual == null || diff != 0) {
+                matches = false;
+            }
+        }
+        if (matches) {
+            suspectedDrift.remove(poolId);
+            return null;
+        }
+
+        // A sale's item update and its counter $inc are two writes: an item counted here whose $inc
+        // has not landed yet looks like drift. Only a difference that is still there on the next run
+        // is corrected, and it is applied as an $inc so counter changes made meanwhile are kept.
+        String outcome;
+        if (!before.equals(counters) || stockShardService.hasPendingCounters(poolId)) {
+            suspectedDrift.remove(poolId);
+            outcome = "counters moved while recounting";
+        } else if (!difference.equals(suspectedDrift.get(poolId))) {
+            suspectedDrift.put(poolId, difference);
+            outcome = "awaiting confirmation on the next run";
+        } else {
+            suspectedDrift.remove(poolId);
+            applyToPool(poolId, difference);
+            outcome = "corrected";
+        }
+
+        Map<String, Object> drift = new LinkedHashMap<>();
+        drift.put("poolId", poolId);
+        drift.put("counters", counters);
+        drift.put("expected", expected);
+        drift.put("corrected", "corrected".equals(outcome));
+        drift.put("outcome", outcome);
+        return drift;
+    }
+
+    private Map<String, Integer> readCounters(String poolId) {
+        Query poolQuery = new Query(Criteria.where("_id").is(poolId));
+        poolQuery.fields().include(TOTAL).include(AVAILABLE).include(USED).include(RESERVED);
+        StockPool pool = mongoTemplate.findOne(poolQuery, StockPool.class);
+        if (pool == null) {
+            return null;
+        }
+        Map<String, Integer> counters = new LinkedHashMap<>();
+        counters.put(TOTAL, pool.getTotalQuantity());
+        counters.put(AVAILABLE, pool.getAvailableQuantity());
+        counters.put(USED, pool.getUsedQuantity());
+        counters.put(RESERVED, pool.getReservedQuantity());
+        return counters;
+    }
+
+    /**
+     * Counter values derived from the pool's items, grouped by status on the (poolId, status) index.
+     * Archived items (see StockArchiveService) still count towards total and used.
+     */
+    private Map<String, Long> countItems(String poolId) {
+        Aggregation aggregation = Aggregation.newAggregation(
+            Aggregation.match(Criteria.where("poolId").is(poolId)),
+            Aggregation.group("status").count().as("count")
+        );
+
+        Map<String, Long> expected = new LinkedHashMap<>();
+        expected.put(TOTAL, 0L);
+        expected.put(AVAILABLE, 0L);
+        expected.put(USED, 0L);
+        expected.put(RESERVED, 0L);
+        List<Document> groups = new ArrayList<>(mongoTemplate.aggregate(aggregation, StockItem.class, Document.class).getMappedResults());
+        groups.addAll(mongoTemplate.aggregate(aggregation, StockArchiveService.ARCHIVE_COLLECTION, Document.class).getMappedResults());
+        for (Document group : groups) {
+            long count = ((Number) group.get("count")).longValue();
+            expected.merge(TOTAL, count, Long::sum);
+            Object status = group.get("_id");
+            if (status == null) {
+                continue;
+            }
+            for (String counter : countersFor(StockItem.ItemStatus.valueOf(status.toString()))) {
+                expected.merge(counter, count, Long::sum);
+            }
+        }
+        return expected;
+    }
+
+    private void apply(String poolId, Map<String, Long> delta) {
+        if (stockShardService.getShardCount(poolId) > 1) {
+            stockShardService.incrementStripe(poolId, delta);
+            pendingRollup.add(poolId);
+            return;
+        }
+        applyToPool(poolId, delta);
+    }
+
+    private void applyToPool(String poolId, Map<String, Long> delta) {
+        Update update = new Update().set("lastModifiedDate", LocalDateTime.now());
+        boolean changed = false;
+        for (Map.Entry<String, Long> entry : delta.entrySet()) {
+            if (entry.getValue() != 0) {
+                update.inc(entry.getKey(), entry.getValue());
+                changed = true;
+            }
+        }
+        if (!changed) {
+            return;
+        }
+        StockPool pool = mongoTemplate.findAndModify(snapshotQuery(poolId), update,
+            FindAndModifyOptions.options().returnNew(true), StockPool.class);
+        if (pool == null || pool.getAvailableQuantity() == null) {
+            return;
+        }
+
+        int available = pool.getAvailableQuantity();
+        if (available <= 0 && pool.getStatus() == StockPool.StockStatus.ACTIVE) {
+            mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(poolId)
+                    .and(AVAILABLE).lte(0)
+                    .and("status").is(StockPool.StockStatus.ACTIVE)),
+                new Update().set("status", StockPool.StockStatus.DEPLETED), StockPool.class);
+        } else if (available > 0 && pool.getStatus() == StockPool.StockStatus.DEPLETED) {
+            mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(poolId)
+                    .and(AVAILABLE).gt(0)
+                    .and("status").is(StockPool.StockStatus.DEPLETED)),
+                new Update().set("status", StockPool.StockStatus.ACTIVE), StockPool.class);
+        }
+        lowStockAlertService.evaluate(pool);
+        notifyPoolChanged(poolId);
+    }
+
+    private void notifyPoolChanged(String poolId) {
+        for (Consumer<String> listener : poolChangeListeners) {
+            listener.accept(poolId);
+        }
+    }
+
+    /**
+     * Pool by id with the fields needed for status and low-stock checks (no product DBRef)
+     */
+    private Query snapshotQuery(String poolId) {
+        Query query = new Query(Criteria.where("_id").is(poolId));
+        query.fields().include("name").include("stockType").include("productId").include("status")
+            .include(TOTAL).include(AVAILABLE).include(USED).include(RESERVED)
+            .include("lowStockThreshold").include("lowStockAlerted");
+        return query;
+    }
+
+    /**
+     * Pool counters an item in the given status is counted in
+     */
+    private static List<String> countersFor(StockItem.ItemStatus status) {
+        if (status == null) {
+            return List.of();
+        }
+        switch (status) {
+            case AVAILABLE:
+                return List.of(AVAILABLE);
+            case RESERVED:
+                // Items RESERVED in an allocation buffer are still on sale
+                return List.of(AVAILABLE, RESERVED);
+            case HELD:
+                // Held for a customer order: reserved, no longer on sale
+                return List.of(RESERVED);
+            case USED:
+                return List.of(USED);
+            default:
+                return List.of();
+        }
+    }
+}
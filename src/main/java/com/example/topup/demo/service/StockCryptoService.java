@@ -0,0 +1,224 @@
+package com.example.topup.demo.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+/**
+ * AES-256-GCM encryption of stock secrets (PINs, ICCIDs, eSIM codes, QR images) and of
+ * other sensitive bytes at rest, such as queued mails.
+ * Cipher contexts are created once per thread and re-initialised per value, and
+ * bulk paths (uploads, exports) can fan batches out across all cores.
+ * Values written before encryption was introduced are plain Base64 and are still
+ * read transparently.
+ */
+@Service
+public class StockCryptoService {
+
+    // Marks values written by this service; anything else is legacy Base64
+    public static final String PREFIX = "gcm1:";
+    private static final byte[] PREFIX_BYTES = PREFIX.getBytes(StandardCharsets.US_ASCII);
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+
+    // Below this a batch is not worth splitting across threads
+    private static final int PARALLEL_THRESHOLD = 64;
+
+    private final SecretKeySpec key;
+
+    private final ThreadLocal<Cipher> encryptCipher = ThreadLocal.withInitial(StockCryptoService::newCipher);
+    private final ThreadLocal<Cipher> decryptCipher = ThreadLocal.withInitial(StockCryptoService::newCipher);
+    private final ThreadLocal<SecureRandom> ivRandom = ThreadLocal.withInitial(SecureRandom::new);
+
+    // Dedicated pool so bulk crypto never starves the common pool
+    private final ForkJoinPool batchPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    public StockCryptoService(@Value("${app.stock.encryption-key}") String encryptionKey) {
+        this.key = new SecretKeySpec(deriveKey(encryptionKey), "AES");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        batchPool.shutdown();
+    }
+
+    /**
+     * Encrypt a plain value; null and empty values are returned unchanged
+     */
+    public String encrypt(String plainValue) {
+        if (plainValue == null || plainValue.isEmpty()) {
+            return plainValue;
+        }
+        try {
+            byte[] out = seal(plainValue.getBytes(StandardCharsets.UTF_8), 0);
+            return PREFIX + Base64.getEncoder().encodeToString(out);
+        } catch (Exception e) {
+            throw new RuntimeException("Encryption failed", e);
+        }
+    }
+
+    /**
+     * Encrypt raw bytes; the result starts with PREFIX. Null is returned unchanged.
+     */
+    public byte[] encrypt(byte[] plain) {
+        if (plain == null) {
+            return null;
+        }
+        try {
+            byte[] out = seal(plain, PREFIX_BYTES.length);
+            System.arraycopy(PREFIX_BYTES, 0, out, 0, PREFIX_BYTES.length);
+            return out;
+        } catch (Exception e) {
+            throw new RuntimeException("Encryption failed", e);
+        }
+    }
+
+    /**
+     * Decrypt a stored value; legacy Base64 values are decoded as before
+     */
+    public String decrypt(String storedValue) {
+        if (storedValue == null || storedValue.isEmpty()) {
+            return storedValue;
+        }
+        try {
+            if (!storedValue.startsWith(PREFIX)) {
+                return new String(Base64.getDecoder().decode(storedValue), StandardCharsets.UTF_8);
+            }
+
+            byte[] in = Base64.getDecoder().decode(storedValue.substring(PREFIX.length()));
+            return new String(open(in, 0), StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            throw new RuntimeException("Decryption failed", e);
+        }
+    }
+
+    /**
+     * Decrypt bytes from encrypt(byte[]); bytes without PREFIX were stored in the clear and are returned unchanged
+     */
+    public byte[] decrypt(byte[] stored) {
+        if (stored == null || !startsWithPrefix(stored)) {
+            return stored;
+        }
+        try {
+            return open(stored, PREFIX_BYTES.length);
+        } catch (Exception e) {
+            throw new RuntimeException("Decryption failed", e);
+        }
+    }
+
+    // IV then ciphertext and tag, after offset bytes left free for the caller
+    private byte[] seal(byte[] plain, int offset) throws Exception {
+        byte[] iv = new byte[IV_LENGTH];
+        ivRandom.get().nextBytes(iv);
+
+        Cipher cipher = encryptCipher.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+        byte[] out = new byte[offset + IV_LENGTH + cipher.getOutputSize(plain.length)];
+        System.arraycopy(iv, 0, out, offset, IV_LENGTH);
+        cipher.doFinal(plain, 0, plain.length, out, offset + IV_LENGTH);
+        return out;
+    }
+
+    private byte[] open(byte[] in, int offset) throws Exception {
+        Cipher cipher = decryptCipher.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, in, offset, IV_LENGTH));
+        return cipher.doFinal(in, offset + IV_LENGTH, in.length - offset - IV_LENGTH);
+    }
+
+    private static boolean startsWithPrefix(byte[] value) {
+        if (value.length < PREFIX_BYTES.length) {
+            return false;
+        }
+        for (int i = 0; i < PREFIX_BYTES.length; i++) {
+            if (value[i] != PREFIX_BYTES[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encrypt a batch, keeping order; nulls stay null
+     */
+    public List<String> encryptAll(List<String> plainValues) {
+        return mapAll(plainValues, this::encrypt);
+    }
+
+    /**
+     * Decrypt a batch, keeping order; nulls stay null
+     */
+    public List<String> decryptAll(List<String> storedValues) {
+        return mapAll(storedValues, this::decrypt);
+    }
+
+    private List<String> mapAll(List<String> values, UnaryOperator<String> operation) {
+        if (values.size() < PARALLEL_THRESHOLD) {
+            List<String> result = new ArrayList<>(values.size());
+            for (String value : values) {
+                result.add(operation.apply(value));
+            }
+            return result;
+        }
+        try {
+            // Ordered parallel stream: each worker reuses its own cipher context
+            return batchPool.submit(() -> values.parallelStream()
+                    .map(operation)
+                    .collect(Collectors.toList())).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Batch crypto interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException("Batch crypto failed", cause);
+        }
+    }
+
+    private static Cipher newCipher() {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (Exception e) {
+            throw new IllegalStateException("AES-GCM is not available", e);
+        }
+    }
+
+    /**
+     * Accept a Base64 AES-256 key as-is, otherwise derive 32 bytes from the passphrase
+     */
+    private static byte[] deriveKey(String encryptionKey) {
+        if (encryptionKey == null || encryptionKey.trim().isEmpty()) {
+            throw new IllegalStateException("app.stock.encryption-key is not configured");
+        }
+        try {
+            byte[] decoded = Base64.getDecoder().decode(encryptionKey.trim());
+            if (decoded.length == 32) {
+                return decoded;
+            }
+        } catch (IllegalArgumentException e) {
+            // Not Base64 - treat as a passphrase
+        }
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(encryptionKey.trim().getBytes(StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not derive stock encryption key", e);
+        }
+    }
+}
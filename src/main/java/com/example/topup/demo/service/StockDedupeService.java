@@ -0,0 +1,323 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.StockPool;
+import com.example.topup.demo.entity.StockPool.StockItem;
+import jakarta.annotation.PostConstruct;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOptions;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Duplicate PIN/ICCID and serial detection for uploads, across every pool and the archive.
+ *
+ * Two Bloom filters (PIN hashes, stockType+serial) are built from stock_items and
+ * stock_items_archive on startup and rebuilt periodically. A value the filter has never
+ * seen is new, so only filter hits go to the database. The filters are per node and may
+ * miss uploads made on another node since the last rebuild; the unique indexes on
+ * stock_items catch those at insert time. An index that existing duplicates keep from being
+ * built shows as missing in getMetrics, with the duplicate groups to clean up, and is retried
+ * on every rebuild.
+ */
+@Service
+public class StockDedupeService {
+
+    private static final String ITEMS_COLLECTION = "stock_items";
+    private static final String LOOKUP_HASH_INDEX = "itemDataHash";
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Value("${app.stock.dedupe.expected-items:10000000}")
+    private long expectedItems;
+
+    @Value("${app.stock.dedupe.false-positive-rate:0.001}")
+    private double falsePositiveRate;
+
+    private volatile Filters filters;
+    private volatile Filters building; // also receives inserts while a rebuild reads the collections
+    private final AtomicBoolean rebuilding = new AtomicBoolean(false);
+
+    private final AtomicLong checked = new AtomicLong();
+    private final AtomicLong skippedByFilter = new AtomicLong();
+    private final AtomicLong databaseLookups = new AtomicLong();
+    private final AtomicLong duplicatesFound = new AtomicLong();
+
+    // Unique index name -> built; and the duplicates keeping a missing one from being built
+    private final Map<String, Boolean> uniqueIndexes = new ConcurrentHashMap<>();
+    private volatile List<Map<String, Object>> blockingDuplicates = List.of();
+
+    @PostConstruct
+    public void init() {
+        // Built off the startup path; until then every value is looked up in the database
+        Thread builder = new Thread(this::rebuild, "stock-dedupe-filter");
+        builder.setDaemon(true);
+        builder.start();
+    }
+
+    /**
+     * Rebuild from the database: drops deleted items and picks up other nodes' uploads
+     */
+    @Scheduled(fixedDelayString = "${app.stock.dedupe.rebuild-interval-ms:21600000}",
+        initialDelayString = "${app.stock.dedupe.rebuild-interval-ms:21600000}")
+    public void rebuild() {
+        if (!rebuilding.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (uniqueIndexes.containsValue(false)) {
+                ensureUniqueIndexes();
+            }
+            long startedAt = System.currentTimeMillis();
+            Filters next = new Filters(new BloomFilter(expectedItems, falsePositiveRate), new BloomFilter(expectedItems, falsePositiveRate));
+            building = next;
+            long loaded = load(next, ITEMS_COLLECTION) + load(next, StockArchiveService.ARCHIVE_COLLECTION);
+            filters = next;
+            System.out.println("🧮 Stock dedupe filter built from " + loaded + " item(s) in "
+                + (System.currentTimeMillis() - startedAt) + "ms");
+        } catch (Exception e) {
+            System.err.println("❌ Stock dedupe filter build failed: " + e.getMessage());
+        } finally {
+            building = null;
+            rebuilding.set(false);
+        }
+    }
+
+    /**
+     * A PIN/ICCID (by hash) and a serial per stock type may only be in stock once; these back up
+     * the filters when two uploads race, possibly on different nodes. Items without a hash or
+     * serial are not covered. The hash index also serves the PIN lookups; while duplicates block it
+     * a plain index on the hash stands in, and is dropped once the unique one exists.
+     * Called on startup by StockItemMigration.
+     */
+    public void ensureUniqueIndexes() {
+        MongoCollection<Document> items = mongoTemplate.getCollection(ITEMS_COLLECTION);
+        List<Map<String, Object>> duplicates = new ArrayList<>();
+        if (createUniqueIndex(items, "itemDataHash_unique", Indexes.ascending("itemDataHash"), "itemDataHash")) {
+            dropIndexIfExists(items, LOOKUP_HASH_INDEX);
+        } else {
+            items.createIndex(Indexes.ascending("itemDataHash"), new IndexOptions().name(LOOKUP_HASH_INDEX));
+            duplicates.addAll(duplicateGroups("itemDataHash_unique", "itemDataHash"));
+        }
+        if (!createUniqueIndex(items, "type_serial_unique", Indexes.ascending("stockType", "serialNumber"), "serialNumber")) {
+            duplicates.addAll(duplicateGroups("type_serial_unique", "stockType", "serialNumber"));
+        }
+        blockingDuplicates = duplicates;
+    }
+
+    /**
+     * PIN/ICCID hashes from {@code hashes} that already exist in stock or the archive
+     */
+    public Set<String> existingHashes(Collection<String> hashes) {
+        return existing("itemDataHash", null, hashes);
+    }
+
+    /**
+     * Serial numbers from {@code serials} that already exist for this stock type
+     */
+    public Set<String> existingSerials(StockPool.StockType stockType, Collection<String> serials) {
+        return existing("serialNumber", stockType, serials);
+    }
+
+    /**
+     * Add freshly inserted items to the filters
+     */
+    public void recordInserted(List<StockItem> items) {
+        Filters current = filters;
+        Filters next = building;
+        for (StockItem item : items) {
+            String serialKey = serialKey(item.getStockType(), item.getSerialNumber());
+            if (current != null) {
+                current.put(item.getItemDataHash(), serialKey);
+            }
+            if (next != null && next != current) {
+                next.put(item.getItemDataHash(), serialKey);
+            }
+        }
+    }
+
+    public Map<String, Object> getMetrics() {
+        Filters current = filters;
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("filterReady", current != null);
+        metrics.put("filterBits", current != null ? current.hashes.getBitCount() * 2 : 0);
+        metrics.put("hashFunctions", current != null ? current.hashes.getHashCount() : 0);
+        metrics.put("checked", checked.get());
+        metrics.put("skippedByFilter", skippedByFilter.get());
+        metrics.put("databaseLookups", databaseLookups.get());
+        metrics.put("duplicatesFound", duplicatesFound.get());
+        metrics.put("uniqueIndexes", new LinkedHashMap<>(uniqueIndexes));
+        metrics.put("uniqueIndexesMissing", uniqueIndexes.containsValue(false));
+        metrics.put("blockingDuplicates", blockingDuplicates);
+        return metrics;
+    }
+
+    private Set<String> existing(String field, StockPool.StockType stockType, Collection<String> values) {
+        Filters current = filters;
+        List<String> candidates = new ArrayList<>();
+        for (String value : values) {
+            if (value == null) {
+                continue;
+            }
+            checked.incrementAndGet();
+            String key = stockType == null ? value : serialKey(stockType, value);
+            BloomFilter filter = stockType == null ? (current != null ? current.hashes : null) : (current != null ? current.serials : null);
+            if (filter == null || filter.mightContain(key)) {
+                candidates.add(value);
+            } else {
+                skippedByFilter.incrementAndGet();
+            }
+        }
+
+        Set<String> existing = new HashSet<>();
+        if (candidates.isEmpty()) {
+            return existing;
+        }
+        databaseLookups.addAndGet(candidates.size());
+
+        Criteria criteria = Criteria.where(field).in(candidates);
+        if (stockType != null) {
+            criteria.and("stockType").is(stockType);
+        }
+        for (String collection : List.of(ITEMS_COLLECTION, StockArchiveService.ARCHIVE_COLLECTION)) {
+            Query query = new Query(criteria);
+            query.fields().include(field);
+            for (Document doc : mongoTemplate.find(query, Document.class, collection)) {
+                existing.add(doc.getString(field));
+            }
+        }
+        duplicatesFound.addAndGet(existing.size());
+        return existing;
+    }
+
+    private long load(Filters target, String collection) {
+        Query query = new Query();
+        query.fields().include("itemDataHash").include("serialNumber").include("stockType");
+        query.cursorBatchSize(5000);
+
+        long loaded = 0;
+        try (Stream<Document> docs = mongoTemplate.stream(query, Document.class, collection)) {
+            for (Document doc : (Iterable<Document>) docs::iterator) {
+                String stockType = doc.getString("stockType");
+                target.put(doc.getString("itemDataHash"),
+                    stockType != null ? serialKey(stockType, doc.getString("serialNumber")) : null);
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+
+    private void dropIndexIfExists(MongoCollection<Document> items, String name) {
+        if (findIndex(items, name) != null) {
+            items.dropIndex(name);
+            System.out.println("🧹 Dropped index " + name + " of " + ITEMS_COLLECTION + ", covered by a unique index");
+        }
+    }
+
+    private Document findIndex(MongoCollection<Document> items, String name) {
+        for (Document index : items.listIndexes()) {
+            if (name.equals(index.getString("name"))) {
+                return index;
+            }
+        }
+        return null;
+    }
+
+    private boolean createUniqueIndex(MongoCollection<Document> items, String name, Bson keys, String stringField) {
+        // Non-empty strings only: a range filter that equality and $in lookups on the field match,
+        // so the query planner can use this index for them
+        Document filter = new Document(stringField, new Document("$gt", ""));
+        try {
+            Document existing = findIndex(items, name);
+            if (existing != null && !filter.equals(existing.get("partialFilterExpression"))) {
+                items.dropIndex(name); // Created with an earlier filter
+            }
+            items.createIndex(keys, new IndexOptions().name(name).unique(true).partialFilterExpression(filter));
+            uniqueIndexes.put(name, true);
+            return true;
+        } catch (Exception e) {
+            uniqueIndexes.put(name, false);
+            System.err.println("⚠️ Unique index " + name + " not created, stock_items already holds duplicates: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Up to 20 groups of items sharing the index key, largest first (PINs by hash only)
+     */
+    private List<Map<String, Object>> duplicateGroups(String index, String... fields) {
+        Aggregation aggregation = Aggregation.newAggregation(
+            Aggregation.match(Criteria.where(fields[fields.length - 1]).gt("")),
+            Aggregation.group(fields).count().as("count").push("_id").as("itemIds").addToSet("poolId").as("poolIds"),
+            Aggregation.match(Criteria.where("count").gt(1)),
+            Aggregation.sort(Sort.Direction.DESC, "count"),
+            Aggregation.limit(20)
+        ).withOptions(AggregationOptions.builder().allowDiskUse(true).build());
+
+        List<Map<String, Object>> groups = new ArrayList<>();
+        for (Document group : mongoTemplate.aggregate(aggregation, ITEMS_COLLECTION, Document.class).getMappedResults()) {
+            Map<String, Object> duplicate = new LinkedHashMap<>();
+            duplicate.put("index", index);
+            duplicate.put("key", group.get("_id"));
+            duplicate.put("count", group.get("count"));
+            duplicate.put("itemIds", group.get("itemIds"));
+            duplicate.put("poolIds", group.get("poolIds"));
+            groups.add(duplicate);
+        }
+        if (!groups.isEmpty()) {
+            System.err.println("⚠️ " + groups.size() + " duplicate group(s) block " + index + ", see the dedupe metrics");
+        }
+        return groups;
+    }
+
+    private static String serialKey(StockPool.StockType stockType, String serial) {
+        return stockType == null ? null : serialKey(stockType.name(), serial);
+    }
+
+    private static String serialKey(String stockType, String serial) {
+        return serial == null ? null : stockType + ":" + serial;
+    }
+
+    private static final class Filters {
+
+        private final BloomFilter hashes;
+        private final BloomFilter serials;
+
+        Filters(BloomFilter hashes, BloomFilter serials) {
+            this.hashes = hashes;
+            this.serials = serials;
+        }
+
+        void put(String hash, String serialKey) {
+            if (hash != null) {
+                hashes.put(hash);
+            }
+            if (serialKey != null) {
+                serials.put(serialKey);
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.StockPool;
+import com.example.topup.demo.entity.StockPool.StockItem;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams a pool's items with decrypted PIN/ICCID values as gzipped CSV or NDJSON.
+ *
+ * Items are read through a Mongo cursor in batches of app.stock.export.batch-size. While one
+ * batch is decrypted (StockCryptoService spreads it across cores) the next one is read from
+ * the cursor, and each decrypted batch is written out and dropped before the next one is
+ * taken, so memory stays at two batches whatever the pool size.
+ */
+@Service
+public class StockExportService {
+
+    public enum Format {
+        CSV, NDJSON
+    }
+
+    private static final String[] COLUMNS = {
+        "itemId", "serialNumber", "itemData", "status", "productId", "price", "type",
+        "addedDate", "expiryDate", "assignedDate", "usedDate", "assignedToOrderId", "assignedToUserEmail", "archived"
+    };
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private StockCryptoService stockCryptoService;
+
+    @Value("${app.stock.export.batch-size:1000}")
+    private int batchSize;
+
+    @Value("${app.stock.export.timeout-ms:1800000}")
+    private long timeoutMs;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    // Decrypts the batch ahead of the one being read; a few exports at a time share it
+    private final ExecutorService decryptExecutor = Executors.newFixedThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "stock-export-decrypt");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PreDestroy
+    public void shutdown() {
+        decryptExecutor.shutdownNow();
+    }
+
+    /**
+     * How long one export request may run
+     */
+    public long getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    /**
+     * Write every item of the pool (and optionally its archived items) to {@code out}, gzipped.
+     * Returns the number of items written.
+     */
+    public long export(StockPool pool, Format format, boolean includeArchived, OutputStream out) throws IOException {
+        long startedAt = System.currentTimeMillis();
+        GZIPOutputStream gzip = new GZIPOutputStream(out, 64 * 1024);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(gzip, StandardCharsets.UTF_8), 64 * 1024);
+
+        if (format == Format.CSV) {
+            writer.write(String.join(",", COLUMNS));
+            writer.write("\n");
+        }
+
+        long written = exportCollection(pool, format, "stock_items", false, writer);
+        if (includeArchived) {
+            written += exportCollection(pool, format, StockArchiveService.ARCHIVE_COLLECTION, true, writer);
+        }
+
+        writer.flush();
+        gzip.finish();
+        gzip.flush();
+        System.out.println("📤 Exported " + written + " item(s) of pool " + pool.getId() + " as " + format
+            + " in " + (System.currentTimeMillis() - startedAt) + "ms");
+        return written;
+    }
+
+    private long exportCollection(StockPool pool, Format format, String collection, boolean archived, Writer writer) throws IOException {
+        Query query = new Query(Criteria.where("poolId").is(pool.getId())).with(Sort.by(Sort.Direction.ASC, "_id"));
+        query.fields().exclude("qrCodeImage").exclude("activationCode").exclude("pin1").exclude("puk1")
+            .exclude("pin2").exclude("puk2");
+        query.cursorBatchSize(batchSize);
+
+        long written = 0;
+        try (Stream<StockItem> items = mongoTemplate.stream(query, StockItem.class, collection)) {
+            Iterator<StockItem> cursor = items.iterator();
+            List<StockItem> batch = nextBatch(cursor);
+            CompletableFuture<List<String>> decrypting = decryptAsync(batch);
+
+            while (!batch.isEmpty()) {
+                // Read the next batch while the current one is being decrypted
+                List<StockItem> next = nextBatch(cursor);
+                List<String> values = join(decrypting);
+                decrypting = decryptAsync(next);
+
+                for (int i = 0; i < batch.size(); i++) {
+                    writeItem(writer, format, pool, batch.get(i), values.get(i), archived);
+                }
+                written += batch.size();
+                batch = next;
+            }
+        }
+        return written;
+    }
+
+    private List<StockItem> nextBatch(Iterator<StockItem> cursor) {
+        List<StockItem> batch = new ArrayList<>(batchSize);
+        while (batch.size() < batchSize && cursor.hasNext()) {
+            batch.add(cursor.next());
+        }
+        return batch;
+    }
+
+    private CompletableFuture<List<String>> decryptAsync(List<StockItem> batch) {
+        if (batch.isEmpty()) {
+            return CompletableFuture.completedFuture(List.of());
+        }
+        return CompletableFuture.supplyAsync(() -> decrypt(batch), decryptExecutor);
+    }
+
+    private List<String> decrypt(List<StockItem> batch) {
+        List<String> encrypted = new ArrayList<>(batch.size());
+        for (StockItem item : batch) {
+            encrypted.add(item.getItemData());
+        }
+        try {
+            return stockCryptoService.decryptAll(encrypted);
+        } catch (RuntimeException e) {
+            // One bad value fails the whole batch: decrypt one by one and leave the bad ones empty
+            List<String> values = new ArrayList<>(encrypted.size());
+            for (String value : encrypted) {
+                try {
+                    values.add(stockCryptoService.decrypt(value));
+                } catch (RuntimeException itemError) {
+                    values.add(null);
+                }
+            }
+            return values;
+        }
+    }
+
+    private static List<String> join(CompletableFuture<List<String>> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw new IOException("Decrypting export batch failed", e.getCause());
+        }
+    }
+
+    private void writeItem(Writer writer, Format format, StockPool pool, StockItem item, String plainValue, boolean archived)
+            throws IOException {
+        // Same fallbacks as the admin item view: ICCID as serial for eSIMs, pool price for items without one
+        String serialNumber = item.getSerialNumber();
+        if (pool.getStockType() == StockPool.StockType.ESIM && (serialNumber == null || serialNumber.trim().isEmpty())) {
+            serialNumber = plainValue;
+        }
+        String price = item.getPrice();
+        if (price == null || price.trim().isEmpty()) {
+            price = pool.getPrice();
+        }
+
+        Object[] values = {
+            item.getItemId(), serialNumber, plainValue, item.getStatus(), item.getProductId(), price, item.getType(),
+            item.getAddedDate(), item.getExpiryDate(), item.getAssignedDate(), item.getUsedDate(),
+            item.getAssignedToOrderId(), item.getAssignedToUserEmail(), archived
+        };
+
+        if (format == Format.CSV) {
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writer.write(csv(values[i]));
+            }
+        } else {
+            Map<String, Object> row = new LinkedHashMap<>();
+            for (int i = 0; i < COLUMNS.length; i++) {
+                Object value = values[i];
+                row.put(COLUMNS[i], value == null || value instanceof Boolean ? value : value.toString());
+            }
+            writer.write(objectMapper.writeValueAsString(row));
+        }
+        writer.write('\n');
+    }
+
+    private static String csv(Object value) {
+        if (value == null) {
+            return "";
+        }
+        String text = value.toString();
+        if (text.indexOf(',') >= 0 || text.indexOf('"') >= 0 || text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0) {
+            return "\"" + text.replace("\"", "\"\"") + "\"";
+        }
+        return text;
+    }
+}
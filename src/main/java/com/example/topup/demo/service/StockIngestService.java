@@ -0,0 +1,632 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.dto.StockItemDTO;
+import com.example.topup.demo.entity.StockIngestJob;
+import com.example.topup.demo.entity.StockPool;
+import com.example.topup.demo.entity.StockPool.StockItem;
+import com.example.topup.demo.repository.StockIngestJobRepository;
+import com.mongodb.bulk.BulkWriteError;
+import jakarta.annotation.PreDestroy;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Streaming PIN/eSIM CSV ingest.
+ *
+ * The upload is spooled to a temp file and processed as a background job:
+ * parse -> validate/dedupe -> encrypt on the job thread, insert on a writer thread.
+ * The two stages hand over bounded chunks through a small queue, so the parser
+ * waits when inserts fall behind and only a few chunks are ever held in memory.
+ *
+ * Duplicate PINs/ICCIDs and serials are rejected per row: within the file by a set of
+ * what was already read, against all stock by StockDedupeService (Bloom filter, then a
+ * lookup of the filter hits), and for uploads racing on another node by the unique indexes.
+ */
+@Service
+public class StockIngestService {
+
+    private static final int CHUNK_SIZE = 1000;
+    private static final int MAX_QUEUED_CHUNKS = 2;
+    private static final int MAX_REJECT_REASONS = 50;
+    private static final int MAX_DUPLICATE_ROWS = 10_000;
+    private static final int DUPLICATE_KEY_ERROR = 11000;
+    private static final Chunk END_OF_INPUT = new Chunk(Collections.emptyList(), Collections.emptyList());
+
+    @Autowired
+    private StockService stockService;
+
+    @Autowired
+    private StockLookupHashService stockLookupHashService;
+
+    @Autowired
+    private StockCryptoService stockCryptoService;
+
+    @Autowired
+    private StockCounterService stockCounterService;
+
+    @Autowired
+    private StockDedupeService stockDedupeService;
+
+    @Autowired
+    private StockShardService stockShardService;
+
+    @Autowired
+    private StockIngestJobRepository stockIngestJobRepository;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    // Each running job uses one thread of each pool
+    private final ExecutorService jobExecutor = Executors.newFixedThreadPool(2);
+    private final ExecutorService writerExecutor = Executors.newFixedThreadPool(2);
+
+    /**
+     * Queue a PIN upload. Expected CSV format: PIN ID, PINS (flexible column names)
+     */
+    public StockIngestJob startPinIngest(MultipartFile file, String adminUser, String poolName, String productId,
+                                         String price, String notes, String productType, String networkProvider) throws IOException {
+        String filename = file.getOriginalFilename();
+        if (filename != null && !filename.toLowerCase().endsWith(".csv")) {
+            throw new IllegalArgumentException("File must be a CSV file. Got: " + filename);
+        }
+        return startIngest(StockPool.StockType.EPIN, file, Collections.emptyMap(), adminUser, poolName, productId,
+            price, notes, productType, networkProvider);
+    }
+
+    /**
+     * Queue an eSIM upload. Expected CSV format: iccid, activation_code, pin_1, puk_1, pin_2, puk_2.
+     * QR code images are stored up front and their references matched by filename (ICCID).
+     */
+    public StockIngestJob startEsimIngest(MultipartFile file, Map<String, String> qrCodeRefByFilename, String adminUser, String poolName,
+                                          String productId, String price, String notes, String productType, String networkProvider) throws IOException {
+        return startIngest(StockPool.StockType.ESIM, file, qrCodeRefByFilename, adminUser, poolName, productId,
+            price, notes, productType, networkProvider);
+    }
+
+    public Optional<StockIngestJob> getJob(String jobId) {
+        return stockIngestJobRepository.findById(jobId);
+    }
+
+    public List<StockIngestJob> getRecentJobs() {
+        return stockIngestJobRepository.findTop20ByOrderByCreatedDateDesc();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        jobExecutor.shutdownNow();
+        writerExecutor.shutdownNow();
+    }
+
+    private StockIngestJob startIngest(StockPool.StockType stockType, MultipartFile file, Map<String, String> qrCodeRefByFilename,
+                                       String adminUser, String poolName, String productId, String price, String notes,
+                                       String productType, String networkProvider) throws IOException {
+        // Use provided pool name or fallback to CSV filename
+        String finalPoolName = (poolName != null && !poolName.trim().isEmpty()) ? poolName :
+            (file.getOriginalFilename() != null ? file.getOriginalFilename().replaceFirst("[.][^.]+$", "") : stockType.name() + "_BUNDLE_" + System.currentTimeMillis());
+
+        // The multipart file is cleaned up when the request ends, so keep a copy for the job
+        Path csvFile = Files.createTempFile("stock-ingest-", ".csv");
+        file.transferTo(csvFile);
+
+        StockIngestJob job = new StockIngestJob();
+        job.setStockType(stockType);
+        job.setFileName(file.getOriginalFilename());
+        job.setPoolName(finalPoolName);
+        job.setProductId(productId);
+        job.setPrice(price);
+        job.setNotes(notes);
+        job.setProductType(productType);
+        job.setNetworkProvider(networkProvider);
+        job.setCreatedBy(adminUser);
+        job.setCreatedDate(LocalDateTime.now());
+        StockIngestJob savedJob = stockIngestJobRepository.save(job);
+
+        System.out.println("📥 Queued " + stockType + " ingest job " + savedJob.getId() + " for " + file.getOriginalFilename()
+            + " (" + file.getSize() + " bytes)");
+        jobExecutor.submit(() -> runJob(savedJob, csvFile, qrCodeRefByFilename));
+        return savedJob;
+    }
+
+    private void runJob(StockIngestJob job, Path csvFile, Map<String, String> qrCodeRefByFilename) {
+        Progress progress = new Progress();
+        BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<>(MAX_QUEUED_CHUNKS);
+        Future<?> writer = null;
+
+        try {
+            job.setStatus(StockIngestJob.JobStatus.RUNNING);
+            job.setStartedDate(LocalDateTime.now());
+
+            StockPool pool = stockService.prepareUploadPool(job.getProductId(), job.getStockType(), job.getCreatedBy(),
+                job.getPoolName(), job.getPrice(), job.getNotes(), job.getProductType(), job.getNetworkProvider());
+            job.setPoolId(pool.getId());
+            stockIngestJobRepository.save(job);
+
+            writer = writerExecutor.submit(() -> writeChunks(job.getId(), chunks, progress));
+
+            try (Reader reader = Files.newBufferedReader(csvFile, StandardCharsets.UTF_8);
+                 CSVParser csvParser = new CSVParser(reader, CSVFormat.DEFAULT
+                     .withFirstRecordAsHeader()
+                     .withIgnoreHeaderCase()
+                     .withIgnoreEmptyLines()
+                     .withTrim())) {
+
+                Columns columns = resolveColumns(job.getStockType(), csvParser.getHeaderMap());
+                Map<String, Long> seenHashes = new HashMap<>();
+                Map<String, Long> seenSerials = new HashMap<>();
+                List<StockItemDTO> chunk = new ArrayList<>(CHUNK_SIZE);
+                List<Long> rows = new ArrayList<>(CHUNK_SIZE);
+
+                for (CSVRecord record : csvParser) {
+                    progress.rowsRead.incrementAndGet();
+
+                    StockItemDTO dto;
+                    try {
+                        dto = job.getStockType() == StockPool.StockType.EPIN
+                            ? toPinDto(record, columns)
+                            : toEsimDto(record, columns, qrCodeRefByFilename);
+                    } catch (IllegalArgumentException e) {
+                        progress.reject("Row " + record.getRecordNumber() + ": " + e.getMessage());
+                        continue;
+                    }
+
+                    long row = record.getRecordNumber();
+                    Long firstRow = seenHashes.putIfAbsent(stockLookupHashService.hash(dto.getItemData()), row);
+                    if (firstRow != null) {
+                        progress.duplicate(row, "Row " + row + ": same PIN/ICCID as row " + firstRow);
+                        continue;
+                    }
+                    if (dto.getSerialNumber() != null) {
+                        firstRow = seenSerials.putIfAbsent(dto.getSerialNumber(), row);
+                        if (firstRow != null) {
+                            progress.duplicate(row, "Row " + row + ": same serial number as row " + firstRow);
+                            continue;
+                        }
+                    }
+
+                    chunk.add(dto);
+                    rows.add(row);
+                    if (chunk.size() == CHUNK_SIZE) {
+                        handOver(chunks, toStockItems(job, pool, chunk, rows, progress), writer);
+                        chunk = new ArrayList<>(CHUNK_SIZE);
+                        rows = new ArrayList<>(CHUNK_SIZE);
+                    }
+                }
+                if (!chunk.isEmpty()) {
+                    handOver(chunks, toStockItems(job, pool, chunk, rows, progress), writer);
+                }
+            }
+
+            handOver(chunks, END_OF_INPUT, writer);
+            writer.get();
+
+            job.setStatus(StockIngestJob.JobStatus.COMPLETED);
+        } catch (Exception e) {
+            Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+            System.err.println("❌ Ingest job " + job.getId() + " failed: " + cause.getMessage());
+            if (writer != null) {
+                writer.cancel(true);
+            }
+            job.setStatus(StockIngestJob.JobStatus.FAILED);
+            job.setErrorMessage(cause.getMessage());
+        } finally {
+            job.setRowsRead(progress.rowsRead.get());
+            job.setRowsInserted(progress.rowsInserted.get());
+            job.setRowsRejected(progress.rowsRejected.get());
+            job.setRowsDuplicate(progress.rowsDuplicate.get());
+            job.setRejectReasons(new ArrayList<>(progress.rejectReasons));
+            job.setDuplicateRows(new ArrayList<>(progress.duplicateRows));
+            job.setFinishedDate(LocalDateTime.now());
+            stockIngestJobRepository.save(job);
+
+            try {
+                Files.deleteIfExists(csvFile);
+            } catch (IOException e) {
+                System.err.println("⚠️ Could not delete ingest temp file " + csvFile + ": " + e.getMessage());
+            }
+
+            System.out.println("✅ Ingest job " + job.getId() + " " + job.getStatus() + " - read: " + job.getRowsRead()
+                + ", inserted: " + job.getRowsInserted() + ", rejected: " + job.getRowsRejected()
+                + " (duplicates: " + job.getRowsDuplicate() + ")"
+                + " (" + job.getRowsPerSecond() + " rows/s)");
+        }
+    }
+
+    /**
+     * Block until the writer has room for the chunk; fails fast if the writer has died
+     */
+    private void handOver(BlockingQueue<Chunk> chunks, Chunk chunk, Future<?> writer) throws Exception {
+        while (!chunks.offer(chunk, 1, TimeUnit.SECONDS)) {
+            if (writer.isDone()) {
+                writer.get();
+                throw new IllegalStateException("Ingest writer stopped unexpectedly");
+            }
+        }
+    }
+
+    private Void writeChunks(String jobId, BlockingQueue<Chunk> chunks, Progress progress) throws InterruptedException {
+        while (true) {
+            Chunk chunk = chunks.take();
+            if (chunk == END_OF_INPUT) {
+                return null;
+            }
+            if (!chunk.items.isEmpty()) {
+                List<StockItem> inserted = insert(chunk, progress);
+                if (!inserted.isEmpty()) {
+                    stockCounterService.recordAdded(inserted.get(0).getPoolId(), inserted.size());
+                    stockDedupeService.recordInserted(inserted);
+                    progress.rowsInserted.addAndGet(inserted.size());
+                }
+            }
+
+            mongoTemplate.updateFirst(
+                new Query(Criteria.where("_id").is(jobId)),
+                new Update()
+                    .set("rowsRead", progress.rowsRead.get())
+                    .set("rowsInserted", progress.rowsInserted.get())
+                    .set("rowsRejected", progress.rowsRejected.get())
+                    .set("rowsDuplicate", progress.rowsDuplicate.get()),
+                StockIngestJob.class
+            );
+        }
+    }
+
+    /**
+     * Unordered bulk insert; rows hitting a unique index (uploaded by another job meanwhile)
+     * are reported as duplicates and the rest of the chunk is still inserted
+     */
+    private List<StockItem> insert(Chunk chunk, Progress progress) {
+        try {
+            mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, StockItem.class).insert(chunk.items).execute();
+            return chunk.items;
+        } catch (BulkOperationException e) {
+            Set<Integer> failed = new HashSet<>();
+            for (BulkWriteError error : e.getErrors()) {
+                long row = chunk.rows.get(error.getIndex());
+                if (error.getCode() == DUPLICATE_KEY_ERROR) {
+                    progress.duplicate(row, "Row " + row + ": already in stock (uploaded concurrently)");
+                } else {
+                    progress.reject("Row " + row + ": insert failed - " + error.getMessage());
+                }
+                failed.add(error.getIndex());
+            }
+            List<StockItem> inserted = new ArrayList<>(chunk.items.size() - failed.size());
+            for (int i = 0; i < chunk.items.size(); i++) {
+                if (!failed.contains(i)) {
+                    inserted.add(chunk.items.get(i));
+                }
+            }
+            return inserted;
+        }
+    }
+
+    /**
+     * Encrypt a validated chunk, dropping values and serials that are already in stock
+     */
+    private Chunk toStockItems(StockIngestJob job, StockPool pool, List<StockItemDTO> dtos, List<Long> rows, Progress progress) {
+        List<String> hashes = new ArrayList<>(dtos.size());
+        List<String> serials = new ArrayList<>(dtos.size());
+        for (StockItemDTO dto : dtos) {
+            hashes.add(stockLookupHashService.hash(dto.getItemData()));
+            serials.add(dto.getSerialNumber());
+        }
+        Set<String> existing = stockDedupeService.existingHashes(hashes);
+        Set<String> existingSerials = stockDedupeService.existingSerials(job.getStockType(), serials);
+
+        boolean esim = job.getStockType() == StockPool.StockType.ESIM;
+        List<StockItemDTO> fresh = new ArrayList<>(dtos.size());
+        List<Long> freshRows = new ArrayList<>(dtos.size());
+        List<String> freshHashes = new ArrayList<>(dtos.size());
+        List<String> qrCodeRefs = new ArrayList<>(dtos.size());
+        for (int i = 0; i < dtos.size(); i++) {
+            StockItemDTO dto = dtos.get(i);
+            long row = rows.get(i);
+            if (existing.contains(hashes.get(i))) {
+                progress.duplicate(row, "Row " + row + ": " + stockService.maskData(dto.getItemData()) + " already in stock");
+                continue;
+            }
+            if (dto.getSerialNumber() != null && existingSerials.contains(dto.getSerialNumber())) {
+                progress.duplicate(row, "Row " + row + ": serial " + dto.getSerialNumber() + " already in stock");
+                continue;
+            }
+            String qrCodeRef = null;
+            if (esim) {
+                // QR images go to the QR image store; the item only keeps the reference
+                try {
+                    qrCodeRef = dto.getQrCodeRef() != null ? dto.getQrCodeRef() : stockService.storeQrCode(dto.getQrCodeImage());
+                } catch (IllegalArgumentException e) {
+                    progress.reject("Row " + row + ": " + stockService.maskData(dto.getItemData()) + " has an invalid QR code image");
+                    continue;
+                }
+            }
+            fresh.add(dto);
+            freshRows.add(row);
+            freshHashes.add(hashes.get(i));
+            qrCodeRefs.add(qrCodeRef);
+        }
+
+        // Encrypt the whole chunk field by field so the work spreads across cores
+        List<String> itemData = encryptAll(fresh, StockItemDTO::getItemData);
+        List<String> activationCodes = esim ? encryptAll(fresh, StockItemDTO::getActivationCode) : null;
+        List<String> pin1s = esim ? encryptAll(fresh, StockItemDTO::getPin1) : null;
+        List<String> puk1s = esim ? encryptAll(fresh, StockItemDTO::getPuk1) : null;
+        List<String> pin2s = esim ? encryptAll(fresh, StockItemDTO::getPin2) : null;
+        List<String> puk2s = esim ? encryptAll(fresh, StockItemDTO::getPuk2) : null;
+
+        LocalDateTime addedDate = LocalDateTime.now();
+        List<StockItem> items = new ArrayList<>(fresh.size());
+        for (int i = 0; i < fresh.size(); i++) {
+            StockItemDTO dto = fresh.get(i);
+
+            StockItem item = new StockItem(itemData.get(i), dto.getSerialNumber());
+            item.setItemId(UUID.randomUUID().toString());
+            item.setPoolId(pool.getId());
+            item.setStockType(pool.getStockType());
+            item.setItemDataHash(freshHashes.get(i));
+            item.setMaskedData(stockService.maskData(dto.getItemData()));
+            item.setExpiryDate(dto.getExpiryDate());
+            item.setAddedDate(addedDate);
+            item.setShard(stockShardService.assignShard(pool.getId()));
+
+            if (!esim) {
+                item.setNotes(job.getNotes()); // Use form notes
+                item.setProductId(pool.getProductId()); // Use product ID from form
+                item.setPrice(job.getPrice()); // Use price from form
+                item.setType("EPIN");
+            } else {
+                item.setActivationUrl(dto.getActivationUrl());
+                item.setActivationCode(activationCodes.get(i));
+                item.setPin1(pin1s.get(i));
+                item.setPuk1(puk1s.get(i));
+                item.setPin2(pin2s.get(i));
+                item.setPuk2(puk2s.get(i));
+                item.setQrCodeUrl(dto.getQrCodeUrl());
+                item.setQrCodeRef(qrCodeRefs.get(i));
+                item.setNotes(dto.getNotes());
+                item.setType("ESIM");
+            }
+            items.add(item);
+        }
+        return new Chunk(items, freshRows);
+    }
+
+    private List<String> encryptAll(List<StockItemDTO> dtos, Function<StockItemDTO, String> field) {
+        List<String> values = new ArrayList<>(dtos.size());
+        for (StockItemDTO dto : dtos) {
+            values.add(field.apply(dto));
+        }
+        return stockCryptoService.encryptAll(values);
+    }
+
+    private Columns resolveColumns(StockPool.StockType stockType, Map<String, Integer> headerMap) {
+        Columns columns = new Columns();
+        for (Map.Entry<String, Integer> header : headerMap.entrySet()) {
+            // Strip BOM and normalise separators so "PIN ID", "pin_id" and "pin-id" all match
+            String name = header.getKey().replace("\uFEFF", "").trim().toLowerCase();
+            if (name.contains("\0") || name.contains("pk\u0003\u0004") || name.contains("[content_types]")) {
+                throw new IllegalArgumentException("File appears to be corrupted or not a plain CSV text file. Please save your Excel file as 'CSV UTF-8 (Comma delimited) (*.csv)' format.");
+            }
+            String key = name.replaceAll("[ _-]", "");
+            int index = header.getValue();
+
+            switch (key) {
+                case "pinid": columns.pinId = index; break;
+                case "pins": case "pin": case "pinnumber": columns.pins = index; break;
+                case "serialnumber": columns.serialNumber = index; break;
+                case "iccid": columns.iccid = index; break;
+                case "activationcode": columns.activationCode = index; break;
+                case "pin1": columns.pin1 = index; break;
+                case "puk1": columns.puk1 = index; break;
+                case "pin2": columns.pin2 = index; break;
+                case "puk2": columns.puk2 = index; break;
+                case "activationurl": columns.activationUrl = index; break;
+                case "qrcodeurl": columns.qrCodeUrl = index; break;
+                case "qrcodeimage": columns.qrCodeImage = index; break;
+                case "productid": columns.productId = index; break;
+                case "expirydate": case "expiry": columns.expiryDate = index; break;
+                default: break;
+            }
+        }
+
+        if (stockType == StockPool.StockType.EPIN && columns.pins < 0) {
+            throw new IllegalArgumentException("CSV must have a 'PINS' or 'PIN' column. Found headers: " + headerMap.keySet());
+        }
+        if (stockType == StockPool.StockType.ESIM && columns.iccid < 0) {
+            throw new IllegalArgumentException("CSV must contain 'iccid' column. Found columns: " + headerMap.keySet());
+        }
+        if (stockType == StockPool.StockType.ESIM && columns.activationCode < 0) {
+            throw new IllegalArgumentException("CSV must contain 'activation_code' column. Found columns: " + headerMap.keySet());
+        }
+        return columns;
+    }
+
+    private StockItemDTO toPinDto(CSVRecord record, Columns columns) {
+        String pins = value(record, columns.pins);
+        if (pins == null) {
+            throw new IllegalArgumentException("empty PINS value");
+        }
+
+        StockItemDTO item = new StockItemDTO();
+        // Convert scientific notation to full number
+        item.setItemData(stockService.convertScientificNotation(pins));
+
+        // Serial Number takes precedence over PIN ID
+        String serial = value(record, columns.serialNumber);
+        if (serial == null) {
+            serial = value(record, columns.pinId);
+        }
+        if (serial != null) {
+            item.setSerialNumber(stockService.convertScientificNotation(serial));
+        }
+        item.setExpiryDate(parseExpiryDate(value(record, columns.expiryDate)));
+        return item;
+    }
+
+    private StockItemDTO toEsimDto(CSVRecord record, Columns columns, Map<String, String> qrCodeRefByFilename) {
+        String iccid = value(record, columns.iccid);
+        if (iccid == null) {
+            throw new IllegalArgumentException("empty iccid value");
+        }
+
+        StockItemDTO item = new StockItemDTO();
+        item.setItemData(iccid);
+        item.setActivationCode(value(record, columns.activationCode));
+        item.setPin1(value(record, columns.pin1));
+        item.setPuk1(value(record, columns.puk1));
+        item.setPin2(value(record, columns.pin2));
+        item.setPuk2(value(record, columns.puk2));
+        item.setSerialNumber(value(record, columns.serialNumber));
+        item.setActivationUrl(value(record, columns.activationUrl));
+        item.setQrCodeUrl(value(record, columns.qrCodeUrl));
+        item.setQrCodeImage(value(record, columns.qrCodeImage));
+        item.setExpiryDate(parseExpiryDate(value(record, columns.expiryDate)));
+
+        // Keep the CSV productId in notes
+        String productId = value(record, columns.productId);
+        if (productId != null) {
+            item.setNotes("productId:" + productId);
+        }
+
+        if (!qrCodeRefByFilename.isEmpty()) {
+            String qrCodeRef = matchQrCode(stockService.convertScientificNotation(iccid), qrCodeRefByFilename);
+            if (qrCodeRef != null) {
+                item.setQrCodeRef(qrCodeRef);
+            }
+        }
+        return item;
+    }
+
+    /**
+     * Exact ICCID filename first, then a filename that contains the ICCID or vice versa
+     */
+    private String matchQrCode(String iccid, Map<String, String> qrCodeRefByFilename) {
+        String qrCode = qrCodeRefByFilename.get(iccid);
+        if (qrCode != null) {
+            return qrCode;
+        }
+        for (Map.Entry<String, String> qrEntry : qrCodeRefByFilename.entrySet()) {
+            if (qrEntry.getKey().contains(iccid) || iccid.contains(qrEntry.getKey())) {
+                return qrEntry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Optional expiry column: ISO date (end of that day) or ISO date-time
+     */
+    private static LocalDateTime parseExpiryDate(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return value.length() <= 10
+                ? LocalDate.parse(value).atTime(LocalTime.MAX)
+                : LocalDateTime.parse(value);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("invalid expiry date '" + value + "' (expected yyyy-MM-dd)");
+        }
+    }
+
+    private static String value(CSVRecord record, int index) {
+        if (index < 0 || index >= record.size()) {
+            return null;
+        }
+        String value = record.get(index);
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    /**
+     * Column positions resolved from the CSV header (-1 when absent)
+     */
+    private static class Columns {
+        int pinId = -1;
+        int pins = -1;
+        int serialNumber = -1;
+        int iccid = -1;
+        int activationCode = -1;
+        int pin1 = -1;
+        int puk1 = -1;
+        int pin2 = -1;
+        int puk2 = -1;
+        int activationUrl = -1;
+        int qrCodeUrl = -1;
+        int qrCodeImage = -1;
+        int productId = -1;
+        int expiryDate = -1;
+    }
+
+    /**
+     * Encrypted items handed to the writer, with the CSV row number of each
+     */
+    private static class Chunk {
+        final List<StockItem> items;
+        final List<Long> rows;
+
+        Chunk(List<StockItem> items, List<Long> rows) {
+            this.items = items;
+            this.rows = rows;
+        }
+    }
+
+    private static class Progress {
+        final AtomicLong rowsRead = new AtomicLong();
+        final AtomicLong rowsInserted = new AtomicLong();
+        final AtomicLong rowsRejected = new AtomicLong();
+        final AtomicLong rowsDuplicate = new AtomicLong();
+        final List<String> rejectReasons = Collections.synchronizedList(new ArrayList<>());
+        final List<Long> duplicateRows = Collections.synchronizedList(new ArrayList<>());
+
+        void reject(String reason) {
+            rowsRejected.incrementAndGet();
+            if (rejectReasons.size() < MAX_REJECT_REASONS) {
+                rejectReasons.add(reason);
+            }
+        }
+
+        void duplicate(long row, String reason) {
+            reject(reason);
+            rowsDuplicate.incrementAndGet();
+            if (duplicateRows.size() < MAX_DUPLICATE_ROWS) {
+                duplicateRows.add(row);
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.StockPool;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Pushes stock level changes to POS terminals over Server-Sent Events.
+ *
+ * Pool counter changes (sales, uploads, status updates - see StockCounterService) only mark
+ * the pool as changed; once per app.stock.stream.interval-ms the changed pools are read once
+ * and one "stock-level" event per pool is sent to every subscriber whose network provider
+ * filter matches. Bursts on a pool are therefore coalesced into one update per interval.
+ *
+ * Emitters are async servlet responses, so idle connections do not hold a thread.
+ */
+@Service
+public class StockLevelStreamService {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private StockCounterService stockCounterService;
+
+    @Value("${app.stock.stream.timeout-ms:1800000}")
+    private long emitterTimeoutMs;
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final Set<String> changedPools = ConcurrentHashMap.newKeySet();
+    private final Map<String, Integer> lastLevels = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        stockCounterService.addPoolChangeListener(changedPools::add);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.emitter.complete();
+        }
+        subscribers.clear();
+    }
+
+    /**
+     * Open a stream, optionally limited to one network provider (null = all).
+     * The first event is a "snapshot" with the current level of every matching pool.
+     */
+    public SseEmitter subscribe(String networkProvider) {
+        SseEmitter emitter = new SseEmitter(emitterTimeoutMs);
+        Subscriber subscriber = new Subscriber(emitter, networkProvider);
+
+        emitter.onCompletion(() -> subscribers.remove(subscriber));
+        emitter.onTimeout(() -> subscribers.remove(subscriber));
+        emitter.onError(e -> subscribers.remove(subscriber));
+
+        Query query = new Query(Criteria.where("status").ne(StockPool.StockStatus.INACTIVE));
+        if (networkProvider != null) {
+            query.addCriteria(Criteria.where("networkProvider").is(networkProvider));
+        }
+        List<Map<String, Object>> levels = new ArrayList<>();
+        for (StockPool pool : mongoTemplate.find(levelFields(query), StockPool.class)) {
+            levels.add(level(pool, null));
+        }
+
+        try {
+            emitter.send(SseEmitter.event().name("snapshot").data(levels));
+            subscribers.add(subscriber);
+        } catch (IOException e) {
+            emitter.completeWithError(e);
+        }
+        return emitter;
+    }
+
+    /**
+     * Send one coalesced update per changed pool
+     */
+    @Scheduled(fixedDelayString = "${app.stock.stream.interval-ms:1000}")
+    public void publishChanges() {
+        if (changedPools.isEmpty()) {
+            return;
+        }
+        List<String> poolIds = new ArrayList<>(changedPools);
+        changedPools.removeAll(poolIds);
+        if (subscribers.isEmpty()) {
+            // Nobody listening: forget the levels so no delta is computed from a stale value later
+            lastLevels.keySet().removeAll(poolIds);
+            return;
+        }
+
+        try {
+            List<StockPool> pools = mongoTemplate.find(levelFields(new Query(Criteria.where("_id").in(poolIds))), StockPool.class);
+            for (StockPool pool : pools) {
+                int available = pool.getAvailableQuantity() != null ? pool.getAvailableQuantity() : 0;
+                Integer previous = lastLevels.put(pool.getId(), available);
+                if (previous != null && previous == available) {
+                    continue;
+                }
+                Map<String, Object> level = level(pool, previous != null ? available - previous : null);
+                for (Subscriber subscriber : subscribers) {
+                    if (subscriber.networkProvider == null || subscriber.networkProvider.equals(pool.getNetworkProvider())) {
+                        send(subscriber, SseEmitter.event().name("stock-level").data(level));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("❌ Stock level stream update failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Keep idle connections open through proxies
+     */
+    @Scheduled(fixedDelayString = "${app.stock.stream.heartbeat-ms:25000}")
+    public void heartbeat() {
+        for (Subscriber subscriber : subscribers) {
+            send(subscriber, SseEmitter.event().comment("ping"));
+        }
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    private void send(Subscriber subscriber, SseEmitter.SseEventBuilder event) {
+        try {
+            subscriber.emitter.send(event);
+        } catch (Exception e) {
+            // Client went away - drop it
+            subscribers.remove(subscriber);
+            subscriber.emitter.completeWithError(e);
+        }
+    }
+
+    private static Query levelFields(Query query) {
+        query.fields().include("name").include("stockType").include("networkProvider").include("productId")
+            .include("productType").include("availableQuantity").include("status");
+        return query;
+    }
+
+    private static Map<String, Object> level(StockPool pool, Integer delta) {
+        Map<String, Object> level = new HashMap<>();
+        level.put("poolId", pool.getId());
+        level.put("poolName", pool.getName());
+        level.put("stockType", pool.getStockType());
+        level.put("networkProvider", pool.getNetworkProvider());
+        level.put("productId", pool.getProductId());
+        level.put("productType", pool.getProductType());
+        level.put("availableQuantity", pool.getAvailableQuantity());
+        level.put("delta", delta);
+        return level;
+    }
+
+    private static final class Subscriber {
+
+        private final SseEmitter emitter;
+        private final String networkProvider;
+
+        Subscriber(SseEmitter emitter, String networkProvider) {
+            this.emitter = emitter;
+            this.networkProvider = networkProvider;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.topup.demo.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Deterministic keyed hash (HMAC-SHA256) of PINs and ICCIDs.
+ * Stored next to the encrypted value so an item can be found by its secret
+ * with one indexed equality lookup instead of decrypting the whole pool.
+ */
+@Service
+public class StockLookupHashService {
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private final SecretKeySpec key;
+
+    // Mac instances are not thread-safe; keep one initialised per thread
+    private final ThreadLocal<Mac> mac;
+
+    public StockLookupHashService(@Value("${app.stock.lookup-hash-key}") String lookupHashKey) {
+        this.key = new SecretKeySpec(lookupHashKey.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        this.mac = ThreadLocal.withInitial(this::newMac);
+    }
+
+    /**
+     * Hash a plain PIN/ICCID; returns null for empty input
+     */
+    public String hash(String plainValue) {
+        if (plainValue == null || plainValue.trim().isEmpty()) {
+            return null;
+        }
+        byte[] digest = mac.get().doFinal(plainValue.trim().getBytes(StandardCharsets.UTF_8));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+    }
+
+    private Mac newMac() {
+        try {
+            Mac instance = Mac.getInstance(ALGORITHM);
+            instance.init(key);
+            return instance;
+        } catch (Exception e) {
+            throw new RuntimeException("Lookup hash failed", e);
+        }
+    }
+}
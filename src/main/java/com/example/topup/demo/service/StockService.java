@@ -4,19 +4,18 @@ import com.example.topup.demo.entity.Product;
 import com.example.topup.demo.entity.StockPool;
 import com.example.topup.demo.entity.StockPool.StockItem;
 import com.example.topup.demo.repository.ProductRepository;
+import com.example.topup.demo.repository.StockItemRepository;
 import com.example.topup.demo.repository.StockPoolRepository;
-import com.example.topup.demo.dto.StockItemDTO;
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVRecord;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
-import org.springframework.web.multipart.MultipartFile;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.math.BigDecimal;
-import java.nio.charset.StandardCharsets;
 import java.text.DecimalFormat;
 import java.time.LocalDateTime;
 import java.util.*;
@@ -29,417 +28,40 @@ public class StockService {
     private StockPoolRepository stockPoolRepository;
 
     @Autowired
-    private ProductRepository productRepository;
-
-    /**
-     * Upload PIN stock from CSV file
-     * Expected CSV format: PIN ID, PINS
-     */
-    public Map<String, Object> uploadPinStock(MultipartFile file, String adminUser, String poolName, String productId, String price, String notes, String productType, String networkProvider) throws Exception {
-        System.out.println("\n🚀 Starting PIN stock upload process...");
-        
-        // Use provided pool name or fallback to CSV filename
-        String finalPoolName = (poolName != null && !poolName.trim().isEmpty()) ? poolName : 
-            (file.getOriginalFilename() != null ? file.getOriginalFilename().replaceFirst("[.][^.]+$", "") : "PIN_BUNDLE_" + System.currentTimeMillis());
-        
-        System.out.println("📦 Pool Name: " + finalPoolName);
-        System.out.println("👤 Admin User: " + adminUser);
-        System.out.println("🆔 Product ID: " + productId);
-        System.out.println("💰 Price: " + price);
-        System.out.println("📦 Product Type: " + productType);
-        System.out.println("📱 Network Provider: " + networkProvider);
-        System.out.println("📝 Notes: " + notes);
-        
-        List<StockItemDTO> items = parseCSV(file);
-        
-        System.out.println("📊 Total items parsed from CSV: " + items.size());
-        
-        if (items.isEmpty()) {
-            System.err.println("❌ No items found in CSV!");
-            throw new IllegalArgumentException("CSV file is empty or contains no valid PIN data");
-        }
-
-        // Group items by productId (from CSV or parameter)
-        Map<String, List<StockItemDTO>> itemsByProduct = groupByProduct(items, productId);
-        
-        System.out.println("🔢 Items grouped into " + itemsByProduct.size() + " product(s)");
-        
-        int totalImported = 0;
-        List<String> errors = new ArrayList<>();
-        List<StockPool> createdPools = new ArrayList<>();
-
-        for (Map.Entry<String, List<StockItemDTO>> entry : itemsByProduct.entrySet()) {
-            String poolProductId = entry.getKey();
-            List<StockItemDTO> productItems = entry.getValue();
-
-            System.out.println("\n📦 Processing product: " + poolProductId + " with " + productItems.size() + " items");
-
-            try {
-                StockPool pool = getOrCreateStockPool(poolProductId, StockPool.StockType.EPIN, adminUser);
-                
-                System.out.println("✅ Pool retrieved/created: " + pool.getId());
-                
-                // Set the pool name and metadata
-                pool.setName(finalPoolName);
-                pool.setBatchNumber(finalPoolName); // Also set as batch number for tracking
-                
-                System.out.println("🔧 Setting networkProvider: " + networkProvider);
-                pool.setNetworkProvider(networkProvider);
-                
-                System.out.println("🔧 Setting productType: " + productType);
-                pool.setProductType(productType);
-                
-                System.out.println("🔧 Setting price: " + price);
-                pool.setPrice(price);
-                
-                if (notes != null && !notes.trim().isEmpty()) {
-                    pool.setDescription(notes);
-                }
-                
-                System.out.println("📋 Pool metadata after setting:");
-                System.out.println("   - networkProvider: " + pool.getNetworkProvider());
-                System.out.println("   - productType: " + pool.getProductType());
-                System.out.println("   - price: " + pool.getPrice());
-                
-                System.out.println("🔐 Encrypting and adding " + productItems.size() + " items to pool...");
-                
-                for (StockItemDTO dto : productItems) {
-                    // Encrypt the PIN before storing
-                    String encryptedPin = encryptData(dto.getItemData());
-                    
-                    StockItem item = new StockItem(encryptedPin, dto.getSerialNumber());
-                    item.setItemId(UUID.randomUUID().toString());
-                    item.setNotes(notes); // Use form notes
-                    item.setProductId(poolProductId); // Use product ID from form
-                    item.setPrice(price); // Use price from form
-                    item.setType("EPIN"); // Set type as EPIN
-                    pool.addItem(item);
-                    totalImported++;
-                }
-                
-                System.out.println("✅ Added " + productItems.size() + " items to pool");
-                
-                pool.setLastModifiedBy(adminUser);
-                pool.setLastModifiedDate(LocalDateTime.now());
-                
-                System.out.println("💾 Saving pool to database...");
-                StockPool savedPool = stockPoolRepository.save(pool);
-                System.out.println("✅ Pool saved successfully! ID: " + savedPool.getId());
-                System.out.println("   Total Quantity: " + savedPool.getTotalQuantity());
-                System.out.println("   Available: " + savedPool.getAvailableQuantity());
-                System.out.println("   Network Provider: " + savedPool.getNetworkProvider());
-                System.out.println("   Product Type: " + savedPool.getProductType());
-                System.out.println("   Price: " + savedPool.getPrice());
-                
-                createdPools.add(savedPool);
-                
-            } catch (Exception e) {
-                System.err.println("❌ Error processing product " + poolProductId + ": " + e.getMessage());
-                e.printStackTrace();
-                errors.add("Error processing product " + poolProductId + ": " + e.getMessage());
-            }
-        }
-
-        System.out.println("\n🎉 Upload process complete!");
-        System.out.println("   Total Imported: " + totalImported);
-        System.out.println("   Pools Created/Updated: " + createdPools.size());
-        System.out.println("   Errors: " + errors.size());
-
-        // Build detailed response with stock card data
-        Map<String, Object> result = new HashMap<>();
-        result.put("success", true);
-        result.put("totalImported", totalImported);
-        result.put("poolsUpdated", createdPools.size());
-        result.put("bundleName", finalPoolName);
-        result.put("errors", errors);
-        
-        // Add stock card details
-        List<Map<String, Object>> stockCards = new ArrayList<>();
-        for (StockPool pool : createdPools) {
-            Map<String, Object> card = new HashMap<>();
-            card.put("poolId", pool.getId());
-            card.put("poolName", pool.getName());
-            card.put("price", price); // Price from form
-            card.put("unitCount", pool.getTotalQuantity()); // Total PINs
-            card.put("availableCount", pool.getAvailableQuantity());
-            card.put("stockType", pool.getStockType().toString());
-            card.put("status", pool.getStatus().toString());
-            card.put("productId", pool.getProductId());
-            card.put("notes", pool.getDescription());
-            card.put("createdDate", pool.getCreatedDate());
-            stockCards.add(card);
-        }
-        result.put("stockCards", stockCards);
-        result.put("stockPools", createdPools);
-
-        return result;
-    }
+    private StockItemRepository stockItemRepository;
 
-    /**
-     * Upload eSIM stock from CSV file
-     * Expected CSV format: iccid, serialNumber, activationUrl, qrCodeUrl, productId, notes, poolName, type, price
-     */
-    public Map<String, Object> uploadEsimStock(MultipartFile file, String adminUser, String poolName, String productId, String price, String notes, String productType, String networkProvider) throws Exception {
-        return uploadEsimStockWithQR(file, new HashMap<>(), adminUser, poolName, productId, price, notes, productType, networkProvider);
-    }
+    @Autowired
+    private ProductRepository productRepository;
 
-    /**
-     * Upload eSIM stock from CSV file with QR code images matched by filename (ICCID)
-     * Expected CSV format: iccid, activation_code, pin_1, puk_1, pin_2, puk_2
-     * QR code images should be named with ICCID (e.g., 8947230000000000001.png)
-     */
-    public Map<String, Object> uploadEsimStockWithQRByFilename(MultipartFile file, Map<String, String> qrCodeByFilename, String adminUser, String poolName, String productId, String price, String notes, String productType, String networkProvider) throws Exception {
-        // Use provided pool name or fallback to CSV filename
-        String finalPoolName = (poolName != null && !poolName.trim().isEmpty()) ? poolName : 
-            (file.getOriginalFilename() != null ? file.getOriginalFilename().replaceFirst("[.][^.]+$", "") : "ESIM_BUNDLE_" + System.currentTimeMillis());
-        
-        List<StockItemDTO> items = parseEsimCSV(file);
-        
-        if (items.isEmpty()) {
-            throw new IllegalArgumentException("CSV file is empty or invalid");
-        }
+    @Autowired
+    private StockAllocationBuffer stockAllocationBuffer;
 
-        // Match QR codes to items by ICCID (filename)
-        if (qrCodeByFilename != null && !qrCodeByFilename.isEmpty()) {
-            System.out.println("📸 Matching QR codes to eSIMs by ICCID filename...");
-            int matchedCount = 0;
-            
-            for (StockItemDTO item : items) {
-                String iccid = item.getItemData();
-                if (iccid != null) {
-                    // Convert scientific notation to full number
-                    String fullIccid = convertScientificNotation(iccid);
-                    
-                    // Try to find matching QR code by filename
-                    // Try exact match first
-                    if (qrCodeByFilename.containsKey(fullIccid)) {
-                        item.setQrCodeImage(qrCodeByFilename.get(fullIccid));
-                        matchedCount++;
-                        System.out.println("   ✓ Matched QR for ICCID: " + fullIccid);
-                    } else {
-                        // Try to find partial match (in case filename has different format)
-                        boolean found = false;
-                        for (Map.Entry<String, String> qrEntry : qrCodeByFilename.entrySet()) {
-                            String qrFilename = qrEntry.getKey();
-                            // Check if filename contains the ICCID or vice versa
-                            if (qrFilename.contains(fullIccid) || fullIccid.contains(qrFilename)) {
-                                item.setQrCodeImage(qrEntry.getValue());
-                                matchedCount++;
-                                found = true;
-                                System.out.println("   ✓ Matched QR for ICCID: " + fullIccid + " (partial match with: " + qrFilename + ")");
-                                break;
-                            }
-                        }
-                        if (!found) {
-                            System.out.println("   ⚠️ No QR code found for ICCID: " + fullIccid);
-                        }
-                    }
-                }
-            }
-            System.out.println("✅ Matched " + matchedCount + " out of " + items.size() + " QR codes");
-        }
-        
-        Map<String, List<StockItemDTO>> itemsByProduct = groupByProduct(items, productId);
-        
-        int totalImported = 0;
-        List<String> errors = new ArrayList<>();
-        List<StockPool> createdPools = new ArrayList<>();
-        
-        for (Map.Entry<String, List<StockItemDTO>> entry : itemsByProduct.entrySet()) {
-            String poolProductId = entry.getKey();
-            List<StockItemDTO> productItems = entry.getValue();
+    @Autowired
+    private StockAllocationService stockAllocationService;
 
-            try {
-                StockPool pool = getOrCreateStockPool(poolProductId, StockPool.StockType.ESIM, adminUser);
-                
-                // Set the pool name and metadata
-                pool.setName(finalPoolName);
-                pool.setBatchNumber(finalPoolName);
-                pool.setNetworkProvider(networkProvider);
-                pool.setProductType(productType);
-                pool.setPrice(price);
-                if (notes != null && !notes.trim().isEmpty()) {
-                    pool.setDescription(notes);
-                }
-                
-                for (StockItemDTO dto : productItems) {
-                    // Encrypt the ICCID before storing
-                    String encryptedIccid = encryptData(dto.getItemData());
-                    
-                    StockItem item = new StockItem(encryptedIccid, dto.getSerialNumber());
-                    item.setItemId(UUID.randomUUID().toString());
-                    item.setActivationUrl(dto.getActivationUrl());
-                    
-                    // Encrypt and store activation code
-                    if (dto.getActivationCode() != null) {
-                        item.setActivationCode(encryptData(dto.getActivationCode()));
-                    }
-                    
-                    // Encrypt and store PIN/PUK codes
-                    if (dto.getPin1() != null) {
-                        item.setPin1(encryptData(dto.getPin1()));
-                    }
-                    if (dto.getPuk1() != null) {
-                        item.setPuk1(encryptData(dto.getPuk1()));
-                    }
-                    if (dto.getPin2() != null) {
-                        item.setPin2(encryptData(dto.getPin2()));
-                    }
-                    if (dto.getPuk2() != null) {
-                        item.setPuk2(encryptData(dto.getPuk2()));
-                    }
-                    
-                    // Handle QR code
-                    item.setQrCodeUrl(dto.getQrCodeUrl());
-                    if (dto.getQrCodeImage() != null) {
-                        // Log QR code size before and after encryption
-                        String originalQR = dto.getQrCodeImage();
-                        System.out.println("   🔐 Encrypting QR code for ICCID: " + dto.getItemData());
-                        System.out.println("      📏 QR Base64 length BEFORE encryption: " + originalQR.length() + " chars");
-                        
-                        // Encrypt QR code image if provided
-                        String encryptedQR = encryptData(originalQR);
-                        item.setQrCodeImage(encryptedQR);
-                        
-                        System.out.println("      📏 QR length AFTER encryption: " + encryptedQR.length() + " chars");
-                    }
-                    
-                    item.setNotes(dto.getNotes());
-                    item.setType("ESIM");
-                    pool.addItem(item);
-                    totalImported++;
-                }
-                
-                pool.setLastModifiedBy(adminUser);
-                pool.setLastModifiedDate(LocalDateTime.now());
-                stockPoolRepository.save(pool);
-                createdPools.add(pool);
-                
-            } catch (Exception e) {
-                errors.add("Error processing product " + poolProductId + ": " + e.getMessage());
-            }
-        }
+    @Autowired
+    private StockLookupHashService stockLookupHashService;
 
-        Map<String, Object> result = new HashMap<>();
-        result.put("success", true);
-        result.put("totalImported", totalImported);
-        result.put("poolsUpdated", createdPools.size());
-        result.put("bundleName", finalPoolName);
-        result.put("errors", errors);
-        result.put("stockPools", createdPools);
+    @Autowired
+    private StockCryptoService stockCryptoService;
 
-        return result;
-    }
+    @Autowired
+    private StockCounterService stockCounterService;
 
-    /**
-     * Upload eSIM stock from CSV file with QR code images
-     * Expected CSV format: iccid, activation_code, pin_1, puk_1, pin_2, puk_2
-     */
-    public Map<String, Object> uploadEsimStockWithQR(MultipartFile file, Map<Integer, String> qrCodeMap, String adminUser, String poolName, String productId, String price, String notes, String productType, String networkProvider) throws Exception {
-        // Use provided pool name or fallback to CSV filename
-        String finalPoolName = (poolName != null && !poolName.trim().isEmpty()) ? poolName : 
-            (file.getOriginalFilename() != null ? file.getOriginalFilename().replaceFirst("[.][^.]+$", "") : "ESIM_BUNDLE_" + System.currentTimeMillis());
-        
-        List<StockItemDTO> items = parseEsimCSV(file);
-        
-        if (items.isEmpty()) {
-            throw new IllegalArgumentException("CSV file is empty or invalid");
-        }
+    @Autowired
+    private LowStockAlertService lowStockAlertService;
 
-        // Assign QR codes to items if provided
-        if (qrCodeMap != null && !qrCodeMap.isEmpty()) {
-            System.out.println("📸 Assigning " + qrCodeMap.size() + " QR codes to eSIM items...");
-            for (int i = 0; i < Math.min(items.size(), qrCodeMap.size()); i++) {
-                if (qrCodeMap.containsKey(i)) {
-                    items.get(i).setQrCodeImage(qrCodeMap.get(i));
-                    System.out.println("   ✓ Assigned QR code " + (i + 1) + " to eSIM " + (i + 1));
-                }
-            }
-        }
-        
-        Map<String, List<StockItemDTO>> itemsByProduct = groupByProduct(items, productId);
-        
-        int totalImported = 0;
-        List<String> errors = new ArrayList<>();
-        List<StockPool> createdPools = new ArrayList<>();
-        
-        for (Map.Entry<String, List<StockItemDTO>> entry : itemsByProduct.entrySet()) {
-            String poolProductId = entry.getKey();
-            List<StockItemDTO> productItems = entry.getValue();
+    @Autowired
+    private QrImageStore qrImageStore;
 
-            try {
-                StockPool pool = getOrCreateStockPool(poolProductId, StockPool.StockType.ESIM, adminUser);
-                
-                // Set the pool name and metadata
-                pool.setName(finalPoolName);
-                pool.setBatchNumber(finalPoolName);
-                pool.setNetworkProvider(networkProvider);
-                pool.setProductType(productType);
-                pool.setPrice(price);
-                if (notes != null && !notes.trim().isEmpty()) {
-                    pool.setDescription(notes);
-                }
-                
-                for (StockItemDTO dto : productItems) {
-                    // Encrypt the ICCID before storing
-                    String encryptedIccid = encryptData(dto.getItemData());
-                    
-                    StockItem item = new StockItem(encryptedIccid, dto.getSerialNumber());
-                    item.setItemId(UUID.randomUUID().toString());
-                    item.setActivationUrl(dto.getActivationUrl());
-                    
-                    // Encrypt and store activation code
-                    if (dto.getActivationCode() != null) {
-                        item.setActivationCode(encryptData(dto.getActivationCode()));
-                    }
-                    
-                    // Encrypt and store PIN/PUK codes
-                    if (dto.getPin1() != null) {
-                        item.setPin1(encryptData(dto.getPin1()));
-                    }
-                    if (dto.getPuk1() != null) {
-                        item.setPuk1(encryptData(dto.getPuk1()));
-                    }
-                    if (dto.getPin2() != null) {
-                        item.setPin2(encryptData(dto.getPin2()));
-                    }
-                    if (dto.getPuk2() != null) {
-                        item.setPuk2(encryptData(dto.getPuk2()));
-                    }
-                    
-                    // Handle QR code
-                    item.setQrCodeUrl(dto.getQrCodeUrl());
-                    if (dto.getQrCodeImage() != null) {
-                        // Encrypt QR code image if provided
-                        item.setQrCodeImage(encryptData(dto.getQrCodeImage()));
-                    }
-                    
-                    item.setNotes(dto.getNotes());
-                    item.setType("ESIM");
-                    pool.addItem(item);
-                    totalImported++;
-                }
-                
-                pool.setLastModifiedBy(adminUser);
-                pool.setLastModifiedDate(LocalDateTime.now());
-                stockPoolRepository.save(pool);
-                createdPools.add(pool);
-                
-            } catch (Exception e) {
-                errors.add("Error processing product " + poolProductId + ": " + e.getMessage());
-            }
-        }
+    @Autowired
+    private StockArchiveService stockArchiveService;
 
-        Map<String, Object> result = new HashMap<>();
-        result.put("success", true);
-        result.put("totalImported", totalImported);
-        result.put("poolsUpdated", createdPools.size());
-        result.put("bundleName", finalPoolName);
-        result.put("errors", errors);
-        result.put("stockPools", createdPools);
+    @Autowired
+    private StockShardService stockShardService;
 
-        return result;
-    }
+    @Autowired
+    private MongoTemplate mongoTemplate;
 
     /**
      * Get all stock pools
@@ -452,7 +74,7 @@ public class StockService {
      * Get all stock pools with masked PINs for bundle display
      */
     public List<Map<String, Object>> getAllStockPoolsForBundleManagement() {
-        List<StockPool> pools = stockPoolRepository.findAll();
+        List<StockPool> pools = stockPoolRepository.findAllSummaries();
         List<Map<String, Object>> result = new ArrayList<>();
         
         for (StockPool pool : pools) {
@@ -470,7 +92,7 @@ public class StockService {
             poolData.put("createdBy", pool.getCreatedBy());
             
             // Add masked PIN count (don't send actual PINs)
-            poolData.put("pinCount", pool.getItems().size());
+            poolData.put("pinCount", pool.getTotalQuantity());
             
             result.add(poolData);
         }
@@ -500,30 +122,78 @@ public class StockService {
         return stockPoolRepository.findByProductId(productId);
     }
 
+    /**
+     * Get pool summaries (counters and metadata only) for listings
+     */
+    public List<StockPool> getStockPoolSummaries(StockPool.StockType stockType, String productId) {
+        if (stockType != null) {
+            return stockPoolRepository.findSummariesByStockType(stockType);
+        } else if (productId != null) {
+            return stockPoolRepository.findSummariesByProductId(productId);
+        }
+        return stockPoolRepository.findAllSummaries();
+    }
+
+    /**
+     * One keyset page of a pool's items, ordered by item id.
+     * Only display fields are read - no encrypted data, QR images or eSIM secrets.
+     */
+    public List<StockItem> getPoolItemsPage(String poolId, StockItem.ItemStatus status, String afterItemId, int size) {
+        Criteria criteria = Criteria.where("poolId").is(poolId);
+        if (status != null) {
+            criteria = criteria.and("status").is(status);
+        }
+        if (afterItemId != null && !afterItemId.isEmpty()) {
+            criteria = criteria.and("_id").gt(afterItemId);
+        }
+
+        Query query = new Query(criteria).with(Sort.by("_id")).limit(size);
+        query.fields()
+            .include("_id")
+            .include("serialNumber")
+            .include("maskedData")
+            .include("status")
+            .include("assignedDate")
+            .include("assignedToOrderId")
+            .include("assignedToUserEmail")
+            .include("usedDate")
+            .include("productId")
+            .include("price")
+            .include("type");
+        return mongoTemplate.find(query, StockItem.class);
+    }
+
+    /**
+     * Get all items of a stock pool
+     */
+    public List<StockItem> getPoolItems(String poolId) {
+        return stockItemRepository.findByPoolId(poolId);
+    }
+
     /**
      * Update stock item status
      */
     public StockPool updateStockItemStatus(String poolId, String itemId, StockItem.ItemStatus newStatus) {
-        StockPool pool = getStockPoolById(poolId);
-        
-        Optional<StockItem> itemOpt = pool.getItems().stream()
-            .filter(item -> itemId.equals(item.getItemId()))
-            .findFirst();
-        
-        if (itemOpt.isPresent()) {
-            StockItem item = itemOpt.get();
-            item.setStatus(newStatus);
-            
-            if (newStatus == StockItem.ItemStatus.USED) {
-                item.setUsedDate(LocalDateTime.now());
-            }
-            
-            pool.updateQuantities();
-            pool.setLastModifiedDate(LocalDateTime.now());
-            return stockPoolRepository.save(pool);
+        getStockPoolById(poolId);
+
+        Update update = new Update().set("status", newStatus);
+        if (newStatus == StockItem.ItemStatus.USED) {
+            update.set("usedDate", LocalDateTime.now());
         }
-        
-        throw new RuntimeException("Stock item not found with id: " + itemId);
+
+        // Returns the previous version so the counters move from the status actually replaced
+        StockItem previous = mongoTemplate.findAndModify(
+            new Query(Criteria.where("_id").is(itemId).and("poolId").is(poolId)),
+            update,
+            FindAndModifyOptions.options().returnNew(false),
+            StockItem.class
+        );
+        if (previous == null) {
+            throw new RuntimeException("Stock item not found with id: " + itemId);
+        }
+
+        stockCounterService.recordTransition(poolId, previous.getStatus(), newStatus, 1);
+        return getStockPoolById(poolId);
     }
 
     /**
@@ -531,35 +201,19 @@ public class StockService {
      */
     public StockItem assignStockToOrder(String productId, StockPool.StockType stockType, 
                                         String orderId, String userId, String userEmail) {
-        Optional<StockPool> poolOpt = stockPoolRepository.findByProductIdAndStockType(productId, stockType);
+        List<String> poolIds = stockAllocationService.getProductPoolIds(productId, stockType);
         
-        if (!poolOpt.isPresent()) {
+        if (poolIds.isEmpty()) {
             throw new RuntimeException("No stock pool found for product: " + productId);
         }
         
-        StockPool pool = poolOpt.get();
-        
-        // Find first available item
-        Optional<StockItem> availableItemOpt = pool.getItems().stream()
-            .filter(item -> item.getStatus() == StockItem.ItemStatus.AVAILABLE)
-            .findFirst();
-        
-        if (!availableItemOpt.isPresent()) {
-            throw new RuntimeException("No available stock for product: " + productId);
-        }
-        
-        StockItem item = availableItemOpt.get();
-        item.setStatus(StockItem.ItemStatus.ASSIGNED);
-        item.setAssignedDate(LocalDateTime.now());
-        item.setAssignedToOrderId(orderId);
-        item.setAssignedToUserId(userId);
-        item.setAssignedToUserEmail(userEmail);
-        
-        pool.updateQuantities();
-        pool.setLastModifiedDate(LocalDateTime.now());
-        stockPoolRepository.save(pool);
+        // A single pool can be served by the allocation buffer (hot pools); several pools
+        // (e.g. supplier batches with different expiries) are picked across by the allocation strategy
+        Optional<StockItem> item = poolIds.size() == 1
+            ? stockAllocationBuffer.claimNextItem(poolIds.get(0), StockItem.ItemStatus.ASSIGNED, orderId, userId, userEmail)
+            : stockAllocationService.claimNextItemForProduct(productId, stockType, StockItem.ItemStatus.ASSIGNED, orderId, userId, userEmail);
         
-        return item;
+        return item.orElseThrow(() -> new RuntimeException("No available stock for product: " + productId));
     }
 
     /**
@@ -600,8 +254,8 @@ public class StockService {
         esimStats.put("usagePercentage", totalEsims > 0 ? (usedEsims * 100.0 / totalEsims) : 0);
         stats.put("esims", esimStats);
         
-        // Low stock alerts
-        List<StockPool> lowStockPools = stockPoolRepository.findLowStockPools();
+        // Low stock alerts - pools flagged when their counters crossed the threshold
+        List<StockPool> lowStockPools = lowStockAlertService.getAlertedPools();
         stats.put("lowStockAlerts", lowStockPools.size());
         stats.put("lowStockPools", lowStockPools.stream()
             .map(pool -> {
@@ -610,6 +264,7 @@ public class StockService {
                 poolInfo.put("name", pool.getName());
                 poolInfo.put("availableQuantity", pool.getAvailableQuantity());
                 poolInfo.put("totalQuantity", pool.getTotalQuantity());
+                poolInfo.put("lowStockThreshold", lowStockAlertService.thresholdFor(pool));
                 poolInfo.put("productId", pool.getProductId());
                 
                 // Add stockType with null check and default to EPIN if null
@@ -627,6 +282,93 @@ public class StockService {
         return stats;
     }
 
+    /**
+     * Find an item of a pool by its plain PIN/ICCID - indexed HMAC lookup, no decryption.
+     * Falls back to the archive for items sold long ago.
+     */
+    public Optional<StockItem> findItemByValue(String poolId, String plainValue) {
+        String hash = stockLookupHashService.hash(plainValue);
+        if (hash == null) {
+            return Optional.empty();
+        }
+        Optional<StockItem> item = stockItemRepository.findFirstByPoolIdAndItemDataHash(poolId, hash);
+        return item.isPresent() ? item : stockArchiveService.findFirstByPoolIdInAndItemDataHash(List.of(poolId), hash);
+    }
+
+    /**
+     * Same as findItemByValue but only matches items that are still AVAILABLE
+     */
+    public Optional<StockItem> findAvailableItemByValue(String poolId, String plainValue) {
+        String hash = stockLookupHashService.hash(plainValue);
+        return hash == null ? Optional.empty()
+            : stockItemRepository.findFirstByPoolIdAndItemDataHashAndStatus(poolId, hash, StockItem.ItemStatus.AVAILABLE);
+    }
+
+    /**
+     * Find an item by its plain PIN/ICCID across several pools (hot set first, then the archive)
+     */
+    public Optional<StockItem> findItemByValue(Collection<String> poolIds, String plainValue) {
+        String hash = stockLookupHashService.hash(plainValue);
+        if (hash == null || poolIds.isEmpty()) {
+            return Optional.empty();
+        }
+        Optional<StockItem> item = stockItemRepository.findFirstByPoolIdInAndItemDataHash(poolIds, hash);
+        return item.isPresent() ? item : stockArchiveService.findFirstByPoolIdInAndItemDataHash(poolIds, hash);
+    }
+
+    /**
+     * Items with a serial number, falling back to the archive when none are in the hot set
+     */
+    public List<StockItem> findItemsBySerialNumber(String serialNumber) {
+        List<StockItem> items = stockItemRepository.findBySerialNumber(serialNumber);
+        return !items.isEmpty() ? items : stockArchiveService.findBySerialNumber(serialNumber);
+    }
+
+    /**
+     * Items assigned to an order, falling back to the archive when none are in the hot set
+     */
+    public List<StockItem> findItemsByAssignedOrderId(String orderId) {
+        List<StockItem> items = stockItemRepository.findByAssignedToOrderId(orderId);
+        return !items.isEmpty() ? items : stockArchiveService.findByAssignedToOrderId(orderId);
+    }
+
+    /**
+     * Get or create the pool an upload goes into and apply the upload metadata
+     */
+    public StockPool prepareUploadPool(String productId, StockPool.StockType stockType, String adminUser, String poolName,
+                                       String price, String notes, String productType, String networkProvider) {
+        String poolProductId = (productId != null && !productId.trim().isEmpty()) ? productId.trim() : "default";
+        StockPool pool = getOrCreateStockPool(poolProductId, stockType, adminUser);
+
+        pool.setName(poolName);
+        pool.setBatchNumber(poolName); // Also set as batch number for tracking
+        pool.setNetworkProvider(networkProvider);
+        pool.setProductType(productType);
+        pool.setPrice(price);
+        if (notes != null && !notes.trim().isEmpty()) {
+            pool.setDescription(notes);
+        }
+        pool.setLastModifiedBy(adminUser);
+        pool.setLastModifiedDate(LocalDateTime.now());
+
+        if (pool.getId() == null) {
+            return stockPoolRepository.save(pool);
+        }
+
+        // Existing pool: update the metadata only, a full save would overwrite counters moved by concurrent sales
+        Update metadata = new Update()
+            .set("name", pool.getName())
+            .set("batchNumber", pool.getBatchNumber())
+            .set("networkProvider", pool.getNetworkProvider())
+            .set("productType", pool.getProductType())
+            .set("price", pool.getPrice())
+            .set("description", pool.getDescription())
+            .set("lastModifiedBy", adminUser)
+            .set("lastModifiedDate", pool.getLastModifiedDate());
+        mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(pool.getId())), metadata, StockPool.class);
+        return pool;
+    }
+
     private StockPool getOrCreateStockPool(String productId, StockPool.StockType stockType, String adminUser) {
         Optional<StockPool> existingPool = stockPoolRepository.findByProductIdAndStockType(productId, stockType);
         
@@ -662,303 +404,77 @@ public class StockService {
     }
 
     /**
-     * Parse CSV with only PIN ID and PINS columns
-     * Expected format: PIN ID, PINS (flexible column names)
+     * Encrypt sensitive data (PIN numbers, eSIM ICCIDs) using AES-256-GCM
      */
-    private List<StockItemDTO> parseCSV(MultipartFile file) throws Exception {
-        List<StockItemDTO> items = new ArrayList<>();
-        
-        System.out.println("📄 Starting simplified CSV parsing (PIN ID and PINS only)...");
-        System.out.println("File name: " + file.getOriginalFilename());
-        System.out.println("File size: " + file.getSize() + " bytes");
-        System.out.println("Content type: " + file.getContentType());
-        
-        // Check if file is actually a CSV
-        String filename = file.getOriginalFilename();
-        if (filename != null && !filename.toLowerCase().endsWith(".csv")) {
-            throw new IllegalArgumentException("File must be a CSV file. Got: " + filename);
-        }
-        
-        try (BufferedReader reader = new BufferedReader(
-                new InputStreamReader(file.getInputStream(), StandardCharsets.UTF_8))) {
-            
-            // Read first line to get headers
-            String headerLine = reader.readLine();
-            if (headerLine == null || headerLine.trim().isEmpty()) {
-                throw new IllegalArgumentException("CSV file is empty or has no headers");
-            }
-            
-            // Remove BOM if present
-            if (headerLine.startsWith("\uFEFF")) {
-                headerLine = headerLine.substring(1);
-            }
-            
-            // Check if file is corrupted or not a text CSV
-            if (headerLine.contains("\0") || headerLine.contains("PK\u0003\u0004") || headerLine.contains("[Content_Types]")) {
-                throw new IllegalArgumentException("File appears to be corrupted or not a plain CSV text file. Please save your Excel file as 'CSV UTF-8 (Comma delimited) (*.csv)' format.");
-            }
-            
-            System.out.println("Raw header line: '" + headerLine + "'");
-            String[] headers = headerLine.split(",");
-            System.out.println("Number of headers: " + headers.length);
-            for (int i = 0; i < headers.length; i++) {
-                System.out.println("  Header[" + i + "]: '" + headers[i].trim() + "'");
-            }
-            
-            // Find column indices for PIN ID and PINS (case insensitive)
-            int pinIdIndex = -1;
-            int pinsIndex = -1;
-            int serialNumberIndex = -1;
-            
-            for (int i = 0; i < headers.length; i++) {
-                String header = headers[i].trim().toLowerCase();
-                
-                if (header.equals("pin id") || header.equals("pin_id") || header.equals("pinid") || header.equals("pin-id")) {
-                    pinIdIndex = i;
-                    System.out.println("✓ Found PIN ID at index " + i);
-                } else if (header.equals("pins") || header.equals("pin") || header.equals("pinnumber") || header.equals("pin number") || header.equals("pin_number") || header.equals("pin-number")) {
-                    pinsIndex = i;
-                    System.out.println("✓ Found PINS at index " + i);
-                } else if (header.equals("serialnumber") || header.equals("serial number") || header.equals("serial_number") || header.equals("serial-number")) {
-                    serialNumberIndex = i;
-                    System.out.println("✓ Found Serial Number at index " + i);
-                }
-            }
-            
-            if (pinsIndex == -1) {
-                String headersList = String.join(", ", headers);
-                System.err.println("❌ Could not find PINS column. Available headers: " + headersList);
-                throw new IllegalArgumentException("CSV must have a 'PINS' or 'PIN' column. Found headers: " + headersList);
-            }
-            
-            System.out.println("Column mapping - PIN ID index: " + pinIdIndex + ", PINS index: " + pinsIndex);
-            
-            // Read data rows
-            String line;
-            int rowCount = 0;
-            while ((line = reader.readLine()) != null) {
-                if (line.trim().isEmpty()) {
-                    System.out.println("  Skipping empty line");
-                    continue;
-                }
-                
-                rowCount++;
-                String[] values = line.split(",", -1);
-                
-                System.out.println("  Row " + rowCount + " has " + values.length + " columns");
-                
-                if (values.length <= pinsIndex) {
-                    System.out.println("  ⚠️ Skipping row " + rowCount + " - not enough columns (expected at least " + (pinsIndex + 1) + ")");
-                    continue;
-                }
-                
-                String pins = values[pinsIndex].trim();
-                
-                if (pins.isEmpty()) {
-                    System.out.println("  ⚠️ Skipping row " + rowCount + " - empty PINS value");
-                    continue;
-                }
-                
-                StockItemDTO item = new StockItemDTO();
-                
-                // Convert scientific notation to full number
-                pins = convertScientificNotation(pins);
-                item.setItemData(pins);
-                System.out.println("  ✓ Row " + rowCount + " - PIN: " + pins.substring(0, Math.min(4, pins.length())) + "...");
-                
-                // Set PIN ID as serial number if available
-                if (pinIdIndex != -1 && values.length > pinIdIndex) {
-                    String pinId = values[pinIdIndex].trim();
-                    if (!pinId.isEmpty()) {
-                        pinId = convertScientificNotation(pinId);
-                        item.setSerialNumber(pinId);
-                        System.out.println("    PIN ID (Serial): " + pinId);
-                    }
-                }
-                
-                // Set Serial Number if available (takes precedence over PIN ID)
-                if (serialNumberIndex != -1 && values.length > serialNumberIndex) {
-                    String serialNum = values[serialNumberIndex].trim();
-                    if (!serialNum.isEmpty()) {
-                        serialNum = convertScientificNotation(serialNum);
-                        item.setSerialNumber(serialNum);
-                        System.out.println("    Serial Number: " + serialNum);
-                    }
-                }
-                
-                items.add(item);
-            }
-            
-            System.out.println("📊 CSV parsing complete. Total items parsed: " + items.size());
-            
-            if (items.isEmpty()) {
-                throw new IllegalArgumentException("No valid PIN data found in CSV file. Please check the file format.");
-            }
-            
-        } catch (Exception e) {
-            System.err.println("❌ Error parsing CSV: " + e.getMessage());
-            e.printStackTrace();
-            throw e;
-        }
-        
-        return items;
+    public String encryptData(String data) {
+        return stockCryptoService.encrypt(data);
     }
 
-    private List<StockItemDTO> parseEsimCSV(MultipartFile file) throws Exception {
-        List<StockItemDTO> items = new ArrayList<>();
-        
-        System.out.println("📄 Starting eSIM CSV parsing...");
-        System.out.println("File name: " + file.getOriginalFilename());
-        System.out.println("File size: " + file.getSize() + " bytes");
-        
-        try (BufferedReader reader = new BufferedReader(
-                new InputStreamReader(file.getInputStream(), StandardCharsets.UTF_8))) {
-            
-            CSVParser csvParser = new CSVParser(reader, CSVFormat.DEFAULT
-                .withFirstRecordAsHeader()
-                .withIgnoreHeaderCase()
-                .withTrim());
-            
-            // Log the actual headers found in the CSV
-            Map<String, Integer> headerMap = csvParser.getHeaderMap();
-            System.out.println("📋 CSV Headers found: " + headerMap.keySet());
-            
-            for (CSVRecord record : csvParser) {
-                StockItemDTO item = new StockItemDTO();
-                
-                // Required: ICCID
-                if (record.isMapped("iccid")) {
-                    item.setItemData(record.get("iccid"));
-                } else {
-                    throw new IllegalArgumentException("CSV must contain 'iccid' column. Found columns: " + headerMap.keySet());
-                }
-                
-                // Required: Activation Code
-                if (record.isMapped("activation_code")) {
-                    item.setActivationCode(record.get("activation_code"));
-                } else {
-                    throw new IllegalArgumentException("CSV must contain 'activation_code' column. Found columns: " + headerMap.keySet());
-                }
-                
-                // PIN and PUK codes
-                if (record.isMapped("pin_1")) {
-                    item.setPin1(record.get("pin_1"));
-                }
-                if (record.isMapped("puk_1")) {
-                    item.setPuk1(record.get("puk_1"));
-                }
-                if (record.isMapped("pin_2")) {
-                    item.setPin2(record.get("pin_2"));
-                }
-                if (record.isMapped("puk_2")) {
-                    item.setPuk2(record.get("puk_2"));
-                }
-                
-                // Optional fields
-                if (record.isMapped("serialNumber")) {
-                    item.setSerialNumber(record.get("serialNumber"));
-                }
-                if (record.isMapped("activationUrl")) {
-                    item.setActivationUrl(record.get("activationUrl"));
-                }
-                if (record.isMapped("qrCodeUrl")) {
-                    item.setQrCodeUrl(record.get("qrCodeUrl"));
-                }
-                if (record.isMapped("qrCodeImage")) {
-                    item.setQrCodeImage(record.get("qrCodeImage"));
-                }
-                
-                // Store productId in notes temporarily
-                if (record.isMapped("productId")) {
-                    item.setNotes("productId:" + record.get("productId"));
-                }
-                
-                items.add(item);
-            }
-            
-            System.out.println("✅ Parsed " + items.size() + " eSIM records from CSV");
-        }
-        
-        return items;
+    /**
+     * Decrypt sensitive data (also reads legacy Base64 values)
+     */
+    public String decryptData(String encryptedData) {
+        return stockCryptoService.decrypt(encryptedData);
     }
 
-    private Map<String, List<StockItemDTO>> groupByProduct(List<StockItemDTO> items) {
-        Map<String, List<StockItemDTO>> grouped = new HashMap<>();
-        
-        for (StockItemDTO item : items) {
-            String productId = extractProductId(item.getNotes());
-            grouped.computeIfAbsent(productId, k -> new ArrayList<>()).add(item);
-        }
-        
-        return grouped;
+    /**
+     * Decrypt many values at once (spread across cores for large lists)
+     */
+    public List<String> decryptAll(List<String> encryptedData) {
+        return stockCryptoService.decryptAll(encryptedData);
     }
 
-    private Map<String, List<StockItemDTO>> groupByProduct(List<StockItemDTO> items, String defaultProductId) {
-        Map<String, List<StockItemDTO>> grouped = new HashMap<>();
-        String finalProductId = (defaultProductId != null && !defaultProductId.trim().isEmpty()) 
-            ? defaultProductId.trim()
-            : "default";
-        
-        System.out.println("🔍 Grouping items by product ID...");
-        System.out.println("   Default Product ID: " + finalProductId);
-        
-        for (StockItemDTO item : items) {
-            // Use productId from DTO, fallback to default
-            String productId = item.getProductId();
-            if (productId == null || productId.trim().isEmpty()) {
-                productId = finalProductId;
-            } else {
-                productId = productId.trim();
-            }
-            
-            System.out.println("   Item grouped under Product ID: " + productId);
-            grouped.computeIfAbsent(productId, k -> new ArrayList<>()).add(item);
+    /**
+     * Put a Base64 PNG (optionally a data URL) into the QR image store and return its reference
+     */
+    public String storeQrCode(String qrCodeBase64) {
+        if (qrCodeBase64 == null || qrCodeBase64.trim().isEmpty()) {
+            return null;
         }
-        
-        System.out.println("✅ Grouped into " + grouped.size() + " product(s)");
-        return grouped;
-    }
-
-    private String extractProductId(String notes) {
-        if (notes != null && notes.startsWith("productId:")) {
-            return notes.substring(10);
+        String base64 = qrCodeBase64.trim();
+        if (base64.startsWith("data:")) {
+            base64 = base64.substring(base64.indexOf(',') + 1);
         }
-        return "default";
+        return qrImageStore.store(java.util.Base64.getDecoder().decode(base64));
     }
 
     /**
-     * Encrypt sensitive data (PIN numbers, eSIM ICCIDs) using AES-256
-     * In production, use a proper encryption library like Jasypt or AWS KMS
+     * QR image of an eSIM item from the QR image store, falling back to the legacy inline value.
+     * Returns null when the item has no QR code.
      */
-    private String encryptData(String data) {
-        if (data == null || data.isEmpty()) {
-            return data;
-        }
-        try {
-            // Simple Base64 encoding for now - REPLACE with proper encryption in production!
-            // TODO: Implement AES-256 encryption with key management
-            return java.util.Base64.getEncoder().encodeToString(data.getBytes(java.nio.charset.StandardCharsets.UTF_8));
-        } catch (Exception e) {
-            throw new RuntimeException("Encryption failed", e);
-        }
+    public QrImageStore.QrImage getQrImage(StockPool.StockItem item) {
+        if (item.getQrCodeRef() != null) {
+            return qrImageStore.find(item.getQrCodeRef());
+        }
+        String legacy = item.getQrCodeImage();
+        if (legacy == null || legacy.isEmpty()) {
+            return null;
+        }
+        // Inline values are either plain Base64 PNG or encrypted Base64 PNG
+        String base64 = legacy.startsWith("iVBORw0KGgo") ? legacy : decryptData(legacy);
+        byte[] bytes = java.util.Base64.getDecoder().decode(base64);
+        return new QrImageStore.QrImage(null, bytes.length, new org.springframework.core.io.ByteArrayResource(bytes));
     }
 
     /**
-     * Decrypt sensitive data
+     * QR image as a Base64 string, for JSON responses that still embed it; null when missing
      */
-    public String decryptData(String encryptedData) {
-        if (encryptedData == null || encryptedData.isEmpty()) {
-            return encryptedData;
+    public String getQrCodeBase64(StockPool.StockItem item) {
+        QrImageStore.QrImage qrImage = getQrImage(item);
+        if (qrImage == null) {
+            return null;
         }
         try {
-            // Simple Base64 decoding - REPLACE with proper decryption in production!
-            byte[] decodedBytes = java.util.Base64.getDecoder().decode(encryptedData);
-            return new String(decodedBytes, java.nio.charset.StandardCharsets.UTF_8);
-        } catch (Exception e) {
-            throw new RuntimeException("Decryption failed", e);
+            return java.util.Base64.getEncoder().encodeToString(qrImage.getBytes());
+        } catch (java.io.IOException e) {
+            throw new RuntimeException("Failed to read QR image", e);
         }
     }
 
+    public boolean hasQrCode(StockPool.StockItem item) {
+        return item.getQrCodeRef() != null || (item.getQrCodeImage() != null && !item.getQrCodeImage().isEmpty());
+    }
+
     /**
      * Mask sensitive data for display (show only last 4 characters)
      */
@@ -974,7 +490,7 @@ public class StockService {
      * Convert scientific notation to full number string
      * Handles Excel's scientific notation format (e.g., "1.23E+15" -> "1230000000000000")
      */
-    private String convertScientificNotation(String value) {
+    public String convertScientificNotation(String value) {
         if (value == null || value.trim().isEmpty()) {
             return value;
         }
@@ -1002,19 +518,22 @@ public class StockService {
      * Delete entire stock pool
      */
     public void deleteStockPool(String poolId) {
-        StockPool pool = stockPoolRepository.findById(poolId)
-            .orElseThrow(() -> new RuntimeException("Stock pool not found: " + poolId));
+        if (!stockPoolRepository.existsById(poolId)) {
+            throw new RuntimeException("Stock pool not found: " + poolId);
+        }
         
         // Check if any items are already assigned/used
-        long assignedOrUsedCount = pool.getItems().stream()
-            .filter(item -> item.getStatus() == StockItem.ItemStatus.ASSIGNED || 
-                           item.getStatus() == StockItem.ItemStatus.USED)
-            .count();
+        List<StockItem.ItemStatus> sold = List.of(StockItem.ItemStatus.ASSIGNED, StockItem.ItemStatus.USED);
+        long assignedOrUsedCount = stockItemRepository.countByPoolIdAndStatusIn(poolId, sold)
+            + stockArchiveService.countByPoolIdAndStatusIn(poolId, sold);
         
         if (assignedOrUsedCount > 0) {
             throw new RuntimeException("Cannot delete pool: " + assignedOrUsedCount + " items are already assigned or used");
         }
         
+        stockItemRepository.deleteByPoolId(poolId);
+        stockArchiveService.deleteByPoolId(poolId);
+        stockShardService.deleteStripes(poolId);
         stockPoolRepository.deleteById(poolId);
     }
 
@@ -1022,12 +541,12 @@ public class StockService {
      * Delete individual item from pool
      */
     public void deleteStockItem(String poolId, String itemId) {
-        StockPool pool = stockPoolRepository.findById(poolId)
-            .orElseThrow(() -> new RuntimeException("Stock pool not found: " + poolId));
+        if (!stockPoolRepository.existsById(poolId)) {
+            throw new RuntimeException("Stock pool not found: " + poolId);
+        }
         
-        StockItem item = pool.getItems().stream()
-            .filter(i -> itemId.equals(i.getItemId()))
-            .findFirst()
+        StockItem item = stockItemRepository.findById(itemId)
+            .filter(i -> poolId.equals(i.getPoolId()))
             .orElseThrow(() -> new RuntimeException("Item not found: " + itemId));
         
         // Check if item is already assigned/used
@@ -1036,37 +555,61 @@ public class StockService {
             throw new RuntimeException("Cannot delete item: Item is already assigned or used");
         }
         
-        pool.getItems().removeIf(i -> itemId.equals(i.getItemId()));
-        stockPoolRepository.save(pool);
+        // Conditional delete: the item must still be in the status the counters are moved from
+        long deleted = mongoTemplate.remove(new Query(Criteria.where("_id").is(itemId)
+            .and("status").is(item.getStatus())), StockItem.class).getDeletedCount();
+        if (deleted == 0) {
+            throw new RuntimeException("Cannot delete item: Item changed while deleting, please retry");
+        }
+        stockCounterService.recordRemoved(poolId, item.getStatus(), deleted);
     }
 
     /**
      * Update individual item details
      */
     public void updateStockItem(String poolId, String itemId, Map<String, String> updates) {
-        StockPool pool = stockPoolRepository.findById(poolId)
-            .orElseThrow(() -> new RuntimeException("Stock pool not found: " + poolId));
-        
-        StockItem item = pool.getItems().stream()
-            .filter(i -> itemId.equals(i.getItemId()))
-            .findFirst()
-            .orElseThrow(() -> new RuntimeException("Item not found: " + itemId));
-        
-        // Update allowed fields
-        if (updates.containsKey("price")) {
-            item.setPrice(updates.get("price"));
+        if (!stockPoolRepository.existsById(poolId)) {
+            throw new RuntimeException("Stock pool not found: " + poolId);
         }
-        if (updates.containsKey("type")) {
-            item.setType(updates.get("type"));
+
+        // Only the edited fields: saving the whole item could write a stale status back over a concurrent claim
+        Update update = new Update();
+        for (String field : List.of("price", "type", "notes", "serialNumber")) {
+            if (updates.containsKey(field)) {
+                update.set(field, updates.get(field));
+            }
         }
-        if (updates.containsKey("notes")) {
-            item.setNotes(updates.get("notes"));
+        if (update.getUpdateObject().isEmpty()) {
+            return;
         }
-        if (updates.containsKey("serialNumber")) {
-            item.setSerialNumber(updates.get("serialNumber"));
+
+        long matched = mongoTemplate.updateFirst(
+            new Query(Criteria.where("_id").is(itemId).and("poolId").is(poolId)), update, StockItem.class).getMatchedCount();
+        if (matched == 0) {
+            throw new RuntimeException("Item not found: " + itemId);
         }
-        
-        stockPoolRepository.save(pool);
+    }
+
+    /**
+     * Set the price (and type) of a pool's items that have none, or of all of them with force.
+     * Returns the number of items whose price was set.
+     */
+    public long addPriceToPoolItems(String poolId, String price, String type, boolean force) {
+        Criteria inPool = Criteria.where("poolId").is(poolId);
+        long updated = mongoTemplate.updateMulti(
+            new Query(force ? inPool : new Criteria().andOperator(inPool, missing("price"))),
+            new Update().set("price", price), StockItem.class).getMatchedCount();
+
+        if (type != null && !type.isEmpty()) {
+            mongoTemplate.updateMulti(
+                new Query(force ? inPool : new Criteria().andOperator(inPool, missing("type"))),
+                new Update().set("type", type), StockItem.class);
+        }
+        return updated;
+    }
+
+    private Criteria missing(String field) {
+        return new Criteria().orOperator(Criteria.where(field).is(null), Criteria.where(field).is(""));
     }
 
     /**
@@ -1075,6 +618,9 @@ public class StockService {
      */
     public long deleteAllStockPools() {
         long count = stockPoolRepository.count();
+        stockItemRepository.deleteAll();
+        stockArchiveService.deleteAll();
+        stockShardService.deleteAllStripes();
         stockPoolRepository.deleteAll();
         System.out.println("🗑️ Deleted all " + count + " stock pools from database");
         return count;
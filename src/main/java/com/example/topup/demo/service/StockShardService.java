@@ -0,0 +1,293 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.StockPool;
+import com.example.topup.demo.entity.StockPool.StockItem;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Splits the hottest pools into shard buckets so sales stop contending on one document.
+ *
+ * A sharded pool's AVAILABLE items carry a bucket number ("shard"); a claim starts in the
+ * bucket its terminal/retailer hashes to and steals from the sibling buckets when that one
+ * is dry. Counter changes go to one of the pool's counter stripes in stock_pool_shards
+ * instead of the pool document; StockCounterService drains the stripes into the pool every
+ * app.stock.shards.rollup-interval-ms, so the pool document keeps the (slightly delayed)
+ * totals that dashboards and low-stock checks read. Shard counts are cached per node and
+ * refreshed every app.stock.shards.refresh-interval-ms.
+ */
+@Service
+public class StockShardService {
+
+    public static final String SHARDS_COLLECTION = "stock_pool_shards";
+
+    private static final String[] COUNTERS = {"totalQuantity", "availableQuantity", "usedQuantity", "reservedQuantity"};
+    private static final int REDISTRIBUTE_BATCH = 1000;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Value("${app.stock.shards.max-count:64}")
+    private int maxShardCount;
+
+    private volatile Map<String, Integer> shardCounts = Map.of();
+
+    private final AtomicLong homeClaims = new AtomicLong();
+    private final AtomicLong stolenClaims = new AtomicLong();
+    private final AtomicLong unbucketedClaims = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        try {
+            refresh();
+        } catch (Exception e) {
+            System.err.println("❌ Could not load stock pool shard counts: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reload the shard counts, picking up pools (re)sharded on other nodes
+     */
+    @Scheduled(fixedDelayString = "${app.stock.shards.refresh-interval-ms:10000}",
+        initialDelayString = "${app.stock.shards.refresh-interval-ms:10000}")
+    public void refresh() {
+        Query query = new Query(Criteria.where("shardCount").gt(1));
+        query.fields().include("_id").include("shardCount");
+        Map<String, Integer> counts = new HashMap<>();
+        for (StockPool pool : mongoTemplate.find(query, StockPool.class)) {
+            counts.put(pool.getId(), pool.getShardCount());
+        }
+        shardCounts = counts;
+    }
+
+    /**
+     * Number of buckets of a pool; 1 for a pool that is not sharded
+     */
+    public int getShardCount(String poolId) {
+        return shardCounts.getOrDefault(poolId, 1);
+    }
+
+    /**
+     * Buckets a claim across these pools can be routed by; 1 unless every pool is sharded
+     */
+    public int getShardCount(List<String> poolIds) {
+        int count = Integer.MAX_VALUE;
+        for (String poolId : poolIds) {
+            count = Math.min(count, getShardCount(poolId));
+        }
+        return poolIds.isEmpty() ? 1 : count;
+    }
+
+    /**
+     * Buckets in the order a claim should try them: the routing key's home bucket, then its siblings
+     */
+    public int[] claimOrder(String routingKey, int shardCount) {
+        int home = routingKey != null
+            ? Math.floorMod(routingKey.hashCode() * 0x9E3779B9, shardCount)
+            : ThreadLocalRandom.current().nextInt(shardCount);
+        int[] order = new int[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            order[i] = (home + i) % shardCount;
+        }
+        return order;
+    }
+
+    public void recordClaim(int attempt) {
+        (attempt == 0 ? homeClaims : stolenClaims).incrementAndGet();
+    }
+
+    public void recordUnbucketedClaim() {
+        unbucketedClaims.incrementAndGet();
+    }
+
+    /**
+     * Bucket for a newly uploaded item, or null when the pool is not sharded
+     */
+    public Integer assignShard(String poolId) {
+        int count = getShardCount(poolId);
+        return count > 1 ? ThreadLocalRandom.current().nextInt(count) : null;
+    }
+
+    /**
+     * Add a counter delta to a random stripe of the pool
+     */
+    public void incrementStripe(String poolId, Map<String, Long> delta) {
+        int stripe = ThreadLocalRandom.current().nextInt(getShardCount(poolId));
+        Update update = new Update().setOnInsert("poolId", poolId).setOnInsert("shard", stripe);
+        boolean changed = false;
+        for (Map.Entry<String, Long> entry : delta.entrySet()) {
+            if (entry.getValue() != 0) {
+                update.inc(entry.getKey(), entry.getValue());
+                changed = true;
+            }
+        }
+        if (!changed) {
+            return;
+        }
+        mongoTemplate.upsert(new Query(Criteria.where("_id").is(poolId + ":" + stripe)), update, SHARDS_COLLECTION);
+    }
+
+    /**
+     * Take the pending counter deltas out of the pool's stripes (each stripe reset atomically)
+     */
+    public Map<String, Long> drainStripes(String poolId) {
+        Map<String, Long> delta = new LinkedHashMap<>();
+        for (Document stripe : pendingStripes(poolId)) {
+            Update reset = new Update();
+            for (String counter : COUNTERS) {
+                reset.set(counter, 0L);
+            }
+            Document drained = mongoTemplate.findAndModify(new Query(Criteria.where("_id").is(stripe.get("_id"))), reset,
+                FindAndModifyOptions.options().returnNew(false), Document.class, SHARDS_COLLECTION);
+            if (drained == null) {
+                continue;
+            }
+            for (String counter : COUNTERS) {
+                Number value = (Number) drained.get(counter);
+                if (value != null && value.longValue() != 0) {
+                    delta.merge(counter, value.longValue(), Long::sum);
+                }
+            }
+        }
+        return delta;
+    }
+
+    public boolean hasPendingCounters(String poolId) {
+        return !pendingStripes(poolId).isEmpty();
+    }
+
+    /**
+     * Change the number of buckets of a pool (1 = not sharded) and spread its unsold items
+     * over the new buckets. Counter deltas still in the stripes are drained as usual.
+     */
+    public StockPool configure(String poolId, int shardCount) {
+        if (shardCount < 1 || shardCount > maxShardCount) {
+            throw new IllegalArgumentException("Shard count must be between 1 and " + maxShardCount);
+        }
+        Update update = shardCount > 1 ? new Update().set("shardCount", shardCount) : new Update().unset("shardCount");
+        if (mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(poolId)), update, StockPool.class).getMatchedCount() == 0) {
+            throw new RuntimeException("Stock pool not found: " + poolId);
+        }
+        refresh();
+
+        long moved = shardCount > 1 ? redistribute(poolId, shardCount) : unassign(poolId);
+        System.out.println("🧩 Stock pool " + poolId + " set to " + shardCount + " shard(s), " + moved + " item(s) re-bucketed");
+
+        Query query = new Query(Criteria.where("_id").is(poolId));
+        query.fields().exclude("product");
+        return mongoTemplate.findOne(query, StockPool.class);
+    }
+
+    /**
+     * Per-bucket available items and pending counter deltas of a pool, plus claim routing metrics
+     */
+    public Map<String, Object> getStatus(String poolId) {
+        int shardCount = getShardCount(poolId);
+
+        Aggregation aggregation = Aggregation.newAggregation(
+            Aggregation.match(Criteria.where("poolId").is(poolId).and("status").is(StockItem.ItemStatus.AVAILABLE)),
+            Aggregation.group("shard").count().as("count")
+        );
+        Map<String, Long> available = new LinkedHashMap<>();
+        for (Document group : mongoTemplate.aggregate(aggregation, StockItem.class, Document.class).getMappedResults()) {
+            Object shard = group.get("_id");
+            available.put(shard != null ? shard.toString() : "unassigned", ((Number) group.get("count")).longValue());
+        }
+
+        List<Map<String, Object>> stripes = new ArrayList<>();
+        for (Document stripe : mongoTemplate.find(new Query(Criteria.where("poolId").is(poolId)).with(Sort.by("shard")),
+                Document.class, SHARDS_COLLECTION)) {
+            Map<String, Object> pending = new LinkedHashMap<>();
+            pending.put("shard", stripe.get("shard"));
+            for (String counter : COUNTERS) {
+                pending.put(counter, stripe.get(counter));
+            }
+            stripes.add(pending);
+        }
+
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("poolId", poolId);
+        status.put("shardCount", shardCount);
+        status.put("availableByShard", available);
+        status.put("pendingCounters", stripes);
+        status.put("homeClaims", homeClaims.get());
+        status.put("stolenClaims", stolenClaims.get());
+        status.put("unbucketedClaims", unbucketedClaims.get());
+        return status;
+    }
+
+    /**
+     * Remove a deleted pool's stripes
+     */
+    public void deleteStripes(String poolId) {
+        mongoTemplate.remove(new Query(Criteria.where("poolId").is(poolId)), SHARDS_COLLECTION);
+    }
+
+    public void deleteAllStripes() {
+        mongoTemplate.remove(new Query(), SHARDS_COLLECTION);
+    }
+
+    private List<Document> pendingStripes(String poolId) {
+        List<Criteria> nonZero = new ArrayList<>();
+        for (String counter : COUNTERS) {
+            nonZero.add(Criteria.where(counter).ne(0));
+        }
+        Query query = new Query(Criteria.where("poolId").is(poolId).orOperator(nonZero.toArray(new Criteria[0])));
+        query.fields().include("_id");
+        return mongoTemplate.find(query, Document.class, SHARDS_COLLECTION);
+    }
+
+    /**
+     * Deal the pool's unsold items round-robin over the buckets, keyset paged by item id
+     */
+    private long redistribute(String poolId, int shardCount) {
+        long moved = 0;
+        String lastId = null;
+        while (true) {
+            Criteria criteria = Criteria.where("poolId").is(poolId)
+                .and("status").in(StockItem.ItemStatus.AVAILABLE, StockItem.ItemStatus.RESERVED, StockItem.ItemStatus.HELD);
+            if (lastId != null) {
+                criteria.and("_id").gt(lastId);
+            }
+            Query query = new Query(criteria).with(Sort.by("_id")).limit(REDISTRIBUTE_BATCH);
+            query.fields().include("_id");
+            List<Document> batch = mongoTemplate.find(query, Document.class, mongoTemplate.getCollectionName(StockItem.class));
+            if (batch.isEmpty()) {
+                return moved;
+            }
+
+            BulkOperations ops = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, StockItem.class);
+            for (Document item : batch) {
+                ops.updateOne(new Query(Criteria.where("_id").is(item.get("_id"))),
+                    new Update().set("shard", (int) (moved++ % shardCount)));
+            }
+            ops.execute();
+            lastId = batch.get(batch.size() - 1).get("_id").toString();
+        }
+    }
+
+    private long unassign(String poolId) {
+        return mongoTemplate.updateMulti(new Query(Criteria.where("poolId").is(poolId).and("shard").exists(true)),
+            new Update().unset("shard"), StockItem.class).getModifiedCount();
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.topup.demo.service;
+
+import com.example.topup.demo.entity.StockPool;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Pools of the suppliers listed in app.stock.allocation.supplier-preference first (in that order),
+ * then all other pools; FEFO within each supplier group.
+ */
+@Service
+public class SupplierPreferenceAllocationStrategy implements StockAllocationStrategy {
+
+    private final MongoTemplate mongoTemplate;
+    private final List<String> preferredSuppliers;
+    private final FefoAllocationStrategy fefo = new FefoAllocationStrategy();
+
+    public SupplierPreferenceAllocationStrategy(MongoTemplate mongoTemplate,
+                                                @Value("${app.stock.allocation.supplier-preference:}") String supplierPreference) {
+        this.mongoTemplate = mongoTemplate;
+        this.preferredSuppliers = Arrays.stream(supplierPreference.split(","))
+            .map(String::trim)
+            .filter(supplier -> !supplier.isEmpty())
+            .collect(Collectors.toList());
+    }
+
+    @Override
+    public String getName() {
+        return "supplier";
+    }
+
+    @Override
+    public List<ClaimAttempt> plan(List<String> poolIds) {
+        if (poolIds.size() < 2 || preferredSuppliers.isEmpty()) {
+            return fefo.plan(poolIds);
+        }
+
+        Query query = new Query(Criteria.where("_id").in(poolIds));
+        query.fields().include("supplier");
+        List<StockPool> pools = new ArrayList<>(mongoTemplate.find(query, StockPool.class));
+        pools.sort(Comparator.comparingInt(this::rank));
+
+        // One group of pools per rank, each planned FEFO
+        List<ClaimAttempt> attempts = new ArrayList<>();
+        int i = 0;
+        while (i < pools.size()) {
+            int rank = rank(pools.get(i));
+            List<String> group = new ArrayList<>();
+            while (i < pools.size() && rank(pools.get(i)) == rank) {
+                group.add(pools.get(i).getId());
+                i++;
+            }
+            attempts.addAll(fefo.plan(group));
+        }
+        return attempts;
+    }
+
+    private int rank(StockPool pool) {
+        int rank = pool.getSupplier() != null ? preferredSuppliers.indexOf(pool.getSupplier()) : -1;
+        return rank >= 0 ? rank : preferredSuppliers.size();
+    }
+}
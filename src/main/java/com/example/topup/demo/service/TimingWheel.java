@@ -0,0 +1,229 @@
+package com.example.topup.demo.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hierarchical timing wheel for keyed timeouts (e.g. reservation leases).
+ *
+ * Level 0 has wheelSize buckets of tickMs each; every further level covers the whole span
+ * of the level below in one bucket and is only created when a deadline is that far out.
+ * Scheduling and cancelling are O(1). Only non-empty buckets are put on a DelayQueue, so the
+ * timer thread sleeps until the next bucket is due instead of ticking through empty ones;
+ * when a higher-level bucket is due its entries cascade down to a finer level.
+ *
+ * Tasks run on the timer thread and should be short.
+ */
+public class TimingWheel {
+
+    private final String name;
+    private final long tickMs;
+    private final DelayQueue<Bucket> queue = new DelayQueue<>();
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Level root;
+    private volatile boolean running;
+    private Thread thread;
+
+    public TimingWheel(String name, long tickMs, int wheelSize) {
+        if (tickMs <= 0 || wheelSize <= 1) {
+            throw new IllegalArgumentException("Timing wheel needs tickMs > 0 and wheelSize > 1");
+        }
+        this.name = name;
+        this.tickMs = tickMs;
+        this.root = new Level(tickMs, wheelSize, System.currentTimeMillis());
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Run {@code task} at {@code deadlineMs} (epoch millis), replacing any timeout under the same key.
+     * A deadline that already passed runs on the next tick.
+     */
+    public synchronized void schedule(String key, long deadlineMs, Runnable task) {
+        cancel(key);
+        Entry entry = new Entry(key, Math.max(deadlineMs, root.currentTime + tickMs), task);
+        entries.put(key, entry);
+        root.add(entry);
+    }
+
+    /**
+     * Returns false if nothing was scheduled under the key (already fired or never added)
+     */
+    public synchronized boolean cancel(String key) {
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            return false;
+        }
+        if (entry.bucket != null) {
+            entry.bucket.entries.remove(entry);
+        }
+        return true;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                Bucket bucket = queue.poll(tickMs, TimeUnit.MILLISECONDS);
+                if (bucket != null) {
+                    for (Entry entry : advance(bucket)) {
+                        try {
+                            entry.task.run();
+                        } catch (Exception e) {
+                            System.err.println("❌ Timer '" + name + "' task " + entry.key + " failed: " + e.getMessage());
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Move the clock to a due bucket and re-insert its entries; returns the ones that are due now
+     */
+    private synchronized List<Entry> advance(Bucket bucket) {
+        root.advance(bucket.expiration);
+        List<Entry> due = new ArrayList<>();
+        for (Entry entry : bucket.flush()) {
+            if (!root.add(entry)) {
+                entries.remove(entry.key);
+                due.add(entry);
+            }
+        }
+        return due;
+    }
+
+    private final class Level {
+
+        private final long tickMs;
+        private final int wheelSize;
+        private final long interval;
+        private final Bucket[] buckets;
+        private long currentTime;
+        private Level overflow;
+
+        Level(long tickMs, int wheelSize, long startMs) {
+            this.tickMs = tickMs;
+            this.wheelSize = wheelSize;
+            this.interval = tickMs * wheelSize;
+            this.buckets = new Bucket[wheelSize];
+            for (int i = 0; i < wheelSize; i++) {
+                buckets[i] = new Bucket();
+            }
+            this.currentTime = startMs - (startMs % tickMs);
+        }
+
+        /**
+         * Returns false when the entry is already due at this level's resolution
+         */
+        boolean add(Entry entry) {
+            if (entry.deadlineMs < currentTime + tickMs) {
+                return false;
+            }
+            if (entry.deadlineMs < currentTime + interval) {
+                long virtualId = entry.deadlineMs / tickMs;
+                Bucket bucket = buckets[(int) (virtualId % wheelSize)];
+                bucket.add(entry);
+                if (bucket.setExpiration(virtualId * tickMs)) {
+                    queue.offer(bucket);
+                }
+                return true;
+            }
+            if (overflow == null) {
+                overflow = new Level(interval, wheelSize, currentTime);
+            }
+            return overflow.add(entry);
+        }
+
+        void advance(long timeMs) {
+            if (timeMs >= currentTime + tickMs) {
+                currentTime = timeMs - (timeMs % tickMs);
+                if (overflow != null) {
+                    overflow.advance(currentTime);
+                }
+            }
+        }
+    }
+
+    private static final class Bucket implements Delayed {
+
+        private final Set<Entry> entries = new LinkedHashSet<>();
+        private volatile long expiration = -1;
+
+        void add(Entry entry) {
+            entries.add(entry);
+            entry.bucket = this;
+        }
+
+        // True when the bucket now covers a new time slot and has to be (re)queued
+        boolean setExpiration(long expirationMs) {
+            if (expiration == expirationMs) {
+                return false;
+            }
+            expiration = expirationMs;
+            return true;
+        }
+
+        List<Entry> flush() {
+            List<Entry> flushed = new ArrayList<>(entries);
+            entries.clear();
+            expiration = -1;
+            for (Entry entry : flushed) {
+                entry.bucket = null;
+            }
+            return flushed;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(expiration - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(expiration, ((Bucket) other).expiration);
+        }
+    }
+
+    private static final class Entry {
+
+        private final String key;
+        private final long deadlineMs;
+        private final Runnable task;
+        private Bucket bucket;
+
+        Entry(String key, long deadlineMs, Runnable task) {
+            this.key = key;
+            this.deadlineMs = deadlineMs;
+            this.task = task;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.topup.demo;
+
+import com.example.topup.demo.service.BloomFilter;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BloomFilterTests {
+
+	@Test
+	void addedValuesAreAlwaysFound() {
+		BloomFilter filter = new BloomFilter(10_000, 0.01);
+		for (int i = 0; i < 10_000; i++) {
+			filter.put("pin-" + i);
+		}
+		for (int i = 0; i < 10_000; i++) {
+			assertTrue(filter.mightContain("pin-" + i), "false negative for pin-" + i);
+		}
+	}
+
+	@Test
+	void falsePositiveRateStaysNearTheConfiguredRate() {
+		int inserted = 100_000;
+		int probes = 100_000;
+		for (double fpp : new double[] {0.01, 0.001}) {
+			BloomFilter filter = new BloomFilter(inserted, fpp);
+			for (int i = 0; i < inserted; i++) {
+				filter.put("8947000000" + i);
+			}
+			int falsePositives = 0;
+			for (int i = 0; i < probes; i++) {
+				if (filter.mightContain("unknown-" + i)) {
+					falsePositives++;
+				}
+			}
+			double rate = (double) falsePositives / probes;
+			assertTrue(rate < fpp * 1.5, "false-positive rate " + rate + " for configured " + fpp);
+		}
+	}
+
+	@Test
+	void sizesBitsAndHashesOptimally() {
+		long n = 1_000_000;
+		double p = 0.01;
+		BloomFilter filter = new BloomFilter(n, p);
+
+		long optimalBits = (long) Math.ceil(-n * Math.log(p) / (Math.log(2) * Math.log(2)));
+		assertEquals(0, filter.getBitCount() % 64);
+		assertTrue(filter.getBitCount() >= optimalBits);
+		assertTrue(filter.getBitCount() < optimalBits + 64);
+		assertEquals(Math.round((double) optimalBits / n * Math.log(2)), filter.getHashCount());
+		// ~9.6 bits and 7 hashes per value at 1%
+		assertEquals(7, filter.getHashCount());
+	}
+
+	@Test
+	void tinyFilterUsesAtLeastOneHash() {
+		BloomFilter filter = new BloomFilter(1, 0.9);
+		assertTrue(filter.getHashCount() >= 1);
+		assertEquals(64, filter.getBitCount());
+		filter.put("only");
+		assertTrue(filter.mightContain("only"));
+	}
+
+	@Test
+	void rejectsInvalidSizing() {
+		assertThrows(IllegalArgumentException.class, () -> new BloomFilter(0, 0.01));
+		assertThrows(IllegalArgumentException.class, () -> new BloomFilter(100, 0));
+		assertThrows(IllegalArgumentException.class, () -> new BloomFilter(100, 1));
+	}
+}
@@ -0,0 +1,152 @@
+package com.example.topup.demo;
+
+import com.example.topup.demo.entity.OutboxEvent;
+import com.example.topup.demo.service.OutboxHandler;
+import com.example.topup.demo.service.OutboxService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(properties = {
+	"app.outbox.poll-interval-ms=20",
+	"app.outbox.backoff-base-ms=20",
+	"app.outbox.backoff-max-ms=200",
+	"app.outbox.max-attempts=3"
+})
+class OutboxOrderingTests {
+
+	private static final String TYPE = "TEST_RECORD";
+	private static final int RETAILERS = 4;
+	private static final int EVENTS_PER_RETAILER = 40;
+
+	@Autowired
+	private OutboxService outboxService;
+
+	@Autowired
+	private RecordingHandler handler;
+
+	@Autowired
+	private MongoTemplate mongoTemplate;
+
+	@TestConfiguration
+	static class Config {
+		@Bean
+		RecordingHandler recordingHandler() {
+			return new RecordingHandler();
+		}
+	}
+
+	/**
+	 * Records the order events run in per retailer; every 5th event fails its first attempt,
+	 * events with "fail" always fail
+	 */
+	static class RecordingHandler implements OutboxHandler {
+
+		final Map<String, List<Integer>> order = new ConcurrentHashMap<>();
+		final Set<String> running = ConcurrentHashMap.newKeySet();
+		final Set<String> failedOnce = ConcurrentHashMap.newKeySet();
+		final AtomicInteger overlaps = new AtomicInteger();
+
+		@Override
+		public String getType() {
+			return TYPE;
+		}
+
+		@Override
+		public void handle(OutboxEvent event, Steps steps) throws Exception {
+			String retailer = event.getRetailerKey();
+			if (!running.add(retailer)) {
+				overlaps.incrementAndGet();
+			}
+			try {
+				Thread.sleep(2);
+				int sequence = (int) event.getDouble("sequence");
+				if (event.getBoolean("fail") || (sequence % 5 == 0 && failedOnce.add(event.getId()))) {
+					throw new IllegalStateException("Test failure of event " + sequence);
+				}
+				order.computeIfAbsent(retailer, key -> new ArrayList<>()).add(sequence);
+			} finally {
+				running.remove(retailer);
+			}
+		}
+	}
+
+	@BeforeEach
+	@AfterEach
+	void clearEvents() {
+		mongoTemplate.remove(new Query(Criteria.where("type").is(TYPE)), OutboxEvent.class);
+		handler.order.clear();
+		handler.failedOnce.clear();
+		handler.overlaps.set(0);
+	}
+
+	@Test
+	void eventsOfOneRetailerRunInOrderDespiteRetries() throws Exception {
+		for (int sequence = 0; sequence < EVENTS_PER_RETAILER; sequence++) {
+			for (int retailer = 0; retailer < RETAILERS; retailer++) {
+				outboxService.enqueue(TYPE, "retailer-" + retailer + "@example.com", payload(sequence, false));
+			}
+		}
+
+		awaitOpenEvents(0);
+
+		assertEquals(0, handler.overlaps.get(), "two events of one retailer ran at the same time");
+		for (int retailer = 0; retailer < RETAILERS; retailer++) {
+			List<Integer> order = handler.order.get("retailer-" + retailer + "@example.com");
+			assertEquals(EVENTS_PER_RETAILER, order.size());
+			for (int sequence = 0; sequence < EVENTS_PER_RETAILER; sequence++) {
+				assertEquals(sequence, order.get(sequence), "retailer-" + retailer + " ran out of order: " + order);
+			}
+		}
+	}
+
+	@Test
+	void failingEventIsDeadLetteredAndReleasesTheRetailer() throws Exception {
+		String retailer = "dead-letter@example.com";
+		OutboxEvent failing = outboxService.enqueue(TYPE, retailer, payload(1, true));
+		outboxService.enqueue(TYPE, retailer, payload(2, false));
+
+		awaitOpenEvents(0);
+
+		OutboxEvent dead = mongoTemplate.findById(failing.getId(), OutboxEvent.class);
+		assertEquals(OutboxEvent.Status.DEAD, dead.getStatus());
+		assertEquals(3, dead.getAttempts());
+		assertTrue(dead.getLastError().contains("Test failure"), dead.getLastError());
+		assertEquals(List.of(2), handler.order.get(retailer));
+	}
+
+	private Map<String, Object> payload(int sequence, boolean fail) {
+		Map<String, Object> payload = new HashMap<>();
+		payload.put("sequence", sequence);
+		payload.put("fail", fail);
+		return payload;
+	}
+
+	private void awaitOpenEvents(long expected) throws InterruptedException {
+		Query open = new Query(Criteria.where("type").is(TYPE)
+			.and("status").in(OutboxEvent.Status.PENDING, OutboxEvent.Status.PROCESSING));
+		long deadline = System.currentTimeMillis() + 60_000;
+		while (mongoTemplate.count(open, OutboxEvent.class) > expected) {
+			assertTrue(System.currentTimeMillis() < deadline, "outbox did not drain in time");
+			Thread.sleep(50);
+		}
+	}
+}
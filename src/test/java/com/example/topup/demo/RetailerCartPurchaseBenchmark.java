@@ -0,0 +1,187 @@
+package com.example.topup.demo;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end latency of restocking 15 products (5 items each) with the database round trips of
+ *   - sequentialSingleProduct: 15 single-product purchases one after the other (purchaseBundles):
+ *     limit read, pool read, price lookup, claim + counter update per item, order, retailer order, limit save
+ *   - cartPurchase: one cart purchase (purchaseCart): one limit and pool read, lines resolved and
+ *     claimed in parallel on 8 threads, then one insertMany per order collection and one limit save
+ * Claimed items are put back after every iteration.
+ * Needs a scratch MongoDB (database topup_cart_benchmark is dropped):
+ *   ./mvnw test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.example.topup.demo.RetailerCartPurchaseBenchmark
+ *   -Dbenchmark.mongo.uri=mongodb://localhost:27017
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RetailerCartPurchaseBenchmark {
+
+	private static final String DATABASE = "topup_cart_benchmark";
+	private static final int PRODUCTS = 15;
+	private static final int QUANTITY = 5;
+	private static final int ITEMS_PER_POOL = 5000;
+	private static final String RETAILER = "retailer-1";
+
+	private MongoClient client;
+	private MongoCollection<Document> pools;
+	private MongoCollection<Document> items;
+	private MongoCollection<Document> orders;
+	private MongoCollection<Document> retailerOrders;
+	private MongoCollection<Document> limits;
+	private ExecutorService executor;
+	private final List<String> poolIds = new ArrayList<>();
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		client = MongoClients.create(System.getProperty("benchmark.mongo.uri", "mongodb://localhost:27017"));
+		client.getDatabase(DATABASE).drop();
+		pools = client.getDatabase(DATABASE).getCollection("stock_pools");
+		items = client.getDatabase(DATABASE).getCollection("stock_items");
+		orders = client.getDatabase(DATABASE).getCollection("orders");
+		retailerOrders = client.getDatabase(DATABASE).getCollection("retailer_orders");
+		limits = client.getDatabase(DATABASE).getCollection("retailer_limits");
+		items.createIndex(Indexes.ascending("poolId", "status", "addedDate", "_id"), new IndexOptions().name("pool_status_added_idx"));
+
+		limits.insertOne(new Document("_id", "limit-1").append("retailerId", RETAILER)
+			.append("availableCredit", Long.MAX_VALUE / 2).append("transactions", new ArrayList<>()));
+		for (int p = 0; p < PRODUCTS; p++) {
+			String poolId = "pool-" + p;
+			poolIds.add(poolId);
+			pools.insertOne(new Document("_id", poolId).append("name", "Bundle " + p).append("status", "ACTIVE")
+				.append("price", "99").append("availableQuantity", ITEMS_PER_POOL).append("usedQuantity", 0));
+			List<Document> batch = new ArrayList<>(ITEMS_PER_POOL);
+			for (int i = 0; i < ITEMS_PER_POOL; i++) {
+				batch.add(new Document("_id", poolId + "-item-" + i).append("poolId", poolId).append("status", "AVAILABLE")
+					.append("addedDate", (long) i).append("price", "99").append("itemData", "pin-" + i));
+			}
+			items.insertMany(batch);
+		}
+		executor = Executors.newFixedThreadPool(8);
+	}
+
+	@Setup(Level.Iteration)
+	public void resetStock() {
+		items.updateMany(Filters.eq("status", "ASSIGNED"), Updates.set("status", "AVAILABLE"));
+		orders.deleteMany(new Document());
+		retailerOrders.deleteMany(new Document());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		executor.shutdownNow();
+		client.getDatabase(DATABASE).drop();
+		client.close();
+	}
+
+	@Benchmark
+	public int sequentialSingleProduct() {
+		int claimed = 0;
+		for (String poolId : poolIds) {
+			Document limit = limits.find(Filters.eq("retailerId", RETAILER)).first();
+			pools.find(Filters.eq("_id", poolId)).first();
+			items.find(Filters.and(Filters.eq("poolId", poolId), Filters.eq("status", "AVAILABLE"))).first();
+			List<String> allocated = claim(poolId);
+			claimed += allocated.size();
+			orders.insertOne(order(poolId, allocated));
+			retailerOrders.insertOne(order(poolId, allocated));
+			limits.replaceOne(Filters.eq("_id", limit.get("_id")), limit);
+		}
+		return claimed;
+	}
+
+	@Benchmark
+	public int cartPurchase() {
+		Document limit = limits.find(Filters.eq("retailerId", RETAILER)).first();
+		pools.find(Filters.in("_id", poolIds)).into(new ArrayList<>());
+
+		List<CompletableFuture<Void>> prices = new ArrayList<>();
+		for (String poolId : poolIds) {
+			prices.add(CompletableFuture.runAsync(() ->
+				items.find(Filters.and(Filters.eq("poolId", poolId), Filters.eq("status", "AVAILABLE"))).first(), executor));
+		}
+		CompletableFuture.allOf(prices.toArray(new CompletableFuture[0])).join();
+
+		List<CompletableFuture<List<String>>> claims = new ArrayList<>();
+		for (String poolId : poolIds) {
+			claims.add(CompletableFuture.supplyAsync(() -> claim(poolId), executor));
+		}
+		List<Document> orderDocs = new ArrayList<>();
+		List<Document> retailerOrderDocs = new ArrayList<>();
+		int claimed = 0;
+		for (int p = 0; p < PRODUCTS; p++) {
+			List<String> allocated = claims.get(p).join();
+			claimed += allocated.size();
+			orderDocs.add(order(poolIds.get(p), allocated));
+			retailerOrderDocs.add(order(poolIds.get(p), allocated));
+		}
+		orders.insertMany(orderDocs);
+		retailerOrders.insertMany(retailerOrderDocs);
+		limits.replaceOne(Filters.eq("_id", limit.get("_id")), limit);
+		return claimed;
+	}
+
+	// Same writes per item as StockAllocationService.claimItems: conditional claim, then the pool counter $inc
+	private List<String> claim(String poolId) {
+		Bson available = Filters.and(Filters.eq("poolId", poolId), Filters.eq("status", "AVAILABLE"));
+		FindOneAndUpdateOptions first = new FindOneAndUpdateOptions()
+			.sort(Sorts.ascending("addedDate", "_id")).returnDocument(ReturnDocument.AFTER);
+		List<String> allocated = new ArrayList<>(QUANTITY);
+		for (int i = 0; i < QUANTITY; i++) {
+			Document item = items.findOneAndUpdate(available,
+				Updates.combine(Updates.set("status", "ASSIGNED"), Updates.set("assignedToUserId", RETAILER)), first);
+			pools.updateOne(Filters.eq("_id", poolId),
+				Updates.combine(Updates.inc("availableQuantity", -1), Updates.inc("usedQuantity", 1)));
+			allocated.add(item.getString("itemData"));
+		}
+		return allocated;
+	}
+
+	private static Document order(String poolId, List<String> allocated) {
+		return new Document("retailerId", RETAILER).append("stockPoolId", poolId)
+			.append("quantity", allocated.size()).append("allocatedItems", String.join(",", allocated));
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+			.include(RetailerCartPurchaseBenchmark.class.getSimpleName())
+			.build()).run();
+	}
+}
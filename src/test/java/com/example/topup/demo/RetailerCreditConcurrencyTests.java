@@ -0,0 +1,152 @@
+package com.example.topup.demo;
+
+import com.example.topup.demo.entity.CreditLedgerEntry;
+import com.example.topup.demo.entity.RetailerLimit;
+import com.example.topup.demo.entity.User;
+import com.example.topup.demo.repository.RetailerLimitRepository;
+import com.example.topup.demo.repository.UserRepository;
+import com.example.topup.demo.service.CreditLedgerService;
+import com.example.topup.demo.service.RetailerCreditService;
+import com.example.topup.demo.service.RetailerCreditService.DebitResult;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@SpringBootTest
+class RetailerCreditConcurrencyTests {
+
+	private static final int DEBITS = 200;
+	private static final int THREADS = 32;
+	private static final BigDecimal PRICE = new BigDecimal("12.34");
+
+	@Autowired
+	private RetailerCreditService retailerCreditService;
+
+	@Autowired
+	private CreditLedgerService creditLedgerService;
+
+	@Autowired
+	private RetailerLimitRepository retailerLimitRepository;
+
+	@Autowired
+	private UserRepository userRepository;
+
+	@Autowired
+	private MongoTemplate mongoTemplate;
+
+	private User retailer;
+
+	@BeforeEach
+	void createRetailer() {
+		retailer = new User();
+		retailer.setFirstName("Credit");
+		retailer.setLastName("Test");
+		retailer.setEmail("credit-test-" + UUID.randomUUID() + "@example.com");
+		retailer.setAccountType(User.AccountType.BUSINESS);
+		retailer = userRepository.save(retailer);
+	}
+
+	@AfterEach
+	void deleteRetailer() {
+		retailerLimitRepository.findByRetailer_Id(retailer.getId()).ifPresent(retailerLimitRepository::delete);
+		mongoTemplate.remove(new Query(Criteria.where("retailerId").is(retailer.getId())), CreditLedgerEntry.class);
+		userRepository.delete(retailer);
+	}
+
+	@Test
+	void concurrentDebitsBalanceToTheCent() throws Exception {
+		createLimit(new BigDecimal("10000.00"), 0);
+
+		Map<DebitResult.Outcome, Integer> outcomes = debitConcurrently();
+
+		RetailerLimit limit = retailerLimitRepository.findByRetailer_Id(retailer.getId()).orElseThrow();
+		BigDecimal debited = PRICE.multiply(BigDecimal.valueOf(DEBITS)); // 2468.00
+		assertEquals(DEBITS, outcomes.getOrDefault(DebitResult.Outcome.DEBITED, 0));
+		assertEquals(0, new BigDecimal("10000.00").subtract(debited).compareTo(limit.getAvailableCredit()), "available " + limit.getAvailableCredit());
+		assertEquals(0, debited.compareTo(limit.getUsedCredit()), "used " + limit.getUsedCredit());
+		assertEquals(0, debited.compareTo(limit.getOutstandingAmount()), "outstanding " + limit.getOutstandingAmount());
+		assertEquals(DEBITS, limit.getUsedUnits());
+		assertEquals(DEBITS, creditLedgerService.countTransactions(retailer.getId()));
+	}
+
+	@Test
+	void concurrentDebitsNeverOverdrawTheCredit() throws Exception {
+		createLimit(new BigDecimal("1000.00"), 0);
+
+		Map<DebitResult.Outcome, Integer> outcomes = debitConcurrently();
+
+		// 81 x 12.34 = 999.54 fits, the 82nd does not
+		RetailerLimit limit = retailerLimitRepository.findByRetailer_Id(retailer.getId()).orElseThrow();
+		assertEquals(81, outcomes.getOrDefault(DebitResult.Outcome.DEBITED, 0));
+		assertEquals(DEBITS - 81, outcomes.getOrDefault(DebitResult.Outcome.INSUFFICIENT_CREDIT, 0));
+		assertEquals(0, new BigDecimal("0.46").compareTo(limit.getAvailableCredit()), "available " + limit.getAvailableCredit());
+		assertEquals(0, new BigDecimal("999.54").compareTo(limit.getUsedCredit()), "used " + limit.getUsedCredit());
+		assertEquals(81, creditLedgerService.countTransactions(retailer.getId()));
+	}
+
+	@Test
+	void concurrentDebitsStopAtTheUnitLimit() throws Exception {
+		createLimit(new BigDecimal("10000.00"), 50);
+
+		Map<DebitResult.Outcome, Integer> outcomes = debitConcurrently();
+
+		RetailerLimit limit = retailerLimitRepository.findByRetailer_Id(retailer.getId()).orElseThrow();
+		assertEquals(50, outcomes.getOrDefault(DebitResult.Outcome.DEBITED, 0));
+		assertEquals(DEBITS - 50, outcomes.getOrDefault(DebitResult.Outcome.UNIT_LIMIT_REACHED, 0));
+		assertEquals(0, limit.getAvailableUnits());
+		assertEquals(50, limit.getUsedUnits());
+		assertEquals(0, new BigDecimal("9383.00").compareTo(limit.getAvailableCredit()), "available " + limit.getAvailableCredit());
+	}
+
+	private void createLimit(BigDecimal creditLimit, int unitLimit) {
+		RetailerLimit limit = new RetailerLimit(retailer, creditLimit);
+		limit.setUnitLimit(unitLimit);
+		retailerLimitRepository.save(limit);
+	}
+
+	/**
+	 * Fire DEBITS one-unit debits of PRICE from THREADS workers at once; returns how many ended in each outcome
+	 */
+	private Map<DebitResult.Outcome, Integer> debitConcurrently() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		CountDownLatch start = new CountDownLatch(1);
+		try {
+			List<Future<DebitResult>> futures = new ArrayList<>(DEBITS);
+			for (int i = 0; i < DEBITS; i++) {
+				String orderId = "TEST-ORDER-" + i;
+				futures.add(executor.submit(() -> {
+					start.await();
+					return retailerCreditService.debit(retailer.getId(), PRICE, 1, orderId, "Concurrency test");
+				}));
+			}
+			start.countDown();
+
+			Map<DebitResult.Outcome, Integer> outcomes = new EnumMap<>(DebitResult.Outcome.class);
+			for (Future<DebitResult> future : futures) {
+				outcomes.merge(future.get().getOutcome(), 1, Integer::sum);
+			}
+			System.out.println("📊 " + DEBITS + " concurrent debits: " + outcomes);
+			return outcomes;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package com.example.topup.demo;
+
+import com.mongodb.DBRef;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Sorts;
+import org.bson.Document;
+import org.bson.types.Decimal128;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Credit write of one purchase for a retailer with 50,000 historical credit transactions:
+ *   - embeddedHistory: the limit document carries the history (RetailerLimit.transactions):
+ *     load the whole limit, append the transaction, save (replace) the whole limit
+ *   - ledgerHistory: the limit keeps only balances: load and save the small limit, then
+ *     insert one credit_ledger entry (CreditLedgerService)
+ * plus historyPage: the first 50-entry page of the ledger, newest first.
+ * The appended transactions are trimmed back after every iteration.
+ * Needs a scratch MongoDB (database topup_ledger_benchmark is dropped):
+ *   ./mvnw test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.example.topup.demo.RetailerCreditLedgerBenchmark
+ *   -Dbenchmark.mongo.uri=mongodb://localhost:27017
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RetailerCreditLedgerBenchmark {
+
+	private static final String DATABASE = "topup_ledger_benchmark";
+	private static final int HISTORY = 50_000;
+	private static final String RETAILER = "retailer-1";
+
+	private MongoClient client;
+	private MongoCollection<Document> embeddedLimits;
+	private MongoCollection<Document> limits;
+	private MongoCollection<Document> ledger;
+	private long sequence;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		client = MongoClients.create(System.getProperty("benchmark.mongo.uri", "mongodb://localhost:27017"));
+		client.getDatabase(DATABASE).drop();
+		embeddedLimits = client.getDatabase(DATABASE).getCollection("retailer_limits_embedded");
+		limits = client.getDatabase(DATABASE).getCollection("retailer_limits");
+		ledger = client.getDatabase(DATABASE).getCollection("credit_ledger");
+		embeddedLimits.createIndex(Indexes.ascending("retailer.$id"));
+		limits.createIndex(Indexes.ascending("retailer.$id"));
+		ledger.createIndex(Indexes.compoundIndex(Indexes.ascending("retailerId"), Indexes.descending("transactionDate", "_id")),
+			new IndexOptions().name("retailer_date_idx"));
+
+		List<Document> history = new ArrayList<>(HISTORY);
+		List<Document> entries = new ArrayList<>(HISTORY);
+		long start = System.currentTimeMillis() - HISTORY * 60_000L;
+		for (int i = 0; i < HISTORY; i++) {
+			Document transaction = transaction(new Date(start + i * 60_000L), "order-" + i);
+			history.add(transaction);
+			entries.add(new Document(transaction).append("retailerId", RETAILER).append("retailerLimitId", "limit-1"));
+		}
+		embeddedLimits.insertOne(limit().append("transactions", history));
+		limits.insertOne(limit());
+		for (int i = 0; i < HISTORY; i += 5000) {
+			ledger.insertMany(entries.subList(i, Math.min(i + 5000, HISTORY)));
+		}
+	}
+
+	@TearDown(Level.Iteration)
+	public void trimHistory() {
+		Document embedded = embeddedLimits.find(Filters.eq("_id", "limit-1")).first();
+		List<Document> history = embedded.getList("transactions", Document.class);
+		embeddedLimits.replaceOne(Filters.eq("_id", "limit-1"), embedded.append("transactions", new ArrayList<>(history.subList(0, HISTORY))));
+		ledger.deleteMany(Filters.regex("referenceOrderId", "^bench-"));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		client.getDatabase(DATABASE).drop();
+		client.close();
+	}
+
+	@Benchmark
+	public int embeddedHistory() {
+		Document limit = embeddedLimits.find(Filters.eq("retailer.$id", RETAILER)).first();
+		List<Document> history = limit.getList("transactions", Document.class);
+		history.add(transaction(new Date(), "bench-" + sequence++));
+		embeddedLimits.replaceOne(Filters.eq("_id", limit.get("_id")), limit);
+		return history.size();
+	}
+
+	@Benchmark
+	public int ledgerHistory() {
+		Document limit = limits.find(Filters.eq("retailer.$id", RETAILER)).first();
+		limits.replaceOne(Filters.eq("_id", limit.get("_id")), limit);
+		ledger.insertOne(transaction(new Date(), "bench-" + sequence++).append("retailerId", RETAILER).append("retailerLimitId", "limit-1"));
+		return limit.size();
+	}
+
+	@Benchmark
+	public int historyPage() {
+		return ledger.find(Filters.eq("retailerId", RETAILER))
+			.sort(Sorts.descending("transactionDate", "_id")).limit(50).into(new ArrayList<>()).size();
+	}
+
+	private static Document limit() {
+		return new Document("_id", "limit-1")
+			.append("retailer", new DBRef("users", RETAILER))
+			.append("creditLimit", new Decimal128(new BigDecimal("1000000")))
+			.append("availableCredit", new Decimal128(new BigDecimal("500000")))
+			.append("usedCredit", new Decimal128(new BigDecimal("500000")))
+			.append("outstandingAmount", new Decimal128(new BigDecimal("500000")))
+			.append("status", "ACTIVE");
+	}
+
+	private static Document transaction(Date date, String orderId) {
+		return new Document("transactionId", "TXN" + date.getTime())
+			.append("type", "ORDER_PLACED")
+			.append("amount", new Decimal128(new BigDecimal("99.00")))
+			.append("balanceAfter", new Decimal128(new BigDecimal("500000.00")))
+			.append("transactionDate", date)
+			.append("description", "Bundle purchase: 1 x Lyca 100")
+			.append("referenceOrderId", orderId);
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+			.include(RetailerCreditLedgerBenchmark.class.getSimpleName())
+			.build()).run();
+	}
+}
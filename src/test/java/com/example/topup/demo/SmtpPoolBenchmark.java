@@ -0,0 +1,229 @@
+package com.example.topup.demo;
+
+import com.example.topup.demo.service.SmtpTransportPool;
+import jakarta.mail.internet.MimeMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.mail.javamail.MimeMessageHelper;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Messages per second for a run of 1,000 low-credit alerts against an in-process SMTP stand-in:
+ * JavaMailSender.send (a connection per message) against SmtpTransportPool (batches over pooled
+ * connections), on one worker and on the mail queue's default four. The stand-in speaks plain SMTP
+ * without STARTTLS/AUTH, so the per-connection cost here is a lower bound of a real server's.
+ * Run with: ./mvnw test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.example.topup.demo.SmtpPoolBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SmtpPoolBenchmark {
+
+	private static final int ALERTS = 1000;
+
+	@Param({"1", "4"})
+	private int workers;
+
+	private SmtpStandIn server;
+	private JavaMailSenderImpl sender;
+	private SmtpTransportPool pool;
+	private ExecutorService executor;
+	private List<List<MimeMessage>> batches;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		server = new SmtpStandIn();
+
+		sender = new JavaMailSenderImpl();
+		sender.setHost("127.0.0.1");
+		sender.setPort(server.getPort());
+		pool = new SmtpTransportPool(sender, true, workers, 100, 30_000);
+		executor = Executors.newFixedThreadPool(workers);
+
+		List<MimeMessage> alerts = new ArrayList<>(ALERTS);
+		for (int i = 0; i < ALERTS; i++) {
+			MimeMessage message = sender.createMimeMessage();
+			MimeMessageHelper helper = new MimeMessageHelper(message, true, "UTF-8");
+			helper.setFrom("alerts@topuppro.com");
+			helper.setTo("retailer-" + i + "@example.com");
+			helper.setSubject("Low Credit Alert - TopUp Pro");
+			helper.setText("<html><body><h2>Low credit</h2><p>Your available credit is NOK "
+				+ (i % 100) + ".00. Please top up to keep selling.</p></body></html>", true);
+			message.saveChanges();
+			alerts.add(message);
+		}
+		// Split the run the way MailQueueService spreads a poll over its workers
+		batches = new ArrayList<>();
+		int perWorker = (ALERTS + workers - 1) / workers;
+		for (int from = 0; from < ALERTS; from += perWorker) {
+			batches.add(alerts.subList(from, Math.min(from + perWorker, ALERTS)));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		executor.shutdown();
+		pool.shutdown();
+		server.close();
+		System.out.println("\nSMTP stand-in: " + server.connections.get() + " connection(s), "
+			+ server.messages.get() + " message(s); pool " + pool.getMetrics());
+	}
+
+	// Baseline: what the bulk alert and invoice runs did - a new connection per message
+	@Benchmark
+	@OperationsPerInvocation(ALERTS)
+	public void sendSingle() throws Exception {
+		run(batch -> {
+			for (MimeMessage message : batch) {
+				sender.send(message);
+			}
+		});
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ALERTS)
+	public void sendPooled() throws Exception {
+		run(batch -> {
+			try (SmtpTransportPool.Lease connection = pool.acquire()) {
+				for (MimeMessage message : batch) {
+					connection.send(message);
+				}
+			}
+		});
+	}
+
+	private void run(BatchSender batchSender) throws Exception {
+		List<Future<?>> futures = new ArrayList<>();
+		for (List<MimeMessage> batch : batches) {
+			futures.add(executor.submit(() -> {
+				batchSender.send(batch);
+				return null;
+			}));
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+	}
+
+	@FunctionalInterface
+	private interface BatchSender {
+		void send(List<MimeMessage> batch) throws Exception;
+	}
+
+	/**
+	 * Minimal SMTP server on a loopback port: accepts every command and swallows the mail
+	 */
+	static class SmtpStandIn implements AutoCloseable {
+
+		final AtomicLong connections = new AtomicLong();
+		final AtomicLong messages = new AtomicLong();
+
+		private final ServerSocket socket;
+		private final ExecutorService handlers = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "smtp-stand-in");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		SmtpStandIn() throws IOException {
+			socket = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+			handlers.execute(() -> {
+				while (!socket.isClosed()) {
+					try {
+						Socket client = socket.accept();
+						connections.incrementAndGet();
+						handlers.execute(() -> handle(client));
+					} catch (IOException e) {
+						// Closed
+					}
+				}
+			});
+		}
+
+		int getPort() {
+			return socket.getLocalPort();
+		}
+
+		private void handle(Socket client) {
+			try (client) {
+				client.setTcpNoDelay(true);
+				BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.ISO_8859_1));
+				OutputStream out = client.getOutputStream();
+				reply(out, "220 localhost ESMTP stand-in");
+				String line;
+				while ((line = in.readLine()) != null) {
+					String command = line.length() >= 4 ? line.substring(0, 4).toUpperCase() : line.toUpperCase();
+					switch (command) {
+						case "EHLO", "HELO" -> reply(out, "250 localhost");
+						case "DATA" -> {
+							reply(out, "354 End data with <CR><LF>.<CR><LF>");
+							while ((line = in.readLine()) != null && !line.equals(".")) {
+								// Discard the message
+							}
+							messages.incrementAndGet();
+							reply(out, "250 OK queued");
+						}
+						case "QUIT" -> {
+							reply(out, "221 Bye");
+							return;
+						}
+						default -> reply(out, "250 OK"); // MAIL, RCPT, RSET, NOOP
+					}
+				}
+			} catch (IOException e) {
+				// Client went away
+			}
+		}
+
+		private void reply(OutputStream out, String line) throws IOException {
+			out.write((line + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			socket.close();
+			handlers.shutdownNow();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+			.include(SmtpPoolBenchmark.class.getSimpleName())
+			.build()).run();
+	}
+}
@@ -0,0 +1,170 @@
+package com.example.topup.demo;
+
+import com.example.topup.demo.entity.StockPool;
+import com.example.topup.demo.entity.StockPool.StockItem;
+import com.example.topup.demo.service.FefoAllocationStrategy;
+import com.example.topup.demo.service.FifoAllocationStrategy;
+import com.example.topup.demo.service.StockAllocationStrategy;
+import com.example.topup.demo.service.SupplierPreferenceAllocationStrategy;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one allocation pick over 100k items in 20 pools of one product:
+ * the indexed strategy plans (fifo, fefo, supplier) against a FEFO pick that scans
+ * the AVAILABLE items in memory. Each operation claims an item and puts it back,
+ * so the data set stays the same for the whole run.
+ * Needs a scratch MongoDB (database topup_allocation_benchmark is dropped):
+ *   ./mvnw test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.example.topup.demo.StockAllocationBenchmark
+ *   -Dbenchmark.mongo.uri=mongodb://localhost:27017
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StockAllocationBenchmark {
+
+	private static final String DATABASE = "topup_allocation_benchmark";
+	private static final int POOLS = 20;
+	private static final int ITEMS = 100_000;
+	private static final int BATCH = 5_000;
+
+	@Param({"fifo", "fefo", "supplier"})
+	private String strategyName;
+
+	private MongoClient client;
+	private MongoTemplate mongoTemplate;
+	private StockAllocationStrategy strategy;
+	private final List<String> poolIds = new ArrayList<>();
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		client = MongoClients.create(System.getProperty("benchmark.mongo.uri", "mongodb://localhost:27017"));
+		mongoTemplate = new MongoTemplate(client, DATABASE);
+		mongoTemplate.getDb().drop();
+
+		// Same allocation indexes as StockItemMigration
+		mongoTemplate.getCollection("stock_items").createIndex(
+			Indexes.ascending("poolId", "status", "addedDate", "_id"), new IndexOptions().name("pool_status_added_idx"));
+		mongoTemplate.getCollection("stock_items").createIndex(
+			Indexes.ascending("poolId", "status", "expiryDate", "addedDate", "_id"), new IndexOptions().name("pool_status_expiry_idx"));
+
+		Random random = new Random(42);
+		LocalDateTime now = LocalDateTime.now();
+		for (int p = 0; p < POOLS; p++) {
+			StockPool pool = new StockPool();
+			pool.setName("Benchmark pool " + p);
+			pool.setStockType(StockPool.StockType.EPIN);
+			pool.setProductId("benchmark-product");
+			pool.setSupplier("Supplier-" + (p % 4));
+			poolIds.add(mongoTemplate.insert(pool).getId());
+		}
+
+		List<StockItem> batch = new ArrayList<>(BATCH);
+		for (int i = 0; i < ITEMS; i++) {
+			StockItem item = new StockItem("pin-" + i, "serial-" + i);
+			item.setItemId(UUID.randomUUID().toString());
+			item.setPoolId(poolIds.get(i % POOLS));
+			item.setStockType(StockPool.StockType.EPIN);
+			item.setAddedDate(now.minusMinutes(random.nextInt(100_000)));
+			// One in ten items has no expiry date
+			if (random.nextInt(10) != 0) {
+				item.setExpiryDate(now.plusDays(1 + random.nextInt(365)));
+			}
+			batch.add(item);
+			if (batch.size() == BATCH) {
+				mongoTemplate.insert(batch, StockItem.class);
+				batch = new ArrayList<>(BATCH);
+			}
+		}
+
+		switch (strategyName) {
+			case "fifo": strategy = new FifoAllocationStrategy(); break;
+			case "fefo": strategy = new FefoAllocationStrategy(); break;
+			default: strategy = new SupplierPreferenceAllocationStrategy(mongoTemplate, "Supplier-2,Supplier-0"); break;
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mongoTemplate.getDb().drop();
+		client.close();
+	}
+
+	@Benchmark
+	public StockItem indexedPick() {
+		for (StockAllocationStrategy.ClaimAttempt attempt : strategy.plan(poolIds)) {
+			Query query = new Query(attempt.getCriteria())
+				.addCriteria(Criteria.where("status").is(StockItem.ItemStatus.AVAILABLE))
+				.with(attempt.getSort());
+			StockItem item = mongoTemplate.findAndModify(query, new Update().set("status", StockItem.ItemStatus.ASSIGNED),
+				FindAndModifyOptions.options().returnNew(true), StockItem.class);
+			if (item != null) {
+				release(item);
+				return item;
+			}
+		}
+		throw new IllegalStateException("Benchmark pools ran out of stock");
+	}
+
+	// Baseline: read every AVAILABLE item of the product and pick the earliest expiry in memory
+	@Benchmark
+	public StockItem scanPick() {
+		Query query = new Query(Criteria.where("poolId").in(poolIds).and("status").is(StockItem.ItemStatus.AVAILABLE));
+		query.fields().include("_id").include("expiryDate").include("addedDate");
+		StockItem earliest = mongoTemplate.find(query, StockItem.class).stream()
+			.min(Comparator.comparing(StockItem::getExpiryDate, Comparator.nullsLast(Comparator.naturalOrder())))
+			.orElseThrow(() -> new IllegalStateException("Benchmark pools ran out of stock"));
+
+		StockItem item = mongoTemplate.findAndModify(
+			new Query(Criteria.where("_id").is(earliest.getItemId()).and("status").is(StockItem.ItemStatus.AVAILABLE)),
+			new Update().set("status", StockItem.ItemStatus.ASSIGNED),
+			FindAndModifyOptions.options().returnNew(true), StockItem.class);
+		release(item);
+		return item;
+	}
+
+	private void release(StockItem item) {
+		mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(item.getItemId())),
+			new Update().set("status", StockItem.ItemStatus.AVAILABLE), StockItem.class);
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+			.include(StockAllocationBenchmark.class.getSimpleName())
+			.build()).run();
+	}
+}
@@ -0,0 +1,112 @@
+package com.example.topup.demo;
+
+import com.example.topup.demo.entity.StockPool;
+import com.example.topup.demo.entity.StockPool.StockItem;
+import com.example.topup.demo.repository.StockItemRepository;
+import com.example.topup.demo.repository.StockPoolRepository;
+import com.example.topup.demo.service.StockAllocationService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@SpringBootTest
+class StockAllocationConcurrencyTests {
+
+	private static final int ITEMS = 500;
+	private static final int THREADS = 32;
+
+	@Autowired
+	private StockAllocationService stockAllocationService;
+
+	@Autowired
+	private StockPoolRepository stockPoolRepository;
+
+	@Autowired
+	private StockItemRepository stockItemRepository;
+
+	private final String run = UUID.randomUUID().toString();
+
+	private StockPool pool;
+
+	@BeforeEach
+	void createPool() {
+		pool = new StockPool();
+		pool.setName("Concurrency test pool");
+		pool.setStockType(StockPool.StockType.EPIN);
+		pool.setStatus(StockPool.StockStatus.ACTIVE);
+		pool = stockPoolRepository.save(pool);
+		refillPool();
+	}
+
+	@AfterEach
+	void deletePool() {
+		stockItemRepository.deleteByPoolId(pool.getId());
+		stockPoolRepository.deleteById(pool.getId());
+	}
+
+	@Test
+	void parallelClaimsNeverHandOutTheSameItem() throws Exception {
+		List<String> claimed = runParallel(() -> stockAllocationService
+			.claimNextItem(pool.getId(), StockItem.ItemStatus.ASSIGNED, "TEST-ORDER", null, null)
+			.map(StockItem::getItemId)
+			.orElse(null));
+
+		assertEquals(ITEMS, claimed.size());
+		assertEquals(ITEMS, new HashSet<>(claimed).size(), "an item was claimed twice");
+		assertEquals(0, stockItemRepository.countByPoolIdAndStatus(pool.getId(), StockItem.ItemStatus.AVAILABLE));
+		assertEquals(ITEMS, stockItemRepository.countByPoolIdAndStatus(pool.getId(), StockItem.ItemStatus.ASSIGNED));
+	}
+
+	private void refillPool() {
+		List<StockItem> items = new ArrayList<>(ITEMS);
+		for (int i = 0; i < ITEMS; i++) {
+			// Unique per run: serials are unique per stock type across all of stock_items
+			StockItem item = new StockItem("PIN-" + run + "-" + i, "SN-" + run + "-" + i);
+			item.setPoolId(pool.getId());
+			item.setStockType(StockPool.StockType.EPIN);
+			items.add(item);
+		}
+		stockItemRepository.insert(items);
+	}
+
+	/**
+	 * Keep claiming from THREADS workers until the pool runs dry; returns every claimed item id
+	 */
+	private List<String> runParallel(Callable<String> claim) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<List<String>>> futures = new ArrayList<>();
+			for (int t = 0; t < THREADS; t++) {
+				futures.add(executor.submit(() -> {
+					List<String> ids = new ArrayList<>();
+					String id;
+					while ((id = claim.call()) != null) {
+						ids.add(id);
+					}
+					return ids;
+				}));
+			}
+
+			List<String> all = new ArrayList<>();
+			for (Future<List<String>> future : futures) {
+				all.addAll(future.get());
+			}
+			return all;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
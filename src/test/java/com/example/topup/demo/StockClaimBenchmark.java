@@ -0,0 +1,134 @@
+package com.example.topup.demo;
+
+import com.example.topup.demo.entity.StockPool;
+import com.example.topup.demo.entity.StockPool.StockItem;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Claims per second from one pool of 500 items on 32 threads: the atomic find-and-modify claim
+ * against the previous read, flip in Java, save path. Each operation puts its item back, so the
+ * pool never runs dry. A load-modify-save claim that saves an item another thread already took
+ * counts as a duplicate (printed at the end); the atomic claim has none.
+ * Needs a scratch MongoDB (database topup_claim_benchmark is dropped):
+ *   ./mvnw test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.example.topup.demo.StockClaimBenchmark
+ *   -Dbenchmark.mongo.uri=mongodb://localhost:27017
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(32)
+@Fork(1)
+public class StockClaimBenchmark {
+
+	private static final String DATABASE = "topup_claim_benchmark";
+	private static final int ITEMS = 500;
+
+	private MongoClient client;
+	private MongoTemplate mongoTemplate;
+	private String poolId;
+	private final AtomicLong duplicates = new AtomicLong();
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		client = MongoClients.create(System.getProperty("benchmark.mongo.uri", "mongodb://localhost:27017"));
+		mongoTemplate = new MongoTemplate(client, DATABASE);
+		mongoTemplate.getDb().drop();
+		mongoTemplate.getCollection("stock_items").createIndex(
+			Indexes.ascending("poolId", "status"), new IndexOptions().name("pool_status_idx"));
+
+		StockPool pool = new StockPool();
+		pool.setName("Claim benchmark pool");
+		pool.setStockType(StockPool.StockType.EPIN);
+		poolId = mongoTemplate.insert(pool).getId();
+
+		List<StockItem> items = new ArrayList<>(ITEMS);
+		for (int i = 0; i < ITEMS; i++) {
+			StockItem item = new StockItem("pin-" + i, "serial-" + i);
+			item.setItemId(UUID.randomUUID().toString());
+			item.setPoolId(poolId);
+			item.setStockType(StockPool.StockType.EPIN);
+			items.add(item);
+		}
+		mongoTemplate.insert(items, StockItem.class);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		System.out.println("\nLoad-modify-save duplicates: " + duplicates.get());
+		mongoTemplate.getDb().drop();
+		client.close();
+	}
+
+	@Benchmark
+	public StockItem atomicClaim() {
+		StockItem item = mongoTemplate.findAndModify(
+			new Query(Criteria.where("poolId").is(poolId).and("status").is(StockItem.ItemStatus.AVAILABLE)),
+			new Update().set("status", StockItem.ItemStatus.ASSIGNED).set("assignedToOrderId", "BENCHMARK"),
+			FindAndModifyOptions.options().returnNew(true), StockItem.class);
+		if (item != null) {
+			release(item);
+		}
+		return item;
+	}
+
+	// Baseline: what claimNextItem did before - read the first AVAILABLE item, flip it in Java, save it back
+	@Benchmark
+	public StockItem loadModifySave() {
+		StockItem item = mongoTemplate.findOne(
+			new Query(Criteria.where("poolId").is(poolId).and("status").is(StockItem.ItemStatus.AVAILABLE)), StockItem.class);
+		if (item == null) {
+			return null;
+		}
+		item.setStatus(StockItem.ItemStatus.ASSIGNED);
+		item.setAssignedToOrderId("BENCHMARK");
+		StockItem before = mongoTemplate.findAndReplace(new Query(Criteria.where("_id").is(item.getItemId())), item);
+		if (before != null && before.getStatus() != StockItem.ItemStatus.AVAILABLE) {
+			duplicates.incrementAndGet();
+		}
+		release(item);
+		return item;
+	}
+
+	private void release(StockItem item) {
+		mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(item.getItemId())),
+			new Update().set("status", StockItem.ItemStatus.AVAILABLE).unset("assignedToOrderId"), StockItem.class);
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+			.include(StockClaimBenchmark.class.getSimpleName())
+			.build()).run();
+	}
+}
@@ -0,0 +1,127 @@
+package com.example.topup.demo;
+
+import com.example.topup.demo.service.StockCryptoService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the stock crypto engine: single values against a fresh Cipher per
+ * call, and batches as used by bulk uploads/exports.
+ * Run with: ./mvnw test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.example.topup.demo.StockCryptoBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StockCryptoBenchmark {
+
+	private static final String KEY = "benchmarkStockEncryptionKey";
+
+	@Param({"1000", "10000"})
+	private int batchSize;
+
+	private StockCryptoService crypto;
+	private SecretKeySpec rawKey;
+	private final SecureRandom random = new SecureRandom();
+
+	private String pin;
+	private String encryptedPin;
+	private List<String> pins;
+	private List<String> encryptedPins;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		crypto = new StockCryptoService(KEY);
+		rawKey = new SecretKeySpec(MessageDigest.getInstance("SHA-256")
+			.digest(KEY.getBytes(StandardCharsets.UTF_8)), "AES");
+
+		pin = pin(0);
+		encryptedPin = crypto.encrypt(pin);
+
+		pins = new ArrayList<>(batchSize);
+		for (int i = 0; i < batchSize; i++) {
+			pins.add(pin(i));
+		}
+		encryptedPins = crypto.encryptAll(pins);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		crypto.shutdown();
+	}
+
+	@Benchmark
+	public String encryptSingle() {
+		return crypto.encrypt(pin);
+	}
+
+	@Benchmark
+	public String decryptSingle() {
+		return crypto.decrypt(encryptedPin);
+	}
+
+	// Baseline: what a naive drop-in does - Cipher.getInstance on every call
+	@Benchmark
+	public byte[] encryptSingleNewCipher() throws Exception {
+		byte[] iv = new byte[12];
+		random.nextBytes(iv);
+		Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		cipher.init(Cipher.ENCRYPT_MODE, rawKey, new GCMParameterSpec(128, iv));
+		return cipher.doFinal(pin.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Benchmark
+	public List<String> encryptBatch() {
+		return crypto.encryptAll(pins);
+	}
+
+	@Benchmark
+	public List<String> decryptBatch() {
+		return crypto.decryptAll(encryptedPins);
+	}
+
+	// Baseline: the same batch one value at a time on the calling thread
+	@Benchmark
+	public void decryptBatchSequential(Blackhole blackhole) {
+		for (String value : encryptedPins) {
+			blackhole.consume(crypto.decrypt(value));
+		}
+	}
+
+	private static String pin(int i) {
+		return String.format("%016d", 7_300_000_000_000_000L + i);
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+			.include(StockCryptoBenchmark.class.getSimpleName())
+			.build()).run();
+	}
+}
@@ -0,0 +1,162 @@
+package com.example.topup.demo;
+
+import com.example.topup.demo.service.BloomFilter;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upload duplicate check throughput (rows/s) for a 500k-row file against a 5M-item inventory,
+ * 2% of the rows being PINs that are already in stock:
+ *   - chunkQuery: one $in lookup of all 1000 hashes per chunk (the check before the Bloom filter)
+ *   - bloomThenQuery: Bloom filter first, $in lookup of the filter hits only (StockDedupeService)
+ *   - bloomOnly: the in-memory filter pass on its own
+ * Needs a scratch MongoDB (database topup_dedupe_benchmark is dropped; loading 5M items takes a while):
+ *   ./mvnw test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.example.topup.demo.StockDedupeBenchmark
+ *   -Dbenchmark.mongo.uri=mongodb://localhost:27017
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class StockDedupeBenchmark {
+
+	private static final String DATABASE = "topup_dedupe_benchmark";
+	private static final int INVENTORY = 5_000_000;
+	private static final int FILE_ROWS = 500_000;
+	private static final int CHUNK = 1000;
+	private static final int INSERT_BATCH = 10_000;
+
+	private MongoClient client;
+	private MongoCollection<Document> items;
+	private BloomFilter filter;
+	private final List<String> fileHashes = new ArrayList<>(FILE_ROWS);
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		client = MongoClients.create(System.getProperty("benchmark.mongo.uri", "mongodb://localhost:27017"));
+		client.getDatabase(DATABASE).drop();
+		items = client.getDatabase(DATABASE).getCollection("stock_items");
+		items.createIndex(Indexes.ascending("itemDataHash"), new IndexOptions().name("itemDataHash_unique").unique(true)
+			.partialFilterExpression(new Document("itemDataHash", new Document("$type", "string"))));
+
+		// Same sizing as app.stock.dedupe.* defaults
+		filter = new BloomFilter(10_000_000, 0.001);
+		List<Document> batch = new ArrayList<>(INSERT_BATCH);
+		for (int i = 0; i < INVENTORY; i++) {
+			String hash = hash(i);
+			batch.add(new Document("_id", "item-" + i).append("itemDataHash", hash).append("stockType", "EPIN"));
+			filter.put(hash);
+			if (batch.size() == INSERT_BATCH) {
+				items.insertMany(batch);
+				batch = new ArrayList<>(INSERT_BATCH);
+			}
+		}
+
+		Random random = new Random(42);
+		for (int i = 0; i < FILE_ROWS; i++) {
+			fileHashes.add(random.nextInt(50) == 0 ? hash(random.nextInt(INVENTORY)) : hash(INVENTORY + i));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		client.getDatabase(DATABASE).drop();
+		client.close();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FILE_ROWS)
+	public long chunkQuery() {
+		long duplicates = 0;
+		for (int start = 0; start < FILE_ROWS; start += CHUNK) {
+			duplicates += lookup(fileHashes.subList(start, start + CHUNK));
+		}
+		return duplicates;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FILE_ROWS)
+	public long bloomThenQuery() {
+		long duplicates = 0;
+		List<String> candidates = new ArrayList<>(CHUNK);
+		for (int start = 0; start < FILE_ROWS; start += CHUNK) {
+			candidates.clear();
+			for (String hash : fileHashes.subList(start, start + CHUNK)) {
+				if (filter.mightContain(hash)) {
+					candidates.add(hash);
+				}
+			}
+			if (!candidates.isEmpty()) {
+				duplicates += lookup(candidates);
+			}
+		}
+		return duplicates;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FILE_ROWS)
+	public long bloomOnly() {
+		long hits = 0;
+		for (String hash : fileHashes) {
+			if (filter.mightContain(hash)) {
+				hits++;
+			}
+		}
+		return hits;
+	}
+
+	private long lookup(List<String> hashes) {
+		long found = 0;
+		for (Document ignored : items.find(Filters.in("itemDataHash", hashes)).projection(Projections.include("itemDataHash"))) {
+			found++;
+		}
+		return found;
+	}
+
+	// Stand-in for the HMAC lookup hash: 32 bytes, URL-safe Base64
+	private static String hash(long value) {
+		Random random = new Random(value);
+		ByteBuffer buffer = ByteBuffer.allocate(32);
+		for (int i = 0; i < 4; i++) {
+			buffer.putLong(random.nextLong());
+		}
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+			.include(StockDedupeBenchmark.class.getSimpleName())
+			.build()).run();
+	}
+}
@@ -0,0 +1,138 @@
+package com.example.topup.demo;
+
+import com.example.topup.demo.entity.StockPool;
+import com.example.topup.demo.entity.StockPool.StockItem;
+import com.example.topup.demo.service.StockCryptoService;
+import com.example.topup.demo.service.StockLookupHashService;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of finding a stock item by its plain PIN in a pool of 10k and 100k encrypted items:
+ * the indexed itemDataHash lookup against decrypting and comparing every item of the pool.
+ * Needs a scratch MongoDB (database topup_lookup_benchmark is dropped):
+ *   ./mvnw test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.example.topup.demo.StockLookupHashBenchmark
+ *   -Dbenchmark.mongo.uri=mongodb://localhost:27017
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StockLookupHashBenchmark {
+
+	private static final String DATABASE = "topup_lookup_benchmark";
+	private static final int BATCH = 5_000;
+
+	@Param({"10000", "100000"})
+	private int size;
+
+	private MongoClient client;
+	private MongoTemplate mongoTemplate;
+	private StockCryptoService crypto;
+	private StockLookupHashService lookupHash;
+	private String poolId;
+	private final Random random = new Random(42);
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		client = MongoClients.create(System.getProperty("benchmark.mongo.uri", "mongodb://localhost:27017"));
+		mongoTemplate = new MongoTemplate(client, DATABASE);
+		mongoTemplate.getDb().drop();
+		crypto = new StockCryptoService("benchmarkStockEncryptionKey");
+		lookupHash = new StockLookupHashService("benchmarkLookupHashKey");
+
+		// Indexes a PIN lookup uses in stock_items
+		mongoTemplate.getCollection("stock_items").createIndex(
+			Indexes.ascending("poolId", "status"), new IndexOptions().name("pool_status_idx"));
+		mongoTemplate.getCollection("stock_items").createIndex(
+			Indexes.ascending("itemDataHash"), new IndexOptions().name("itemDataHash"));
+
+		StockPool pool = new StockPool();
+		pool.setName("Lookup benchmark pool");
+		pool.setStockType(StockPool.StockType.EPIN);
+		poolId = mongoTemplate.insert(pool).getId();
+
+		List<StockItem> batch = new ArrayList<>(BATCH);
+		for (int i = 0; i < size; i++) {
+			String pin = pin(i);
+			StockItem item = new StockItem(crypto.encrypt(pin), "serial-" + i);
+			item.setItemId(UUID.randomUUID().toString());
+			item.setItemDataHash(lookupHash.hash(pin));
+			item.setPoolId(poolId);
+			item.setStockType(StockPool.StockType.EPIN);
+			batch.add(item);
+			if (batch.size() == BATCH) {
+				mongoTemplate.insert(batch, StockItem.class);
+				batch = new ArrayList<>(BATCH);
+			}
+		}
+		if (!batch.isEmpty()) {
+			mongoTemplate.insert(batch, StockItem.class);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mongoTemplate.getDb().drop();
+		client.close();
+		crypto.shutdown();
+	}
+
+	@Benchmark
+	public StockItem hashLookup() {
+		String pin = pin(random.nextInt(size));
+		return mongoTemplate.findOne(new Query(Criteria.where("poolId").is(poolId)
+			.and("itemDataHash").is(lookupHash.hash(pin))), StockItem.class);
+	}
+
+	// Baseline: what the PIN lookups did before - decrypt every item of the pool and compare
+	@Benchmark
+	public StockItem decryptScan() {
+		String pin = pin(random.nextInt(size));
+		for (StockItem item : mongoTemplate.find(new Query(Criteria.where("poolId").is(poolId)), StockItem.class)) {
+			if (pin.equals(crypto.decrypt(item.getItemData()))) {
+				return item;
+			}
+		}
+		throw new IllegalStateException("PIN not found: " + pin);
+	}
+
+	private static String pin(int i) {
+		return String.format("%016d", 7_300_000_000_000_000L + i);
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+			.include(StockLookupHashBenchmark.class.getSimpleName())
+			.build()).run();
+	}
+}
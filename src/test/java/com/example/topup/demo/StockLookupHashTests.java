@@ -0,0 +1,103 @@
+package com.example.topup.demo;
+
+import com.example.topup.demo.entity.StockPool;
+import com.example.topup.demo.entity.StockPool.StockItem;
+import com.example.topup.demo.repository.StockItemRepository;
+import com.example.topup.demo.repository.StockPoolRepository;
+import com.example.topup.demo.service.StockLookupHashService;
+import com.example.topup.demo.service.StockService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The hash lookup finds the same item as decrypting and comparing every item of the pool.
+ * Timings are in StockLookupHashBenchmark.
+ */
+@SpringBootTest
+class StockLookupHashTests {
+
+	private static final int ITEMS = 50;
+
+	@Autowired
+	private StockService stockService;
+
+	@Autowired
+	private StockLookupHashService stockLookupHashService;
+
+	@Autowired
+	private StockPoolRepository stockPoolRepository;
+
+	@Autowired
+	private StockItemRepository stockItemRepository;
+
+	// Unique per run: PIN hashes and serials are unique across all of stock_items
+	private final long run = ThreadLocalRandom.current().nextLong(1_000_000_000L) * 1_000;
+
+	private String poolId;
+
+	@BeforeEach
+	void createPool() {
+		StockPool pool = new StockPool();
+		pool.setName("Lookup hash test pool");
+		pool.setStockType(StockPool.StockType.EPIN);
+		poolId = stockPoolRepository.save(pool).getId();
+
+		List<StockItem> items = new ArrayList<>(ITEMS);
+		for (int i = 0; i < ITEMS; i++) {
+			String pin = pin(i);
+			StockItem item = new StockItem(stockService.encryptData(pin), "SN-" + run + "-" + i);
+			item.setItemDataHash(stockLookupHashService.hash(pin));
+			item.setPoolId(poolId);
+			item.setStockType(StockPool.StockType.EPIN);
+			items.add(item);
+		}
+		stockItemRepository.insert(items);
+	}
+
+	@AfterEach
+	void deletePool() {
+		stockItemRepository.deleteByPoolId(poolId);
+		stockPoolRepository.deleteById(poolId);
+	}
+
+	@Test
+	void hashLookupFindsTheSameItemAsAScan() {
+		for (int target : new int[] {0, ITEMS / 2, ITEMS - 1}) {
+			String pin = pin(target);
+
+			StockItem scanned = null;
+			for (StockItem item : stockItemRepository.findByPoolId(poolId)) {
+				if (pin.equals(stockService.decryptData(item.getItemData()))) {
+					scanned = item;
+					break;
+				}
+			}
+			Optional<StockItem> hashed = stockService.findItemByValue(poolId, pin);
+
+			assertTrue(hashed.isPresent());
+			assertEquals(scanned.getItemId(), hashed.get().getItemId());
+			assertEquals("SN-" + run + "-" + target, hashed.get().getSerialNumber());
+		}
+	}
+
+	@Test
+	void hashLookupMissesUnknownValues() {
+		assertFalse(stockService.findItemByValue(poolId, pin(ITEMS)).isPresent());
+	}
+
+	private String pin(int i) {
+		return String.format("%016d", 7_300_000_000_000_000L + run + i);
+	}
+}
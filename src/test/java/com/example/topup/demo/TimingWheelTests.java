@@ -0,0 +1,137 @@
+package com.example.topup.demo;
+
+import com.example.topup.demo.service.TimingWheel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimingWheelTests {
+
+	private static final long TICK_MS = 10;
+
+	// 8 buckets of 10ms: deadlines past 80ms go to the overflow levels
+	private TimingWheel wheel;
+
+	@BeforeEach
+	void setUp() {
+		wheel = new TimingWheel("timing-wheel-test", TICK_MS, 8);
+		wheel.start();
+	}
+
+	@AfterEach
+	void tearDown() {
+		wheel.stop();
+	}
+
+	@Test
+	void firesOnceTheDeadlinePasses() throws Exception {
+		CountDownLatch fired = new CountDownLatch(1);
+		long[] firedAt = new long[1];
+		long deadline = System.currentTimeMillis() + 50;
+		wheel.schedule("lease-1", deadline, () -> {
+			firedAt[0] = System.currentTimeMillis();
+			fired.countDown();
+		});
+		assertEquals(1, wheel.size());
+
+		assertTrue(fired.await(2, TimeUnit.SECONDS));
+		// Buckets are tickMs wide, so a timeout may fire up to one tick early
+		assertTrue(firedAt[0] >= deadline - TICK_MS, "fired " + (deadline - firedAt[0]) + "ms early");
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	void cascadesFarDeadlinesThroughTheOverflowLevels() throws Exception {
+		CountDownLatch fired = new CountDownLatch(1);
+		long[] firedAt = new long[1];
+		long deadline = System.currentTimeMillis() + 700; // beyond two levels (80ms, 640ms)
+		wheel.schedule("lease-far", deadline, () -> {
+			firedAt[0] = System.currentTimeMillis();
+			fired.countDown();
+		});
+
+		assertTrue(fired.await(3, TimeUnit.SECONDS));
+		assertTrue(firedAt[0] >= deadline - TICK_MS, "fired " + (deadline - firedAt[0]) + "ms early");
+	}
+
+	@Test
+	void firesInDeadlineOrder() throws Exception {
+		List<String> order = new CopyOnWriteArrayList<>();
+		CountDownLatch fired = new CountDownLatch(3);
+		long now = System.currentTimeMillis();
+		wheel.schedule("c", now + 300, () -> { order.add("c"); fired.countDown(); });
+		wheel.schedule("a", now + 30, () -> { order.add("a"); fired.countDown(); });
+		wheel.schedule("b", now + 120, () -> { order.add("b"); fired.countDown(); });
+
+		assertTrue(fired.await(3, TimeUnit.SECONDS));
+		assertEquals(List.of("a", "b", "c"), order);
+	}
+
+	@Test
+	void pastDeadlineFiresOnTheNextTick() throws Exception {
+		CountDownLatch fired = new CountDownLatch(1);
+		wheel.schedule("expired", System.currentTimeMillis() - 1000, fired::countDown);
+
+		assertTrue(fired.await(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	void cancelledTimeoutNeverFires() throws Exception {
+		CountDownLatch fired = new CountDownLatch(1);
+		wheel.schedule("lease-1", System.currentTimeMillis() + 50, fired::countDown);
+
+		assertTrue(wheel.cancel("lease-1"));
+		assertEquals(0, wheel.size());
+		assertFalse(wheel.cancel("lease-1"));
+		assertFalse(fired.await(200, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	void cancelAfterFiringReturnsFalse() throws Exception {
+		CountDownLatch fired = new CountDownLatch(1);
+		wheel.schedule("lease-1", System.currentTimeMillis() + 20, fired::countDown);
+
+		assertTrue(fired.await(1, TimeUnit.SECONDS));
+		assertFalse(wheel.cancel("lease-1"));
+		assertFalse(wheel.cancel("never-scheduled"));
+	}
+
+	@Test
+	void reschedulingReplacesTheTimeout() throws Exception {
+		List<String> fired = new CopyOnWriteArrayList<>();
+		CountDownLatch done = new CountDownLatch(1);
+		long now = System.currentTimeMillis();
+		wheel.schedule("lease-1", now + 30, () -> fired.add("first"));
+		wheel.schedule("lease-1", now + 150, () -> { fired.add("second"); done.countDown(); });
+		assertEquals(1, wheel.size());
+
+		assertTrue(done.await(2, TimeUnit.SECONDS));
+		assertEquals(List.of("second"), fired);
+	}
+
+	@Test
+	void failingTaskDoesNotStopTheTimer() throws Exception {
+		CountDownLatch fired = new CountDownLatch(1);
+		long now = System.currentTimeMillis();
+		wheel.schedule("broken", now + 20, () -> { throw new IllegalStateException("boom"); });
+		wheel.schedule("next", now + 60, fired::countDown);
+
+		assertTrue(fired.await(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	void rejectsInvalidSizing() {
+		assertThrows(IllegalArgumentException.class, () -> new TimingWheel("bad", 0, 8));
+		assertThrows(IllegalArgumentException.class, () -> new TimingWheel("bad", 10, 1));
+	}
+}